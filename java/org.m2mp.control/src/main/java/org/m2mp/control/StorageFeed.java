@@ -0,0 +1,83 @@
+package org.m2mp.control;
+
+import com.datastax.driver.core.utils.UUIDs;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.simple.JSONValue;
+import org.m2mp.db.ts.TimeSerie;
+import org.m2mp.db.ts.TimedData;
+import org.m2mp.msg.Client;
+import org.m2mp.msg.Message;
+import org.m2mp.msg.MessageHandler;
+
+/**
+ * Feed of the time series subscriptions from the storage topic.
+ *
+ * The points sent to the storage service by the receivers are delivered to the
+ * subscriptions of this process (see TimeSerie.subscribe), without polling the
+ * database. Each process needs its own channel to get all the messages.
+ *
+ * @author florent
+ */
+public class StorageFeed implements MessageHandler, AutoCloseable {
+
+	private static final String CALL_STORE_TS = "store_ts";
+	private final Client client;
+
+	public StorageFeed(String channel) {
+		this(new Client(Message.TOPIC_STORAGE, channel));
+	}
+
+	public StorageFeed(Client client) {
+		this.client = client;
+		client.setHandler(this);
+	}
+
+	@Override
+	public void handleMessage(Message msg) {
+		if (!CALL_STORE_TS.equals(msg.getCall())) {
+			return;
+		}
+		try {
+			TimedData td = convert(msg);
+			if (td != null) {
+				TimeSerie.publish(td);
+			}
+		} catch (RuntimeException ex) {
+			Logger.getLogger(StorageFeed.class.getName()).log(Level.WARNING, "Invalid message: " + msg, ex);
+		}
+	}
+
+	/**
+	 * Convert a store_ts message (same fields as the storage service reads).
+	 *
+	 * @param msg Message
+	 * @return Point or null if it's incomplete
+	 */
+	static TimedData convert(Message msg) {
+		String key = (String) msg.obj().get("key");
+		String type = (String) msg.obj().get("type");
+		Object data = msg.obj().get("data");
+		if (key == null || data == null) {
+			return null;
+		}
+		UUID time;
+		String dateUuid = (String) msg.obj().get("date_uuid");
+		if (dateUuid != null) {
+			time = UUID.fromString(dateUuid);
+		} else {
+			Number dateNano = (Number) msg.obj().get("date_nano");
+			if (dateNano == null) {
+				return null;
+			}
+			time = UUIDs.startOf(dateNano.longValue() / 1000000);
+		}
+		return new TimedData(key, type, time, JSONValue.toJSONString(data));
+	}
+
+	@Override
+	public void close() {
+		client.close();
+	}
+}
@@ -0,0 +1,325 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded asynchronous write pipeline.
+ * <p/>
+ * Statements are sent asynchronously but the number of statements in flight is capped to a number of statements per
+ * host of the cluster. When the cap is reached, callers are either blocked until some statements complete or rejected,
+ * depending on the {@link Policy}.
+ * <p/>
+ * Every submitted statement is tracked until it completes, which allows to wait for all of them before closing the
+ * cluster connection.
+ */
+public class AsyncWriter {
+
+    /**
+     * What to do when the cap of in-flight statements is reached.
+     */
+    public enum Policy {
+        /**
+         * The caller waits until a statement completes.
+         * <p/>
+         * The slots are released by the callbacks of the driver: a statement submitted from a callback (a write
+         * chained on a future for example) can wait on slots that only this thread would release and never return.
+         * Such statements should be submitted from an other executor, or with the {@link #Reject} policy.
+         */
+        Block,
+        /**
+         * The caller gets a {@link RejectedExecutionException}.
+         */
+        Reject
+    }
+
+    /**
+     * Write failure listener.
+     */
+    public interface FailureListener {
+
+        /**
+         * Called when an asynchronous write failed.
+         *
+         * @param statement Statement that failed
+         * @param t         Cause of the failure
+         */
+        void writeFailed(Statement statement, Throwable t);
+    }
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final List<FailureListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong nbSubmitted = new AtomicLong(), nbFailed = new AtomicLong(), nbRejected = new AtomicLong();
+    private int inFlight;
+    private int maxPerHost = 128;
+    private int nbHosts = 1;
+    private Policy policy = Policy.Block;
+    private final DBContext context;
+
+    AsyncWriter(DBContext context) {
+        this.context = context;
+    }
+
+    public Policy getPolicy() {
+        lock.lock();
+        try {
+            return policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the policy applied when the cap is reached. The callers that are waiting for a slot are rejected when it
+     * becomes {@link Policy#Reject}.
+     *
+     * @param policy Policy
+     */
+    public void setPolicy(Policy policy) {
+        lock.lock();
+        try {
+            this.policy = policy;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxPerHost() {
+        lock.lock();
+        try {
+            return maxPerHost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the maximum number of in-flight statements per host.
+     *
+     * @param max Maximum number of statements
+     */
+    public void setMaxPerHost(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("We need at least one statement per host");
+        }
+        lock.lock();
+        try {
+            maxPerHost = max;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the number of hosts the writes are spread on.
+     *
+     * @param nb Number of hosts
+     */
+    void setNbHosts(int nb) {
+        lock.lock();
+        try {
+            nbHosts = Math.max(1, nb);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the current cap of in-flight statements.
+     *
+     * @return Maximum number of in-flight statements
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return maxPerHost * nbHosts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of statements currently in flight.
+     *
+     * @return Number of statements
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getNbSubmitted() {
+        return nbSubmitted.get();
+    }
+
+    public long getNbFailed() {
+        return nbFailed.get();
+    }
+
+    public long getNbRejected() {
+        return nbRejected.get();
+    }
+
+    public void addFailureListener(FailureListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeFailureListener(FailureListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Submit a statement.
+     *
+     * @param statement Statement to execute
+     * @return Future of the result
+     * @throws RejectedExecutionException If the cap is reached and the policy is {@link Policy#Reject}, or if the
+     *                                    calling thread is interrupted while waiting
+     */
+    public ListenableFuture<ResultSet> submit(Statement statement) {
+        acquire();
+        nbSubmitted.incrementAndGet();
+        try {
+            return track(statement, context.executeAsync(statement));
+        } catch (RuntimeException ex) {
+            failed(statement, ex);
+            release();
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
+    /**
+     * Submit a query to the backend of the context.
+     *
+     * @param query  Query to execute
+     * @param values Values to bind
+     * @return Future of the result
+     * @throws RejectedExecutionException If the cap is reached and the policy is {@link Policy#Reject}, or if the
+     *                                    calling thread is interrupted while waiting
+     */
+    public ListenableFuture<ResultSet> submit(String query, Object... values) {
+        acquire();
+        nbSubmitted.incrementAndGet();
+        Statement statement = new SimpleStatement(query, values); // As reported to the failure listeners
+        try {
+            return track(statement, context.executeAsync(query, values));
+        } catch (RuntimeException ex) {
+            failed(statement, ex);
+            release();
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
+    private ListenableFuture<ResultSet> track(final Statement statement, ListenableFuture<ResultSet> future) {
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Reported before the slot is released, so that a drain includes it
+                failed(statement, t);
+                release();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Wait for all the in-flight statements to complete.
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Unit of the timeout
+     * @return true if everything was written, false if the timeout was reached
+     */
+    public boolean drain(long timeout, TimeUnit unit) {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (inFlight > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return inFlight == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire() {
+        lock.lock();
+        try {
+            while (inFlight >= maxPerHost * nbHosts) {
+                if (policy == Policy.Reject) {
+                    nbRejected.incrementAndGet();
+                    throw new RejectedExecutionException("Too many writes in flight (" + inFlight + ")");
+                }
+                try {
+                    released.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    nbRejected.incrementAndGet();
+                    throw new RejectedExecutionException("Interrupted while waiting for a write slot", ex);
+                }
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void failed(Statement statement, Throwable t) {
+        nbFailed.incrementAndGet();
+        if (listeners.isEmpty()) {
+            Logger.getLogger(AsyncWriter.class.getName()).log(Level.WARNING, "Asynchronous write failed", t);
+            return;
+        }
+        for (FailureListener listener : listeners) {
+            try {
+                listener.writeFailed(statement, t);
+            } catch (Exception ex) {
+                Logger.getLogger(AsyncWriter.class.getName()).log(Level.SEVERE, "Write failure listener failed", ex);
+            }
+        }
+    }
+}
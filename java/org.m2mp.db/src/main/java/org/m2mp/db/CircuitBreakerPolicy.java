@@ -0,0 +1,242 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.collect.AbstractIterator;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-host circuit breaker.
+ * <p/>
+ * This wraps a load balancing policy. When a host answers too slowly a number of times in a row (a server-side timeout
+ * takes as long as the timeout itself) or is suspected down by the driver, its circuit opens and it's removed from the
+ * query plans for a while, so that queries fail fast or go to the other hosts instead of waiting for it. After that
+ * time, a single query is allowed to probe the host (half-open): the circuit closes if it answers in time and opens
+ * again otherwise.
+ */
+public class CircuitBreakerPolicy implements LoadBalancingPolicy, LatencyTracker {
+
+    private static final Logger LOG = Logger.getLogger(CircuitBreakerPolicy.class.getName());
+
+    private enum State {
+        Closed,
+        Open,
+        HalfOpen
+    }
+
+    private static class Circuit {
+
+        State state = State.Closed;
+        int slowInARow;
+        long openUntil;
+    }
+
+    private final LoadBalancingPolicy childPolicy;
+    private final ConcurrentMap<Host, Circuit> circuits = new ConcurrentHashMap<>();
+    private final AtomicLong nbOpened = new AtomicLong(), nbSkipped = new AtomicLong();
+    private volatile long slowThreshold = TimeUnit.MILLISECONDS.toNanos(1000);
+    private volatile int failureThreshold = 5;
+    private volatile long openTime = TimeUnit.SECONDS.toNanos(10);
+
+    public CircuitBreakerPolicy(LoadBalancingPolicy childPolicy) {
+        this.childPolicy = childPolicy;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+
+    /**
+     * Set when the circuit of a host opens.
+     *
+     * @param slowThreshold    Latency above which an answer is considered as a failure
+     * @param failureThreshold Number of failures in a row that open the circuit
+     * @param openTime         Time during which the circuit stays open
+     * @param unit             Unit of the times
+     * @return this
+     */
+    public CircuitBreakerPolicy setThresholds(long slowThreshold, int failureThreshold, long openTime, TimeUnit unit) {
+        this.slowThreshold = unit.toNanos(slowThreshold);
+        this.failureThreshold = failureThreshold;
+        this.openTime = unit.toNanos(openTime);
+        return this;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+
+    /**
+     * Get the number of times a circuit opened.
+     *
+     * @return Number of times
+     */
+    public long getNbOpened() {
+        return nbOpened.get();
+    }
+
+    /**
+     * Get the number of times a host was skipped because its circuit was open.
+     *
+     * @return Number of times
+     */
+    public long getNbSkipped() {
+        return nbSkipped.get();
+    }
+
+    /**
+     * Check if the circuit of a host is open.
+     *
+     * @param host Host
+     * @return if it is open
+     */
+    public boolean isOpen(Host host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            return false;
+        }
+        synchronized (circuit) {
+            return circuit.state == State.Open;
+        }
+    }
+    // </editor-fold>
+
+    private Circuit getCircuit(Host host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(host, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit;
+    }
+
+    private void open(Host host, Circuit circuit, long now) {
+        if (circuit.state != State.Open) {
+            nbOpened.incrementAndGet();
+            LOG.log(Level.WARNING, "Opening the circuit of " + host + " for " + TimeUnit.NANOSECONDS.toMillis(openTime) + " ms");
+        }
+        circuit.state = State.Open;
+        circuit.openUntil = now + openTime;
+        circuit.slowInARow = 0;
+    }
+
+    /**
+     * Check if a host can be used for a query.
+     *
+     * @param host Host
+     * @return if it can be used
+     */
+    private boolean allow(Host host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            return true;
+        }
+        synchronized (circuit) {
+            long now = System.nanoTime();
+            switch (circuit.state) {
+                case Open:
+                    if (now - circuit.openUntil >= 0) {
+                        // We let this query probe the host
+                        circuit.state = State.HalfOpen;
+                        circuit.openUntil = now + openTime;
+                        return true;
+                    }
+                    return false;
+                case HalfOpen:
+                    // A probe is already running, unless it got lost
+                    if (now - circuit.openUntil >= 0) {
+                        circuit.openUntil = now + openTime;
+                        return true;
+                    }
+                    return false;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    @Override
+    public void update(Host host, long newLatencyNanos) {
+        Circuit circuit = getCircuit(host);
+        synchronized (circuit) {
+            if (newLatencyNanos > slowThreshold) {
+                if (circuit.state == State.HalfOpen || ++circuit.slowInARow >= failureThreshold) {
+                    open(host, circuit, System.nanoTime());
+                }
+            } else if (circuit.state != State.Open) {
+                if (circuit.state == State.HalfOpen) {
+                    LOG.log(Level.INFO, "Closing the circuit of " + host);
+                }
+                circuit.state = State.Closed;
+                circuit.slowInARow = 0;
+            }
+        }
+    }
+
+    @Override
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        childPolicy.init(cluster, hosts);
+    }
+
+    @Override
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        final Iterator<Host> plan = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        return new AbstractIterator<Host>() {
+            @Override
+            protected Host computeNext() {
+                while (plan.hasNext()) {
+                    Host host = plan.next();
+                    if (allow(host)) {
+                        return host;
+                    }
+                    nbSkipped.incrementAndGet();
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    @Override
+    public void onUp(Host host) {
+        circuits.remove(host);
+        childPolicy.onUp(host);
+    }
+
+    @Override
+    public void onSuspected(Host host) {
+        Circuit circuit = getCircuit(host);
+        synchronized (circuit) {
+            open(host, circuit, System.nanoTime());
+        }
+        childPolicy.onSuspected(host);
+    }
+
+    @Override
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+    }
+
+    @Override
+    public void onRemove(Host host) {
+        circuits.remove(host);
+        childPolicy.onRemove(host);
+    }
+}
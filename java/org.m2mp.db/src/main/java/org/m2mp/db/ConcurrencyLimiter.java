@@ -0,0 +1,217 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.QueryTimeoutException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive concurrency limiter.
+ * <p/>
+ * The number of queries in flight is limited with an AIMD algorithm driven by the latency: the limit grows by one
+ * every "limit" successful queries and shrinks by a ratio when the cluster shows some congestion. Congestion is either
+ * a timeout or a short term latency average going above the long term one by a tolerance ratio (the gradient).
+ * <p/>
+ * When the limit is reached, callers are queued for a while or rejected depending on the {@link AsyncWriter.Policy}.
+ * It is disabled by default.
+ */
+public class ConcurrencyLimiter {
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final AtomicLong nbRejected = new AtomicLong(), nbDecreases = new AtomicLong();
+    private volatile boolean enabled;
+    private AsyncWriter.Policy policy = AsyncWriter.Policy.Block;
+    private long maxWait = 1000; // in ms
+    private int minLimit = 4, maxLimit = 1024;
+    private double limit = 64;
+    private double tolerance = 1.5, backoffRatio = 0.9;
+    private int inFlight;
+    private double shortRtt, longRtt; // in ns
+    private long lastDecrease;
+
+    public ConcurrencyLimiter() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Set what happens when the limit is reached.
+     *
+     * @param policy  Policy
+     * @param maxWait Maximum time to wait in the {@link AsyncWriter.Policy#Block} policy before being rejected
+     * @param unit    Unit of the maximum waiting time
+     */
+    public void setPolicy(AsyncWriter.Policy policy, long maxWait, TimeUnit unit) {
+        lock.lock();
+        try {
+            this.policy = policy;
+            this.maxWait = unit.toMillis(maxWait);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the bounds of the limit.
+     *
+     * @param min     Minimum limit
+     * @param initial Initial limit
+     * @param max     Maximum limit
+     */
+    public void setLimits(int min, int initial, int max) {
+        lock.lock();
+        try {
+            this.minLimit = min;
+            this.maxLimit = max;
+            this.limit = initial;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the congestion detection parameters.
+     *
+     * @param tolerance    Ratio of short term latency over long term latency considered as congestion
+     * @param backoffRatio Ratio applied to the limit on congestion
+     */
+    public void setCongestion(double tolerance, double backoffRatio) {
+        lock.lock();
+        try {
+            this.tolerance = tolerance;
+            this.backoffRatio = backoffRatio;
+        } finally {
+            lock.unlock();
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of rejected queries.
+     *
+     * @return Number of rejected queries
+     */
+    public long getNbRejected() {
+        return nbRejected.get();
+    }
+
+    /**
+     * Get the number of times the limit was decreased.
+     *
+     * @return Number of decreases
+     */
+    public long getNbDecreases() {
+        return nbDecreases.get();
+    }
+    // </editor-fold>
+
+    /**
+     * Acquire a slot for a query.
+     *
+     * @throws RejectedExecutionException If the limit is reached
+     */
+    public void acquire() {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                if (policy == AsyncWriter.Policy.Reject) {
+                    nbRejected.incrementAndGet();
+                    throw new RejectedExecutionException("Concurrency limit reached (" + (int) limit + ")");
+                }
+                long nanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+                while (inFlight >= (int) limit) {
+                    if (nanos <= 0) {
+                        nbRejected.incrementAndGet();
+                        throw new RejectedExecutionException("Concurrency limit reached (" + (int) limit + ")");
+                    }
+                    nanos = released.awaitNanos(nanos);
+                }
+            }
+            inFlight++;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release a slot.
+     *
+     * @param nanos Time spent by the query (in ns)
+     * @param error Error (null if it succeeded)
+     */
+    public void release(long nanos, Throwable error) {
+        lock.lock();
+        try {
+            inFlight--;
+            update(nanos, error, System.nanoTime());
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Update the limit (called with the lock held).
+     *
+     * @param nanos Time spent by the query (in ns)
+     * @param error Error (null if it succeeded)
+     * @param now   Current time (in ns)
+     */
+    private void update(long nanos, Throwable error, long now) {
+        boolean timeout = error instanceof QueryTimeoutException || error instanceof UnavailableException || error instanceof NoHostAvailableException;
+        if (shortRtt == 0) {
+            shortRtt = longRtt = nanos;
+        } else if (!timeout) {
+            shortRtt += (nanos - shortRtt) * 0.1;
+            longRtt += (nanos - longRtt) * 0.002;
+        }
+
+        if (timeout || shortRtt > longRtt * tolerance) {
+            // We only decrease once per round trip, a burst of slow answers is one congestion event
+            if (lastDecrease == 0 || now - lastDecrease > shortRtt) {
+                lastDecrease = now;
+                limit = Math.max(minLimit, limit * backoffRatio);
+                nbDecreases.incrementAndGet();
+            }
+        } else if (inFlight + 1 >= limit / 2) {
+            // We only increase the limit when we are using it
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+}
@@ -1,155 +1,171 @@
 package org.m2mp.db;
 
 import com.datastax.driver.core.*;
-import com.datastax.driver.core.exceptions.InvalidQueryException;
-import com.datastax.driver.core.policies.*;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.util.ArrayList;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.m2mp.db.backend.Backend;
+
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Minimalistic cassandra access wrapper.
+ * <p/>
+ * This is a static facade on the default {@link DBContext}.
  *
  * @author Florent Clairambault
  */
 public class DB {
 
-    private static final PoolingOptions poolingOptions = new PoolingOptions() {
-        {
-            setCoreConnectionsPerHost(HostDistance.LOCAL, 1);
-            setCoreConnectionsPerHost(HostDistance.REMOTE, 1);
-            setMaxConnectionsPerHost(HostDistance.LOCAL, 50);
-            setMaxConnectionsPerHost(HostDistance.REMOTE, 50);
-        }
-    };
-    private static final SocketOptions socketOptions = new SocketOptions() {
-        {
-            setConnectTimeoutMillis(2000);
-        }
-    };
-    private static Executor executor = Executors.newCachedThreadPool();
-    private static String keyspaceName;
-    private static Cluster cluster;
-    private static Session session;
-    private static List<String> contactPoints = new ArrayList<String>() {
-        {
-            add("localhost");
-        }
-    };
-    private static Mode mode = Mode.Nearest;
-    private static long slowQueryThreshold = 1000;
-    private static ConsistencyLevel level = ConsistencyLevel.ONE;
-    private static final LoadingCache<String, PreparedStatement> psCache = CacheBuilder.newBuilder().maximumSize(100).build(new CacheLoader<String, PreparedStatement>() {
-        @Override
-        public PreparedStatement load(String query) throws Exception {
-            return prepareNoCache(query).setConsistencyLevel(level);
-        }
-    });
-    private static LoadBalancingPolicy latencyPolicy;
+    private static volatile DBContext context = new DBContext();
 
     private DB() {
     }
 
+    // <editor-fold defaultstate="collapsed" desc="Context">
+
+    /**
+     * Get the default context.
+     *
+     * @return Context used by all the static methods of this class
+     */
+    public static DBContext getContext() {
+        return context;
+    }
+
+    /**
+     * Change the default context.
+     * <p/>
+     * The previous context isn't stopped.
+     *
+     * @param context Context
+     */
+    public static void setContext(DBContext context) {
+        DB.context = context;
+    }
+    // </editor-fold>
+
     public static void setSlowQueryThreshold(long threshold) {
-        slowQueryThreshold = threshold;
+        context.setSlowQueryThreshold(threshold);
+    }
+
+    /**
+     * Get the query statistics.
+     *
+     * @return Statistics of all the executed queries
+     */
+    public static QueryStats getQueryStats() {
+        return context.getQueryStats();
     }
 
     public static Mode getMode() {
-        return mode;
+        return context.getMode();
     }
 
     public static void setMode(Mode m) {
-        mode = m;
+        context.setMode(m);
     }
 
-    public static ConsistencyLevel getConsistencyLevel() {
-        return DB.level;
+    public static String getLocalDatacenter() {
+        return context.getLocalDatacenter();
     }
 
-    public static void setConsistencyLevel(ConsistencyLevel level) {
-        DB.level = level;
-        reset();
+    /**
+     * Set the local datacenter used by the token-aware modes.
+     *
+     * @param name                 Name of the local datacenter (null to use the one of the contact points)
+     * @param usedHostsPerRemoteDc Number of hosts of each remote datacenter to use when the local ones are down
+     */
+    public static void setLocalDatacenter(String name, int usedHostsPerRemoteDc) {
+        context.setLocalDatacenter(name, usedHostsPerRemoteDc);
     }
 
     /**
-     * Change the default servers.
+     * Check if statements are routed to the replicas of their partition.
      *
-     * @param contactPoints
+     * @return if the current mode is token-aware
      */
-    public static void setContactPoints(List<String> contactPoints) {
-        DB.contactPoints = contactPoints;
-        reset();
+    public static boolean isTokenAware() {
+        return context.isTokenAware();
     }
 
-    private static void reset() {
-        cluster = null;
-        session = null;
-        latencyPolicy = null;
-        psCache.cleanUp();
+    /**
+     * Get the sampled query tracing.
+     *
+     * @return Tracing settings and summaries of the traced queries
+     */
+    public static QueryTracing getQueryTracing() {
+        return context.getQueryTracing();
     }
 
-    public static LoadBalancingPolicy getLoadBalancingPolicy() {
-        if (latencyPolicy == null) {
-            switch (mode) {
-                case LocalOnly: {
-                    ArrayList<InetSocketAddress> list = new ArrayList<InetSocketAddress>() {
-                        {
-                            add(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9042));
-                        }
-                    };
-                    latencyPolicy = new WhiteListPolicy(new RoundRobinPolicy(), list);
-                    break;
-                }
-                case Nearest: {
-                    latencyPolicy = LatencyAwarePolicy.builder(new RoundRobinPolicy()).withRetryPeriod(30, TimeUnit.MINUTES).withScale(1, TimeUnit.MINUTES).withExclusionThreshold(1.5).build();
-                    break;
-                }
-                default:
-            }
-        }
-        return latencyPolicy;
+    /**
+     * Get the asynchronous write pipeline used by {@link #executeLater(Statement)}.
+     *
+     * @return Write pipeline
+     */
+    public static AsyncWriter getWriter() {
+        return context.getWriter();
+    }
+
+    /**
+     * Set the maximum number of asynchronous writes in flight per host.
+     *
+     * @param max Maximum number of writes
+     */
+    public static void setMaxWritesPerHost(int max) {
+        context.getWriter().setMaxPerHost(max);
+    }
+
+    /**
+     * Define what happens when too many asynchronous writes are in flight.
+     *
+     * @param policy Block or reject the callers
+     */
+    public static void setWritePolicy(AsyncWriter.Policy policy) {
+        context.getWriter().setPolicy(policy);
     }
 
-    private static Cluster getCluster() {
-        if (cluster == null) {
-            Cluster.Builder c = Cluster.builder();
-            for (String cp : contactPoints) {
-                c.addContactPoint(cp);
-            }
+    /**
+     * Define if the pending asynchronous writes are waited for when stopping.
+     *
+     * @param drain   To drain the writes on stop
+     * @param timeout Maximum time to wait (in ms)
+     */
+    public static void setDrainOnStop(boolean drain, long timeout) {
+        context.setDrainOnStop(drain, timeout);
+    }
+
+    public static void addWriteFailureListener(AsyncWriter.FailureListener listener) {
+        context.getWriter().addFailureListener(listener);
+    }
 
-            c.withPoolingOptions(poolingOptions)
-                    .withSocketOptions(socketOptions)
-                    .withReconnectionPolicy(new ExponentialReconnectionPolicy(10000, 900000));
+    public static ConsistencyLevel getConsistencyLevel() {
+        return context.getConsistencyLevel();
+    }
 
-            { // We apply a specific load balancing policy if we have one
-                LoadBalancingPolicy policy = getLoadBalancingPolicy();
-                if (policy != null) {
-                    c.withLoadBalancingPolicy(policy);
-                }
-            }
+    public static void setConsistencyLevel(ConsistencyLevel level) {
+        context.setConsistencyLevel(level);
+    }
 
-            cluster = c.build();
-        }
-        return cluster;
+    /**
+     * Change the default servers.
+     *
+     * @param contactPoints
+     */
+    public static void setContactPoints(List<String> contactPoints) {
+        context.setContactPoints(contactPoints);
+    }
+
+    public static LoadBalancingPolicy getLoadBalancingPolicy() {
+        return context.getLoadBalancingPolicy();
     }
 
     public static void stop() {
-        if (cluster != null) {
-            cluster.close();
-            cluster = null;
-        }
-        reset();
+        context.stop();
     }
 
     /**
@@ -161,20 +177,7 @@ public class DB {
      *               Create option should never be set to free. It is only used for testing.
      */
     public static void keyspace(String name, boolean create) {
-        keyspaceName = name;
-        reset();
-        if (create)
-            try {
-                session();
-            } catch (RuntimeException ex) {
-                if (create && ex.getCause() instanceof InvalidQueryException) {
-                    String cql = "CREATE KEYSPACE " + name + " WITH replication = {'class':'SimpleStrategy', 'replication_factor':3};";
-                    System.out.println("Executing: " + cql);
-                    getCluster().connect().execute(cql);
-                } else {
-                    throw new RuntimeException("Could not load keyspace " + name + " !", ex.getCause());
-                }
-            }
+        context.keyspace(name, create);
     }
 
     /**
@@ -192,26 +195,7 @@ public class DB {
      * @return Session object
      */
     public static Session session() {
-        if (session == null) {
-            if (keyspaceName == null) {
-                throw new RuntimeException("You need to define a keyspace !");
-            }
-            try {
-                Cluster c = getCluster();
-                Metadata metadata = c.getMetadata();
-
-
-                Logger.getLogger(DB.class.getName()).log(Level.INFO, String.format("Connecting to cluster '%s' on %s.", metadata.getClusterName(), metadata.getAllHosts()));
-
-                session = c.connect(keyspaceName);
-
-                Logger.getLogger(DB.class.getName()).log(Level.INFO, String.format("Connected to cluster '%s' on %s.", metadata.getClusterName(), metadata.getAllHosts()));
-            } catch (Exception ex) {
-                cluster = null;
-                throw new RuntimeException("Could not connect to the cluster", ex);
-            }
-        }
-        return session;
+        return context.session();
     }
 
     /**
@@ -220,7 +204,38 @@ public class DB {
      * @return Metadata object
      */
     public static KeyspaceMetadata meta() {
-        return session().getCluster().getMetadata().getKeyspace(keyspaceName);
+        return context.meta();
+    }
+
+    /**
+     * Register some queries in the catalog.
+     * <p/>
+     * Registered queries are prepared in parallel as soon as the session is connected and are never evicted from the
+     * cache. Each module should register all the queries it uses. They are registered in all the contexts, so that
+     * the modules can be bound to any of them.
+     *
+     * @param queries Queries to register
+     */
+    public static void registerQueries(String... queries) {
+        DBContext.registerGlobalQueries(queries);
+    }
+
+    /**
+     * Get the catalog of registered queries.
+     *
+     * @return Query catalog
+     */
+    public static QueryCatalog getQueryCatalog() {
+        return context.getQueryCatalog();
+    }
+
+    /**
+     * Prepare all the registered queries (again) and wait for them.
+     *
+     * @return Preparation report
+     */
+    public static QueryCatalog.Report prewarm() {
+        return context.prewarm();
     }
 
     /**
@@ -230,12 +245,7 @@ public class DB {
      * @return PreparedStatement
      */
     public static PreparedStatement prepare(String query) {
-        try {
-            return psCache.get(query);
-        } catch (ExecutionException ex) {
-            Logger.getLogger(DB.class.getName()).log(Level.SEVERE, null, ex);
-            return session().prepare(query);
-        }
+        return context.prepare(query);
     }
 
     /**
@@ -245,7 +255,7 @@ public class DB {
      * @return PreparedStatement
      */
     public static PreparedStatement prepareNoCache(String query) {
-        return session().prepare(query).setConsistencyLevel(level);
+        return context.prepareNoCache(query);
     }
 
     /**
@@ -255,30 +265,7 @@ public class DB {
      * @return The result
      */
     public static ResultSet execute(Statement query) {
-        long before = System.currentTimeMillis();
-        ResultSet rs = session().execute(query);
-        long timeSpent = System.currentTimeMillis() - before;
-        if (timeSpent > slowQueryThreshold && query instanceof BoundStatement) {
-            BoundStatement bs = (BoundStatement) query;
-            PreparedStatement ps = bs.preparedStatement();
-
-            try {
-                ExecutionInfo execInfo = rs.getExecutionInfo();
-                System.out.println("SLOW QUERY: [" + timeSpent + " / " + execInfo.getQueriedHost() + "] " + ps.getQueryString());
-                QueryTrace queryTrace = execInfo.getQueryTrace();
-                if (queryTrace != null) {
-                    List<QueryTrace.Event> events = queryTrace.getEvents();
-                    if (events != null) {
-                        for (QueryTrace.Event ev : events) {
-                            System.out.println("  * " + ev.getDescription() + ", " + ev.getSourceElapsedMicros());
-                        }
-                    }
-                }
-            } catch (Exception ex) {
-                System.err.println("Ex: " + ex);
-            }
-        }
-        return rs;
+        return context.execute(query);
     }
 
     /**
@@ -288,13 +275,95 @@ public class DB {
      * @return The result
      */
     public static ResultSet execute(String query) {
-        BoundStatement statement = prepare(query).bind();
-        statement.setConsistencyLevel(level);
-        return session().execute(statement);
+        return context.execute(query);
+    }
+
+    /**
+     * Execute a query with some values on the current backend
+     * <p/>
+     * Reads can be hedged (see {@link #getHedgedReads()}).
+     *
+     * @param query  Query to execute
+     * @param values Values to bind
+     * @return The result
+     */
+    public static ResultSet execute(String query, Object... values) {
+        return context.execute(query, values);
+    }
+
+    /**
+     * Execute a query with some values asynchronously on the current backend
+     *
+     * @param query  Query to execute
+     * @param values Values to bind
+     * @return The result future
+     */
+    public static ListenableFuture<ResultSet> executeAsync(String query, Object... values) {
+        return context.executeAsync(query, values);
+    }
+
+    /**
+     * Execute a write through the batcher.
+     * <p/>
+     * When batching is enabled (see {@link #getBatcher()}), the writes of a same partition are grouped in unlogged
+     * batches. Otherwise the write is simply executed asynchronously.
+     *
+     * @param partition Partition key (table name + partition key values)
+     * @param query     Query to execute
+     * @param values    Values to bind
+     * @return The result future
+     */
+    public static ListenableFuture<ResultSet> executeBatched(Object partition, String query, Object... values) {
+        return context.executeBatched(partition, query, values);
+    }
+
+    /**
+     * Get the write batcher.
+     *
+     * @return Batcher
+     */
+    public static WriteBatcher getBatcher() {
+        return context.getBatcher();
+    }
+
+    /**
+     * Get the hedged reads settings and statistics.
+     *
+     * @return Hedged reads
+     */
+    public static HedgedReads getHedgedReads() {
+        return context.getHedgedReads();
+    }
+
+    /**
+     * Wait for the result of a future.
+     * <p/>
+     * Driver exceptions are thrown as they are (and not wrapped in an ExecutionException).
+     *
+     * @param future Future to wait for
+     * @param <T>    Type of the result
+     * @return Result
+     */
+    public static <T> T get(ListenableFuture<T> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    /**
+     * Check if a table exists on the current backend
+     *
+     * @param table Name of the table
+     * @return if it exists
+     */
+    public static boolean tableExists(String table) {
+        return context.tableExists(table);
     }
 
     public static ResultSet executeNoPrepare(String query) {
-        return session().execute(query);
+        return context.executeNoPrepare(query);
     }
 
     /**
@@ -303,30 +372,162 @@ public class DB {
      * @param query Query to execute
      * @return The result future
      */
-    public static ResultSetFuture executeAsync(Statement query) {
-        return session().executeAsync(query);
+    public static ResultSetFuture executeAsync(final Statement query) {
+        return context.executeAsync(query);
     }
 
     /**
      * Execute a query later. We can't really say when.
+     * <p/>
+     * The number of queries in flight is bounded (see {@link #setMaxWritesPerHost(int)}), when the limit is reached
+     * the caller is blocked or rejected depending on the {@link AsyncWriter.Policy}. Failures are reported to the
+     * listeners registered with {@link #addWriteFailureListener(AsyncWriter.FailureListener)}.
+     * It shouldn't be called from a callback of a query future with the {@link AsyncWriter.Policy#Block} policy: it
+     * could wait for its own thread to release a slot.
      *
      * @param query Query to execute
+     * @return The result future
+     * @throws RejectedExecutionException If the query couldn't be accepted
+     */
+    public static ListenableFuture<ResultSet> executeLater(final Statement query) {
+        return context.executeLater(query);
+    }
+
+    /**
+     * Execute a query of the backend later.
+     *
+     * @param query  Query to execute
+     * @param values Values to bind
+     * @return The result future
+     * @throws RejectedExecutionException If the query couldn't be accepted
+     * @see #executeLater(Statement)
+     */
+    public static ListenableFuture<ResultSet> executeLater(String query, Object... values) {
+        return context.executeLater(query, values);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Fetch sizes">
+
+    /**
+     * Set the fetch size (number of rows per page) of a query.
+     *
+     * @param query     Query
+     * @param fetchSize Fetch size (0 to use the default one)
+     */
+    public static void setFetchSize(String query, int fetchSize) {
+        context.setFetchSize(query, fetchSize);
+    }
+
+    /**
+     * Get the fetch size of a query.
+     *
+     * @param query Query
+     * @return Fetch size
+     */
+    public static int getFetchSize(String query) {
+        return context.getFetchSize(query);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Overload protection">
+
+    /**
+     * Get the adaptive concurrency limiter of the queries sent to cassandra.
+     *
+     * @return Concurrency limiter (disabled by default)
+     */
+    public static ConcurrencyLimiter getConcurrencyLimiter() {
+        return context.getConcurrencyLimiter();
+    }
+
+    /**
+     * Enable the per-host circuit breaker. This has to be done before connecting.
+     *
+     * @param enabled Enabled
+     */
+    public static void setCircuitBreaker(boolean enabled) {
+        context.setCircuitBreaker(enabled);
+    }
+
+    /**
+     * Get the per-host circuit breaker.
+     *
+     * @return Circuit breaker or null if it is disabled or not connected yet
+     */
+    public static CircuitBreakerPolicy getCircuitBreaker() {
+        return context.getCircuitBreaker();
+    }
+
+    /**
+     * Set the retries of the idempotent queries executed with {@link #execute(String, Object...)}.
+     * <p/>
+     * Timeouts and unavailable errors are retried after a random delay between 0 and min(maxDelay, baseDelay * 2^n)
+     * ("full jitter"), so that the retries of many callers don't all hit the cluster at the same time.
+     *
+     * @param maxRetries Maximum number of retries (0 to disable them)
+     * @param baseDelay  Base delay
+     * @param maxDelay   Maximum delay
+     * @param unit       Unit of the delays
+     */
+    public static void setRetries(int maxRetries, long baseDelay, long maxDelay, TimeUnit unit) {
+        context.setRetries(maxRetries, baseDelay, maxDelay, unit);
+    }
+
+    /**
+     * Get the number of retries done.
+     *
+     * @return Number of retries
+     */
+    public static long getNbRetries() {
+        return context.getNbRetries();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Backend">
+
+    /**
+     * Get the storage backend.
+     *
+     * @return Backend
+     */
+    public static Backend getBackend() {
+        return context.getBackend();
+    }
+
+    /**
+     * Set the storage backend.
+     * <p/>
+     * All the modules access their tables through it. The default one is cassandra, the
+     * {@link org.m2mp.db.backend.MemoryBackend} can be used for benchmarks and load tests.
+     *
+     * @param backend Backend
      */
-    public static void executeLater(final Statement query) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    session().executeAsync(query);
-                } catch (Exception e) {
-                }
-            }
-        });
+    public static void setBackend(Backend backend) {
+        context.setBackend(backend);
     }
+    // </editor-fold>
 
     public enum Mode {
+        /**
+         * Default policy of the driver
+         */
         Standard,
+        /**
+         * Round robin on the hosts with the lowest latency
+         */
         Nearest,
-        LocalOnly
+        /**
+         * Only the local host
+         */
+        LocalOnly,
+        /**
+         * Replicas of the partition of each statement first, in the local datacenter
+         */
+        TokenAware,
+        /**
+         * Replicas of the partition of each statement first, then the hosts of the local datacenter with the lowest
+         * latency
+         */
+        TokenAwareNearest
     }
 }
@@ -0,0 +1,846 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.*;
+import com.datastax.driver.core.policies.*;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.m2mp.db.backend.Backend;
+import org.m2mp.db.backend.CassandraBackend;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Database context: one cluster, one keyspace and everything that goes with them (settings, prepared statements,
+ * statistics, write pipeline, backend).
+ * <p/>
+ * {@link DB} is a static facade on a default context. Other contexts can be created to access some other clusters or
+ * keyspaces from the same JVM, and the modules can be bound to them (see {@link org.m2mp.db.ts.TimeSerie#setContext}
+ * and {@link org.m2mp.db.registry.RegistryNode#setContext}).
+ * <p/>
+ * A context is thread-safe. The cluster connection is opened lazily by the first query (or by {@link #session()}) and
+ * closed by {@link #stop()}; changing the contact points, the keyspace or the consistency level closes it so that the
+ * next query reconnects with the new settings.
+ */
+public class DBContext {
+
+    private static final Logger LOG = Logger.getLogger(DBContext.class.getName());
+
+    /**
+     * Queries registered with {@link DB#registerQueries(String...)}, prepared on every context
+     */
+    private static final Set<String> globalQueries = new LinkedHashSet<>();
+    /**
+     * Contexts that get the globally registered queries
+     */
+    private static final Set<DBContext> contexts = Collections.newSetFromMap(new WeakHashMap<DBContext, Boolean>());
+
+    private static final PoolingOptions poolingOptions = new PoolingOptions() {
+        {
+            setCoreConnectionsPerHost(HostDistance.LOCAL, 1);
+            setCoreConnectionsPerHost(HostDistance.REMOTE, 1);
+            setMaxConnectionsPerHost(HostDistance.LOCAL, 50);
+            setMaxConnectionsPerHost(HostDistance.REMOTE, 50);
+        }
+    };
+    private static final SocketOptions socketOptions = new SocketOptions() {
+        {
+            setConnectTimeoutMillis(2000);
+        }
+    };
+
+    /**
+     * Lightweight transactions and counter or list updates ("c = c + ?", "l = ? + l").
+     */
+    private static final Pattern NOT_IDEMPOTENT = Pattern.compile("\\bIF\\b|=\\s*\\w+\\s*[+-]|[+-]\\s*\\w+\\s*(,|WHERE\\b)", Pattern.CASE_INSENSITIVE);
+
+    private final AsyncWriter writer = new AsyncWriter(this);
+    private final WriteBatcher batcher = new WriteBatcher(this);
+    private final HedgedReads hedgedReads = new HedgedReads(this);
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+    private final QueryTracing tracing = new QueryTracing();
+    private final QueryStats stats = new QueryStats();
+    private final QueryCatalog catalog = new QueryCatalog();
+    private final AtomicLong nbRetries = new AtomicLong();
+    private final ConcurrentMap<String, Integer> fetchSizes = new ConcurrentHashMap<>();
+    /**
+     * Cache of the queries that aren't part of the catalog.
+     */
+    private final LoadingCache<String, PreparedStatement> psCache = CacheBuilder.newBuilder().maximumSize(100).build(new CacheLoader<String, PreparedStatement>() {
+        @Override
+        public PreparedStatement load(String query) throws Exception {
+            return prepareNoCache(query);
+        }
+    });
+    private volatile boolean circuitBreakerEnabled;
+    private volatile CircuitBreakerPolicy circuitBreaker;
+    private volatile int maxRetries;
+    private volatile long retryBaseDelay = 10000, retryMaxDelay = 1000000; // in µs
+    private volatile boolean drainOnStop = true;
+    private volatile long drainTimeout = 30000;
+    private volatile String keyspaceName;
+    private volatile List<String> contactPoints = Collections.singletonList("localhost");
+    private volatile DB.Mode mode = DB.Mode.Nearest;
+    private volatile String localDatacenter;
+    private volatile int usedHostsPerRemoteDc;
+    private volatile ConsistencyLevel level = ConsistencyLevel.ONE;
+    private volatile Backend backend;
+    private Cluster cluster;
+    private volatile Session session;
+    private LoadBalancingPolicy latencyPolicy;
+
+    public DBContext() {
+        setBackend(new CassandraBackend());
+        synchronized (contexts) {
+            contexts.add(this);
+            catalog.register(globalQueries.toArray(new String[globalQueries.size()]));
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param contactPoints Servers to connect to
+     * @param keyspace      Name of the keyspace
+     */
+    public DBContext(List<String> contactPoints, String keyspace) {
+        this();
+        this.contactPoints = contactPoints;
+        this.keyspaceName = keyspace;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+    public void setSlowQueryThreshold(long threshold) {
+        stats.setSlowQueryThreshold(threshold);
+    }
+
+    /**
+     * Get the query statistics.
+     *
+     * @return Statistics of all the executed queries
+     */
+    public QueryStats getQueryStats() {
+        return stats;
+    }
+
+    public DB.Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(DB.Mode m) {
+        mode = m;
+    }
+
+    public String getLocalDatacenter() {
+        return localDatacenter;
+    }
+
+    /**
+     * Set the local datacenter used by the token-aware modes.
+     *
+     * @param name                 Name of the local datacenter (null to use the one of the contact points)
+     * @param usedHostsPerRemoteDc Number of hosts of each remote datacenter to use when the local ones are down
+     */
+    public void setLocalDatacenter(String name, int usedHostsPerRemoteDc) {
+        this.localDatacenter = name;
+        this.usedHostsPerRemoteDc = usedHostsPerRemoteDc;
+    }
+
+    /**
+     * Check if statements are routed to the replicas of their partition.
+     *
+     * @return if the current mode is token-aware
+     */
+    public boolean isTokenAware() {
+        return mode == DB.Mode.TokenAware || mode == DB.Mode.TokenAwareNearest;
+    }
+
+    /**
+     * Get the sampled query tracing.
+     *
+     * @return Tracing settings and summaries of the traced queries
+     */
+    public QueryTracing getQueryTracing() {
+        return tracing;
+    }
+
+    /**
+     * Get the asynchronous write pipeline used by {@link #executeLater(Statement)}.
+     *
+     * @return Write pipeline
+     */
+    public AsyncWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Define if the pending asynchronous writes are waited for when stopping.
+     *
+     * @param drain   To drain the writes on stop
+     * @param timeout Maximum time to wait (in ms)
+     */
+    public void setDrainOnStop(boolean drain, long timeout) {
+        drainOnStop = drain;
+        drainTimeout = timeout;
+    }
+
+    public ConsistencyLevel getConsistencyLevel() {
+        return level;
+    }
+
+    public synchronized void setConsistencyLevel(ConsistencyLevel level) {
+        this.level = level;
+        reset();
+    }
+
+    public List<String> getContactPoints() {
+        return contactPoints;
+    }
+
+    /**
+     * Change the servers.
+     *
+     * @param contactPoints Servers to connect to
+     */
+    public synchronized void setContactPoints(List<String> contactPoints) {
+        this.contactPoints = contactPoints;
+        reset();
+    }
+
+    public String getKeyspace() {
+        return keyspaceName;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Connection">
+
+    /**
+     * Close the connection and forget it (called with the lock held).
+     * <p/>
+     * The previous cluster is closed asynchronously: its queries in flight can complete.
+     */
+    private void reset() {
+        if (cluster != null) {
+            cluster.closeAsync();
+        }
+        cluster = null;
+        session = null;
+        latencyPolicy = null;
+        circuitBreaker = null;
+        psCache.invalidateAll();
+        catalog.clear();
+    }
+
+    public synchronized LoadBalancingPolicy getLoadBalancingPolicy() {
+        if (latencyPolicy == null) {
+            switch (mode) {
+                case LocalOnly: {
+                    List<InetSocketAddress> list = Collections.singletonList(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9042));
+                    latencyPolicy = new WhiteListPolicy(new RoundRobinPolicy(), list);
+                    break;
+                }
+                case Nearest: {
+                    latencyPolicy = LatencyAwarePolicy.builder(new RoundRobinPolicy()).withRetryPeriod(30, TimeUnit.MINUTES).withScale(1, TimeUnit.MINUTES).withExclusionThreshold(1.5).build();
+                    break;
+                }
+                case TokenAware: {
+                    latencyPolicy = new TokenAwarePolicy(getDatacenterPolicy());
+                    break;
+                }
+                case TokenAwareNearest: {
+                    latencyPolicy = new TokenAwarePolicy(LatencyAwarePolicy.builder(getDatacenterPolicy()).withRetryPeriod(30, TimeUnit.MINUTES).withScale(1, TimeUnit.MINUTES).withExclusionThreshold(1.5).build());
+                    break;
+                }
+                default:
+            }
+        }
+        return latencyPolicy;
+    }
+
+    private LoadBalancingPolicy getDatacenterPolicy() {
+        return localDatacenter != null ? new DCAwareRoundRobinPolicy(localDatacenter, usedHostsPerRemoteDc) : new DCAwareRoundRobinPolicy();
+    }
+
+    private synchronized Cluster getCluster() {
+        if (cluster == null) {
+            Cluster.Builder c = Cluster.builder();
+            for (String cp : contactPoints) {
+                c.addContactPoint(cp);
+            }
+
+            c.withPoolingOptions(poolingOptions)
+                    .withSocketOptions(socketOptions)
+                    .withReconnectionPolicy(new ExponentialReconnectionPolicy(10000, 900000));
+
+            { // We apply a specific load balancing policy if we have one
+                LoadBalancingPolicy policy = getLoadBalancingPolicy();
+                if (circuitBreakerEnabled) {
+                    circuitBreaker = new CircuitBreakerPolicy(policy != null ? policy : Policies.defaultLoadBalancingPolicy());
+                    policy = circuitBreaker;
+                }
+                if (policy != null) {
+                    c.withLoadBalancingPolicy(policy);
+                }
+            }
+
+            cluster = c.build();
+            if (circuitBreaker != null) {
+                cluster.register((LatencyTracker) circuitBreaker);
+            }
+        }
+        return cluster;
+    }
+
+    /**
+     * Stop the context: the pending writes are sent (and waited for) and the cluster connection is closed.
+     * <p/>
+     * The context can still be used afterwards, it will reconnect.
+     */
+    public void stop() {
+        batcher.flush();
+        if (drainOnStop && !writer.drain(drainTimeout, TimeUnit.MILLISECONDS)) {
+            LOG.log(Level.WARNING, String.format("Stopping with %d writes still in flight.", writer.getInFlight()));
+        }
+        synchronized (this) {
+            if (cluster != null) {
+                cluster.close();
+                cluster = null;
+            }
+            reset();
+        }
+    }
+
+    /**
+     * Stop the context and stop preparing the globally registered queries on it.
+     */
+    public void close() {
+        stop();
+        synchronized (contexts) {
+            contexts.remove(this);
+        }
+    }
+
+    /**
+     * Change keyspace
+     *
+     * @param name   Name of the keyspace
+     * @param create To create it if not already there
+     *               <p/>
+     *               Create option should never be set to free. It is only used for testing.
+     */
+    public synchronized void keyspace(String name, boolean create) {
+        keyspaceName = name;
+        reset();
+        if (create)
+            try {
+                session();
+            } catch (RuntimeException ex) {
+                if (ex.getCause() instanceof InvalidQueryException) {
+                    String cql = "CREATE KEYSPACE " + name + " WITH replication = {'class':'SimpleStrategy', 'replication_factor':3};";
+                    System.out.println("Executing: " + cql);
+                    getCluster().connect().execute(cql);
+                } else {
+                    throw new RuntimeException("Could not load keyspace " + name + " !", ex.getCause());
+                }
+            }
+    }
+
+    /**
+     * Change keyspace
+     *
+     * @param name Keyspace name
+     */
+    public void keyspace(String name) {
+        keyspace(name, false);
+    }
+
+    /**
+     * Get the internal session object
+     *
+     * @return Session object
+     */
+    public Session session() {
+        Session s = session;
+        if (s != null) {
+            return s;
+        }
+        synchronized (this) {
+            if (session == null) {
+                if (keyspaceName == null) {
+                    throw new RuntimeException("You need to define a keyspace !");
+                }
+                try {
+                    Cluster c = getCluster();
+                    Metadata metadata = c.getMetadata();
+
+                    LOG.log(Level.INFO, String.format("Connecting to cluster '%s' on %s.", metadata.getClusterName(), metadata.getAllHosts()));
+
+                    s = c.connect(keyspaceName);
+                    writer.setNbHosts(metadata.getAllHosts().size());
+                    catalog.prepareAll(s, level);
+                    session = s;
+
+                    LOG.log(Level.INFO, String.format("Connected to cluster '%s' on %s.", metadata.getClusterName(), metadata.getAllHosts()));
+                } catch (Exception ex) {
+                    if (cluster != null) {
+                        cluster.closeAsync();
+                    }
+                    cluster = null;
+                    throw new RuntimeException("Could not connect to the cluster", ex);
+                }
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Get the keyspace metadata
+     *
+     * @return Metadata object
+     */
+    public KeyspaceMetadata meta() {
+        return session().getCluster().getMetadata().getKeyspace(keyspaceName);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Prepared statements">
+
+    /**
+     * Register some queries in the catalog of all the contexts, including the ones created later.
+     *
+     * @param queries Queries to register
+     */
+    static void registerGlobalQueries(String... queries) {
+        List<DBContext> list;
+        synchronized (contexts) {
+            globalQueries.addAll(Arrays.asList(queries));
+            list = new ArrayList<>(contexts);
+        }
+        for (DBContext context : list) {
+            context.registerQueries(queries);
+        }
+    }
+
+    /**
+     * Register some queries in the catalog.
+     * <p/>
+     * Registered queries are prepared in parallel as soon as the session is connected and are never evicted from the
+     * cache.
+     *
+     * @param queries Queries to register
+     */
+    public void registerQueries(String... queries) {
+        List<String> added = catalog.register(queries);
+        Session s = session;
+        if (s != null && !added.isEmpty()) {
+            catalog.prepare(s, added, level);
+        }
+    }
+
+    /**
+     * Get the catalog of registered queries.
+     *
+     * @return Query catalog
+     */
+    public QueryCatalog getQueryCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Prepare all the registered queries (again) and wait for them.
+     *
+     * @return Preparation report
+     */
+    public QueryCatalog.Report prewarm() {
+        return catalog.prepareAll(session(), level);
+    }
+
+    /**
+     * Prepare a query and put it in cache.
+     *
+     * @param query Query to prepare
+     * @return PreparedStatement
+     */
+    public PreparedStatement prepare(String query) {
+        PreparedStatement ps = catalog.get(query);
+        if (ps != null) {
+            return ps;
+        } else if (catalog.contains(query)) {
+            ps = prepareNoCache(query);
+            catalog.put(ps);
+            return ps;
+        }
+        try {
+            return psCache.get(query);
+        } catch (ExecutionException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return session().prepare(query);
+        }
+    }
+
+    /**
+     * Prepare a query (whithout putting it in cache)
+     *
+     * @param query Query to prepare
+     * @return PreparedStatement
+     */
+    public PreparedStatement prepareNoCache(String query) {
+        return session().prepare(query).setConsistencyLevel(level);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statements execution">
+
+    /**
+     * Execute a query
+     *
+     * @param query Query to execute
+     * @return The result
+     */
+    public ResultSet execute(Statement query) {
+        boolean traced = tracing.sample(query);
+        boolean limited = limiter.isEnabled();
+        if (limited) {
+            limiter.acquire();
+        }
+        long before = System.nanoTime();
+        ResultSet rs;
+        try {
+            rs = session().execute(query);
+        } catch (RuntimeException ex) {
+            long nanos = System.nanoTime() - before;
+            stats.record(query, nanos, null, ex);
+            if (limited) {
+                limiter.release(nanos, ex);
+            }
+            throw ex;
+        }
+        long nanos = System.nanoTime() - before;
+        stats.record(query, nanos, rs, null);
+        if (limited) {
+            limiter.release(nanos, null);
+        }
+        if (traced) {
+            tracing.collect(query, rs);
+        }
+        return rs;
+    }
+
+    /**
+     * Execute a query asynchronously
+     *
+     * @param query Query to execute
+     * @return The result future
+     */
+    public ResultSetFuture executeAsync(final Statement query) {
+        final boolean traced = tracing.sample(query);
+        final boolean limited = limiter.isEnabled();
+        if (limited) {
+            limiter.acquire();
+        }
+        final long before = System.nanoTime();
+        ResultSetFuture future;
+        try {
+            future = session().executeAsync(query);
+        } catch (RuntimeException ex) {
+            if (limited) {
+                limiter.release(System.nanoTime() - before, ex);
+            }
+            throw ex;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                long nanos = System.nanoTime() - before;
+                stats.record(query, nanos, rs, null);
+                if (limited) {
+                    limiter.release(nanos, null);
+                }
+                if (traced) {
+                    tracing.collect(query, rs);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                long nanos = System.nanoTime() - before;
+                stats.record(query, nanos, null, t);
+                if (limited) {
+                    limiter.release(nanos, t);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Execute a query later. We can't really say when.
+     * <p/>
+     * The number of queries in flight is bounded (see {@link AsyncWriter#setMaxPerHost(int)}), when the limit is
+     * reached the caller is blocked or rejected depending on the {@link AsyncWriter.Policy}.
+     * It shouldn't be called from a callback of a query future with the {@link AsyncWriter.Policy#Block} policy: it
+     * could wait for its own thread to release a slot.
+     *
+     * @param query Query to execute
+     * @return The result future
+     * @throws RejectedExecutionException If the query couldn't be accepted
+     */
+    public ListenableFuture<ResultSet> executeLater(Statement query) {
+        return writer.submit(query);
+    }
+
+    /**
+     * Execute a query of the backend later.
+     *
+     * @param query  Query to execute
+     * @param values Values to bind
+     * @return The result future
+     * @throws RejectedExecutionException If the query couldn't be accepted
+     * @see #executeLater(Statement)
+     */
+    public ListenableFuture<ResultSet> executeLater(String query, Object... values) {
+        return writer.submit(query, values);
+    }
+
+    public ResultSet executeNoPrepare(String query) {
+        return execute(new SimpleStatement(query));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Queries execution">
+
+    /**
+     * Execute a query
+     *
+     * @param query Query to execute
+     * @return The result
+     */
+    public ResultSet execute(String query) {
+        return backend.execute(query);
+    }
+
+    /**
+     * Execute a query with some values on the backend
+     * <p/>
+     * Reads can be hedged (see {@link #getHedgedReads()}).
+     *
+     * @param query  Query to execute
+     * @param values Values to bind
+     * @return The result
+     */
+    public ResultSet execute(String query, Object... values) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (hedgedReads.isEnabled() && HedgedReads.isRead(query)) {
+                    return hedgedReads.execute(backend, query, values);
+                }
+                return backend.execute(query, values);
+            } catch (DriverException ex) {
+                if (attempt >= maxRetries || !isRetryable(ex) || !isIdempotent(query)) {
+                    throw ex;
+                }
+                nbRetries.incrementAndGet();
+                try {
+                    TimeUnit.MICROSECONDS.sleep(getRetryDelay(attempt));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Execute a query with some values asynchronously on the backend
+     *
+     * @param query  Query to execute
+     * @param values Values to bind
+     * @return The result future
+     */
+    public ListenableFuture<ResultSet> executeAsync(String query, Object... values) {
+        return backend.executeAsync(query, values);
+    }
+
+    /**
+     * Execute a write through the batcher.
+     *
+     * @param partition Partition key (table name + partition key values)
+     * @param query     Query to execute
+     * @param values    Values to bind
+     * @return The result future
+     * @see DB#executeBatched(Object, String, Object...)
+     */
+    public ListenableFuture<ResultSet> executeBatched(Object partition, String query, Object... values) {
+        return batcher.add(partition, query, values);
+    }
+
+    /**
+     * Get the write batcher.
+     *
+     * @return Batcher
+     */
+    public WriteBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * Get the hedged reads settings and statistics.
+     *
+     * @return Hedged reads
+     */
+    public HedgedReads getHedgedReads() {
+        return hedgedReads;
+    }
+
+    /**
+     * Check if a table exists on the backend
+     *
+     * @param table Name of the table
+     * @return if it exists
+     */
+    public boolean tableExists(String table) {
+        return backend.tableExists(table);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Fetch sizes">
+
+    /**
+     * Set the fetch size (number of rows per page) of a query.
+     *
+     * @param query     Query
+     * @param fetchSize Fetch size (0 to use the default one)
+     */
+    public void setFetchSize(String query, int fetchSize) {
+        if (fetchSize > 0) {
+            fetchSizes.put(query, fetchSize);
+        } else {
+            fetchSizes.remove(query);
+        }
+    }
+
+    /**
+     * Get the fetch size of a query.
+     *
+     * @param query Query
+     * @return Fetch size
+     */
+    public int getFetchSize(String query) {
+        Integer fetchSize = fetchSizes.get(query);
+        return fetchSize != null ? fetchSize : QueryOptions.DEFAULT_FETCH_SIZE;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Overload protection">
+
+    /**
+     * Get the adaptive concurrency limiter of the queries sent to cassandra.
+     *
+     * @return Concurrency limiter (disabled by default)
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Enable the per-host circuit breaker. This has to be done before connecting.
+     *
+     * @param enabled Enabled
+     */
+    public void setCircuitBreaker(boolean enabled) {
+        circuitBreakerEnabled = enabled;
+    }
+
+    /**
+     * Get the per-host circuit breaker.
+     *
+     * @return Circuit breaker or null if it is disabled or not connected yet
+     */
+    public CircuitBreakerPolicy getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set the retries of the idempotent queries executed with {@link #execute(String, Object...)}.
+     *
+     * @param maxRetries Maximum number of retries (0 to disable them)
+     * @param baseDelay  Base delay
+     * @param maxDelay   Maximum delay
+     * @param unit       Unit of the delays
+     * @see DB#setRetries(int, long, long, TimeUnit)
+     */
+    public void setRetries(int maxRetries, long baseDelay, long maxDelay, TimeUnit unit) {
+        this.maxRetries = maxRetries;
+        this.retryBaseDelay = unit.toMicros(baseDelay);
+        this.retryMaxDelay = unit.toMicros(maxDelay);
+    }
+
+    /**
+     * Get the number of retries done.
+     *
+     * @return Number of retries
+     */
+    public long getNbRetries() {
+        return nbRetries.get();
+    }
+
+    long getRetryDelay(int attempt) {
+        long max = Math.min(retryMaxDelay, retryBaseDelay << Math.min(attempt, 30));
+        return (long) (ThreadLocalRandom.current().nextDouble() * max);
+    }
+
+    static boolean isRetryable(DriverException ex) {
+        return ex instanceof QueryTimeoutException || ex instanceof UnavailableException || ex instanceof NoHostAvailableException;
+    }
+
+    /**
+     * Check if a query can be executed more than once with the same result.
+     *
+     * @param query Query
+     * @return if it is idempotent
+     */
+    static boolean isIdempotent(String query) {
+        return !NOT_IDEMPOTENT.matcher(query).find();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Backend">
+
+    /**
+     * Get the storage backend.
+     *
+     * @return Backend
+     */
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Set the storage backend.
+     * <p/>
+     * A backend belongs to a single context.
+     *
+     * @param backend Backend
+     */
+    public void setBackend(Backend backend) {
+        backend.init(this);
+        this.backend = backend;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,198 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.m2mp.db.backend.Backend;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged reads.
+ * <p/>
+ * When a SELECT hasn't answered after a delay derived from its recent latency (a percentile of its distribution in
+ * {@link QueryStats}), the same query is sent a second time and the first answer wins. With a round robin or
+ * token-aware {@link DB.Mode}, the second query is coordinated by another host, so a host in a GC pause or overloaded
+ * doesn't hold the read.
+ * <p/>
+ * This is only done for the queries executed with {@link DB#execute(String, Object...)}, which are all idempotent
+ * reads. It is disabled by default.
+ */
+public class HedgedReads {
+
+    private final AtomicLong nbReads = new AtomicLong(), nbHedged = new AtomicLong(), nbHedgeWon = new AtomicLong();
+    private volatile boolean enabled;
+    private volatile double percentile = 95;
+    private volatile long minDelay = 2000, maxDelay = 1000000; // in µs
+    private volatile long minCalls = 100;
+    private final DBContext context;
+
+    HedgedReads(DBContext context) {
+        this.context = context;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Set the latency percentile after which a read is hedged.
+     *
+     * @param percentile Percentile (0 to 100)
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Set the bounds of the delay before a read is hedged.
+     * <p/>
+     * The maximum delay is also used for the queries that haven't been executed enough times to know their latency.
+     *
+     * @param min  Minimum delay
+     * @param max  Maximum delay
+     * @param unit Unit of the delays
+     */
+    public void setDelayBounds(long min, long max, TimeUnit unit) {
+        this.minDelay = unit.toMicros(min);
+        this.maxDelay = unit.toMicros(max);
+    }
+
+    /**
+     * Set the number of calls a query needs before its latency percentile is used.
+     *
+     * @param minCalls Minimum number of calls
+     */
+    public void setMinCalls(long minCalls) {
+        this.minCalls = minCalls;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+
+    /**
+     * Get the number of reads that could be hedged.
+     *
+     * @return Number of reads
+     */
+    public long getNbReads() {
+        return nbReads.get();
+    }
+
+    /**
+     * Get the number of reads that were hedged.
+     *
+     * @return Number of hedged reads
+     */
+    public long getNbHedged() {
+        return nbHedged.get();
+    }
+
+    /**
+     * Get the number of hedged reads where the second query answered first.
+     *
+     * @return Number of won hedges
+     */
+    public long getNbHedgeWon() {
+        return nbHedgeWon.get();
+    }
+    // </editor-fold>
+
+    /**
+     * Check if a query can be hedged.
+     *
+     * @param query Query
+     * @return if it's a read
+     */
+    static boolean isRead(String query) {
+        return query.regionMatches(true, 0, "SELECT", 0, 6);
+    }
+
+    /**
+     * Get the delay before a query is hedged.
+     *
+     * @param query Query
+     * @return Delay (in µs)
+     */
+    long getDelay(String query) {
+        long delay = context.getQueryStats().getPercentile(query, percentile, minCalls);
+        if (delay < 0) {
+            return maxDelay;
+        }
+        return Math.min(Math.max(delay, minDelay), maxDelay);
+    }
+
+    /**
+     * Execute a read, hedged if it takes too long.
+     *
+     * @param backend Backend
+     * @param query   Query
+     * @param values  Values to bind
+     * @return Result
+     */
+    ResultSet execute(Backend backend, String query, Object... values) {
+        nbReads.incrementAndGet();
+        ListenableFuture<ResultSet> first = backend.executeAsync(query, values);
+        try {
+            return Uninterruptibles.getUninterruptibly(first, getDelay(query), TimeUnit.MICROSECONDS);
+        } catch (TimeoutException ex) {
+            // We will hedge it
+        } catch (ExecutionException ex) {
+            return DB.get(first);
+        }
+
+        nbHedged.incrementAndGet();
+        ListenableFuture<ResultSet> second = backend.executeAsync(query, values);
+        SettableFuture<ResultSet> result = SettableFuture.create();
+        AtomicInteger failures = new AtomicInteger();
+        race(first, second, false, result, failures);
+        race(second, first, true, result, failures);
+        return DB.get(result);
+    }
+
+    /**
+     * Complete the result with a read if it finishes first.
+     *
+     * @param future   Read
+     * @param other    Other read (cancelled if this one wins)
+     * @param hedge    If this read is the hedged one
+     * @param result   Result of the reads
+     * @param failures Number of failed reads
+     */
+    private void race(ListenableFuture<ResultSet> future, final ListenableFuture<ResultSet> other, final boolean hedge, final SettableFuture<ResultSet> result, final AtomicInteger failures) {
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                if (result.set(rs)) {
+                    if (hedge) {
+                        nbHedgeWon.incrementAndGet();
+                    }
+                    other.cancel(true);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (failures.incrementAndGet() == 2) {
+                    result.setException(t);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,99 @@
+package org.m2mp.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram.
+ * <p/>
+ * Values are stored in log-linear buckets, HDR histogram style: each power of two is split into 16 linear
+ * sub-buckets. Values under 16 are exact and every other value is recorded with less than 6.25% of error. It covers
+ * the whole long range with 976 counters.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int NB_BUCKETS = (64 - SUB_BITS + 1) * SUB;
+    private final AtomicLongArray counts = new AtomicLongArray(NB_BUCKETS);
+    private final AtomicLong count = new AtomicLong(), sum = new AtomicLong(), max = new AtomicLong();
+
+    static int index(long value) {
+        if (value < SUB) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB - 1);
+        return (shift + 1) * SUB + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = index / SUB - 1;
+        return ((long) (SUB + index % SUB)) << shift;
+    }
+
+    static long upperBound(int index) {
+        return index + 1 < NB_BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value Value (usually in µs)
+     */
+    public void record(long value) {
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = count.get();
+        return c != 0 ? (double) sum.get() / c : 0;
+    }
+
+    /**
+     * Get a percentile.
+     *
+     * @param percentile Percentile (between 0 and 100)
+     * @return Highest value of the bucket containing the percentile, never more than the max
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[NB_BUCKETS];
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,80 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Result set iterator that fetches the next page in the background.
+ * <p/>
+ * The driver only fetches the next page when the current one is exhausted, which stalls the consumer for a full round
+ * trip at each page boundary. This iterator asks for the next page as soon as fewer than a threshold of rows are left
+ * in the current one.
+ */
+public class PrefetchingIterator implements Iterator<Row> {
+
+    private final ResultSet rs;
+    private final int threshold;
+
+    /**
+     * Constructor.
+     *
+     * @param rs        Result set to iterate on
+     * @param threshold Number of remaining rows at which the next page is fetched
+     */
+    public PrefetchingIterator(ResultSet rs, int threshold) {
+        this.rs = rs;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Constructor, with a threshold of half the fetch size of the query.
+     *
+     * @param rs    Result set to iterate on
+     * @param query Query that produced the result set
+     */
+    public PrefetchingIterator(ResultSet rs, String query) {
+        this(rs, DB.getContext(), query);
+    }
+
+    /**
+     * Constructor, with a threshold of half the fetch size of the query in a context.
+     *
+     * @param rs      Result set to iterate on
+     * @param context Context that executed the query
+     * @param query   Query that produced the result set
+     */
+    public PrefetchingIterator(ResultSet rs, DBContext context, String query) {
+        this(rs, context.getFetchSize(query) / 2);
+    }
+
+    private void prefetch() {
+        if (!rs.isFullyFetched() && rs.getAvailableWithoutFetching() <= threshold) {
+            // The driver returns the pending future if a fetch is already in progress
+            rs.fetchMoreResults();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        prefetch();
+        return !rs.isExhausted();
+    }
+
+    @Override
+    public Row next() {
+        prefetch();
+        Row row = rs.one();
+        if (row == null) {
+            throw new NoSuchElementException();
+        }
+        return row;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,194 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Catalog of the CQL statements used by the modules.
+ * <p/>
+ * Each module registers the statements it uses. They are all prepared in parallel when the session connects (or when
+ * they are registered if the session is already connected) and they are never evicted, unlike the statements prepared
+ * on the fly.
+ */
+public class QueryCatalog {
+
+    private final Set<String> queries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<String, PreparedStatement> prepared = new ConcurrentHashMap<>();
+    private volatile Report lastReport;
+
+    QueryCatalog() {
+    }
+
+    /**
+     * Register some queries.
+     *
+     * @param list Queries to register
+     * @return Queries that weren't registered yet
+     */
+    List<String> register(String... list) {
+        List<String> added = new ArrayList<>();
+        for (String query : list) {
+            if (queries.add(query)) {
+                added.add(query);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Get all the registered queries.
+     *
+     * @return Registered queries
+     */
+    public Set<String> getQueries() {
+        return Collections.unmodifiableSet(queries);
+    }
+
+    /**
+     * Check if a query is registered.
+     *
+     * @param query Query
+     * @return if it is registered
+     */
+    public boolean contains(String query) {
+        return queries.contains(query);
+    }
+
+    /**
+     * Get a prepared statement of the catalog.
+     *
+     * @param query Query
+     * @return Prepared statement or null if it's not (yet) prepared
+     */
+    PreparedStatement get(String query) {
+        return prepared.get(query);
+    }
+
+    /**
+     * Add a prepared statement to the catalog (if the query is registered)
+     *
+     * @param ps Prepared statement
+     */
+    void put(PreparedStatement ps) {
+        if (queries.contains(ps.getQueryString())) {
+            prepared.put(ps.getQueryString(), ps);
+        }
+    }
+
+    /**
+     * Forget all the prepared statements (but not the registered queries).
+     */
+    void clear() {
+        prepared.clear();
+    }
+
+    /**
+     * Get the report of the last preparation.
+     *
+     * @return Report or null if nothing was prepared yet
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Prepare all the registered queries and wait for them.
+     *
+     * @param session Session to prepare them on
+     * @param level   Consistency level to apply
+     * @return Preparation report
+     */
+    Report prepareAll(Session session, ConsistencyLevel level) {
+        Report report = prepare(session, new ArrayList<>(queries), level);
+        try {
+            Futures.successfulAsList(report.futures).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            // Can't happen with successfulAsList
+        }
+        report.end = System.nanoTime();
+        lastReport = report;
+        Logger.getLogger(QueryCatalog.class.getName()).log(Level.INFO, report.toString());
+        return report;
+    }
+
+    /**
+     * Prepare some queries without waiting for them.
+     *
+     * @param session Session to prepare them on
+     * @param list    Queries to prepare
+     * @param level   Consistency level to apply
+     * @return Preparation report (that will be filled as statements are prepared)
+     */
+    Report prepare(Session session, Collection<String> list, final ConsistencyLevel level) {
+        final Report report = new Report();
+        for (final String query : list) {
+            final long before = System.nanoTime();
+            ListenableFuture<PreparedStatement> future = session.prepareAsync(query);
+            Futures.addCallback(future, new FutureCallback<PreparedStatement>() {
+                @Override
+                public void onSuccess(PreparedStatement ps) {
+                    prepared.put(query, ps.setConsistencyLevel(level));
+                    report.times.put(query, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - before));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    report.failures.put(query, t);
+                    Logger.getLogger(QueryCatalog.class.getName()).log(Level.FINE, "Could not prepare \"" + query + "\"", t);
+                }
+            });
+            report.futures.add(future);
+        }
+        return report;
+    }
+
+    /**
+     * Statements preparation report.
+     */
+    public static class Report {
+
+        private final List<ListenableFuture<PreparedStatement>> futures = new ArrayList<>();
+        private final long begin = System.nanoTime();
+        private long end;
+        /**
+         * Time spent preparing each statement (in µs)
+         */
+        public final Map<String, Long> times = new ConcurrentHashMap<>();
+        /**
+         * Statements that couldn't be prepared (because their table doesn't exist yet for example)
+         */
+        public final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+
+        public int getNbStatements() {
+            return futures.size();
+        }
+
+        /**
+         * Get the total time spent.
+         *
+         * @return Time (in ms)
+         */
+        public long getTimeSpent() {
+            return TimeUnit.NANOSECONDS.toMillis((end != 0 ? end : System.nanoTime()) - begin);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Prepared %d statements (%d failed) in %d ms.", times.size(), failures.size(), getTimeSpent());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Query statistics.
+ * <p/>
+ * Statistics are kept per query digest (the prepared query string), a bit like postgresql's pg_stat_statements: number
+ * of calls, number of errors, number of rows returned and the latency distribution. The slowest queries are also kept
+ * in a ring buffer with the host that coordinated them and their trace (if tracing was enabled).
+ */
+public class QueryStats {
+
+    private static final int SLOW_QUERIES_SIZE = 256;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<SlowQuery> slowQueries = new AtomicReferenceArray<>(SLOW_QUERIES_SIZE);
+    private final AtomicLong slowQueriesIndex = new AtomicLong();
+    private volatile long slowQueryThreshold = 1000;
+
+    QueryStats() {
+    }
+
+    /**
+     * Get the digest of a statement.
+     *
+     * @param statement Statement
+     * @return The query string or a description of the statement
+     */
+    public static String digest(Statement statement) {
+        if (statement instanceof BoundStatement) {
+            return ((BoundStatement) statement).preparedStatement().getQueryString();
+        } else if (statement instanceof RegularStatement) {
+            return ((RegularStatement) statement).getQueryString();
+        } else if (statement instanceof BatchStatement) {
+            return "BATCH";
+        } else {
+            return statement.getClass().getSimpleName();
+        }
+    }
+
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * Set the slow query threshold.
+     *
+     * @param threshold Threshold (in ms)
+     */
+    public void setSlowQueryThreshold(long threshold) {
+        slowQueryThreshold = threshold;
+    }
+
+    /**
+     * Record a statement execution.
+     *
+     * @param statement Statement executed
+     * @param nanos     Time spent (in ns)
+     * @param rs        Result (null if it failed)
+     * @param error     Error (null if it succeeded)
+     */
+    void record(Statement statement, long nanos, ResultSet rs, Throwable error) {
+        record(digest(statement), nanos, rs, error);
+    }
+
+    /**
+     * Record a query execution.
+     * <p/>
+     * This is used by the backends that don't go through the cassandra driver.
+     *
+     * @param query Query string
+     * @param nanos Time spent (in ns)
+     * @param rs    Result (null if it failed)
+     * @param error Error (null if it succeeded)
+     */
+    public void record(String query, long nanos, ResultSet rs, Throwable error) {
+        Entry entry = entries.get(query);
+        if (entry == null) {
+            Entry created = new Entry();
+            entry = entries.putIfAbsent(query, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        entry.calls.incrementAndGet();
+        entry.latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (error != null) {
+            entry.errors.incrementAndGet();
+        } else if (rs != null) {
+            entry.rows.addAndGet(rs.getAvailableWithoutFetching());
+        }
+
+        long timeSpent = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (timeSpent > slowQueryThreshold) {
+            ExecutionInfo execInfo = rs != null ? rs.getExecutionInfo() : null;
+            SlowQuery slow = new SlowQuery(new Date(), query, timeSpent, execInfo != null ? execInfo.getQueriedHost() : null, execInfo != null ? execInfo.getQueryTrace() : null, error);
+            slowQueries.set((int) (slowQueriesIndex.getAndIncrement() % SLOW_QUERIES_SIZE), slow);
+            Logger.getLogger(QueryStats.class.getName()).log(Level.WARNING, "SLOW QUERY: " + slow);
+        }
+    }
+
+    /**
+     * Get the statistics of all the queries.
+     *
+     * @return Statistics sorted by total time spent (most expensive first)
+     */
+    public List<QueryStat> snapshot() {
+        List<QueryStat> list = new ArrayList<>();
+        for (Map.Entry<String, Entry> me : entries.entrySet()) {
+            list.add(me.getValue().snapshot(me.getKey()));
+        }
+        Collections.sort(list, new Comparator<QueryStat>() {
+            @Override
+            public int compare(QueryStat a, QueryStat b) {
+                return Long.compare(b.totalTime, a.totalTime);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Get the statistics of one query.
+     *
+     * @param query Query string
+     * @return Statistics or null if the query was never executed
+     */
+    public QueryStat get(String query) {
+        Entry entry = entries.get(query);
+        return entry != null ? entry.snapshot(query) : null;
+    }
+
+    /**
+     * Get a latency percentile of one query.
+     *
+     * @param query      Query string
+     * @param percentile Percentile (0 to 100)
+     * @param minCalls   Minimum number of calls to consider the distribution as known
+     * @return Latency (in µs) or -1 if the query wasn't executed enough times
+     */
+    public long getPercentile(String query, double percentile, long minCalls) {
+        Entry entry = entries.get(query);
+        if (entry == null || entry.latency.getCount() < minCalls) {
+            return -1;
+        }
+        return entry.latency.getPercentile(percentile);
+    }
+
+    /**
+     * Get the last slow queries.
+     *
+     * @return Slow queries (most recent first)
+     */
+    public List<SlowQuery> getSlowQueries() {
+        List<SlowQuery> list = new ArrayList<>();
+        long last = slowQueriesIndex.get();
+        for (long i = last - 1; i >= 0 && i >= last - SLOW_QUERIES_SIZE; i--) {
+            SlowQuery sq = slowQueries.get((int) (i % SLOW_QUERIES_SIZE));
+            if (sq != null) {
+                list.add(sq);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Reset all the statistics.
+     */
+    public void reset() {
+        entries.clear();
+        for (int i = 0; i < SLOW_QUERIES_SIZE; i++) {
+            slowQueries.set(i, null);
+        }
+        slowQueriesIndex.set(0);
+    }
+
+    private static class Entry {
+
+        private final AtomicLong calls = new AtomicLong(), errors = new AtomicLong(), rows = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        QueryStat snapshot(String query) {
+            return new QueryStat(query, calls.get(), errors.get(), rows.get(), latency.getSum(), latency.getPercentile(50), latency.getPercentile(99), latency.getPercentile(99.9), latency.getMax());
+        }
+    }
+
+    /**
+     * Statistics of a query at a given time. All times are in µs.
+     */
+    public static class QueryStat {
+
+        public final String query;
+        public final long calls, errors, rows, totalTime, p50, p99, p999, max;
+
+        QueryStat(String query, long calls, long errors, long rows, long totalTime, long p50, long p99, long p999, long max) {
+            this.query = query;
+            this.calls = calls;
+            this.errors = errors;
+            this.rows = rows;
+            this.totalTime = totalTime;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public double getMean() {
+            return calls != 0 ? (double) totalTime / calls : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: calls=%d, errors=%d, rows=%d, p50=%dµs, p99=%dµs, p999=%dµs, max=%dµs", query, calls, errors, rows, p50, p99, p999, max);
+        }
+    }
+
+    /**
+     * Slow query.
+     */
+    public static class SlowQuery {
+
+        public final Date date;
+        public final String query;
+        /**
+         * Time spent (in ms)
+         */
+        public final long timeSpent;
+        /**
+         * Host that coordinated the query (null if unknown)
+         */
+        public final Host host;
+        /**
+         * Trace of the query (null if it wasn't traced). Events are fetched when first requested.
+         */
+        public final QueryTrace trace;
+        public final Throwable error;
+
+        SlowQuery(Date date, String query, long timeSpent, Host host, QueryTrace trace, Throwable error) {
+            this.date = date;
+            this.query = query;
+            this.timeSpent = timeSpent;
+            this.host = host;
+            this.trace = trace;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + timeSpent + " / " + host + "] " + query + (error != null ? " (" + error + ")" : "");
+        }
+    }
+}
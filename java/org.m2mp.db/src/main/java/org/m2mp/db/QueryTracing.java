@@ -0,0 +1,329 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.QueryTrace;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sampled query tracing.
+ * <p/>
+ * One statement out of N of each query digest is executed with cassandra tracing enabled. The trace events are fetched
+ * in the background (from the system_traces keyspace) and aggregated per digest: time spent in each phase, number of
+ * live and tombstoned cells read and number of sstables merged. This tells if a slow query is slow because of the
+ * network, tombstones, wide partitions or too many sstables.
+ * <p/>
+ * It is disabled by default.
+ */
+public class QueryTracing {
+
+    /**
+     * Phase of a query, deduced from the description of its trace events.
+     */
+    public enum Phase {
+        /**
+         * Parsing, preparing and routing the query on the coordinator
+         */
+        Coordinator,
+        /**
+         * Messages between the coordinator and the replicas
+         */
+        Network,
+        /**
+         * Reading memtables and sstables on a replica
+         */
+        ReplicaRead,
+        /**
+         * Merging the data of the memtables and sstables, or of the replicas (read repair)
+         */
+        Merge,
+        /**
+         * Writing in the commit log and memtable on a replica
+         */
+        ReplicaWrite
+    }
+
+    private static final Pattern CELLS = Pattern.compile("Read (\\d+) live and (\\d+) tombstone");
+    private static final Pattern SSTABLES = Pattern.compile("Merging data from memtables and (\\d+) sstables");
+    private static final int QUEUE_SIZE = 1000;
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Aggregate> aggregates = new ConcurrentHashMap<>();
+    private final AtomicLong nbDropped = new AtomicLong();
+    private volatile int sampleRate;
+    private ExecutorService fetcher;
+
+    QueryTracing() {
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set the sample rate.
+     *
+     * @param sampleRate 1 statement out of sampleRate is traced (0 to disable tracing)
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Get the number of traces that couldn't be fetched because too many were waiting.
+     *
+     * @return Number of dropped traces
+     */
+    public long getNbDropped() {
+        return nbDropped.get();
+    }
+
+    /**
+     * Enable tracing on a statement if it is sampled.
+     *
+     * @param statement Statement about to be executed
+     * @return if tracing was enabled
+     */
+    boolean sample(Statement statement) {
+        int rate = sampleRate;
+        if (rate <= 0 || statement.isTracing()) {
+            return false;
+        }
+        String query = QueryStats.digest(statement);
+        AtomicLong counter = counters.get(query);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(query, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        if (counter.getAndIncrement() % rate == 0) {
+            statement.enableTracing();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Collect the trace of a sampled statement.
+     *
+     * @param statement Statement
+     * @param rs        Result of the statement
+     */
+    void collect(Statement statement, ResultSet rs) {
+        ExecutionInfo info = rs != null ? rs.getExecutionInfo() : null;
+        final QueryTrace trace = info != null ? info.getQueryTrace() : null;
+        if (trace == null) {
+            return;
+        }
+        final String query = QueryStats.digest(statement);
+        try {
+            fetcher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // This blocks until the events are available
+                        aggregate(query, trace.getDurationMicros(), trace.getCoordinator(), trace.getEvents());
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(QueryTracing.class.getName()).log(Level.FINE, "Could not fetch trace " + trace.getTraceId(), ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            nbDropped.incrementAndGet();
+        }
+    }
+
+    private synchronized ExecutorService fetcher() {
+        if (fetcher == null) {
+            fetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "db-trace-fetcher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return fetcher;
+    }
+
+    /**
+     * Get the phase of a trace event.
+     *
+     * @param description Description of the event
+     * @param coordinator If the event happened on the coordinator
+     * @return Phase
+     */
+    static Phase getPhase(String description, boolean coordinator) {
+        String d = description.toLowerCase();
+        if (d.startsWith("sending") || d.startsWith("message received") || d.startsWith("enqueuing") || d.startsWith("processing response")) {
+            return Phase.Network;
+        } else if (d.startsWith("merging") || d.contains("read-repair") || d.contains("digest mismatch")) {
+            return Phase.Merge;
+        } else if (d.contains("commitlog") || d.contains("commit log") || d.startsWith("adding to") || d.startsWith("applying mutation")) {
+            return Phase.ReplicaWrite;
+        } else if (d.contains("sstable") || d.contains("partition") || d.contains("key cache") || d.contains("bloom filter") || d.contains("cells") || d.contains("tombstones") || d.startsWith("seeking")) {
+            return Phase.ReplicaRead;
+        }
+        return coordinator ? Phase.Coordinator : Phase.ReplicaRead;
+    }
+
+    /**
+     * Aggregate the events of a trace.
+     *
+     * @param query       Query digest
+     * @param duration    Duration of the query (in µs)
+     * @param coordinator Coordinator of the query
+     * @param events      Events of the trace
+     */
+    void aggregate(String query, int duration, InetAddress coordinator, List<QueryTrace.Event> events) {
+        Aggregate aggregate = aggregates.get(query);
+        if (aggregate == null) {
+            Aggregate created = new Aggregate();
+            aggregate = aggregates.putIfAbsent(query, created);
+            if (aggregate == null) {
+                aggregate = created;
+            }
+        }
+
+        long[] phases = new long[Phase.values().length];
+        long live = 0, tombstones = 0, sstables = 0;
+        Map<InetAddress, QueryTrace.Event> previous = new HashMap<>();
+        for (QueryTrace.Event event : events) {
+            // The time between two events of a host is spent in the phase of the first one
+            QueryTrace.Event prev = previous.put(event.getSource(), event);
+            if (prev != null) {
+                Phase phase = getPhase(prev.getDescription(), prev.getSource().equals(coordinator));
+                phases[phase.ordinal()] += Math.max(0, event.getSourceElapsedMicros() - prev.getSourceElapsedMicros());
+            }
+            Matcher m = CELLS.matcher(event.getDescription());
+            if (m.find()) {
+                live += Long.parseLong(m.group(1));
+                tombstones += Long.parseLong(m.group(2));
+            }
+            m = SSTABLES.matcher(event.getDescription());
+            if (m.find()) {
+                sstables = Math.max(sstables, Long.parseLong(m.group(1)));
+            }
+        }
+
+        aggregate.traces.incrementAndGet();
+        aggregate.duration.record(duration);
+        for (Phase phase : Phase.values()) {
+            aggregate.phases[phase.ordinal()].record(phases[phase.ordinal()]);
+        }
+        aggregate.liveCells.record(live);
+        aggregate.tombstones.record(tombstones);
+        aggregate.sstables.record(sstables);
+    }
+
+    /**
+     * Get the summaries of all the traced queries.
+     *
+     * @return Summaries sorted by mean duration (slowest first)
+     */
+    public List<Summary> getSummaries() {
+        List<Summary> list = new ArrayList<>();
+        for (Map.Entry<String, Aggregate> me : aggregates.entrySet()) {
+            list.add(me.getValue().summary(me.getKey()));
+        }
+        Collections.sort(list, new Comparator<Summary>() {
+            @Override
+            public int compare(Summary a, Summary b) {
+                return Double.compare(b.duration, a.duration);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Get the summary of one query.
+     *
+     * @param query Query string
+     * @return Summary or null if it was never traced
+     */
+    public Summary getSummary(String query) {
+        Aggregate aggregate = aggregates.get(query);
+        return aggregate != null ? aggregate.summary(query) : null;
+    }
+
+    /**
+     * Reset all the summaries.
+     */
+    public void reset() {
+        aggregates.clear();
+        counters.clear();
+    }
+
+    private static class Aggregate {
+
+        private final AtomicLong traces = new AtomicLong();
+        private final LatencyHistogram duration = new LatencyHistogram();
+        private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+        private final LatencyHistogram liveCells = new LatencyHistogram(), tombstones = new LatencyHistogram(), sstables = new LatencyHistogram();
+
+        Aggregate() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+
+        Summary summary(String query) {
+            Map<Phase, Double> mean = new EnumMap<>(Phase.class);
+            Map<Phase, Long> p99 = new EnumMap<>(Phase.class);
+            for (Phase phase : Phase.values()) {
+                mean.put(phase, phases[phase.ordinal()].getMean());
+                p99.put(phase, phases[phase.ordinal()].getPercentile(99));
+            }
+            return new Summary(query, traces.get(), duration.getMean(), duration.getPercentile(99), mean, p99,
+                    liveCells.getMean(), tombstones.getMean(), tombstones.getMax(), sstables.getMean(), sstables.getMax());
+        }
+    }
+
+    /**
+     * Summary of the traces of a query. All times are in µs.
+     */
+    public static class Summary {
+
+        public final String query;
+        public final long traces;
+        public final double duration;
+        public final long durationP99;
+        public final Map<Phase, Double> phaseMean;
+        public final Map<Phase, Long> phaseP99;
+        public final double liveCells, tombstones;
+        public final long maxTombstones;
+        public final double sstables;
+        public final long maxSstables;
+
+        Summary(String query, long traces, double duration, long durationP99, Map<Phase, Double> phaseMean, Map<Phase, Long> phaseP99, double liveCells, double tombstones, long maxTombstones, double sstables, long maxSstables) {
+            this.query = query;
+            this.traces = traces;
+            this.duration = duration;
+            this.durationP99 = durationP99;
+            this.phaseMean = Collections.unmodifiableMap(phaseMean);
+            this.phaseP99 = Collections.unmodifiableMap(phaseP99);
+            this.liveCells = liveCells;
+            this.tombstones = tombstones;
+            this.maxTombstones = maxTombstones;
+            this.sstables = sstables;
+            this.maxSstables = maxSstables;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d traces, %.0f µs (p99 %d µs), phases %s, %.1f live cells, %.1f tombstones (max %d), %.1f sstables (max %d)",
+                    query, traces, duration, durationP99, phaseMean, liveCells, tombstones, maxTombstones, sstables, maxSstables);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.m2mp.db;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Partition-aware write batcher.
+ * <p/>
+ * Writes sent to the same partition are grouped in unlogged batches. A batch is sent when it reaches
+ * {@link #getMaxStatements()} statements or when it has been waiting for {@link #getLinger(TimeUnit)}. Each write gets
+ * its own future, which completes when its batch is written.
+ * <p/>
+ * Batching is disabled by default, writes are then sent one by one.
+ */
+public class WriteBatcher {
+
+    private final Map<Object, Batch> pending = new HashMap<>();
+    private final AtomicLong nbStatements = new AtomicLong(), nbBatches = new AtomicLong();
+    private volatile boolean enabled;
+    private volatile int maxStatements = 32;
+    private volatile long linger = 2000; // in µs
+    private ScheduledExecutorService timer;
+    private final DBContext context;
+
+    WriteBatcher(DBContext context) {
+        this.context = context;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable the batching.
+     *
+     * @param enabled Enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            flush();
+        }
+    }
+
+    public int getMaxStatements() {
+        return maxStatements;
+    }
+
+    /**
+     * Set the maximum number of statements of a batch.
+     *
+     * @param maxStatements Maximum number of statements
+     */
+    public void setMaxStatements(int maxStatements) {
+        this.maxStatements = maxStatements;
+    }
+
+    public long getLinger(TimeUnit unit) {
+        return unit.convert(linger, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Set the time a batch waits for some other statements.
+     *
+     * @param linger Linger time
+     * @param unit   Unit of the linger time
+     */
+    public void setLinger(long linger, TimeUnit unit) {
+        this.linger = unit.toMicros(linger);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+
+    /**
+     * Get the number of statements that went through the batcher.
+     *
+     * @return Number of statements
+     */
+    public long getNbStatements() {
+        return nbStatements.get();
+    }
+
+    /**
+     * Get the number of batches sent.
+     *
+     * @return Number of batches
+     */
+    public long getNbBatches() {
+        return nbBatches.get();
+    }
+    // </editor-fold>
+
+    private static class Batch {
+
+        final List<String> queries = new ArrayList<>();
+        final List<Object[]> values = new ArrayList<>();
+        final List<SettableFuture<ResultSet>> futures = new ArrayList<>();
+    }
+
+    /**
+     * Add a write.
+     *
+     * @param partition Partition key (any object with equals/hashCode, it should include the table name)
+     * @param query     CQL query
+     * @param values    Values to bind
+     * @return Future of the write
+     */
+    public ListenableFuture<ResultSet> add(final Object partition, String query, Object... values) {
+        if (!enabled) {
+            return context.getBackend().executeAsync(query, values);
+        }
+        nbStatements.incrementAndGet();
+        SettableFuture<ResultSet> future = SettableFuture.create();
+        Batch full = null, created = null;
+        synchronized (pending) {
+            Batch batch = pending.get(partition);
+            if (batch == null) {
+                batch = new Batch();
+                pending.put(partition, batch);
+                created = batch;
+            }
+            batch.queries.add(query);
+            batch.values.add(values);
+            batch.futures.add(future);
+            if (batch.queries.size() >= maxStatements) {
+                pending.remove(partition);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            send(full);
+        } else if (created != null) {
+            final Batch batch = created;
+            timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(partition, batch);
+                }
+            }, linger, TimeUnit.MICROSECONDS);
+        }
+        return future;
+    }
+
+    private void flush(Object partition, Batch batch) {
+        synchronized (pending) {
+            if (pending.get(partition) != batch) {
+                return;
+            }
+            pending.remove(partition);
+        }
+        send(batch);
+    }
+
+    /**
+     * Send all the pending batches.
+     */
+    public void flush() {
+        List<Batch> batches;
+        synchronized (pending) {
+            batches = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Batch batch : batches) {
+            send(batch);
+        }
+    }
+
+    private void send(final Batch batch) {
+        nbBatches.incrementAndGet();
+        ListenableFuture<ResultSet> future;
+        try {
+            if (batch.queries.size() == 1) {
+                future = context.getBackend().executeAsync(batch.queries.get(0), batch.values.get(0));
+            } else {
+                future = context.getBackend().executeBatchAsync(batch.queries, batch.values);
+            }
+        } catch (RuntimeException ex) {
+            future = Futures.immediateFailedFuture(ex);
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                for (SettableFuture<ResultSet> f : batch.futures) {
+                    f.set(rs);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                for (SettableFuture<ResultSet> f : batch.futures) {
+                    f.setException(t);
+                }
+            }
+        });
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "db-batcher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+}
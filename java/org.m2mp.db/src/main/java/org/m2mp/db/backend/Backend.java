@@ -0,0 +1,59 @@
+package org.m2mp.db.backend;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.m2mp.db.DBContext;
+
+import java.util.List;
+
+/**
+ * Storage backend.
+ * <p/>
+ * All the modules (time series, registry, settings) access their tables through CQL queries with bound values. The
+ * backend is what executes them: a cassandra cluster by default ({@link CassandraBackend}) or an in-memory
+ * implementation ({@link MemoryBackend}) for benchmarks and load tests.
+ */
+public interface Backend {
+
+    /**
+     * Attach the backend to a context, whose settings and statistics it uses.
+     *
+     * @param context Context
+     */
+    void init(DBContext context);
+
+    /**
+     * Execute a query
+     *
+     * @param query  CQL query (with "?" bind markers)
+     * @param values Values to bind
+     * @return The result
+     */
+    ResultSet execute(String query, Object... values);
+
+    /**
+     * Execute a query asynchronously
+     *
+     * @param query  CQL query (with "?" bind markers)
+     * @param values Values to bind
+     * @return The result future
+     */
+    ListenableFuture<ResultSet> executeAsync(String query, Object... values);
+
+    /**
+     * Execute some queries as an unlogged batch asynchronously
+     *
+     * @param queries CQL queries (with "?" bind markers)
+     * @param values  Values to bind (one array per query)
+     * @return The result future
+     */
+    ListenableFuture<ResultSet> executeBatchAsync(List<String> queries, List<Object[]> values);
+
+    /**
+     * Check if a table exists
+     *
+     * @param table Name of the table
+     * @return if it exists
+     */
+    boolean tableExists(String table);
+}
@@ -0,0 +1,67 @@
+package org.m2mp.db.backend;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cassandra backend.
+ * <p/>
+ * Queries are prepared (and cached) and executed on the session of the {@link DBContext}. The driver sets the routing key of the
+ * bound statements when their whole partition key is bound, which is what the token-aware modes of {@link DB.Mode}
+ * use to send them to a replica. Statements without one are reported once.
+ */
+public class CassandraBackend implements Backend {
+
+    private final Set<String> unroutable = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile DBContext context;
+
+    @Override
+    public void init(DBContext context) {
+        this.context = context;
+    }
+
+    private BoundStatement bind(String query, Object[] values) {
+        BoundStatement statement = context.prepare(query).bind(values);
+        statement.setFetchSize(context.getFetchSize(query));
+        if (values.length > 0 && context.isTokenAware() && statement.getRoutingKey() == null && unroutable.add(query)) {
+            Logger.getLogger(CassandraBackend.class.getName()).log(Level.WARNING, "No routing key for \"" + query + "\", it won't be sent to a replica.");
+        }
+        return statement;
+    }
+
+    @Override
+    public ResultSet execute(String query, Object... values) {
+        return context.execute(bind(query, values));
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> executeAsync(String query, Object... values) {
+        return context.executeAsync(bind(query, values));
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> executeBatchAsync(List<String> queries, List<Object[]> values) {
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        for (int i = 0; i < queries.size(); i++) {
+            batch.add(bind(queries.get(i), values.get(i)));
+        }
+        batch.setConsistencyLevel(context.getConsistencyLevel());
+        return context.executeAsync(batch);
+    }
+
+    @Override
+    public boolean tableExists(String table) {
+        return context.meta().getTable(table.toLowerCase()) != null;
+    }
+}
@@ -0,0 +1,236 @@
+package org.m2mp.db.backend;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.m2mp.db.DBContext;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory backend.
+ * <p/>
+ * This backend keeps the tables in memory and honors the clustering order, the TTLs and the range predicates of the
+ * queries the modules use. It is meant for benchmarks and load tests without any cluster:
+ * <pre>
+ * DB.setBackend(new MemoryBackend().setLatency(500, TimeUnit.MICROSECONDS).setTailLatency(0.01, 50, TimeUnit.MILLISECONDS));
+ * TimeSerie.prepareTable();
+ * </pre>
+ * Latency and errors can be injected to see how the code behaves when the storage is slow or failing. Injected errors
+ * are read or write timeouts, like the ones cassandra would return.
+ */
+public class MemoryBackend implements Backend {
+
+    private final ConcurrentMap<String, MemoryTable> tables = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MemoryQuery> queries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private volatile long latency, tailLatency; // in µs
+    private volatile double tailProbability, errorRate;
+    private volatile DBContext context;
+
+    public MemoryBackend() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threads Number of threads used to execute the asynchronous queries
+     */
+    public MemoryBackend(int threads) {
+        executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger nb = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "memory-backend-" + nb.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void init(DBContext context) {
+        this.context = context;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Latency and errors injection">
+
+    /**
+     * Set the latency added to every query.
+     *
+     * @param latency Latency
+     * @param unit    Unit of the latency
+     * @return this
+     */
+    public MemoryBackend setLatency(long latency, TimeUnit unit) {
+        this.latency = unit.toMicros(latency);
+        return this;
+    }
+
+    /**
+     * Set the latency added to some of the queries (on top of the standard latency).
+     *
+     * @param probability Probability for a query to be slowed down (0 to 1)
+     * @param latency     Latency
+     * @param unit        Unit of the latency
+     * @return this
+     */
+    public MemoryBackend setTailLatency(double probability, long latency, TimeUnit unit) {
+        this.tailProbability = probability;
+        this.tailLatency = unit.toMicros(latency);
+        return this;
+    }
+
+    /**
+     * Set the rate of failing queries.
+     *
+     * @param probability Probability for a query to fail (0 to 1)
+     * @return this
+     */
+    public MemoryBackend setErrorRate(double probability) {
+        this.errorRate = probability;
+        return this;
+    }
+
+    private long delay() {
+        long delay = latency;
+        if (tailProbability > 0 && ThreadLocalRandom.current().nextDouble() < tailProbability) {
+            delay += tailLatency;
+        }
+        return delay;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Tables">
+    MemoryTable getTable(String name) {
+        MemoryTable table = tables.get(name);
+        if (table == null) {
+            throw new InvalidQueryException("unconfigured columnfamily " + name);
+        }
+        return table;
+    }
+
+    boolean createTable(MemoryTable table) {
+        return tables.putIfAbsent(table.name, table) == null;
+    }
+
+    boolean dropTable(String name) {
+        return tables.remove(name) != null;
+    }
+
+    @Override
+    public boolean tableExists(String table) {
+        return tables.containsKey(table.toLowerCase());
+    }
+
+    /**
+     * Remove all the data (but keep the tables).
+     */
+    public void clear() {
+        for (MemoryTable table : tables.values()) {
+            table.truncate();
+        }
+    }
+
+    /**
+     * Stop the threads of the asynchronous queries.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+    // </editor-fold>
+
+    private MemoryQuery parse(String query) {
+        MemoryQuery parsed = queries.get(query);
+        if (parsed == null) {
+            parsed = MemoryQuery.parse(query);
+            queries.putIfAbsent(query, parsed);
+        }
+        return parsed;
+    }
+
+    private ResultSet run(String query, Object[] values) {
+        MemoryQuery parsed = parse(query);
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            if (parsed.isWrite()) {
+                throw new WriteTimeoutException(context.getConsistencyLevel(), WriteType.SIMPLE, 0, 1);
+            } else {
+                throw new ReadTimeoutException(context.getConsistencyLevel(), 0, 1, false);
+            }
+        }
+        return parsed.execute(this, values);
+    }
+
+    @Override
+    public ResultSet execute(String query, Object... values) {
+        long before = System.nanoTime();
+        try {
+            long delay = delay();
+            if (delay > 0) {
+                TimeUnit.MICROSECONDS.sleep(delay);
+            }
+            ResultSet rs = run(query, values);
+            context.getQueryStats().record(query, System.nanoTime() - before, rs, null);
+            return rs;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            context.getQueryStats().record(query, System.nanoTime() - before, null, ex);
+            throw new DriverException("Interrupted", ex);
+        } catch (RuntimeException ex) {
+            context.getQueryStats().record(query, System.nanoTime() - before, null, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> executeAsync(final String query, final Object... values) {
+        final SettableFuture<ResultSet> future = SettableFuture.create();
+        final long before = System.nanoTime();
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ResultSet rs = MemoryBackend.this.run(query, values);
+                    context.getQueryStats().record(query, System.nanoTime() - before, rs, null);
+                    future.set(rs);
+                } catch (RuntimeException ex) {
+                    context.getQueryStats().record(query, System.nanoTime() - before, null, ex);
+                    future.setException(ex);
+                }
+            }
+        }, delay(), TimeUnit.MICROSECONDS);
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> executeBatchAsync(final List<String> queries, final List<Object[]> values) {
+        final SettableFuture<ResultSet> future = SettableFuture.create();
+        final long before = System.nanoTime();
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Like an unlogged batch: the queries are applied one after the other
+                    for (int i = 0; i < queries.size(); i++) {
+                        MemoryBackend.this.run(queries.get(i), values.get(i));
+                    }
+                    context.getQueryStats().record("BATCH", System.nanoTime() - before, MemoryResultSet.EMPTY, null);
+                    future.set(MemoryResultSet.EMPTY);
+                } catch (RuntimeException ex) {
+                    context.getQueryStats().record("BATCH", System.nanoTime() - before, null, ex);
+                    future.setException(ex);
+                }
+            }
+        }, delay(), TimeUnit.MICROSECONDS);
+        return future;
+    }
+}
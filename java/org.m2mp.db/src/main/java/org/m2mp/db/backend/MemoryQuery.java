@@ -0,0 +1,982 @@
+package org.m2mp.db.backend;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+
+import java.util.*;
+
+/**
+ * CQL query parsed for the in-memory backend.
+ * <p/>
+ * Only the subset of CQL used by the modules is supported: CREATE/DROP/TRUNCATE TABLE, ALTER TABLE ADD, INSERT, UPDATE
+ * (including map entries), DELETE (rows, ranges of rows, cells and map entries) and SELECT with equality and range
+ * predicates, ORDER BY, LIMIT, COUNT(*), TTL() and WRITETIME() selectors. Queries that don't restrict the partition key
+ * scan all the partitions (like a secondary index would). Options (compression, compaction, etc.) are ignored.
+ */
+abstract class MemoryQuery {
+
+    /**
+     * Is this query modifying data?
+     *
+     * @return true for INSERT, UPDATE and DELETE
+     */
+    abstract boolean isWrite();
+
+    /**
+     * Execute the query.
+     *
+     * @param backend Backend to execute it on
+     * @param values  Bound values
+     * @return Result
+     */
+    abstract ResultSet execute(MemoryBackend backend, Object[] values);
+
+    // <editor-fold defaultstate="collapsed" desc="Terms and conditions">
+    static class Term {
+
+        private final int marker;
+        private final Object literal;
+
+        Term(int marker, Object literal) {
+            this.marker = marker;
+            this.literal = literal;
+        }
+
+        Object get(Object[] values) {
+            if (marker == -1) {
+                return literal;
+            }
+            if (marker >= values.length) {
+                throw new InvalidQueryException("Expected at least " + (marker + 1) + " values, got " + values.length);
+            }
+            return values[marker];
+        }
+    }
+
+    static class Condition {
+
+        final String column;
+        final String op;
+        final Term term;
+
+        Condition(String column, String op, Term term) {
+            this.column = column;
+            this.op = op;
+            this.term = term;
+        }
+
+        boolean matches(MemoryTable table, Object value, Object[] values) {
+            int c = MemoryTable.compareValues(table.getType(column), value, table.convert(column, term.get(values)));
+            switch (op) {
+                case "=":
+                    return c == 0;
+                case "<":
+                    return c < 0;
+                case "<=":
+                    return c <= 0;
+                case ">":
+                    return c > 0;
+                case ">=":
+                    return c >= 0;
+                default:
+                    throw new InvalidQueryException("Unsupported operator " + op);
+            }
+        }
+    }
+
+    /**
+     * Rows selection shared by SELECT, UPDATE and DELETE.
+     */
+    static class Where {
+
+        final List<Condition> conditions = new ArrayList<>();
+
+        /**
+         * Get the partition key if it is fully restricted by equalities.
+         *
+         * @return Partition key or null
+         */
+        List<Object> partitionKey(MemoryTable table, Object[] values) {
+            List<Object> key = new ArrayList<>();
+            for (String column : table.partitionKey) {
+                Condition cond = find(column, "=");
+                if (cond == null) {
+                    return null;
+                }
+                key.add(table.convert(column, cond.term.get(values)));
+            }
+            return key;
+        }
+
+        /**
+         * Get the clustering key if it is fully restricted by equalities.
+         *
+         * @return Clustering key or null
+         */
+        List<Object> clusteringKey(MemoryTable table, Object[] values) {
+            List<Object> key = new ArrayList<>();
+            for (String column : table.clustering) {
+                Condition cond = find(column, "=");
+                if (cond == null) {
+                    return null;
+                }
+                key.add(table.convert(column, cond.term.get(values)));
+            }
+            return key;
+        }
+
+        boolean restrictsClustering(MemoryTable table) {
+            for (Condition cond : conditions) {
+                if (table.clustering.contains(cond.column)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Condition find(String column, String op) {
+            for (Condition cond : conditions) {
+                if (cond.column.equals(column) && cond.op.equals(op)) {
+                    return cond;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Get the rows of a partition matching the conditions.
+         *
+         * @param table     Table
+         * @param partition Partition
+         * @param values    Bound values
+         * @param now       Current time
+         * @return Matching rows, in the clustering order
+         */
+        NavigableMap<List<Object>, MemoryTable.Row> rows(MemoryTable table, MemoryTable.Partition partition, Object[] values, long now) {
+            NavigableMap<List<Object>, MemoryTable.Row> view = partition.rows;
+            if (table.clustering.size() == 1) { // We can use the sorted map to restrict the range
+                String column = table.clustering.get(0);
+                boolean desc = table.descending.contains(column);
+                try {
+                    for (Condition cond : conditions) {
+                        if (!cond.column.equals(column)) {
+                            continue;
+                        }
+                        List<Object> k = Collections.singletonList(table.convert(column, cond.term.get(values)));
+                        boolean inclusive = cond.op.contains("=");
+                        if (cond.op.equals("=")) {
+                            view = view.subMap(k, true, k, true);
+                        } else if (cond.op.startsWith(">") ^ desc) {
+                            view = view.tailMap(k, inclusive);
+                        } else {
+                            view = view.headMap(k, inclusive);
+                        }
+                    }
+                } catch (IllegalArgumentException ex) { // Out of range: nothing can match
+                    return new TreeMap<>();
+                }
+            }
+            TreeMap<List<Object>, MemoryTable.Row> result = new TreeMap<>(partition.rows.comparator());
+            for (Map.Entry<List<Object>, MemoryTable.Row> me : view.entrySet()) {
+                if (matches(table, partition, me.getKey(), me.getValue(), values, now)) {
+                    result.put(me.getKey(), me.getValue());
+                }
+            }
+            return result;
+        }
+
+        private boolean matches(MemoryTable table, MemoryTable.Partition partition, List<Object> key, MemoryTable.Row row, Object[] values, long now) {
+            if (!row.alive(now)) {
+                return false;
+            }
+            for (Condition cond : conditions) {
+                if (!cond.matches(table, table.getValue(partition, key, row, cond.column, now), values)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Schema queries">
+    static class CreateTable extends MemoryQuery {
+
+        private final MemoryTable definition;
+        private final boolean ifNotExists;
+
+        CreateTable(MemoryTable definition, boolean ifNotExists) {
+            this.definition = definition;
+            this.ifNotExists = ifNotExists;
+        }
+
+        @Override
+        boolean isWrite() {
+            return false;
+        }
+
+        @Override
+        ResultSet execute(MemoryBackend backend, Object[] values) {
+            MemoryTable table = new MemoryTable(definition.name);
+            table.types.putAll(definition.types);
+            table.partitionKey.addAll(definition.partitionKey);
+            table.clustering.addAll(definition.clustering);
+            table.descending.addAll(definition.descending);
+            if (!backend.createTable(table) && !ifNotExists) {
+                throw new InvalidQueryException("Table " + table.name + " already exists");
+            }
+            return MemoryResultSet.EMPTY;
+        }
+    }
+
+    static class DropTable extends MemoryQuery {
+
+        private final String table;
+        private final boolean truncate, ifExists;
+
+        DropTable(String table, boolean truncate, boolean ifExists) {
+            this.table = table;
+            this.truncate = truncate;
+            this.ifExists = ifExists;
+        }
+
+        @Override
+        boolean isWrite() {
+            return truncate;
+        }
+
+        @Override
+        ResultSet execute(MemoryBackend backend, Object[] values) {
+            if (truncate) {
+                backend.getTable(table).truncate();
+            } else if (!backend.dropTable(table) && !ifExists) {
+                throw new InvalidQueryException("Table " + table + " doesn't exist");
+            }
+            return MemoryResultSet.EMPTY;
+        }
+    }
+
+    static class AddColumn extends MemoryQuery {
+
+        private final String table, column, type;
+
+        AddColumn(String table, String column, String type) {
+            this.table = table;
+            this.column = column;
+            this.type = type;
+        }
+
+        @Override
+        boolean isWrite() {
+            return false;
+        }
+
+        @Override
+        ResultSet execute(MemoryBackend backend, Object[] values) {
+            MemoryTable t = backend.getTable(table);
+            synchronized (t.types) {
+                if (t.types.containsKey(column)) {
+                    throw new InvalidQueryException("Invalid column name " + column + " because it conflicts with an existing column");
+                }
+                t.types.put(column, type);
+            }
+            return MemoryResultSet.EMPTY;
+        }
+    }
+
+    static class Noop extends MemoryQuery {
+
+        @Override
+        boolean isWrite() {
+            return false;
+        }
+
+        @Override
+        ResultSet execute(MemoryBackend backend, Object[] values) {
+            return MemoryResultSet.EMPTY;
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Data modification queries">
+    static abstract class Modification extends MemoryQuery {
+
+        final String table;
+        Term ttl, timestamp;
+
+        Modification(String table) {
+            this.table = table;
+        }
+
+        @Override
+        boolean isWrite() {
+            return true;
+        }
+
+        long timestamp(Object[] values, long now) {
+            return timestamp != null ? ((Number) timestamp.get(values)).longValue() : now * 1000;
+        }
+
+        long expiration(Object[] values, long now) {
+            int seconds = ttl != null ? ((Number) ttl.get(values)).intValue() : 0;
+            return seconds > 0 ? now + seconds * 1000L : 0;
+        }
+    }
+
+    static class Insert extends Modification {
+
+        final List<String> columns = new ArrayList<>();
+        final List<Term> terms = new ArrayList<>();
+
+        Insert(String table) {
+            super(table);
+        }
+
+        @Override
+        ResultSet execute(MemoryBackend backend, Object[] values) {
+            MemoryTable t = backend.getTable(table);
+            long now = System.currentTimeMillis();
+            long ts = timestamp(values, now), expiration = expiration(values, now);
+            List<Object> pk = new ArrayList<>(), ck = new ArrayList<>();
+            for (String column : t.partitionKey) {
+                pk.add(keyValue(t, column));
+            }
+            for (String column : t.clustering) {
+                ck.add(keyValue(t, column));
+            }
+            MemoryTable.Partition partition = t.getPartition(convertKey(t, t.partitionKey, pk, values), true);
+            List<Object> clusteringKey = convertKey(t, t.clustering, ck, values);
+            synchronized (partition) {
+                MemoryTable.Row row = partition.rows.get(clusteringKey);
+                if (row == null) {
+                    row = new MemoryTable.Row();
+                    partition.rows.put(clusteringKey, row);
+                }
+                row.setMarker(new MemoryTable.Cell(Boolean.TRUE, ts, expiration));
+                for (int i = 0; i < columns.size(); i++) {
+                    String column = columns.get(i);
+                    if (t.partitionKey.contains(column) || t.clustering.contains(column)) {
+                        continue;
+                    }
+                    Object value = terms.get(i).get(values);
+                    if (t.isMap(column)) {
+                        setMap(t, row, column, value, ts, expiration);
+                    } else {
+                        row.set(column, new MemoryTable.Cell(t.convert(column, value), ts, expiration));
+                    }
+                }
+            }
+            return MemoryResultSet.EMPTY;
+        }
+
+        private Term keyValue(MemoryTable t, String column) {
+            int index = columns.indexOf(column);
+            if (index == -1) {
+                throw new InvalidQueryException("Missing mandatory PRIMARY KEY part " + column);
+            }
+            return terms.get(index);
+        }
+    }
+
+    static class Assignment {
+
+        final String column;
+        final Term key;
+        final Term value;
+
+        Assignment(String column, Term key, Term value) {
+            this.column = column;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    static class Update extends Modification {
+
+        final List<Assignment> assignments = new ArrayList<>();
+        final Where where = new Where();
+
+        Update(String table) {
+            super(table);
+        }
+
+        @Override
+        ResultSet execute(MemoryBackend backend, Object[] values) {
+            MemoryTable t = backend.getTable(table);
+            long now = System.currentTimeMillis();
+            long ts = timestamp(values, now), expiration = expiration(values, now);
+            List<Object> pk = where.partitionKey(t, values), ck = where.clusteringKey(t, values);
+            if (pk == null || ck == null) {
+                throw new InvalidQueryException("The whole PRIMARY KEY must be given in an UPDATE");
+            }
+            MemoryTable.Partition partition = t.getPartition(pk, true);
+            synchronized (partition) {
+                MemoryTable.Row row = partition.rows.get(ck);
+                if (row == null) {
+                    row = new MemoryTable.Row();
+                    partition.rows.put(ck, row);
+                }
+                for (Assignment a : assignments) {
+                    if (a.key != null) {
+                        row.setMapEntry(a.column, MemoryTable.convertType(t.getMapKeyType(a.column), a.key.get(values)), new MemoryTable.Cell(a.value.get(values), ts, expiration));
+                    } else if (t.isMap(a.column)) {
+                        setMap(t, row, a.column, a.value.get(values), ts, expiration);
+                    } else {
+                        row.set(a.column, new MemoryTable.Cell(t.convert(a.column, a.value.get(values)), ts, expiration));
+                    }
+                }
+            }
+            return MemoryResultSet.EMPTY;
+        }
+    }
+
+    static class Delete extends Modification {
+
+        final List<Assignment> selection = new ArrayList<>();
+        final Where where = new Where();
+
+        Delete(String table) {
+            super(table);
+        }
+
+        @Override
+        ResultSet execute(MemoryBackend backend, Object[] values) {
+            MemoryTable t = backend.getTable(table);
+            long now = System.currentTimeMillis();
+            List<Object> pk = where.partitionKey(t, values);
+            if (pk == null) {
+                throw new InvalidQueryException("The partition key must be given in a DELETE");
+            }
+            // With a timestamp, the deleted rows and cells are kept as tombstones. Without one, they are removed: the later
+            // writes are newer anyway (unless they have an older timestamp).
+            List<Object> ck = timestamp != null && selection.isEmpty() ? where.clusteringKey(t, values) : null;
+            MemoryTable.Partition partition = t.getPartition(pk, ck != null);
+            if (partition == null) {
+                return MemoryResultSet.EMPTY;
+            }
+            synchronized (partition) {
+                if (selection.isEmpty() && !where.restrictsClustering(t) && timestamp == null) {
+                    partition.rows.clear();
+                    t.removePartition(pk);
+                    return MemoryResultSet.EMPTY;
+                }
+                long ts = timestamp(values, now);
+                if (ck != null) {
+                    // A row that doesn't exist yet still gets its tombstone
+                    MemoryTable.Row row = partition.rows.get(ck);
+                    if (row == null) {
+                        row = new MemoryTable.Row();
+                        partition.rows.put(ck, row);
+                    }
+                    row.delete(ts);
+                    return MemoryResultSet.EMPTY;
+                }
+                for (Map.Entry<List<Object>, MemoryTable.Row> me : where.rows(t, partition, values, now).entrySet()) {
+                    MemoryTable.Row row = me.getValue();
+                    if (selection.isEmpty()) {
+                        if (timestamp != null) {
+                            row.delete(ts);
+                        } else {
+                            partition.rows.remove(me.getKey());
+                        }
+                        continue;
+                    }
+                    for (Assignment s : selection) {
+                        if (s.key != null) {
+                            Object key = MemoryTable.convertType(t.getMapKeyType(s.column), s.key.get(values));
+                            if (timestamp != null) {
+                                row.setMapEntry(s.column, key, new MemoryTable.Cell(null, ts, 0));
+                            } else if (row.maps.containsKey(s.column)) {
+                                row.maps.get(s.column).remove(key);
+                            }
+                        } else if (timestamp != null && !t.isMap(s.column)) {
+                            row.set(s.column, new MemoryTable.Cell(null, ts, 0));
+                        } else {
+                            row.cells.remove(s.column);
+                            row.maps.remove(s.column);
+                        }
+                    }
+                }
+            }
+            return MemoryResultSet.EMPTY;
+        }
+    }
+
+    private static List<Object> convertKey(MemoryTable t, List<String> columns, List<Object> terms, Object[] values) {
+        List<Object> key = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            key.add(t.convert(columns.get(i), ((Term) terms.get(i)).get(values)));
+        }
+        return key;
+    }
+
+    private static void setMap(MemoryTable t, MemoryTable.Row row, String column, Object value, long ts, long expiration) {
+        row.maps.remove(column);
+        if (value != null) {
+            for (Map.Entry<?, ?> me : ((Map<?, ?>) value).entrySet()) {
+                row.setMapEntry(column, MemoryTable.convertType(t.getMapKeyType(column), me.getKey()), new MemoryTable.Cell(me.getValue(), ts, expiration));
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Select">
+    static class Select extends MemoryQuery {
+
+        final String table;
+        final List<String> columns = new ArrayList<>();
+        final Where where = new Where();
+        String orderBy;
+        boolean orderDesc;
+        boolean count;
+        Term limit;
+
+        Select(String table) {
+            this.table = table;
+        }
+
+        @Override
+        boolean isWrite() {
+            return false;
+        }
+
+        @Override
+        ResultSet execute(MemoryBackend backend, Object[] values) {
+            MemoryTable t = backend.getTable(table);
+            long now = System.currentTimeMillis();
+            List<String> selected = columns.isEmpty() ? new ArrayList<>(t.types.keySet()) : columns;
+            for (String column : selected) {
+                t.getType(MemoryTable.selectedColumn(column));
+            }
+            int max = limit != null ? ((Number) limit.get(values)).intValue() : Integer.MAX_VALUE;
+            boolean reversed = orderBy != null && orderDesc != t.descending.contains(orderBy);
+            if (orderBy != null && (t.clustering.isEmpty() || !t.clustering.get(0).equals(orderBy))) {
+                throw new InvalidQueryException("Order by is only supported on the first clustering column");
+            }
+
+            Collection<MemoryTable.Partition> partitions;
+            List<Object> pk = where.partitionKey(t, values);
+            if (pk != null) {
+                MemoryTable.Partition partition = t.getPartition(pk, false);
+                partitions = partition != null ? Collections.singletonList(partition) : Collections.<MemoryTable.Partition>emptyList();
+            } else {
+                partitions = t.getPartitions();
+            }
+
+            if (count) {
+                long nb = 0;
+                for (MemoryTable.Partition partition : partitions) {
+                    synchronized (partition) {
+                        nb += where.rows(t, partition, values, now).size();
+                    }
+                }
+                return new MemoryResultSet(Collections.singletonList("count"), Collections.singletonList(new Object[]{Math.min(nb, max)}));
+            }
+
+            List<Object[]> rows = new ArrayList<>();
+            for (MemoryTable.Partition partition : partitions) {
+                synchronized (partition) {
+                    NavigableMap<List<Object>, MemoryTable.Row> matching = where.rows(t, partition, values, now);
+                    if (reversed) {
+                        matching = matching.descendingMap();
+                    }
+                    for (Map.Entry<List<Object>, MemoryTable.Row> me : matching.entrySet()) {
+                        if (rows.size() >= max) {
+                            break;
+                        }
+                        Object[] row = new Object[selected.size()];
+                        for (int i = 0; i < row.length; i++) {
+                            row[i] = t.getValue(partition, me.getKey(), me.getValue(), selected.get(i), now);
+                        }
+                        rows.add(row);
+                    }
+                }
+            }
+            return new MemoryResultSet(selected, rows);
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Parsing">
+
+    /**
+     * Parse a CQL query.
+     *
+     * @param cql CQL query
+     * @return Parsed query
+     * @throws InvalidQueryException If the query isn't supported
+     */
+    static MemoryQuery parse(String cql) {
+        return new Parser(cql).parse();
+    }
+
+    private static class Parser {
+
+        private final String cql;
+        private final List<String> tokens = new ArrayList<>();
+        private int pos;
+        private int markers;
+
+        Parser(String cql) {
+            this.cql = cql;
+            tokenize();
+        }
+
+        private void tokenize() {
+            int i = 0, n = cql.length();
+            while (i < n) {
+                char c = cql.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'') {
+                    StringBuilder sb = new StringBuilder("'");
+                    i++;
+                    while (i < n) {
+                        char d = cql.charAt(i++);
+                        if (d == '\'') {
+                            if (i < n && cql.charAt(i) == '\'') {
+                                sb.append('\'');
+                                i++;
+                            } else {
+                                break;
+                            }
+                        } else {
+                            sb.append(d);
+                        }
+                    }
+                    tokens.add(sb.toString());
+                } else if (Character.isLetterOrDigit(c) || c == '_' || (c == '-' && i + 1 < n && Character.isDigit(cql.charAt(i + 1)))) {
+                    int start = i++;
+                    while (i < n && (Character.isLetterOrDigit(cql.charAt(i)) || cql.charAt(i) == '_' || cql.charAt(i) == '.')) {
+                        i++;
+                    }
+                    tokens.add(cql.substring(start, i));
+                } else if ((c == '<' || c == '>') && i + 1 < n && cql.charAt(i + 1) == '=') {
+                    tokens.add(cql.substring(i, i + 2));
+                    i += 2;
+                } else {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                }
+            }
+        }
+
+        private InvalidQueryException error(String message) {
+            return new InvalidQueryException(message + " at token " + pos + " of \"" + cql + "\"");
+        }
+
+        private String peek() {
+            return pos < tokens.size() ? tokens.get(pos) : null;
+        }
+
+        private String next() {
+            if (pos >= tokens.size()) {
+                throw error("Unexpected end of query");
+            }
+            return tokens.get(pos++);
+        }
+
+        private boolean accept(String keyword) {
+            String token = peek();
+            if (token != null && token.equalsIgnoreCase(keyword)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword) {
+            if (!accept(keyword)) {
+                throw error("Expected " + keyword);
+            }
+        }
+
+        private String identifier() {
+            String token = next();
+            if (!Character.isLetter(token.charAt(0))) {
+                throw error("Expected an identifier, got " + token);
+            }
+            return token.toLowerCase();
+        }
+
+        private Term term() {
+            String token = next();
+            if (token.equals("?")) {
+                return new Term(markers++, null);
+            } else if (token.startsWith("'")) {
+                return new Term(-1, token.substring(1));
+            } else if (token.equalsIgnoreCase("null")) {
+                return new Term(-1, null);
+            } else if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) {
+                return new Term(-1, Boolean.parseBoolean(token));
+            } else if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '-') {
+                return new Term(-1, token.contains(".") ? (Object) Double.parseDouble(token) : (Object) Long.parseLong(token));
+            }
+            throw error("Unsupported term " + token);
+        }
+
+        private String type() {
+            StringBuilder sb = new StringBuilder(identifier());
+            if (accept("<")) {
+                sb.append('<');
+                int depth = 1;
+                while (depth > 0) {
+                    String token = next();
+                    if (token.equals("<")) {
+                        depth++;
+                    } else if (token.equals(">")) {
+                        depth--;
+                    }
+                    sb.append(token.toLowerCase());
+                }
+            }
+            return sb.toString();
+        }
+
+        private void end() {
+            accept(";");
+            if (peek() != null) {
+                throw error("Unexpected " + peek());
+            }
+        }
+
+        MemoryQuery parse() {
+            MemoryQuery query;
+            if (accept("SELECT")) {
+                query = parseSelect();
+            } else if (accept("INSERT")) {
+                query = parseInsert();
+            } else if (accept("UPDATE")) {
+                query = parseUpdate();
+            } else if (accept("DELETE")) {
+                query = parseDelete();
+            } else if (accept("CREATE")) {
+                if (accept("TABLE") || accept("COLUMNFAMILY")) {
+                    query = parseCreateTable();
+                } else if (accept("INDEX") || accept("KEYSPACE")) {
+                    return new Noop();
+                } else {
+                    throw error("Unsupported CREATE");
+                }
+            } else if (accept("DROP")) {
+                if (!accept("TABLE")) {
+                    expect("COLUMNFAMILY");
+                }
+                boolean ifExists = false;
+                if (accept("IF")) {
+                    expect("EXISTS");
+                    ifExists = true;
+                }
+                query = new DropTable(identifier(), false, ifExists);
+            } else if (accept("TRUNCATE")) {
+                query = new DropTable(identifier(), true, false);
+            } else if (accept("ALTER")) {
+                if (!accept("TABLE")) {
+                    expect("COLUMNFAMILY");
+                }
+                String table = identifier();
+                if (!accept("ADD")) {
+                    return new Noop();
+                }
+                String column = identifier();
+                query = new AddColumn(table, column, type());
+            } else if (accept("USE")) {
+                return new Noop();
+            } else {
+                throw error("Unsupported query");
+            }
+            end();
+            return query;
+        }
+
+        private MemoryQuery parseCreateTable() {
+            boolean ifNotExists = false;
+            if (accept("IF")) {
+                expect("NOT");
+                expect("EXISTS");
+                ifNotExists = true;
+            }
+            MemoryTable table = new MemoryTable(identifier());
+            expect("(");
+            do {
+                if (accept("PRIMARY")) {
+                    expect("KEY");
+                    expect("(");
+                    if (accept("(")) {
+                        do {
+                            table.partitionKey.add(identifier());
+                        } while (accept(","));
+                        expect(")");
+                    } else {
+                        table.partitionKey.add(identifier());
+                    }
+                    while (accept(",")) {
+                        table.clustering.add(identifier());
+                    }
+                    expect(")");
+                } else {
+                    String column = identifier();
+                    table.types.put(column, type());
+                    if (accept("PRIMARY")) {
+                        expect("KEY");
+                        table.partitionKey.add(column);
+                    }
+                }
+            } while (accept(","));
+            expect(")");
+            if (accept("WITH")) {
+                while (peek() != null && !peek().equals(";")) {
+                    if (accept("CLUSTERING")) {
+                        expect("ORDER");
+                        expect("BY");
+                        expect("(");
+                        do {
+                            String column = identifier();
+                            if (accept("DESC")) {
+                                table.descending.add(column);
+                            } else {
+                                accept("ASC");
+                            }
+                        } while (accept(","));
+                        expect(")");
+                    } else {
+                        next();
+                    }
+                }
+            }
+            if (table.partitionKey.isEmpty()) {
+                throw error("No PRIMARY KEY specified");
+            }
+            return new CreateTable(table, ifNotExists);
+        }
+
+        private void parseUsing(Modification query) {
+            if (accept("USING")) {
+                do {
+                    if (accept("TTL")) {
+                        query.ttl = term();
+                    } else {
+                        expect("TIMESTAMP");
+                        query.timestamp = term();
+                    }
+                } while (accept("AND"));
+            }
+        }
+
+        private void parseWhere(Where where) {
+            expect("WHERE");
+            do {
+                String column = identifier();
+                String op = next();
+                if (!Arrays.asList("=", "<", "<=", ">", ">=").contains(op)) {
+                    throw error("Unsupported operator " + op);
+                }
+                where.conditions.add(new Condition(column, op, term()));
+            } while (accept("AND"));
+        }
+
+        private MemoryQuery parseSelect() {
+            List<String> columns = new ArrayList<>();
+            boolean count = false;
+            if (accept("COUNT")) {
+                expect("(");
+                if (!accept("*")) {
+                    expect("1");
+                }
+                expect(")");
+                count = true;
+            } else if (!accept("*")) {
+                do {
+                    String column = identifier();
+                    if ((column.equals("ttl") || column.equals("writetime")) && accept("(")) {
+                        column += "(" + identifier() + ")";
+                        expect(")");
+                    }
+                    columns.add(column);
+                } while (accept(","));
+            }
+            expect("FROM");
+            Select select = new Select(identifier());
+            select.columns.addAll(columns);
+            select.count = count;
+            if (peek() != null && peek().equalsIgnoreCase("WHERE")) {
+                parseWhere(select.where);
+            }
+            if (accept("ORDER")) {
+                expect("BY");
+                select.orderBy = identifier();
+                select.orderDesc = accept("DESC");
+                if (!select.orderDesc) {
+                    accept("ASC");
+                }
+            }
+            if (accept("LIMIT")) {
+                select.limit = term();
+            }
+            accept("ALLOW");
+            accept("FILTERING");
+            return select;
+        }
+
+        private MemoryQuery parseInsert() {
+            expect("INTO");
+            Insert insert = new Insert(identifier());
+            expect("(");
+            do {
+                insert.columns.add(identifier());
+            } while (accept(","));
+            expect(")");
+            expect("VALUES");
+            expect("(");
+            do {
+                insert.terms.add(term());
+            } while (accept(","));
+            expect(")");
+            if (insert.columns.size() != insert.terms.size()) {
+                throw error("Unmatched column names/values");
+            }
+            parseUsing(insert);
+            return insert;
+        }
+
+        private MemoryQuery parseUpdate() {
+            Update update = new Update(identifier());
+            parseUsing(update);
+            expect("SET");
+            do {
+                String column = identifier();
+                Term key = null;
+                if (accept("[")) {
+                    key = term();
+                    expect("]");
+                }
+                expect("=");
+                update.assignments.add(new Assignment(column, key, term()));
+            } while (accept(","));
+            parseWhere(update.where);
+            return update;
+        }
+
+        private MemoryQuery parseDelete() {
+            List<Assignment> selection = new ArrayList<>();
+            if (!peek().equalsIgnoreCase("FROM")) {
+                do {
+                    String column = identifier();
+                    Term key = null;
+                    if (accept("[")) {
+                        key = term();
+                        expect("]");
+                    }
+                    selection.add(new Assignment(column, key, null));
+                } while (accept(","));
+            }
+            expect("FROM");
+            Delete delete = new Delete(identifier());
+            delete.selection.addAll(selection);
+            parseUsing(delete);
+            parseWhere(delete.where);
+            return delete;
+        }
+    }
+    // </editor-fold>
+}
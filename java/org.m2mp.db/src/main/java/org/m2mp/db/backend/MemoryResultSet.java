@@ -0,0 +1,101 @@
+package org.m2mp.db.backend;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.*;
+
+/**
+ * Result of a query executed by the in-memory backend.
+ * <p/>
+ * Everything is fetched at once. There's no column definition nor execution info.
+ */
+class MemoryResultSet implements ResultSet {
+
+    static final MemoryResultSet EMPTY = new MemoryResultSet(Collections.<String>emptyList(), Collections.<Object[]>emptyList());
+
+    private final List<String> columns;
+    private final List<Object[]> rows;
+    private int position;
+
+    MemoryResultSet(List<String> columns, List<Object[]> rows) {
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    @Override
+    public ColumnDefinitions getColumnDefinitions() {
+        return null;
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return position >= rows.size();
+    }
+
+    @Override
+    public Row one() {
+        return isExhausted() ? null : new MemoryRow(columns, rows.get(position++));
+    }
+
+    @Override
+    public List<Row> all() {
+        List<Row> list = new ArrayList<>();
+        while (!isExhausted()) {
+            list.add(one());
+        }
+        return list;
+    }
+
+    @Override
+    public Iterator<Row> iterator() {
+        return new Iterator<Row>() {
+            @Override
+            public boolean hasNext() {
+                return !isExhausted();
+            }
+
+            @Override
+            public Row next() {
+                if (isExhausted()) {
+                    throw new NoSuchElementException();
+                }
+                return one();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int getAvailableWithoutFetching() {
+        return rows.size() - position;
+    }
+
+    @Override
+    public boolean isFullyFetched() {
+        return true;
+    }
+
+    @Override
+    public ListenableFuture<Void> fetchMoreResults() {
+        return Futures.immediateFuture(null);
+    }
+
+    @Override
+    public ExecutionInfo getExecutionInfo() {
+        return null;
+    }
+
+    @Override
+    public List<ExecutionInfo> getAllExecutionInfo() {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,258 @@
+package org.m2mp.db.backend;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.TupleValue;
+import com.datastax.driver.core.UDTValue;
+import com.datastax.driver.core.exceptions.InvalidTypeException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Row returned by the in-memory backend.
+ * <p/>
+ * Like the driver, null numbers and booleans are returned as 0 and false, and null collections as empty ones.
+ */
+class MemoryRow implements Row {
+
+    private final List<String> columns;
+    private final Object[] values;
+
+    MemoryRow(List<String> columns, Object[] values) {
+        this.columns = columns;
+        this.values = values;
+    }
+
+    private int index(String name) {
+        int index = columns.indexOf(name.toLowerCase());
+        if (index == -1) {
+            throw new IllegalArgumentException(name + " is not a column defined in this metadata");
+        }
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(int i, Class<T> type) {
+        Object value = values[i];
+        if (value != null && !type.isInstance(value)) {
+            throw new InvalidTypeException("Column " + columns.get(i) + " is a " + value.getClass().getSimpleName() + ", not a " + type.getSimpleName());
+        }
+        return (T) value;
+    }
+
+    @Override
+    public ColumnDefinitions getColumnDefinitions() {
+        return null;
+    }
+
+    @Override
+    public boolean isNull(int i) {
+        return values[i] == null;
+    }
+
+    @Override
+    public boolean isNull(String name) {
+        return isNull(index(name));
+    }
+
+    @Override
+    public boolean getBool(int i) {
+        Boolean value = get(i, Boolean.class);
+        return value != null && value;
+    }
+
+    @Override
+    public boolean getBool(String name) {
+        return getBool(index(name));
+    }
+
+    @Override
+    public int getInt(int i) {
+        Number value = get(i, Number.class);
+        return value != null ? value.intValue() : 0;
+    }
+
+    @Override
+    public int getInt(String name) {
+        return getInt(index(name));
+    }
+
+    @Override
+    public long getLong(int i) {
+        Number value = get(i, Number.class);
+        return value != null ? value.longValue() : 0;
+    }
+
+    @Override
+    public long getLong(String name) {
+        return getLong(index(name));
+    }
+
+    @Override
+    public Date getDate(int i) {
+        return get(i, Date.class);
+    }
+
+    @Override
+    public Date getDate(String name) {
+        return getDate(index(name));
+    }
+
+    @Override
+    public float getFloat(int i) {
+        Number value = get(i, Number.class);
+        return value != null ? value.floatValue() : 0;
+    }
+
+    @Override
+    public float getFloat(String name) {
+        return getFloat(index(name));
+    }
+
+    @Override
+    public double getDouble(int i) {
+        Number value = get(i, Number.class);
+        return value != null ? value.doubleValue() : 0;
+    }
+
+    @Override
+    public double getDouble(String name) {
+        return getDouble(index(name));
+    }
+
+    @Override
+    public ByteBuffer getBytesUnsafe(int i) {
+        return getBytes(i);
+    }
+
+    @Override
+    public ByteBuffer getBytesUnsafe(String name) {
+        return getBytes(name);
+    }
+
+    @Override
+    public ByteBuffer getBytes(int i) {
+        ByteBuffer value = get(i, ByteBuffer.class);
+        return value != null ? value.duplicate() : null;
+    }
+
+    @Override
+    public ByteBuffer getBytes(String name) {
+        return getBytes(index(name));
+    }
+
+    @Override
+    public String getString(int i) {
+        return get(i, String.class);
+    }
+
+    @Override
+    public String getString(String name) {
+        return getString(index(name));
+    }
+
+    @Override
+    public BigInteger getVarint(int i) {
+        return get(i, BigInteger.class);
+    }
+
+    @Override
+    public BigInteger getVarint(String name) {
+        return getVarint(index(name));
+    }
+
+    @Override
+    public BigDecimal getDecimal(int i) {
+        return get(i, BigDecimal.class);
+    }
+
+    @Override
+    public BigDecimal getDecimal(String name) {
+        return getDecimal(index(name));
+    }
+
+    @Override
+    public UUID getUUID(int i) {
+        return get(i, UUID.class);
+    }
+
+    @Override
+    public UUID getUUID(String name) {
+        return getUUID(index(name));
+    }
+
+    @Override
+    public InetAddress getInet(int i) {
+        return get(i, InetAddress.class);
+    }
+
+    @Override
+    public InetAddress getInet(String name) {
+        return getInet(index(name));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getList(int i, Class<T> elementsClass) {
+        List<T> value = get(i, List.class);
+        return value != null ? Collections.unmodifiableList(value) : Collections.<T>emptyList();
+    }
+
+    @Override
+    public <T> List<T> getList(String name, Class<T> elementsClass) {
+        return getList(index(name), elementsClass);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Set<T> getSet(int i, Class<T> elementsClass) {
+        Set<T> value = get(i, Set.class);
+        return value != null ? Collections.unmodifiableSet(value) : Collections.<T>emptySet();
+    }
+
+    @Override
+    public <T> Set<T> getSet(String name, Class<T> elementsClass) {
+        return getSet(index(name), elementsClass);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <K, V> Map<K, V> getMap(int i, Class<K> keysClass, Class<V> valuesClass) {
+        Map<K, V> value = get(i, Map.class);
+        return value != null ? Collections.unmodifiableMap(value) : Collections.<K, V>emptyMap();
+    }
+
+    @Override
+    public <K, V> Map<K, V> getMap(String name, Class<K> keysClass, Class<V> valuesClass) {
+        return getMap(index(name), keysClass, valuesClass);
+    }
+
+    @Override
+    public UDTValue getUDTValue(int i) {
+        return get(i, UDTValue.class);
+    }
+
+    @Override
+    public UDTValue getUDTValue(String name) {
+        return getUDTValue(index(name));
+    }
+
+    @Override
+    public TupleValue getTupleValue(int i) {
+        return get(i, TupleValue.class);
+    }
+
+    @Override
+    public TupleValue getTupleValue(String name) {
+        return getTupleValue(index(name));
+    }
+
+    @Override
+    public String toString() {
+        return "Row" + Arrays.toString(values);
+    }
+}
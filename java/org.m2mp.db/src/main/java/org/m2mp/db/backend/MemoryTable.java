@@ -0,0 +1,332 @@
+package org.m2mp.db.backend;
+
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory table.
+ * <p/>
+ * Rows are grouped by partition and sorted by their clustering key (following the declared clustering order). Each
+ * cell has a write timestamp (last write wins) and an optional expiration date. The deletes with a timestamp and the
+ * null values leave tombstones that shadow the older writes, as cassandra does.
+ */
+class MemoryTable {
+
+    final String name;
+    final Map<String, String> types = new LinkedHashMap<>();
+    final List<String> partitionKey = new ArrayList<>();
+    final List<String> clustering = new ArrayList<>();
+    final Set<String> descending = new HashSet<>();
+    private final ConcurrentMap<List<Object>, Partition> partitions = new ConcurrentHashMap<>();
+    private final Comparator<List<Object>> comparator = new Comparator<List<Object>>() {
+        @Override
+        public int compare(List<Object> a, List<Object> b) {
+            for (int i = 0; i < clustering.size(); i++) {
+                String column = clustering.get(i);
+                int c = compareValues(types.get(column), a.get(i), b.get(i));
+                if (c != 0) {
+                    return descending.contains(column) ? -c : c;
+                }
+            }
+            return 0;
+        }
+    };
+
+    MemoryTable(String name) {
+        this.name = name;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Values">
+
+    /**
+     * Compare two values the way cassandra does.
+     *
+     * @param type CQL type
+     * @param a    First value
+     * @param b    Second value
+     * @return comparison result
+     */
+    @SuppressWarnings("unchecked")
+    static int compareValues(String type, Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if ("timeuuid".equals(type)) {
+            UUID ua = (UUID) a, ub = (UUID) b;
+            int c = Long.compare(ua.timestamp(), ub.timestamp());
+            if (c != 0) {
+                return c;
+            }
+            // The clock sequence and the node are compared as signed bytes
+            for (int i = 56; i >= 0; i -= 8) {
+                c = Byte.compare((byte) (ua.getLeastSignificantBits() >>> i), (byte) (ub.getLeastSignificantBits() >>> i));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * Convert a bound value to the java type of the column.
+     *
+     * @param column Column
+     * @param value  Value
+     * @return Converted value
+     */
+    Object convert(String column, Object value) {
+        return convertType(getType(column), value);
+    }
+
+    /**
+     * Convert a bound value to the java type of a CQL type.
+     *
+     * @param type  CQL type
+     * @param value Value
+     * @return Converted value
+     */
+    static Object convertType(String type, Object value) {
+        if (value == null) {
+            return null;
+        }
+        switch (type) {
+            case "int":
+                return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+            case "bigint":
+            case "counter":
+                return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+            case "double":
+                return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+            case "boolean":
+                return value instanceof Boolean ? value : Boolean.parseBoolean(value.toString());
+            case "uuid":
+            case "timeuuid":
+                return value instanceof UUID ? value : UUID.fromString(value.toString());
+            case "blob":
+                return value instanceof ByteBuffer ? ((ByteBuffer) value).duplicate() : ByteBuffer.wrap((byte[]) value);
+            default:
+                return value;
+        }
+    }
+
+    String getType(String column) {
+        String type = types.get(column);
+        if (type == null) {
+            throw new InvalidQueryException("Undefined name " + column + " in table " + name);
+        }
+        return type;
+    }
+
+    boolean isMap(String column) {
+        return getType(column).startsWith("map");
+    }
+
+    String getMapKeyType(String column) {
+        String type = getType(column);
+        return type.substring(type.indexOf('<') + 1, type.indexOf(',')).trim();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Data structures">
+    static class Cell {
+
+        final Object value;
+        final long timestamp;
+        final long expiration;
+
+        Cell(Object value, long timestamp, long expiration) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.expiration = expiration;
+        }
+
+        boolean alive(long now) {
+            return value != null && (expiration == 0 || expiration > now);
+        }
+    }
+
+    static class Row {
+
+        Cell marker;
+        final Map<String, Cell> cells = new HashMap<>();
+        final Map<String, TreeMap<Object, Cell>> maps = new HashMap<>();
+
+        /**
+         * Timestamp of the last delete of the row, the writes that aren't newer are ignored.
+         */
+        long deletedAt = Long.MIN_VALUE;
+
+        boolean alive(long now) {
+            if (marker != null && marker.alive(now)) {
+                return true;
+            }
+            for (Cell cell : cells.values()) {
+                if (cell.alive(now)) {
+                    return true;
+                }
+            }
+            for (TreeMap<Object, Cell> map : maps.values()) {
+                for (Cell cell : map.values()) {
+                    if (cell.alive(now)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void setMarker(Cell cell) {
+            if (cell.timestamp > deletedAt && (marker == null || marker.timestamp <= cell.timestamp)) {
+                marker = cell;
+            }
+        }
+
+        /**
+         * Set a cell, a null value is kept as a tombstone.
+         *
+         * @param column Column
+         * @param cell   Cell
+         */
+        void set(String column, Cell cell) {
+            Cell previous = cells.get(column);
+            if (cell.timestamp > deletedAt && (previous == null || previous.timestamp <= cell.timestamp)) {
+                cells.put(column, cell);
+            }
+        }
+
+        void setMapEntry(String column, Object key, Cell cell) {
+            if (cell.timestamp <= deletedAt) {
+                return;
+            }
+            TreeMap<Object, Cell> map = maps.get(column);
+            if (map == null) {
+                map = new TreeMap<>();
+                maps.put(column, map);
+            }
+            Cell previous = map.get(key);
+            if (previous == null || previous.timestamp <= cell.timestamp) {
+                map.put(key, cell);
+            }
+        }
+
+        /**
+         * Delete the row.
+         *
+         * @param timestamp Timestamp of the delete (in microseconds), the writes that aren't newer are removed
+         */
+        void delete(long timestamp) {
+            deletedAt = Math.max(deletedAt, timestamp);
+            if (marker != null && marker.timestamp <= deletedAt) {
+                marker = null;
+            }
+            for (Iterator<Cell> it = cells.values().iterator(); it.hasNext(); ) {
+                if (it.next().timestamp <= deletedAt) {
+                    it.remove();
+                }
+            }
+            for (TreeMap<Object, Cell> map : maps.values()) {
+                for (Iterator<Cell> it = map.values().iterator(); it.hasNext(); ) {
+                    if (it.next().timestamp <= deletedAt) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        Object get(String column, long now) {
+            TreeMap<Object, Cell> map = maps.get(column);
+            if (map != null) {
+                Map<Object, Object> result = new LinkedHashMap<>();
+                for (Map.Entry<Object, Cell> me : map.entrySet()) {
+                    if (me.getValue().alive(now)) {
+                        result.put(me.getKey(), me.getValue().value);
+                    }
+                }
+                return result;
+            }
+            Cell cell = cells.get(column);
+            return cell != null && cell.alive(now) ? cell.value : null;
+        }
+    }
+
+    class Partition {
+
+        final List<Object> key;
+        final TreeMap<List<Object>, Row> rows = new TreeMap<>(comparator);
+
+        Partition(List<Object> key) {
+            this.key = key;
+        }
+    }
+    // </editor-fold>
+
+    /**
+     * Get the partition of a key.
+     *
+     * @param key    Partition key
+     * @param create To create it if it doesn't exist
+     * @return The partition (or null)
+     */
+    Partition getPartition(List<Object> key, boolean create) {
+        Partition partition = partitions.get(key);
+        if (partition == null && create) {
+            Partition created = new Partition(key);
+            partition = partitions.putIfAbsent(key, created);
+            if (partition == null) {
+                partition = created;
+            }
+        }
+        return partition;
+    }
+
+    Collection<Partition> getPartitions() {
+        return partitions.values();
+    }
+
+    void removePartition(List<Object> key) {
+        partitions.remove(key);
+    }
+
+    void truncate() {
+        partitions.clear();
+    }
+
+    /**
+     * Get the column of a selector.
+     *
+     * @param selector Column name, "ttl(column)" or "writetime(column)"
+     * @return Column name
+     */
+    static String selectedColumn(String selector) {
+        int start = selector.indexOf('(');
+        return start != -1 ? selector.substring(start + 1, selector.length() - 1) : selector;
+    }
+
+    Object getValue(Partition partition, List<Object> clusteringKey, Row row, String column, long now) {
+        if (column.startsWith("ttl(") || column.startsWith("writetime(")) {
+            Cell cell = row.cells.get(selectedColumn(column));
+            if (cell == null || !cell.alive(now)) {
+                return null;
+            } else if (column.startsWith("writetime(")) {
+                return cell.timestamp;
+            }
+            return cell.expiration != 0 ? (int) ((cell.expiration - now + 999) / 1000) : null;
+        }
+        int index = partitionKey.indexOf(column);
+        if (index != -1) {
+            return partition.key.get(index);
+        }
+        index = clustering.indexOf(column);
+        if (index != -1) {
+            return clusteringKey.get(index);
+        }
+        getType(column);
+        return row.get(column, now);
+    }
+}
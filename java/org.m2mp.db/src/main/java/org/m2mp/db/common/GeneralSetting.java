@@ -7,6 +7,7 @@ package org.m2mp.db.common;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -21,6 +22,12 @@ import java.util.List;
 public class GeneralSetting {
 
     public static final String TABLE = "GeneralSettings";
+    private static final String REQ_GET = "SELECT value FROM " + TABLE + " WHERE name = ?;";
+    private static final String REQ_SET = "INSERT INTO " + TABLE + " ( name, value ) VALUES ( ?, ? );";
+
+    static {
+        DB.registerQueries(REQ_GET, REQ_SET);
+    }
     // <editor-fold defaultstate="collapsed" desc="Get value">
 
     /**
@@ -31,7 +38,19 @@ public class GeneralSetting {
      * @return Value
      */
     public static int get(String name, int defaultValue) {
-        String value = get(name, (String) null);
+        return get(DB.getContext(), name, defaultValue);
+    }
+
+    /**
+     * Get a general setting value from a context.
+     *
+     * @param context      Context
+     * @param name         Name of the value
+     * @param defaultValue Default value
+     * @return Value
+     */
+    public static int get(DBContext context, String name, int defaultValue) {
+        String value = get(context, name, (String) null);
         return value != null ? Integer.parseInt(value) : defaultValue;
     }
 
@@ -43,7 +62,19 @@ public class GeneralSetting {
      * @return Value
      */
     public static String get(String name, String defaultValue) {
-        ResultSet rs = DB.execute(DB.prepare("SELECT value FROM " + TABLE + " WHERE name = ?;").bind(name));
+        return get(DB.getContext(), name, defaultValue);
+    }
+
+    /**
+     * Get a general setting value from a context.
+     *
+     * @param context      Context
+     * @param name         Name of the value
+     * @param defaultValue Default value
+     * @return Value
+     */
+    public static String get(DBContext context, String name, String defaultValue) {
+        ResultSet rs = context.execute(REQ_GET, name);
         for (Row r : rs) {
             return r.getString(0);
         }
@@ -57,13 +88,25 @@ public class GeneralSetting {
     }
 
     public static ResultSet set(String name, String value) {
-        return DB.execute(DB.prepare("INSERT INTO " + TABLE + " ( name, value ) VALUES ( ?, ? );").bind(name, value));
+        return set(DB.getContext(), name, value);
+    }
+
+    public static void set(DBContext context, String name, int value) {
+        set(context, name, "" + value);
+    }
+
+    public static ResultSet set(DBContext context, String name, String value) {
+        return context.execute(REQ_SET, name, value);
     }
 
     // </editor-fold>
     // <editor-fold defaultstate="collapsed" desc="Table creation">
     public static void prepareTable() {
-        TableCreation.checkTable(new TableIncrementalDefinition() {
+        prepareTable(DB.getContext());
+    }
+
+    public static void prepareTable(DBContext context) {
+        TableCreation.checkTable(context, new TableIncrementalDefinition() {
             @Override
             public String getTableDefName() {
                 return TABLE;
@@ -84,7 +127,11 @@ public class GeneralSetting {
     }
 
     public static void dropTable() {
-        DB.execute("drop table " + GeneralSetting.TABLE + ";");
+        dropTable(DB.getContext());
+    }
+
+    public static void dropTable(DBContext context) {
+        context.execute("drop table " + GeneralSetting.TABLE + ";");
     }
     // </editor-fold>
 }
@@ -1,7 +1,7 @@
 package org.m2mp.db.common;
 
-import com.datastax.driver.core.TableMetadata;
 import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
 
 /**
  * Table creation helper.
@@ -14,19 +14,29 @@ public class TableCreation {
 
 
     public static void checkTable(TableIncrementalDefinition tableDef) {
+        checkTable(DB.getContext(), tableDef);
+    }
+
+    /**
+     * Create or update a table in a context.
+     *
+     * @param context  Context
+     * @param tableDef Definition of the table
+     */
+    public static void checkTable(DBContext context, TableIncrementalDefinition tableDef) {
         int version;
 
-        if (!tableExists(tableDef.getTableDefName())) {
+        if (!context.tableExists(tableDef.getTableDefName())) {
             version = -1;
         } else {
-            version = GeneralSetting.get("table_version_" + tableDef.getTableDefName(), 0);
+            version = GeneralSetting.get(context, "table_version_" + tableDef.getTableDefName(), 0);
         }
         try {
             for (TableIncrementalDefinition.TableChange tc : tableDef.getTableDefChanges()) {
                 if (tc.version > version) {
                     System.out.println("Executing \"" + tc.cql + "\"...");
                     try {
-                        DB.execute(tc.cql);
+                        context.execute(tc.cql);
                     } catch (Exception ex) {
                         ex.printStackTrace();
                     }
@@ -34,12 +44,7 @@ public class TableCreation {
                 }
             }
         } finally {
-            GeneralSetting.set("table_version_" + tableDef.getTableDefName(), version);
+            GeneralSetting.set(context, "table_version_" + tableDef.getTableDefName(), version);
         }
     }
-
-    private static boolean tableExists(String tableName) {
-        TableMetadata table = DB.meta().getTable(tableName.toLowerCase());
-        return table != null;
-    }
 }
@@ -233,10 +233,7 @@ public class Device extends Entity {
     }
 
     public TimedData getDataLast(String type) {
-        for (TimedData td : getData(type, null, null, true)) {
-            return td;
-        }
-        return null;
+        return TimeSerie.getLast(getTSID(), type);
     }
 
     public String getDataLastString(String type) {
@@ -2,8 +2,12 @@ package org.m2mp.db.registry;
 
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.json.simple.JSONObject;
 import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
+import org.m2mp.db.PrefetchingIterator;
 import org.m2mp.db.common.GeneralSetting;
 import org.m2mp.db.common.TableCreation;
 import org.m2mp.db.common.TableIncrementalDefinition;
@@ -27,6 +31,52 @@ public class RegistryNode {
     public static final String TABLE_REGISTRY_CHILDREN = TABLE_REGISTRY + "Children";
     public static final String TABLE_REGISTRY_DATA = TABLE_REGISTRY + "Data";
     public static final String PROPERTY_IS_FILE = ".is_file";
+    private static final String REQ_SELECT_BY_STATUS = "SELECT path FROM " + TABLE_REGISTRY + " WHERE status=?;";
+    private static final String REQ_DELETE = "DELETE FROM " + TABLE_REGISTRY + " WHERE path=?;";
+    private static final String REQ_DELETE_DATA = "DELETE FROM " + TABLE_REGISTRY_DATA + " WHERE path=?;";
+    private static final String REQ_INSERT_CHILD = "INSERT INTO " + TABLE_REGISTRY_CHILDREN + " ( path, name ) VALUES ( ?, ? );";
+    private static final String REQ_DELETE_CHILD = "DELETE FROM " + TABLE_REGISTRY_CHILDREN + " WHERE path = ? AND name = ?;";
+    private static final String REQ_SELECT_CHILDREN = "SELECT name FROM " + TABLE_REGISTRY_CHILDREN + " WHERE path = ?;";
+    private static final String REQ_SELECT_STATUS = "SELECT status FROM " + TABLE_REGISTRY + " WHERE path = ?;";
+    private static final String REQ_UPDATE_STATUS = "UPDATE " + TABLE_REGISTRY + " SET status = ? WHERE path = ?;";
+    private static final String REQ_SELECT_VALUES = "SELECT values FROM " + TABLE_REGISTRY + " WHERE path = ?;";
+    private static final String REQ_DELETE_VALUE = "DELETE values[ ? ] FROM " + TABLE_REGISTRY + " WHERE path = ?;";
+    private static final String REQ_UPDATE_VALUE = "UPDATE " + TABLE_REGISTRY + " SET values[ ? ] = ? WHERE path = ?;";
+    private static final String REQ_UPDATE_VALUE_TTL = "UPDATE " + TABLE_REGISTRY + " USING TTL ? SET values[ ? ] = ? WHERE path = ?;";
+
+    private static volatile DBContext context;
+
+    static {
+        DB.registerQueries(REQ_SELECT_BY_STATUS, REQ_DELETE, REQ_DELETE_DATA, REQ_INSERT_CHILD, REQ_DELETE_CHILD, REQ_SELECT_CHILDREN, REQ_SELECT_STATUS, REQ_UPDATE_STATUS, REQ_SELECT_VALUES, REQ_DELETE_VALUE, REQ_UPDATE_VALUE, REQ_UPDATE_VALUE_TTL);
+    }
+
+    /**
+     * Get the context the registry is stored in.
+     *
+     * @return Context (the default one of {@link DB} if none was set)
+     */
+    public static DBContext getContext() {
+        DBContext c = context;
+        return c != null ? c : DB.getContext();
+    }
+
+    /**
+     * Store the registry (and all the entities built on it) in a specific context (cluster or keyspace).
+     *
+     * @param context Context (null to use the default one)
+     */
+    public static void setContext(DBContext context) {
+        RegistryNode.context = context;
+    }
+
+    /**
+     * Set the number of children fetched per page when iterating over the children of a node.
+     *
+     * @param fetchSize Fetch size (0 to use the default one)
+     */
+    public static void setChildrenFetchSize(int fetchSize) {
+        getContext().setFetchSize(REQ_SELECT_CHILDREN, fetchSize);
+    }
     // </editor-fold>
     // <editor-fold defaultstate="collapsed" desc="Status management">
     private static final int STATUS_UNDEFINED = 0;
@@ -68,7 +118,7 @@ public class RegistryNode {
             public Iterator<RegistryNode> iterator() {
                 return new Iterator<RegistryNode>() {
 
-                    private Iterator<Row> iter = DB.execute(DB.prepare("SELECT path FROM " + TABLE_REGISTRY + " WHERE status=?;").bind(STATUS_DELETED)).iterator();
+                    private Iterator<Row> iter = getContext().execute(REQ_SELECT_BY_STATUS, STATUS_DELETED).iterator();
 
                     @Override
                     public boolean hasNext() {
@@ -121,8 +171,8 @@ public class RegistryNode {
     }
 
     public static void prepareTable() {
-        GeneralSetting.prepareTable();
-        TableCreation.checkTable(new TableIncrementalDefinition() {
+        GeneralSetting.prepareTable(getContext());
+        TableCreation.checkTable(getContext(), new TableIncrementalDefinition() {
             @Override
             public String getTableDefName() {
                 return TABLE_REGISTRY;
@@ -153,7 +203,7 @@ public class RegistryNode {
         };
         for (String query : queries) {
             try {
-                DB.execute(query);
+                getContext().execute(query);
             } catch (Exception ex) {
 
             }
@@ -227,8 +277,8 @@ public class RegistryNode {
             child.delete(forReal);
         }
         if (forReal) {
-            DB.execute(DB.prepare("DELETE FROM " + TABLE_REGISTRY + " WHERE path=?;").bind(path));
-            DB.execute(DB.prepare("DELETE FROM " + TABLE_REGISTRY_DATA + " WHERE path=?;").bind(path));
+            getContext().execute(REQ_DELETE, path);
+            getContext().execute(REQ_DELETE_DATA, path);
             properties = null;
             // We obviously don't save the deleted status
             status = STATUS_DELETED;
@@ -291,11 +341,11 @@ public class RegistryNode {
     }
 
     private void addChild(String name) {
-        DB.execute(DB.prepare("INSERT INTO " + TABLE_REGISTRY_CHILDREN + " ( path, name ) VALUES ( ?, ? );").bind(path, name));
+        getContext().execute(REQ_INSERT_CHILD, path, name);
     }
 
     private void removeChild(String name) {
-        DB.execute(DB.prepare("DELETE FROM " + TABLE_REGISTRY_CHILDREN + " WHERE path = ? AND name = ?;").bind(path, name));
+        getContext().execute(REQ_DELETE_CHILD, path, name);
     }
 
     public Iterable<String> getChildrenNames() {
@@ -303,7 +353,7 @@ public class RegistryNode {
             @Override
             public Iterator<String> iterator() {
 
-                final Iterator<Row> iter = DB.execute(DB.prepare("SELECT name FROM " + TABLE_REGISTRY_CHILDREN + " WHERE path = ?;").bind(path)).iterator();
+                final Iterator<Row> iter = new PrefetchingIterator(getContext().execute(REQ_SELECT_CHILDREN, path), getContext(), REQ_SELECT_CHILDREN);
 
                 return new Iterator<String>() {
                     @Override
@@ -434,7 +484,7 @@ public class RegistryNode {
 
     protected int getStatus() {
         if (status == null) {
-            ResultSet rs = DB.execute(DB.prepare("SELECT status FROM " + TABLE_REGISTRY + " WHERE path = ?;").bind(path));
+            ResultSet rs = getContext().execute(REQ_SELECT_STATUS, path);
             for (Row row : rs) {
                 status = row.getInt(0);
             }
@@ -443,7 +493,7 @@ public class RegistryNode {
     }
 
     protected void setStatus(int value) {
-        DB.execute(DB.prepare("UPDATE " + TABLE_REGISTRY + " SET status = ? WHERE path = ?;").bind(value, path));
+        getContext().execute(REQ_UPDATE_STATUS, value, path);
         status = value;
     }
 
@@ -499,7 +549,7 @@ public class RegistryNode {
 
     public Map<String, String> getProperties() {
         if (properties == null) {
-            ResultSet rs = DB.execute(DB.prepare("SELECT values FROM " + TABLE_REGISTRY + " WHERE path = ?;").bind(path));
+            ResultSet rs = getContext().execute(REQ_SELECT_VALUES, path);
             for (Row r : rs) {
                 properties = new HashMap<>(r.getMap(0, String.class, String.class));
                 return properties;
@@ -509,10 +559,22 @@ public class RegistryNode {
         return properties;
     }
 
-    protected void setProperties(Map<String, String> properties) {
+    /**
+     * Set some properties at once.
+     * <p/>
+     * When the batcher of {@link DB} is enabled, they are written in a single batch.
+     *
+     * @param properties Properties to set
+     */
+    public void setProperties(Map<String, String> properties) {
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>(properties.size());
         for (Map.Entry<String, String> prop : properties.entrySet()) {
-            setProperty(prop.getKey(), prop.getValue());
+            futures.add(getContext().executeBatched(Arrays.asList(TABLE_REGISTRY, path), REQ_UPDATE_VALUE, prop.getKey(), prop.getValue(), path));
+            if (this.properties != null) {
+                this.properties.put(prop.getKey(), prop.getValue());
+            }
         }
+        DB.get(Futures.allAsList(futures));
     }
 
     /**
@@ -527,21 +589,21 @@ public class RegistryNode {
     }
 
     public void delProperty(String name) {
-        DB.execute(DB.prepare("DELETE values[ ? ] FROM " + TABLE_REGISTRY + " WHERE path = ?;").bind(name, path));
+        getContext().execute(REQ_DELETE_VALUE, name, path);
         if (properties != null) {
             properties.remove(name);
         }
     }
 
     public void setProperty(String name, String value) {
-        DB.execute(DB.prepare("UPDATE " + TABLE_REGISTRY + " SET values[ ? ] = ? WHERE path = ?;").bind(name, value, path));
+        getContext().execute(REQ_UPDATE_VALUE, name, value, path);
         if (properties != null) {
             properties.put(name, value);
         }
     }
 
     public void setProperty(String name, String value, int ttl) {
-        DB.execute(DB.prepare("UPDATE " + TABLE_REGISTRY + " USING TTL ? SET values[ ? ] = ? WHERE path = ?;").bind(ttl, name, value, path));
+        getContext().execute(REQ_UPDATE_VALUE_TTL, ttl, name, value, path);
         if (properties != null) {
             properties.put(name, value);
         }
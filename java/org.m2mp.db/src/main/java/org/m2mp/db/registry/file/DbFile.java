@@ -184,7 +184,7 @@ public class DbFile extends Entity {
 //	}
     // <editor-fold defaultstate="collapsed" desc="Raw block handling">
     public void delBlock(int blockNb) {
-        DB.execute(reqDelBlock().bind(path, blockNb));
+        RegistryNode.getContext().execute(REQ_DEL_BLOCK, path, blockNb);
     }
 
     public void setBlock(int blockNb, byte[] data) {
@@ -193,11 +193,11 @@ public class DbFile extends Entity {
 
     public void setBlock(int blockNb, ByteBuffer data) {
         //System.out.println("Writing block " + path + ":" + blockNb);
-        DB.execute(reqSetBlock().bind(path, blockNb, data));
+        RegistryNode.getContext().execute(REQ_SET_BLOCK, path, blockNb, data);
     }
 
     public ByteBuffer getBlockBuffer(int blockNb) {
-        ResultSet rs = DB.execute(reqGetBlock().bind(path, blockNb));
+        ResultSet rs = RegistryNode.getContext().execute(REQ_GET_BLOCK, path, blockNb);
         for (Row row : rs) {
             return row.getBytes(0);
         }
@@ -219,9 +219,16 @@ public class DbFile extends Entity {
     // </editor-fold>
     // <editor-fold defaultstate="collapsed" desc="Column family preparation">
     public static final String TABLE_REGISTRYDATA = RegistryNode.TABLE_REGISTRY + "Data";
+    private static final String REQ_GET_BLOCK = "SELECT data FROM " + TABLE_REGISTRYDATA + " WHERE path = ? AND block = ?;";
+    private static final String REQ_SET_BLOCK = "INSERT INTO " + TABLE_REGISTRYDATA + " ( path, block, data ) VALUES ( ?, ?, ? );";
+    private static final String REQ_DEL_BLOCK = "DELETE FROM " + TABLE_REGISTRYDATA + " WHERE path = ? AND block = ?;";
+
+    static {
+        DB.registerQueries(REQ_GET_BLOCK, REQ_SET_BLOCK, REQ_DEL_BLOCK);
+    }
 
     public static void prepareTable() {
-        TableCreation.checkTable(new TableIncrementalDefinition() {
+        TableCreation.checkTable(RegistryNode.getContext(), new TableIncrementalDefinition() {
             @Override
             public String getTableDefName() {
                 return TABLE_REGISTRYDATA;
@@ -253,7 +260,7 @@ public class DbFile extends Entity {
 
     public PreparedStatement reqGetBlock() {
         if (reqGetBlock == null) {
-            reqGetBlock = DB.prepare("SELECT data FROM " + TABLE_REGISTRYDATA + " WHERE path = ? AND block = ?;");
+            reqGetBlock = RegistryNode.getContext().prepare(REQ_GET_BLOCK);
         }
         return reqGetBlock;
     }
@@ -262,7 +269,7 @@ public class DbFile extends Entity {
 
     public PreparedStatement reqSetBlock() {
         if (reqSetBlock == null) {
-            reqSetBlock = DB.prepare("INSERT INTO " + TABLE_REGISTRYDATA + " ( path, block, data ) VALUES ( ?, ?, ? );");
+            reqSetBlock = RegistryNode.getContext().prepare(REQ_SET_BLOCK);
         }
         return reqSetBlock;
     }
@@ -271,7 +278,7 @@ public class DbFile extends Entity {
 
     public PreparedStatement reqDelBlock() {
         if (reqDelBlock == null) {
-            reqDelBlock = DB.prepare("DELETE FROM " + TABLE_REGISTRYDATA + " WHERE path = ? AND block = ?;");
+            reqDelBlock = RegistryNode.getContext().prepare(REQ_DEL_BLOCK);
         }
         return reqDelBlock;
     }
@@ -0,0 +1,191 @@
+package org.m2mp.db.ts;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Aggregate of the values of a field over a time bucket.
+ * <p/>
+ * The variance is computed incrementally (Welford), so that partial aggregates can be merged without losing
+ * precision.
+ *
+ * @see AggregationQuery
+ */
+public class Aggregate {
+
+    /**
+     * Aggregate functions.
+     */
+    public enum Function {
+
+        COUNT, SUM, MIN, MAX, AVG, FIRST, LAST, STDDEV
+    }
+
+    private final long bucket, width;
+    private long count;
+    private double sum, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, first, last, mean, m2;
+    private UUID firstTime, lastTime;
+
+    Aggregate(long bucket, long width) {
+        this.bucket = bucket;
+        this.width = width;
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param time  Time of the value
+     * @param value Value
+     */
+    void add(UUID time, double value) {
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        if (firstTime == null || MergeIterator.compareTime(time, firstTime) < 0) {
+            firstTime = time;
+            first = value;
+        }
+        if (lastTime == null || MergeIterator.compareTime(time, lastTime) >= 0) {
+            lastTime = time;
+            last = value;
+        }
+    }
+
+    /**
+     * Add the values of an other aggregate of the same bucket.
+     *
+     * @param other Other aggregate
+     */
+    void merge(Aggregate other) {
+        if (other.count == 0) {
+            return;
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        mean += delta * other.count / total;
+        count = total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (firstTime == null || MergeIterator.compareTime(other.firstTime, firstTime) < 0) {
+            firstTime = other.firstTime;
+            first = other.first;
+        }
+        if (lastTime == null || MergeIterator.compareTime(other.lastTime, lastTime) >= 0) {
+            lastTime = other.lastTime;
+            last = other.last;
+        }
+    }
+
+    /**
+     * Get the result of an aggregate function.
+     *
+     * @param function Function
+     * @return Result (NaN if there's no value)
+     */
+    public double get(Function function) {
+        if (count == 0) {
+            return function == Function.COUNT || function == Function.SUM ? 0 : Double.NaN;
+        }
+        switch (function) {
+            case COUNT:
+                return count;
+            case SUM:
+                return sum;
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            case AVG:
+                return sum / count;
+            case FIRST:
+                return first;
+            case LAST:
+                return last;
+            case STDDEV:
+                return getStdDev();
+            default:
+                throw new IllegalArgumentException("Unknown function " + function);
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Access methods">
+
+    /**
+     * Get the beginning of the bucket.
+     *
+     * @return Date
+     */
+    public Date getDate() {
+        return new Date(bucket);
+    }
+
+    long getBucket() {
+        return bucket;
+    }
+
+    /**
+     * Get the duration of the bucket.
+     *
+     * @return Duration in ms
+     */
+    public long getWidth() {
+        return width;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getAverage() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * Get the (population) standard deviation.
+     *
+     * @return Standard deviation
+     */
+    public double getStdDev() {
+        return count > 0 ? Math.sqrt(m2 / count) : Double.NaN;
+    }
+
+    public double getFirst() {
+        return first;
+    }
+
+    public UUID getFirstTime() {
+        return firstTime;
+    }
+
+    public double getLast() {
+        return last;
+    }
+
+    public UUID getLastTime() {
+        return lastTime;
+    }
+    // </editor-fold>
+
+    @Override
+    public String toString() {
+        return "Aggregate[" + getDate() + "] = {count=" + count + ",sum=" + sum + ",min=" + min + ",max=" + max + ",avg=" + getAverage() + ",stddev=" + getStdDev() + ",first=" + first + ",last=" + last + "}";
+    }
+}
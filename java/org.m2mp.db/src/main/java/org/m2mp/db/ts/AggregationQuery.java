@@ -0,0 +1,194 @@
+package org.m2mp.db.ts;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.m2mp.db.DB;
+
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aggregation of a numeric field of a time serie over time buckets.
+ * <p/>
+ * The points are read in a single streaming pass: only the referenced field of each point is decoded and only the
+ * aggregate of the current bucket is kept. With a parallelism, the range is split by day partition, the days are
+ * aggregated concurrently and their partial aggregates are merged.
+ * <pre>
+ * List&lt;Aggregate&gt; hours = new AggregationQuery("dev-...", "sen", begin, end).setField("pos.spd").setBucket(3600000).execute();
+ * double maxSpeed = hours.get(0).get(Aggregate.Function.MAX);
+ * </pre>
+ * The points without the field or whose field isn't a number are ignored.
+ */
+public class AggregationQuery {
+
+    private static final long DAY = 24 * 3600 * 1000L;
+    private final String id, type;
+    private final Date begin, end;
+    private Payloads.Path field;
+    private long width;
+    private int parallelism = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param id    Identifier of the data
+     * @param type  Type of data (can be null)
+     * @param begin Beginning date (can be null)
+     * @param end   Ending date (can be null)
+     */
+    public AggregationQuery(String id, String type, Date begin, Date end) {
+        this.id = id;
+        this.type = type;
+        this.begin = begin;
+        this.end = end;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+
+    /**
+     * Set the aggregated field.
+     *
+     * @param field Path of the field, like "pos.spd" ("value" if the data is a single value)
+     * @return this
+     */
+    public AggregationQuery setField(String field) {
+        this.field = Payloads.Path.parse(field);
+        return this;
+    }
+
+    /**
+     * Set the width of the buckets. They are aligned on the epoch, like the ones of the {@link Rollup}.
+     *
+     * @param width Width in ms (0 for a single bucket over the whole range)
+     * @return this
+     */
+    public AggregationQuery setBucket(long width) {
+        this.width = Math.max(0, width);
+        return this;
+    }
+
+    /**
+     * Set the number of days aggregated concurrently.
+     *
+     * @param parallelism Number of days (1 for a single streaming pass)
+     * @return this
+     */
+    public AggregationQuery setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+    // </editor-fold>
+
+    /**
+     * Execute the query.
+     *
+     * @return Aggregates of the non-empty buckets, in ascending order
+     */
+    public List<Aggregate> execute() {
+        if (field == null) {
+            throw new IllegalStateException("No field to aggregate");
+        }
+        if (parallelism > 1) {
+            return executeParallel();
+        }
+        return aggregate(begin != null ? UUIDs.startOf(begin.getTime()) : null, end != null ? UUIDs.endOf(end.getTime()) : null);
+    }
+
+    private long bucket(long time) {
+        if (width == 0) {
+            return begin != null ? begin.getTime() : 0;
+        }
+        return time - ((time % width) + width) % width;
+    }
+
+    /**
+     * Aggregate a range in a single pass.
+     *
+     * @param from Beginning (excluded)
+     * @param to   End (excluded)
+     * @return Aggregates
+     */
+    private List<Aggregate> aggregate(UUID from, UUID to) {
+        List<Aggregate> result = new ArrayList<>();
+        Aggregate current = null;
+        TSDataIterator iterator = new TSDataIterator(id, type, from, to, false);
+        try {
+            while (iterator.hasNext()) {
+                TimedData td = iterator.next();
+                Object value = td.getField(field);
+                if (!(value instanceof Number)) {
+                    continue;
+                }
+                UUID time = td.getDateUUID();
+                // The points are sorted, the buckets are completed one after another
+                long bucket = bucket(UUIDs.unixTimestamp(time));
+                if (current == null || current.getBucket() != bucket) {
+                    current = new Aggregate(bucket, width);
+                    result.add(current);
+                }
+                current.add(time, ((Number) value).doubleValue());
+            }
+        } finally {
+            iterator.close();
+        }
+        return result;
+    }
+
+    private List<Aggregate> executeParallel() {
+        List<Long> days = new ArrayList<>();
+        for (String period : new TSPeriodIterable(id, type, begin, end, false)) {
+            try {
+                days.add(TimeSerie.DATE_FORMAT.parse(period).getTime());
+            } catch (ParseException ex) {
+                throw new IllegalStateException("Invalid period " + period, ex);
+            }
+        }
+        if (days.isEmpty()) {
+            return new ArrayList<>();
+        }
+        final AtomicInteger nb = new AtomicInteger();
+        ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(Math.min(parallelism, days.size()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "db-aggregation-" + nb.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        try {
+            List<ListenableFuture<List<Aggregate>>> futures = new ArrayList<>();
+            for (long day : days) {
+                final UUID from = UUIDs.startOf(begin != null ? Math.max(begin.getTime(), day) : day);
+                final UUID to = UUIDs.endOf(end != null ? Math.min(end.getTime(), day + DAY - 1) : day + DAY - 1);
+                futures.add(executor.submit(new Callable<List<Aggregate>>() {
+                    @Override
+                    public List<Aggregate> call() {
+                        return aggregate(from, to);
+                    }
+                }));
+            }
+            // The buckets larger than a day are split among the days
+            TreeMap<Long, Aggregate> buckets = new TreeMap<>();
+            for (List<Aggregate> partial : DB.get(Futures.allAsList(futures))) {
+                for (Aggregate a : partial) {
+                    Aggregate previous = buckets.get(a.getBucket());
+                    if (previous != null) {
+                        previous.merge(a);
+                    } else {
+                        buckets.put(a.getBucket(), a);
+                    }
+                }
+            }
+            return new ArrayList<>(buckets.values());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package org.m2mp.db.ts;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Compact binary codec.
+ * <p/>
+ * Each value is a tag byte followed by its content: integers are zigzag varints, doubles with a few decimals (like
+ * most sensor values) are a varint mantissa and a scale, other doubles are 8 bytes, strings are a varint length and
+ * their UTF-8 bytes, maps and lists are a varint count and their entries. Numeric payloads are smaller than their JSON
+ * text (the keys are still written in full) and an order of magnitude faster to decode.
+ * <p/>
+ * Values it can't represent exactly (BigDecimal, arrays, custom objects, etc.) aren't encoded, they are stored as JSON
+ * text instead.
+ */
+public class BinaryPayloadCodec implements PayloadCodec {
+
+    public static final int ID = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte NULL = 0, FALSE = 1, TRUE = 2, LONG = 3, DOUBLE = 4, STRING = 5, MAP = 6, LIST = 7, DECIMAL = 8;
+    private static final int MAX_SCALE = 9;
+    private static final double[] POW10 = new double[MAX_SCALE + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Encoding">
+
+    /**
+     * Growable output buffer.
+     */
+    private static class Output {
+
+        byte[] bytes = new byte[64];
+        int size;
+
+        void ensure(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                bytes[size++] = (byte) (value >>> i);
+            }
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value.getBytes(UTF_8);
+            writeVarint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+    }
+
+    @Override
+    public ByteBuffer encode(Object value) {
+        Output out = new Output();
+        out.write(ID);
+        if (!write(out, value)) {
+            return null;
+        }
+        return ByteBuffer.wrap(out.bytes, 0, out.size).slice();
+    }
+
+    private static boolean write(Output out, Object value) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            out.write(LONG);
+            out.writeVarint((l << 1) ^ (l >> 63));
+        } else if (value instanceof Double) {
+            writeDouble(out, (Double) value);
+        } else if (value instanceof Float) {
+            // Like the JSON text, which is parsed back as a double
+            writeDouble(out, Double.parseDouble(value.toString()));
+        } else if (value instanceof String) {
+            out.write(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.write(MAP);
+            out.writeVarint(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                out.writeString(String.valueOf(e.getKey()));
+                if (!write(out, e.getValue())) {
+                    return false;
+                }
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>) value;
+            out.write(LIST);
+            out.writeVarint(list.size());
+            for (Object o : list) {
+                if (!write(out, o)) {
+                    return false;
+                }
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeDouble(Output out, double value) {
+        if (value != 0 || 1 / value > 0) {
+            for (int scale = 0; scale <= MAX_SCALE; scale++) {
+                double mantissa = value * POW10[scale];
+                // Both are exact doubles, so the division gives back the value only if it's the right decimal
+                if (Math.abs(mantissa) < (1L << 53) && mantissa == Math.rint(mantissa) && mantissa / POW10[scale] == value) {
+                    long m = (long) mantissa;
+                    out.write(DECIMAL);
+                    out.writeVarint((m << 1) ^ (m >> 63));
+                    out.write(scale);
+                    return;
+                }
+            }
+        }
+        out.write(DOUBLE);
+        out.writeLong(Double.doubleToLongBits(value));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Decoding">
+    @Override
+    public Object decode(ByteBuffer buffer) {
+        return read(buffer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object read(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case LONG: {
+                long l = readVarint(in);
+                return (l >>> 1) ^ -(l & 1);
+            }
+            case DOUBLE:
+                return in.getDouble();
+            case DECIMAL: {
+                long m = readVarint(in);
+                return ((m >>> 1) ^ -(m & 1)) / POW10[in.get()];
+            }
+            case STRING:
+                return readString(in);
+            case MAP: {
+                int size = (int) readVarint(in);
+                JSONObject map = new JSONObject();
+                for (int i = 0; i < size; i++) {
+                    String key = readString(in);
+                    map.put(key, read(in));
+                }
+                return map;
+            }
+            case LIST: {
+                int size = (int) readVarint(in);
+                JSONArray list = new JSONArray();
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            default:
+                throw new IllegalArgumentException("Invalid tag " + tag + " at " + (in.position() - 1));
+        }
+    }
+
+    /**
+     * Get a field without decoding the rest of the value.
+     *
+     * @param in   Encoded value
+     * @param path Path of the field
+     * @return Field or null if there's none
+     */
+    static Object field(ByteBuffer in, Payloads.Path path) {
+        if (in.get(in.position()) != MAP) {
+            return path.get(read(in));
+        }
+        for (byte[] name : path.utf8) {
+            if (in.get() != MAP) {
+                return null;
+            }
+            int size = (int) readVarint(in);
+            boolean found = false;
+            for (int i = 0; i < size && !found; i++) {
+                found = matches(in, name);
+                if (!found) {
+                    skip(in);
+                }
+            }
+            if (!found) {
+                return null;
+            }
+        }
+        return read(in);
+    }
+
+    /**
+     * Read a key and compare it to a name.
+     */
+    private static boolean matches(ByteBuffer in, byte[] name) {
+        int length = (int) readVarint(in);
+        int start = in.position();
+        in.position(start + length);
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (in.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skip(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+            case FALSE:
+            case TRUE:
+                return;
+            case LONG:
+                readVarint(in);
+                return;
+            case DOUBLE:
+                in.position(in.position() + 8);
+                return;
+            case DECIMAL:
+                readVarint(in);
+                in.get();
+                return;
+            case STRING: {
+                int length = (int) readVarint(in);
+                in.position(in.position() + length);
+                return;
+            }
+            case MAP: {
+                int size = (int) readVarint(in);
+                for (int i = 0; i < size; i++) {
+                    int length = (int) readVarint(in);
+                    in.position(in.position() + length);
+                    skip(in);
+                }
+                return;
+            }
+            case LIST: {
+                int size = (int) readVarint(in);
+                for (int i = 0; i < size; i++) {
+                    skip(in);
+                }
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("Invalid tag " + tag + " at " + (in.position() - 1));
+        }
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            value = new String(bytes, UTF_8);
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,295 @@
+package org.m2mp.db.ts;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the time series index entries already written by this process.
+ * <p/>
+ * An index entry (serie, type, day) only needs to be written once, but every saved point would write it again. This
+ * cache remembers the entries of the last days as 64-bit hashes of the serie and type, kept in striped open-addressing
+ * sets (about 12 bytes per entry), so that millions of series fit in a few tens of MB. The oldest days are evicted
+ * when a new day starts or when the cache is full.
+ * <p/>
+ * A hash collision only means that an index entry isn't written by this process. With 64-bit hashes, this is very
+ * unlikely to happen even with billions of series.
+ */
+public class IndexCache {
+
+    private static final int STRIPES = 64;
+    private final ConcurrentSkipListMap<String, Day> days = new ConcurrentSkipListMap<>();
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private volatile int maxDays = 3;
+    private volatile long maxEntries = 10000000;
+
+    IndexCache() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+
+    /**
+     * Set the size of the cache.
+     *
+     * @param maxDays    Number of days kept
+     * @param maxEntries Maximum number of entries of all the days
+     */
+    public void setLimits(int maxDays, long maxEntries) {
+        this.maxDays = maxDays;
+        this.maxEntries = maxEntries;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+    public long getNbHits() {
+        return hits.get();
+    }
+
+    public long getNbMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of days evicted before their time because the cache was full.
+     *
+     * @return Number of evictions
+     */
+    public long getNbEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the ratio of index writes that were avoided.
+     *
+     * @return Hit rate (0 to 1)
+     */
+    public double getHitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return Number of entries of all the days
+     */
+    public long size() {
+        return entries.get();
+    }
+    // </editor-fold>
+
+    /**
+     * Add an entry.
+     *
+     * @param id     Id of the serie
+     * @param type   Type of the data ("" if none)
+     * @param date10 Day
+     * @return true if the entry wasn't in the cache (and the index has to be written)
+     */
+    boolean add(String id, String type, String date10) {
+        Day day = days.get(date10);
+        if (day == null) {
+            Map.Entry<String, Day> first = days.firstEntry();
+            if (first != null && days.size() >= maxDays && date10.compareTo(first.getKey()) < 0) {
+                // This is an old day, we don't want to evict a more recent one for it
+                misses.incrementAndGet();
+                return true;
+            }
+            Day created = new Day();
+            day = days.putIfAbsent(date10, created);
+            if (day == null) {
+                day = created;
+                evict(date10);
+            }
+        }
+        if (day.add(hash(id, type))) {
+            misses.incrementAndGet();
+            if (entries.incrementAndGet() > maxEntries) {
+                evict(null);
+            }
+            return true;
+        }
+        hits.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Remove an entry (because its write failed).
+     *
+     * @param id     Id of the serie
+     * @param type   Type of the data ("" if none)
+     * @param date10 Day
+     */
+    void remove(String id, String type, String date10) {
+        Day day = days.get(date10);
+        if (day != null && day.remove(hash(id, type))) {
+            entries.decrementAndGet();
+        }
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public void clear() {
+        while (drop() != null) {
+        }
+    }
+
+    /**
+     * Drop the oldest day.
+     *
+     * @return Dropped day or null if there was none
+     */
+    private Day drop() {
+        Map.Entry<String, Day> oldest = days.pollFirstEntry();
+        if (oldest == null) {
+            return null;
+        }
+        entries.addAndGet(-oldest.getValue().size());
+        return oldest.getValue();
+    }
+
+    /**
+     * Evict the oldest days.
+     *
+     * @param added Day that was just added (null if none)
+     */
+    private void evict(String added) {
+        while (days.size() > maxDays) {
+            if (drop() == null) {
+                return;
+            }
+        }
+        if (added == null && drop() != null) {
+            // The cache was full, we dropped the oldest day (even if it is the current one)
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Hash a serie and a type.
+     *
+     * @param id   Id of the serie
+     * @param type Type of the data
+     * @return 64-bit hash (never 0)
+     */
+    static long hash(String id, String type) {
+        // FNV-1a, then the murmur3 finalizer to spread the bits
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h = (h ^ id.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < type.length(); i++) {
+            h = (h ^ type.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    /**
+     * Entries of a day.
+     */
+    private static class Day {
+
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        Day() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        private Stripe stripe(long hash) {
+            return stripes[(int) (hash >>> 58)];
+        }
+
+        boolean add(long hash) {
+            return stripe(hash).add(hash);
+        }
+
+        boolean remove(long hash) {
+            return stripe(hash).remove(hash);
+        }
+
+        long size() {
+            long size = 0;
+            for (Stripe stripe : stripes) {
+                size += stripe.size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Open-addressing set of longs (0 is the empty slot).
+     */
+    private static class Stripe {
+
+        private long[] keys = new long[16];
+        private int size;
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized boolean add(long key) {
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            if (++size * 4 > keys.length * 3) {
+                grow();
+            }
+            return true;
+        }
+
+        synchronized boolean remove(long key) {
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while (keys[i] != key) {
+                if (keys[i] == 0) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = 0;
+            size--;
+            // We shift back the following keys of the cluster so that they can still be found
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = (int) keys[j] & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    keys[j] = 0;
+                    i = j;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            long[] old = keys;
+            keys = new long[old.length * 2];
+            int mask = keys.length - 1;
+            for (long key : old) {
+                if (key != 0) {
+                    int i = (int) key & mask;
+                    while (keys[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = key;
+                }
+            }
+        }
+    }
+}
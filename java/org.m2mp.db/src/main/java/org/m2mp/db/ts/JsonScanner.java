@@ -0,0 +1,215 @@
+package org.m2mp.db.ts;
+
+/**
+ * Extraction of a field from a JSON text.
+ * <p/>
+ * The text is scanned for the keys of the path, the other values are skipped without being parsed. The value of the
+ * field has the same type as in the map parsed by json-simple: scalars are converted here (a json-simple parser
+ * allocates a large buffer), objects and arrays are given to json-simple.
+ */
+final class JsonScanner {
+
+    /**
+     * Returned when the text isn't what the scanner expects.
+     */
+    static final Object INVALID = new Object();
+
+    private final String json;
+    private int pos;
+
+    private JsonScanner(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Get a field.
+     *
+     * @param json  JSON text
+     * @param names Path of the field
+     * @return Field, null if there's none or {@link #INVALID} if the text couldn't be scanned
+     */
+    static Object field(String json, String[] names) {
+        try {
+            return new JsonScanner(json).field(names);
+        } catch (IndexOutOfBoundsException ex) {
+            return INVALID;
+        }
+    }
+
+    private Object field(String[] names) {
+        for (String name : names) {
+            if (next() != '{') {
+                return INVALID;
+            }
+            boolean found = false;
+            while (!found) {
+                char c = next();
+                if (c == '}') {
+                    return null;
+                }
+                if (c == ',') {
+                    c = next();
+                }
+                if (c != '"') {
+                    return INVALID;
+                }
+                found = key(name);
+                if (next() != ':') {
+                    return INVALID;
+                }
+                if (!found) {
+                    skipValue();
+                }
+            }
+        }
+        return value();
+    }
+
+    private Object value() {
+        whitespace();
+        int start = pos;
+        char c = json.charAt(pos);
+        skipValue();
+        switch (c) {
+            case '"':
+                return string(start + 1, pos - 1);
+            case '{':
+            case '[':
+                return Payloads.parse(json.substring(start, pos));
+            case 't':
+                return json.startsWith("true", start) ? Boolean.TRUE : INVALID;
+            case 'f':
+                return json.startsWith("false", start) ? Boolean.FALSE : INVALID;
+            case 'n':
+                return json.startsWith("null", start) ? null : INVALID;
+            default:
+                return number(json.substring(start, pos));
+        }
+    }
+
+    private static Object number(String text) {
+        try {
+            if (text.indexOf('.') == -1 && text.indexOf('e') == -1 && text.indexOf('E') == -1) {
+                return Long.valueOf(text);
+            }
+            return Double.valueOf(text);
+        } catch (NumberFormatException ex) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Get the content of a string.
+     *
+     * @param start Beginning (after the opening quote)
+     * @param end   End (the closing quote)
+     * @return String
+     */
+    private String string(int start, int end) {
+        int escape = json.indexOf('\\', start);
+        if (escape == -1 || escape >= end) {
+            return json.substring(start, end);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void whitespace() {
+        while (Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private char next() {
+        whitespace();
+        return json.charAt(pos++);
+    }
+
+    /**
+     * Read a key (after its opening quote) and compare it to a name.
+     */
+    private boolean key(String name) {
+        int start = pos;
+        boolean escaped = false;
+        while (true) {
+            char c = json.charAt(pos++);
+            if (c == '\\') {
+                escaped = true;
+                pos++;
+            } else if (c == '"') {
+                break;
+            }
+        }
+        if (escaped) {
+            return name.equals(string(start, pos - 1));
+        }
+        return pos - 1 - start == name.length() && json.regionMatches(start, name, 0, name.length());
+    }
+
+    private void skipString() {
+        while (true) {
+            char c = json.charAt(pos++);
+            if (c == '\\') {
+                pos++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    private void skipValue() {
+        whitespace();
+        char c = json.charAt(pos);
+        if (c == '"') {
+            pos++;
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = json.charAt(pos++);
+                if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) == -1) {
+                pos++;
+            }
+        }
+    }
+}
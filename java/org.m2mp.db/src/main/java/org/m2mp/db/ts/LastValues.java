@@ -0,0 +1,158 @@
+package org.m2mp.db.ts;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the last points of the series.
+ * <p/>
+ * It sits in front of the {@link TimeSerie#TABLE_TIMESERIES_LAST} table: the points saved by this process replace the
+ * cached ones when they are more recent, and the entries read from the table expire after a while because other
+ * processes might have saved some more recent points. The least recently used series are evicted when the cache is
+ * full.
+ */
+public class LastValues {
+
+    /**
+     * Cached last point of a serie and type.
+     */
+    static class Entry {
+
+        private final TimedData data;
+        private final long time;
+
+        Entry(TimedData data, long time) {
+            this.data = data;
+            this.time = time;
+        }
+
+        /**
+         * Get the last point.
+         *
+         * @return Point (null if the serie has none)
+         */
+        TimedData getData() {
+            return data;
+        }
+    }
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    private volatile int maxSeries = 100000;
+    private volatile long expiration = 10000;
+    private final LinkedHashMap<String, Map<String, Entry>> series = new LinkedHashMap<String, Map<String, Entry>>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, Entry>> eldest) {
+            return size() > maxSeries;
+        }
+    };
+
+    LastValues() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+
+    /**
+     * Set the size of the cache.
+     *
+     * @param maxSeries  Maximum number of series (0 to disable the cache)
+     * @param expiration Time after which the entries are read again (in ms)
+     */
+    public void setLimits(int maxSeries, long expiration) {
+        this.maxSeries = maxSeries;
+        this.expiration = expiration;
+        if (maxSeries <= 0) {
+            clear();
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+    public long getNbHits() {
+        return hits.get();
+    }
+
+    public long getNbMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the ratio of reads that didn't have to query the database.
+     *
+     * @return Hit rate (0 to 1)
+     */
+    public double getHitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    /**
+     * Get the number of series.
+     *
+     * @return Number of series in the cache
+     */
+    public synchronized int size() {
+        return series.size();
+    }
+    // </editor-fold>
+
+    /**
+     * Get the last point of a serie.
+     *
+     * @param id   Id of the serie
+     * @param type Type of the data ("" for all the types)
+     * @return Entry or null if it isn't cached (or has expired)
+     */
+    synchronized Entry get(String id, String type) {
+        Map<String, Entry> types = series.get(id);
+        Entry entry = types != null ? types.get(type) : null;
+        if (entry != null && System.currentTimeMillis() - entry.time < expiration) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Put the last point of a serie, unless a more recent one is cached.
+     *
+     * @param id   Id of the serie
+     * @param type Type of the data ("" for all the types)
+     * @param data Point (null if the serie has none)
+     */
+    synchronized void put(String id, String type, TimedData data) {
+        if (maxSeries <= 0) {
+            return;
+        }
+        Map<String, Entry> types = series.get(id);
+        if (types == null) {
+            types = new HashMap<>(4);
+            series.put(id, types);
+        }
+        long now = System.currentTimeMillis();
+        Entry previous = types.get(type);
+        if (previous != null && previous.data != null && data != null && now - previous.time < expiration
+                && MergeIterator.compareTime(previous.data.getDateUUID(), data.getDateUUID()) > 0) {
+            return;
+        }
+        types.put(type, new Entry(data, now));
+    }
+
+    /**
+     * Remove the last points of a serie.
+     *
+     * @param id Id of the serie
+     */
+    synchronized void remove(String id) {
+        series.remove(id);
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public synchronized void clear() {
+        series.clear();
+    }
+}
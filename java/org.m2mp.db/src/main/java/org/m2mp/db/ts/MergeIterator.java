@@ -0,0 +1,125 @@
+package org.m2mp.db.ts;
+
+import java.util.*;
+
+/**
+ * Merge of some time ordered iterators.
+ * <p/>
+ * The sources have to be sorted in the same order. Points that appear in more than one source (same id, time and type)
+ * are only returned once, from the first of these sources.
+ */
+class MergeIterator implements Iterator<TimedData> {
+
+    /**
+     * Compare the time of two points (in the order of the timeuuid type of cassandra).
+     *
+     * @param a First time
+     * @param b Second time
+     * @return Comparison result
+     */
+    static int compareTime(UUID a, UUID b) {
+        int c = Long.compare(a.timestamp(), b.timestamp());
+        if (c != 0) {
+            return c;
+        }
+        // The clock sequence and the node are compared as signed bytes
+        long la = a.getLeastSignificantBits(), lb = b.getLeastSignificantBits();
+        for (int i = 56; i >= 0 && c == 0; i -= 8) {
+            c = Byte.compare((byte) (la >>> i), (byte) (lb >>> i));
+        }
+        return c;
+    }
+
+    /**
+     * Comparator of the points.
+     *
+     * @param inverted true for the DESC order
+     * @return Comparator
+     */
+    static Comparator<TimedData> comparator(final boolean inverted) {
+        return new Comparator<TimedData>() {
+            @Override
+            public int compare(TimedData a, TimedData b) {
+                int c = compareTime(a.getDateUUID(), b.getDateUUID());
+                return inverted ? -c : c;
+            }
+        };
+    }
+
+    private static class Source {
+
+        final int index;
+        final Iterator<TimedData> iterator;
+        TimedData current;
+
+        Source(int index, Iterator<TimedData> iterator) {
+            this.index = index;
+            this.iterator = iterator;
+            this.current = iterator.next();
+        }
+    }
+
+    private final PriorityQueue<Source> queue;
+    private TimedData last;
+
+    MergeIterator(List<? extends Iterator<TimedData>> sources, boolean inverted) {
+        final Comparator<TimedData> comparator = comparator(inverted);
+        queue = new PriorityQueue<>(Math.max(1, sources.size()), new Comparator<Source>() {
+            @Override
+            public int compare(Source a, Source b) {
+                int c = comparator.compare(a.current, b.current);
+                return c != 0 ? c : Integer.compare(a.index, b.index);
+            }
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            Iterator<TimedData> source = sources.get(i);
+            if (source.hasNext()) {
+                queue.add(new Source(i, source));
+            }
+        }
+    }
+
+    private static boolean same(TimedData a, TimedData b) {
+        return a.getDateUUID().equals(b.getDateUUID()) && equals(a.getType(), b.getType()) && equals(a.getId(), b.getId());
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void skipDuplicates() {
+        while (last != null && !queue.isEmpty() && same(queue.peek().current, last)) {
+            advance();
+        }
+    }
+
+    private TimedData advance() {
+        Source source = queue.poll();
+        TimedData td = source.current;
+        if (source.iterator.hasNext()) {
+            source.current = source.iterator.next();
+            queue.add(source);
+        }
+        return td;
+    }
+
+    @Override
+    public boolean hasNext() {
+        skipDuplicates();
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public TimedData next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        last = advance();
+        return last;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,240 @@
+package org.m2mp.db.ts;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Compressed chunk of the samples of a numeric serie.
+ * <p/>
+ * The samples are appended in the time order and encoded as they come: the times as deltas of deltas and the values
+ * as the XOR with the previous value (like the Gorilla paper). A regular serie takes one bit per time and a slowly
+ * changing value a few bits per value.
+ * <pre>
+ * format (1 byte), number of samples (4 bytes), first time (64 bits), first value (64 bits), then for each sample:
+ *   delta of delta: '0' (0), '10' + 7 bits, '110' + 9 bits, '1110' + 12 bits or '1111' + 64 bits
+ *   value:          '0' (same), '10' + the bits within the previous window or '11' + 5 bits of leading zeros +
+ *                   6 bits of length - 1 + the meaningful bits
+ * </pre>
+ * This class isn't thread-safe.
+ *
+ * @see NumericSeries
+ */
+final class NumericChunk {
+
+    /**
+     * Format of the encoded chunks.
+     */
+    static final int FORMAT = 1;
+    private static final int HEADER = 5;
+    final String id, field;
+    final long bucket;
+    final UUID part = UUIDs.timeBased();
+    private byte[] bits = new byte[64];
+    private long nbBits;
+    private int size;
+    private long lastTime, lastDelta, lastValue;
+    private int leading = -1, trailing;
+    // Written by the engine
+    int written;
+    ListenableFuture<ResultSet> writing;
+    boolean sealed;
+
+    NumericChunk(String id, String field, long bucket) {
+        this.id = id;
+        this.field = field;
+        this.bucket = bucket;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param time  Time (ms)
+     * @param value Value
+     * @return false if the sample is older than the last one (it has to go to an other chunk)
+     */
+    boolean add(long time, double value) {
+        long v = Double.doubleToRawLongBits(value);
+        if (size == 0) {
+            write(time, 64);
+            write(v, 64);
+        } else {
+            if (time < lastTime) {
+                return false;
+            }
+            long delta = time - lastTime;
+            writeDelta(delta - lastDelta);
+            lastDelta = delta;
+            writeValue(v ^ lastValue);
+        }
+        lastTime = time;
+        lastValue = v;
+        size++;
+        return true;
+    }
+
+    private void writeDelta(long dod) {
+        if (dod == 0) {
+            write(0, 1);
+        } else if (dod >= -64 && dod < 64) {
+            write(0b10, 2);
+            write(dod, 7);
+        } else if (dod >= -256 && dod < 256) {
+            write(0b110, 3);
+            write(dod, 9);
+        } else if (dod >= -2048 && dod < 2048) {
+            write(0b1110, 4);
+            write(dod, 12);
+        } else {
+            write(0b1111, 4);
+            write(dod, 64);
+        }
+    }
+
+    private void writeValue(long xor) {
+        if (xor == 0) {
+            write(0, 1);
+            return;
+        }
+        int lz = Math.min(Long.numberOfLeadingZeros(xor), 31), tz = Long.numberOfTrailingZeros(xor);
+        int length = 64 - lz - tz;
+        // A window wider than the 11 bits of a new one (after an unusual value) isn't kept
+        if (leading != -1 && lz >= leading && tz >= trailing && 64 - leading - trailing <= length + 11) {
+            write(0b10, 2);
+            write(xor >>> trailing, 64 - leading - trailing);
+        } else {
+            leading = lz;
+            trailing = tz;
+            write(0b11, 2);
+            write(lz, 5);
+            write(length - 1, 6);
+            write(xor >>> tz, length);
+        }
+    }
+
+    /**
+     * Write the lowest bits of a value.
+     *
+     * @param value Value
+     * @param n     Number of bits (1 to 64)
+     */
+    private void write(long value, int n) {
+        while (n > 0) {
+            int index = (int) (nbBits >>> 3);
+            if (index == bits.length) {
+                bits = Arrays.copyOf(bits, bits.length * 2);
+            }
+            int free = 8 - (int) (nbBits & 7), k = Math.min(free, n);
+            int chunk = (int) (value >>> (n - k)) & ((1 << k) - 1);
+            bits[index] |= chunk << (free - k);
+            nbBits += k;
+            n -= k;
+        }
+    }
+
+    /**
+     * Encode the samples added so far.
+     *
+     * @return Encoded chunk
+     */
+    ByteBuffer encode() {
+        int length = (int) ((nbBits + 7) >>> 3);
+        ByteBuffer data = ByteBuffer.allocate(HEADER + length);
+        data.put((byte) FORMAT).putInt(size).put(bits, 0, length).flip();
+        return data;
+    }
+
+    /**
+     * Decode the samples of a time range.
+     *
+     * @param data  Encoded chunk
+     * @param begin Beginning (ms)
+     * @param end   End (ms, excluded)
+     * @param out   Samples to add to
+     */
+    static void decode(ByteBuffer data, long begin, long end, NumericSamples.Builder out) {
+        int format = data.get(data.position()) & 0xFF;
+        if (format != FORMAT) {
+            throw new IllegalArgumentException("Unknown chunk format " + format);
+        }
+        int size = data.getInt(data.position() + 1);
+        if (size == 0) {
+            return;
+        }
+        BitReader in = new BitReader(data, data.position() + HEADER);
+        long time = in.read(64), v = in.read(64), delta = 0;
+        int leading = 0, trailing = 0;
+        for (int i = 0; ; ) {
+            if (time >= end) {
+                return;
+            }
+            if (time >= begin) {
+                out.add(time, Double.longBitsToDouble(v));
+            }
+            if (++i == size) {
+                return;
+            }
+            delta += readDelta(in);
+            time += delta;
+            if (in.read(1) != 0) {
+                if (in.read(1) != 0) {
+                    leading = (int) in.read(5);
+                    trailing = 64 - leading - (int) in.read(6) - 1;
+                }
+                v ^= in.read(64 - leading - trailing) << trailing;
+            }
+        }
+    }
+
+    private static long readDelta(BitReader in) {
+        if (in.read(1) == 0) {
+            return 0;
+        }
+        if (in.read(1) == 0) {
+            return in.readSigned(7);
+        }
+        if (in.read(1) == 0) {
+            return in.readSigned(9);
+        }
+        if (in.read(1) == 0) {
+            return in.readSigned(12);
+        }
+        return in.read(64);
+    }
+
+    private static final class BitReader {
+
+        private final ByteBuffer data;
+        private final int offset;
+        private long pos;
+
+        BitReader(ByteBuffer data, int offset) {
+            this.data = data;
+            this.offset = offset;
+        }
+
+        long read(int n) {
+            long value = 0;
+            while (n > 0) {
+                int b = data.get(offset + (int) (pos >>> 3)) & 0xFF;
+                int available = 8 - (int) (pos & 7), k = Math.min(available, n);
+                value = (value << k) | ((b >>> (available - k)) & ((1 << k) - 1));
+                pos += k;
+                n -= k;
+            }
+            return value;
+        }
+
+        long readSigned(int n) {
+            return read(n) << (64 - n) >> (64 - n);
+        }
+    }
+}
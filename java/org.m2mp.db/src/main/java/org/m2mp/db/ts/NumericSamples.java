@@ -0,0 +1,147 @@
+package org.m2mp.db.ts;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Samples of a numeric serie, in the time order.
+ * <p/>
+ * The times and values are kept in primitive arrays, they can be read without boxing:
+ * <pre>
+ * NumericSamples samples = series.get(id, "power", begin, end);
+ * long[] times = samples.getTimes();
+ * double[] values = samples.getValues();
+ * </pre>
+ *
+ * @see NumericSeries
+ */
+public final class NumericSamples {
+
+    private final long[] times;
+    private final double[] values;
+
+    NumericSamples(long[] times, double[] values) {
+        this.times = times;
+        this.values = values;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    /**
+     * Get the time of a sample.
+     *
+     * @param i Index of the sample
+     * @return Time in ms
+     */
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public Date getDate(int i) {
+        return new Date(times[i]);
+    }
+
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * Get the times of the samples.
+     *
+     * @return Times in ms (shared, it must not be modified)
+     */
+    public long[] getTimes() {
+        return times;
+    }
+
+    /**
+     * Get the values of the samples.
+     *
+     * @return Values (shared, it must not be modified)
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "NumericSamples[" + times.length + (times.length > 0 ? ", " + new Date(times[0]) + " - " + new Date(times[times.length - 1]) : "") + "]";
+    }
+
+    /**
+     * Merge sorted samples.
+     *
+     * @param parts Samples, ordered by their first time (they may overlap)
+     * @return Samples in the time order
+     */
+    static NumericSamples merge(List<NumericSamples> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        Builder out = new Builder();
+        for (NumericSamples part : parts) {
+            if (part.size() == 0) {
+                continue;
+            }
+            if (out.size == 0 || part.times[0] >= out.times[out.size - 1]) {
+                for (int i = 0; i < part.size(); i++) {
+                    out.add(part.times[i], part.values[i]);
+                }
+            } else {
+                out = merge(out.build(), part);
+            }
+        }
+        return out.build();
+    }
+
+    private static Builder merge(NumericSamples a, NumericSamples b) {
+        Builder out = new Builder(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() || j < b.size()) {
+            if (j == b.size() || (i < a.size() && a.times[i] <= b.times[j])) {
+                out.add(a.times[i], a.values[i]);
+                i++;
+            } else {
+                out.add(b.times[j], b.values[j]);
+                j++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Samples being read.
+     */
+    static final class Builder {
+
+        private long[] times;
+        private double[] values;
+        private int size;
+
+        Builder() {
+            this(64);
+        }
+
+        Builder(int capacity) {
+            times = new long[Math.max(capacity, 1)];
+            values = new double[times.length];
+        }
+
+        void add(long time, double value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+
+        NumericSamples build() {
+            return new NumericSamples(Arrays.copyOf(times, size), Arrays.copyOf(values, size));
+        }
+    }
+}
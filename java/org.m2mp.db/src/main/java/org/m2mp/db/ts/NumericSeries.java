@@ -0,0 +1,412 @@
+package org.m2mp.db.ts;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES_CHUNKS;
+
+/**
+ * Compressed numeric series.
+ * <p/>
+ * The sensors that send a value every second would get a {@link TimeSerie} row (time, JSON text) per value. Here the
+ * samples are grouped in chunks of a {@link #setChunkDuration(long, TimeUnit) time bucket} (an hour by default) and
+ * compressed (see {@link NumericChunk}), they take a few bytes per sample and a range is read as a few rows:
+ * <pre>
+ * NumericSeries series = new NumericSeries();
+ * series.add(id, "power", System.currentTimeMillis(), 231.5);
+ * ...
+ * NumericSamples samples = series.get(id, "power", begin, end);
+ * </pre>
+ * The open chunk of each serie is kept in memory. It is written when it is full, when a sample of an other bucket
+ * arrives and every {@link #setFlushInterval(long, TimeUnit) flush interval} (the samples added since the last write
+ * can be lost if the process stops without {@link #close()}). A sample older than the last one of its serie starts a
+ * new chunk, chunks that overlap are merged when they are read.
+ */
+public class NumericSeries {
+
+    private static final String REQ_INSERT = "INSERT INTO " + TABLE_TIMESERIES_CHUNKS + " ( id, field, date, bucket, part, nb, data ) VALUES ( ?, ?, ?, ?, ?, ?, ? );";
+    private static final String REQ_SELECT = "SELECT part, data FROM " + TABLE_TIMESERIES_CHUNKS + " WHERE id = ? AND field = ? AND date = ? AND bucket >= ? AND bucket < ?;";
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    static {
+        DB.registerQueries(REQ_INSERT, REQ_SELECT);
+    }
+
+    private final DBContext context;
+    private final ConcurrentMap<List<String>, NumericChunk> open = new ConcurrentHashMap<>();
+    private final Set<NumericChunk> sealed = Collections.newSetFromMap(new ConcurrentHashMap<NumericChunk, Boolean>());
+    private final AtomicLong nbSamples = new AtomicLong(), nbWrites = new AtomicLong(), nbBytes = new AtomicLong();
+    private volatile long chunkDuration = 3600000, flushInterval = 60000, grace = 60000; // in ms
+    private volatile int maxSamples = 3600;
+    private ScheduledExecutorService timer;
+
+    public NumericSeries() {
+        this(TimeSerie.getContext());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param context Context the chunks are stored in
+     */
+    public NumericSeries(DBContext context) {
+        this.context = context;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+
+    /**
+     * Set the time bucket of the chunks.
+     *
+     * @param duration Duration (a day has to be a multiple of it)
+     * @param unit     Unit of the duration
+     * @return this
+     */
+    public NumericSeries setChunkDuration(long duration, TimeUnit unit) {
+        long ms = unit.toMillis(duration);
+        if (ms <= 0 || DAY % ms != 0) {
+            throw new IllegalArgumentException("A day isn't a multiple of " + ms + " ms");
+        }
+        this.chunkDuration = ms;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of samples of a chunk.
+     *
+     * @param maxSamples Maximum number of samples
+     * @return this
+     */
+    public NumericSeries setMaxSamples(int maxSamples) {
+        this.maxSamples = maxSamples;
+        return this;
+    }
+
+    /**
+     * Set how often the open chunks are written.
+     *
+     * @param interval Interval
+     * @param unit     Unit of the interval
+     * @return this
+     */
+    public synchronized NumericSeries setFlushInterval(long interval, TimeUnit unit) {
+        this.flushInterval = unit.toMillis(interval);
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+        return this;
+    }
+
+    /**
+     * Set how long a chunk stays open after the end of its bucket (for the late samples).
+     *
+     * @param grace Grace period
+     * @param unit  Unit of the grace period
+     * @return this
+     */
+    public NumericSeries setGracePeriod(long grace, TimeUnit unit) {
+        this.grace = unit.toMillis(grace);
+        return this;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+    public long getNbSamples() {
+        return nbSamples.get();
+    }
+
+    /**
+     * Get the number of chunks written.
+     *
+     * @return Number of writes
+     */
+    public long getNbWrites() {
+        return nbWrites.get();
+    }
+
+    /**
+     * Get the size of the chunks written.
+     *
+     * @return Number of bytes
+     */
+    public long getNbBytes() {
+        return nbBytes.get();
+    }
+
+    /**
+     * Get the number of chunks in memory.
+     *
+     * @return Number of chunks
+     */
+    public int getNbChunks() {
+        return open.size() + sealed.size();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Writes">
+
+    /**
+     * Add a sample.
+     *
+     * @param id    Id of the serie
+     * @param field Name of the value
+     * @param time  Time (ms)
+     * @param value Value
+     */
+    public void add(String id, String field, long time, double value) {
+        List<String> key = Arrays.asList(id, field);
+        long bucket = floor(time, chunkDuration);
+        while (true) {
+            NumericChunk chunk = open.get(key);
+            if (chunk == null) {
+                NumericChunk created = new NumericChunk(id, field, bucket);
+                chunk = open.putIfAbsent(key, created);
+                if (chunk == null) {
+                    chunk = created;
+                }
+            }
+            boolean added = false, full = true;
+            synchronized (chunk) {
+                if (!chunk.sealed) {
+                    added = chunk.bucket == bucket && chunk.add(time, value);
+                    full = !added || chunk.size() >= maxSamples;
+                }
+            }
+            if (full) {
+                // If the sample wasn't added, it will be in a new chunk
+                seal(key, chunk);
+                write(chunk);
+            }
+            if (added) {
+                break;
+            }
+        }
+        nbSamples.incrementAndGet();
+        timer();
+    }
+
+    public void add(String id, String field, Date date, double value) {
+        add(id, field, date.getTime(), value);
+    }
+
+    private void seal(List<String> key, NumericChunk chunk) {
+        synchronized (chunk) {
+            if (!chunk.sealed) {
+                chunk.sealed = true;
+                sealed.add(chunk);
+            }
+        }
+        open.remove(key, chunk);
+    }
+
+    /**
+     * Write a chunk if it changed.
+     *
+     * @param chunk Chunk
+     * @return Future of the write (null if there's nothing to write)
+     */
+    private ListenableFuture<ResultSet> write(final NumericChunk chunk) {
+        final int size;
+        ListenableFuture<ResultSet> future;
+        synchronized (chunk) {
+            if (chunk.writing != null) {
+                return chunk.writing;
+            }
+            if (chunk.written == chunk.size()) {
+                if (chunk.sealed) {
+                    sealed.remove(chunk);
+                }
+                return null;
+            }
+            ByteBuffer data = chunk.encode();
+            size = chunk.size();
+            nbWrites.incrementAndGet();
+            nbBytes.addAndGet(data.remaining());
+            try {
+                future = context.executeAsync(REQ_INSERT, chunk.id, chunk.field, TimeSerie.DATE_FORMAT.format(chunk.bucket), new Date(chunk.bucket), chunk.part, size, data);
+            } catch (RuntimeException ex) {
+                future = Futures.immediateFailedFuture(ex);
+            }
+            chunk.writing = future;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                synchronized (chunk) {
+                    chunk.writing = null;
+                    chunk.written = size;
+                    if (chunk.sealed && chunk.written == chunk.size()) {
+                        sealed.remove(chunk);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // It will be written again at the next flush
+                synchronized (chunk) {
+                    chunk.writing = null;
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Write the chunks that changed and seal the ones whose bucket is over.
+     *
+     * @return Future of the writes
+     */
+    public ListenableFuture<Void> flush() {
+        return flush(false);
+    }
+
+    private ListenableFuture<Void> flush(boolean sealAll) {
+        long closed = System.currentTimeMillis() - grace;
+        for (Map.Entry<List<String>, NumericChunk> e : open.entrySet()) {
+            if (sealAll || e.getValue().bucket + chunkDuration < closed) {
+                seal(e.getKey(), e.getValue());
+            }
+        }
+        List<NumericChunk> chunks = new ArrayList<>(open.values());
+        chunks.addAll(sealed);
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (NumericChunk chunk : chunks) {
+            ListenableFuture<ResultSet> future = write(chunk);
+            if (future != null) {
+                futures.add(future);
+            }
+        }
+        return Futures.transform(Futures.successfulAsList(futures), new Function<List<ResultSet>, Void>() {
+            @Override
+            public Void apply(List<ResultSet> input) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Write all the chunks and stop the periodic writes.
+     * <p/>
+     * The chunks that couldn't be written stay in memory (see {@link #getNbChunks()}).
+     */
+    public void close() {
+        synchronized (this) {
+            if (timer != null) {
+                timer.shutdown();
+                timer = null;
+            }
+        }
+        DB.get(flush(true));
+        // The writes that were in flight might not have had all the samples
+        DB.get(flush(true));
+    }
+
+    private synchronized void timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "db-numeric-series");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(NumericSeries.class.getName()).log(Level.WARNING, "Numeric series flush failed", ex);
+                    }
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Queries">
+
+    public NumericSamples get(String id, String field, Date begin, Date end) {
+        return get(id, field, begin.getTime(), end.getTime());
+    }
+
+    /**
+     * Get the samples of a time range.
+     * <p/>
+     * The samples of this instance that weren't written yet are included.
+     *
+     * @param id    Id of the serie
+     * @param field Name of the value
+     * @param begin Beginning (ms)
+     * @param end   End (ms, excluded)
+     * @return Samples in the time order
+     */
+    public NumericSamples get(String id, String field, long begin, long end) {
+        long from = floor(begin, chunkDuration);
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (long day = floor(from, DAY); day < end; day += DAY) {
+            futures.add(context.executeAsync(REQ_SELECT, id, field, TimeSerie.DATE_FORMAT.format(day), new Date(from), new Date(end)));
+        }
+
+        // The chunks in memory are more recent than their written version
+        Map<UUID, ByteBuffer> memory = new HashMap<>();
+        List<NumericChunk> chunks = new ArrayList<>(sealed);
+        chunks.add(open.get(Arrays.asList(id, field)));
+        for (NumericChunk chunk : chunks) {
+            if (chunk != null && chunk.id.equals(id) && chunk.field.equals(field) && chunk.bucket >= from && chunk.bucket < end) {
+                synchronized (chunk) {
+                    memory.put(chunk.part, chunk.encode());
+                }
+            }
+        }
+
+        List<NumericSamples> parts = new ArrayList<>();
+        for (ByteBuffer data : memory.values()) {
+            decode(data, begin, end, parts);
+        }
+        for (ListenableFuture<ResultSet> future : futures) {
+            for (Row row : DB.get(future)) {
+                if (!memory.containsKey(row.getUUID(0))) {
+                    decode(row.getBytes(1), begin, end, parts);
+                }
+            }
+        }
+        Collections.sort(parts, new Comparator<NumericSamples>() {
+            @Override
+            public int compare(NumericSamples a, NumericSamples b) {
+                return Long.compare(a.getTime(0), b.getTime(0));
+            }
+        });
+        return NumericSamples.merge(parts);
+    }
+
+    private static void decode(ByteBuffer data, long begin, long end, List<NumericSamples> parts) {
+        NumericSamples.Builder builder = new NumericSamples.Builder();
+        NumericChunk.decode(data, begin, end, builder);
+        NumericSamples samples = builder.build();
+        if (samples.size() > 0) {
+            parts.add(samples);
+        }
+    }
+    // </editor-fold>
+
+    private static long floor(long time, long duration) {
+        return time - ((time % duration) + duration) % duration;
+    }
+}
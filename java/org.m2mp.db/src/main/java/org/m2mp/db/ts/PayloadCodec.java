@@ -0,0 +1,38 @@
+package org.m2mp.db.ts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of the data of the time series.
+ * <p/>
+ * The data of a point is stored as a blob whose first byte is the id of the codec that wrote it, so that points written
+ * with different codecs can still be read together. The id 0 is reserved for the JSON text.
+ *
+ * @see TimeSerie#setPayloadCodec(PayloadCodec)
+ */
+public interface PayloadCodec {
+
+    /**
+     * Get the id of the codec.
+     *
+     * @return Id (1 to 255)
+     */
+    int getId();
+
+    /**
+     * Encode a value.
+     *
+     * @param value Value (what json-simple can serialize)
+     * @return Payload starting with the id of the codec, or null if this value isn't supported
+     */
+    ByteBuffer encode(Object value);
+
+    /**
+     * Decode a payload.
+     *
+     * @param buffer Payload, positioned after the id of the codec
+     * @return Value, with the types json-simple would have parsed (Long, Double, String, Boolean, JSONObject and
+     * JSONArray)
+     */
+    Object decode(ByteBuffer buffer);
+}
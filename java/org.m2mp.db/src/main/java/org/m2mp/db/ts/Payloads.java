@@ -0,0 +1,233 @@
+package org.m2mp.db.ts;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Payloads of the time series: encoding with the current codec and decoding with the codec that wrote them.
+ */
+final class Payloads {
+
+    /**
+     * Id of the JSON text payloads.
+     */
+    static final int TEXT = 0;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final AtomicReferenceArray<PayloadCodec> codecs = new AtomicReferenceArray<>(256);
+    private static volatile PayloadCodec codec;
+    /**
+     * JSON parsers: each one allocates a large buffer, they are reused.
+     */
+    private static final ThreadLocal<JSONParser> parsers = new ThreadLocal<JSONParser>() {
+        @Override
+        protected JSONParser initialValue() {
+            return new JSONParser();
+        }
+    };
+
+    static {
+        // Only known to read its payloads: the other clients and cqlsh can't decode them, the data is written as JSON
+        // text until a codec is set
+        codecs.set(BinaryPayloadCodec.ID, new BinaryPayloadCodec());
+    }
+
+    private Payloads() {
+    }
+
+    /**
+     * Path of a field within the data, like "pos.spd".
+     */
+    static final class Path {
+
+        final String[] names;
+        final byte[][] utf8;
+
+        private Path(String... names) {
+            this.names = names;
+            utf8 = new byte[names.length][];
+            for (int i = 0; i < names.length; i++) {
+                utf8[i] = names[i].getBytes(UTF_8);
+            }
+        }
+
+        /**
+         * Parse a path.
+         *
+         * @param path Dotted path, like "pos.spd"
+         * @return Path
+         */
+        static Path parse(String path) {
+            return new Path(path.split("\\."));
+        }
+
+        /**
+         * Get the path of a top level field.
+         *
+         * @param name Name of the field (can contain dots)
+         * @return Path
+         */
+        static Path key(String name) {
+            return new Path(name);
+        }
+
+        /**
+         * Get the field of a decoded value.
+         * <p/>
+         * Like {@link TimedData#getJsonMap()}, a value that isn't a map is the "value" field.
+         *
+         * @param value Value
+         * @return Field or null if there's none
+         */
+        Object get(Object value) {
+            if (!(value instanceof Map) && names.length == 1 && names[0].equals("value")) {
+                return value;
+            }
+            for (String name : names) {
+                if (!(value instanceof Map)) {
+                    return null;
+                }
+                value = ((Map<?, ?>) value).get(name);
+            }
+            return value;
+        }
+
+        /**
+         * Get the field of a JSON text, without parsing the other fields.
+         *
+         * @param json JSON text
+         * @return Field or null if there's none
+         */
+        Object scan(String json) {
+            Object value = JsonScanner.field(json, names);
+            return value != JsonScanner.INVALID ? value : get(Payloads.parse(json));
+        }
+    }
+
+    static PayloadCodec getCodec() {
+        return codec;
+    }
+
+    static void setCodec(PayloadCodec codec) {
+        if (codec != null) {
+            if (codec.getId() <= TEXT || codec.getId() > 255) {
+                throw new IllegalArgumentException("Invalid codec id " + codec.getId());
+            }
+            codecs.set(codec.getId(), codec);
+        }
+        Payloads.codec = codec;
+    }
+
+    /**
+     * Get the payload of a text.
+     *
+     * @param data Text (JSON)
+     * @return Payload
+     */
+    static ByteBuffer text(String data) {
+        byte[] utf8 = data.getBytes(UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(utf8.length + 1);
+        payload.put((byte) TEXT).put(utf8).flip();
+        return payload;
+    }
+
+    /**
+     * Encode a value with the current codec.
+     *
+     * @param value Value
+     * @return Payload (JSON text if there's no codec or if it doesn't support the value)
+     */
+    static ByteBuffer encode(Object value) {
+        PayloadCodec c = codec;
+        if (c != null) {
+            ByteBuffer payload = c.encode(value);
+            if (payload != null) {
+                return payload;
+            }
+        }
+        return text(JSONValue.toJSONString(value));
+    }
+
+    /**
+     * Decode a payload.
+     *
+     * @param payload Payload
+     * @return Value
+     */
+    static Object decode(ByteBuffer payload) {
+        ByteBuffer in = payload.duplicate();
+        int id = in.get() & 0xFF;
+        if (id == TEXT) {
+            return parse(string(in));
+        }
+        PayloadCodec c = codecs.get(id);
+        if (c == null) {
+            throw new IllegalArgumentException("Unknown payload codec " + id);
+        }
+        return c.decode(in);
+    }
+
+    /**
+     * Parse a JSON text.
+     *
+     * @param json JSON text
+     * @return Value (null if the text is invalid, like {@link JSONValue#parse(String)})
+     */
+    static Object parse(String json) {
+        try {
+            return parsers.get().parse(json);
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Get a field of a payload.
+     * <p/>
+     * The payloads of the binary codec are walked and the JSON texts are scanned without decoding the other fields.
+     *
+     * @param payload Payload
+     * @param path    Path of the field
+     * @return Field or null if there's none
+     */
+    static Object field(ByteBuffer payload, Path path) {
+        ByteBuffer in = payload.duplicate();
+        int id = in.get() & 0xFF;
+        if (id == TEXT) {
+            return path.scan(string(in));
+        }
+        if (id == BinaryPayloadCodec.ID && codecs.get(id) instanceof BinaryPayloadCodec) {
+            return BinaryPayloadCodec.field(in, path);
+        }
+        return path.get(decode(payload));
+    }
+
+    /**
+     * Get the JSON text of a payload.
+     *
+     * @param payload Payload
+     * @return JSON text
+     */
+    static String toJson(ByteBuffer payload) {
+        if ((payload.get(payload.position()) & 0xFF) == TEXT) {
+            ByteBuffer in = payload.duplicate();
+            in.get();
+            return string(in);
+        }
+        return JSONValue.toJSONString(decode(payload));
+    }
+
+    private static String string(ByteBuffer in) {
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + in.position(), in.remaining(), UTF_8);
+        }
+        byte[] bytes = new byte[in.remaining()];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,213 @@
+package org.m2mp.db.ts;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the days of the series listed by the {@link TimeSerie#TABLE_TIMESERIES_INDEX} table.
+ * <p/>
+ * Each read of a serie lists its days (see {@link TSPeriodIterator}). The days of a serie and type are read once from
+ * the index, from the first day of the read (or all of them when it has no beginning), and the cached days are extended
+ * when a read begins before them. The past days don't change, so only the last days are read again, when the reads
+ * include them and they were read more than a {@link #setLimits(int, long) refresh interval} ago. The days saved by
+ * this process are added and the days deleted by it are removed. The least recently used series are evicted when the
+ * cache is full.
+ * <p/>
+ * A point saved by an other process in a past day that wasn't listed is only seen once the serie is evicted.
+ */
+public class PeriodCache {
+
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    /**
+     * Days of a serie and type.
+     */
+    private static class Entry {
+
+        final TreeSet<String> days = new TreeSet<>();
+        String since; // First day read from the index ("" for all the days)
+        long refreshed;
+
+        boolean covers(String from) {
+            return since.isEmpty() || (from != null && from.compareTo(since) >= 0);
+        }
+    }
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    private volatile int maxSeries = 10000;
+    private volatile long refresh = 10000;
+    private final LinkedHashMap<List<String>, Entry> series = new LinkedHashMap<List<String>, Entry>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, Entry> eldest) {
+            return size() > maxSeries;
+        }
+    };
+
+    PeriodCache() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+
+    /**
+     * Set the size of the cache.
+     *
+     * @param maxSeries Maximum number of series and types (0 to disable the cache)
+     * @param refresh   Time after which the last days are read again (in ms)
+     */
+    public void setLimits(int maxSeries, long refresh) {
+        this.maxSeries = maxSeries;
+        this.refresh = refresh;
+        if (maxSeries <= 0) {
+            clear();
+        }
+    }
+
+    boolean isEnabled() {
+        return maxSeries > 0;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+    public long getNbHits() {
+        return hits.get();
+    }
+
+    public long getNbMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the ratio of listings that didn't have to query the index.
+     *
+     * @return Hit rate (0 to 1)
+     */
+    public double getHitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    /**
+     * Get the number of series.
+     *
+     * @return Number of series and types in the cache
+     */
+    public synchronized int size() {
+        return series.size();
+    }
+    // </editor-fold>
+
+    /**
+     * Get the days that have to be read from the index before listing the days of a range.
+     *
+     * @param id   Id of the serie
+     * @param type Type of the data ("" if none)
+     * @param from First day of the range (null for no limit)
+     * @param to   Last day of the range (null for no limit)
+     * @return First day to read, "" to read all the days or null if the cached days can be listed
+     */
+    synchronized String getMissing(String id, String type, String from, String to) {
+        Entry entry = series.get(Arrays.asList(id, type));
+        if (entry == null || !entry.covers(from)) {
+            misses.incrementAndGet();
+            return from != null ? from : "";
+        }
+        long now = System.currentTimeMillis();
+        // Yesterday still gets some late points
+        String recent = TimeSerie.DATE_FORMAT.format(now - DAY);
+        if ((to == null || to.compareTo(recent) >= 0) && now - entry.refreshed >= refresh) {
+            misses.incrementAndGet();
+            return recent;
+        }
+        hits.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Add the days read from the index.
+     *
+     * @param id    Id of the serie
+     * @param type  Type of the data ("" if none)
+     * @param since First day that was read ("" for all the days)
+     * @param days  Days
+     * @param time  Time of the read
+     */
+    synchronized void load(String id, String type, String since, Collection<String> days, long time) {
+        if (maxSeries <= 0) {
+            return;
+        }
+        List<String> key = Arrays.asList(id, type);
+        Entry entry = series.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entry.since = since;
+            series.put(key, entry);
+        } else if (since.compareTo(entry.since) < 0) {
+            entry.since = since;
+        }
+        entry.days.addAll(days);
+        entry.refreshed = Math.max(entry.refreshed, time);
+    }
+
+    /**
+     * List the cached days of a range.
+     *
+     * @param id       Id of the serie
+     * @param type     Type of the data ("" if none)
+     * @param from     First day (null for no limit)
+     * @param to       Last day (null for no limit)
+     * @param inverted true for the descending order
+     * @return Days or null if the days of the range aren't cached
+     */
+    synchronized List<String> get(String id, String type, String from, String to, boolean inverted) {
+        Entry entry = series.get(Arrays.asList(id, type));
+        if (entry == null || !entry.covers(from)) {
+            return null;
+        }
+        if (from != null && to != null && from.compareTo(to) > 0) {
+            return Collections.emptyList();
+        }
+        NavigableSet<String> days = entry.days;
+        if (from != null) {
+            days = days.tailSet(from, true);
+        }
+        if (to != null) {
+            days = days.headSet(to, true);
+        }
+        return new ArrayList<>(inverted ? days.descendingSet() : days);
+    }
+
+    /**
+     * Add a day saved by this process.
+     *
+     * @param id   Id of the serie
+     * @param type Type of the data ("" if none)
+     * @param day  Day
+     */
+    synchronized void add(String id, String type, String day) {
+        Entry entry = series.get(Arrays.asList(id, type));
+        if (entry != null) {
+            entry.days.add(day);
+        }
+    }
+
+    /**
+     * Remove a day deleted by this process.
+     *
+     * @param id   Id of the serie
+     * @param type Type of the data ("" if none)
+     * @param day  Day
+     */
+    synchronized void remove(String id, String type, String day) {
+        Entry entry = series.get(Arrays.asList(id, type));
+        if (entry != null) {
+            entry.days.remove(day);
+        }
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public synchronized void clear() {
+        series.clear();
+    }
+}
@@ -0,0 +1,222 @@
+package org.m2mp.db.ts;
+
+import org.apache.commons.lang3.time.FastDateFormat;
+
+import java.util.*;
+
+/**
+ * Aggregate of the values of a numeric field over a time bucket.
+ *
+ * @see RollupEngine
+ */
+public class Rollup {
+
+    /**
+     * Size of the buckets.
+     */
+    public enum Resolution {
+
+        MINUTE(60 * 1000L, "yyyy-MM-dd", Calendar.DAY_OF_MONTH),
+        HOUR(3600 * 1000L, "yyyy-MM", Calendar.MONTH),
+        DAY(24 * 3600 * 1000L, "yyyy", Calendar.YEAR);
+
+        private final long duration;
+        private final FastDateFormat periodFormat;
+        private final int periodField;
+
+        Resolution(long duration, String periodFormat, int periodField) {
+            this.duration = duration;
+            this.periodFormat = FastDateFormat.getInstance(periodFormat, TimeZone.getTimeZone("UTC"));
+            this.periodField = periodField;
+        }
+
+        /**
+         * Get the duration of a bucket.
+         *
+         * @return Duration in ms
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Get the beginning of the bucket of a time.
+         *
+         * @param time Time in ms
+         * @return Beginning of its bucket in ms
+         */
+        public long getBucket(long time) {
+            return time - ((time % duration) + duration) % duration;
+        }
+
+        /**
+         * Get the partition of a bucket (a day of minutes, a month of hours, a year of days).
+         *
+         * @param bucket Bucket
+         * @return Period
+         */
+        String getPeriod(long bucket) {
+            return periodFormat.format(bucket);
+        }
+
+        /**
+         * Get the partitions of a time range.
+         *
+         * @param begin Beginning (ms)
+         * @param end   End (ms)
+         * @return Periods in ascending order
+         */
+        List<String> getPeriods(long begin, long end) {
+            List<String> periods = new ArrayList<>();
+            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            cal.setTimeInMillis(begin);
+            String last = getPeriod(end);
+            while (true) {
+                String period = getPeriod(cal.getTimeInMillis());
+                periods.add(period);
+                if (period.compareTo(last) >= 0) {
+                    return periods;
+                }
+                cal.add(periodField, 1);
+            }
+        }
+    }
+
+    private final Resolution resolution;
+    private final long bucket;
+    private long count;
+    private double sum, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, first, last;
+    private UUID firstTime, lastTime;
+
+    Rollup(Resolution resolution, long bucket) {
+        this.resolution = resolution;
+        this.bucket = bucket;
+    }
+
+    Rollup(Resolution resolution, long bucket, long count, double sum, double min, double max, UUID firstTime, double first, UUID lastTime, double last) {
+        this(resolution, bucket);
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.firstTime = firstTime;
+        this.first = first;
+        this.lastTime = lastTime;
+        this.last = last;
+    }
+
+    Rollup(Rollup src) {
+        this(src.resolution, src.bucket, src.count, src.sum, src.min, src.max, src.firstTime, src.first, src.lastTime, src.last);
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param time  Time of the value
+     * @param value Value
+     */
+    void add(UUID time, double value) {
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        if (firstTime == null || MergeIterator.compareTime(time, firstTime) < 0) {
+            firstTime = time;
+            first = value;
+        }
+        if (lastTime == null || MergeIterator.compareTime(time, lastTime) >= 0) {
+            lastTime = time;
+            last = value;
+        }
+    }
+
+    /**
+     * Add the values of an other aggregate of the same bucket.
+     *
+     * @param other Other aggregate
+     */
+    void merge(Rollup other) {
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (other.firstTime != null && (firstTime == null || MergeIterator.compareTime(other.firstTime, firstTime) < 0)) {
+            firstTime = other.firstTime;
+            first = other.first;
+        }
+        if (other.lastTime != null && (lastTime == null || MergeIterator.compareTime(other.lastTime, lastTime) >= 0)) {
+            lastTime = other.lastTime;
+            last = other.last;
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Access methods">
+    public Resolution getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Get the beginning of the bucket.
+     *
+     * @return Date
+     */
+    public Date getDate() {
+        return new Date(bucket);
+    }
+
+    long getBucket() {
+        return bucket;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getAverage() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * Get the first value of the bucket.
+     *
+     * @return Value
+     */
+    public double getFirst() {
+        return first;
+    }
+
+    public UUID getFirstTime() {
+        return firstTime;
+    }
+
+    /**
+     * Get the last value of the bucket.
+     *
+     * @return Value
+     */
+    public double getLast() {
+        return last;
+    }
+
+    public UUID getLastTime() {
+        return lastTime;
+    }
+    // </editor-fold>
+
+    @Override
+    public String toString() {
+        return "Rollup[" + resolution + "][" + getDate() + "] = {count=" + count + ",sum=" + sum + ",min=" + min + ",max=" + max + ",first=" + first + ",last=" + last + "}";
+    }
+}
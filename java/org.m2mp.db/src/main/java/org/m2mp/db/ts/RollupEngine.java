@@ -0,0 +1,466 @@
+package org.m2mp.db.ts;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES_ROLLUP;
+
+/**
+ * Write-time rollups of the time series.
+ * <p/>
+ * When it is set with {@link TimeSerie#setRollups(RollupEngine)}, the numeric fields of the saved points are
+ * aggregated (count, sum, min, max, first and last) per minute, hour and day. The aggregates of the open buckets are
+ * kept in memory and written every {@link #setFlushInterval(long, TimeUnit) flush interval}, so a month of data can be
+ * read as a few hundred rows:
+ * <pre>
+ * TimeSerie.setRollups(new RollupEngine());
+ * ...
+ * List&lt;Rollup&gt; temperatures = TimeSerie.getRollups().query(id, "sensor", "temp", begin, end, 500);
+ * </pre>
+ * Each process writes its own part of a bucket (and a new part when a bucket is re-opened by a late point), parts are
+ * merged when they are read. The rollups don't see the points that are overwritten or deleted, nor the points saved
+ * with a TTL (which are temporary by nature).
+ */
+public class RollupEngine {
+
+    private static final String REQ_INSERT = "INSERT INTO " + TABLE_TIMESERIES_ROLLUP + " ( id, type, field, resolution, period, bucket, part, nb, total, lowest, highest, first_time, first_value, last_time, last_value ) VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? );";
+    private static final String REQ_SELECT = "SELECT bucket, nb, total, lowest, highest, first_time, first_value, last_time, last_value FROM " + TABLE_TIMESERIES_ROLLUP + " WHERE id = ? AND type = ? AND field = ? AND resolution = ? AND period = ? AND bucket >= ? AND bucket < ? ORDER BY bucket ASC;";
+
+    static {
+        DB.registerQueries(REQ_INSERT, REQ_SELECT);
+    }
+
+    /**
+     * Bucket of a field of a serie.
+     */
+    private static class Key {
+
+        final String id, type, field;
+        final Rollup.Resolution resolution;
+        final long bucket;
+
+        Key(String id, String type, String field, Rollup.Resolution resolution, long bucket) {
+            this.id = id;
+            this.type = type;
+            this.field = field;
+            this.resolution = resolution;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return bucket == k.bucket && resolution == k.resolution && id.equals(k.id) && type.equals(k.type) && field.equals(k.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((id.hashCode() * 31 + type.hashCode()) * 31 + field.hashCode()) * 31 + resolution.hashCode() * 7 + (int) (bucket ^ (bucket >>> 32));
+        }
+    }
+
+    /**
+     * Aggregate of a bucket written by this process.
+     */
+    private static class Part {
+
+        final UUID id = UUIDs.timeBased();
+        final Rollup rollup;
+        long version, written;
+        boolean evicted;
+
+        Part(Key key) {
+            rollup = new Rollup(key.resolution, key.bucket);
+        }
+    }
+
+    private final DBContext context;
+    private final ConcurrentMap<Key, Part> parts = new ConcurrentHashMap<>();
+    private final AtomicLong nbPoints = new AtomicLong(), nbWrites = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private volatile EnumSet<Rollup.Resolution> resolutions = EnumSet.allOf(Rollup.Resolution.class);
+    private volatile Set<String> fields;
+    private volatile long flushInterval = 10000, grace = 60000; // in ms
+    private volatile int maxParts = 100000;
+    private ScheduledExecutorService timer;
+
+    public RollupEngine() {
+        this(TimeSerie.getContext());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param context Context the rollups are stored in
+     */
+    public RollupEngine(DBContext context) {
+        this.context = context;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+
+    /**
+     * Set the resolutions to maintain.
+     *
+     * @param resolutions Resolutions
+     * @return this
+     */
+    public RollupEngine setResolutions(Rollup.Resolution... resolutions) {
+        this.resolutions = EnumSet.copyOf(Arrays.asList(resolutions));
+        return this;
+    }
+
+    /**
+     * Only aggregate some fields.
+     *
+     * @param fields Names of the fields (none for all the numeric fields)
+     * @return this
+     */
+    public RollupEngine setFields(String... fields) {
+        this.fields = fields.length > 0 ? new HashSet<>(Arrays.asList(fields)) : null;
+        return this;
+    }
+
+    /**
+     * Set how often the aggregates are written.
+     *
+     * @param interval Interval
+     * @param unit     Unit of the interval
+     * @return this
+     */
+    public synchronized RollupEngine setFlushInterval(long interval, TimeUnit unit) {
+        this.flushInterval = unit.toMillis(interval);
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+        return this;
+    }
+
+    /**
+     * Set how long a bucket stays in memory after its end (for the late points).
+     *
+     * @param grace Grace period
+     * @param unit  Unit of the grace period
+     * @return this
+     */
+    public RollupEngine setGracePeriod(long grace, TimeUnit unit) {
+        this.grace = unit.toMillis(grace);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of buckets in memory. When it is reached, all the buckets are written and evicted in the background.
+     *
+     * @param maxParts Maximum number of buckets
+     * @return this
+     */
+    public RollupEngine setMaxBuckets(int maxParts) {
+        this.maxParts = maxParts;
+        return this;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+    public long getNbPoints() {
+        return nbPoints.get();
+    }
+
+    /**
+     * Get the number of aggregates written.
+     *
+     * @return Number of writes
+     */
+    public long getNbWrites() {
+        return nbWrites.get();
+    }
+
+    /**
+     * Get the number of buckets in memory.
+     *
+     * @return Number of buckets
+     */
+    public int getNbBuckets() {
+        return parts.size();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Aggregation">
+
+    /**
+     * Add a point.
+     *
+     * @param id    Id of the serie
+     * @param type  Type of the data (null if none)
+     * @param time  Time of the point
+     * @param value Value of the point (only the numeric fields of maps are aggregated)
+     */
+    void add(String id, String type, UUID time, Object value) {
+        if (!(value instanceof Map)) {
+            return;
+        }
+        nbPoints.incrementAndGet();
+        String typeKey = TimeSerie.typeKey(type);
+        long ms = UUIDs.unixTimestamp(time);
+        Set<String> only = fields;
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+            if (!(e.getValue() instanceof Number) || (only != null && !only.contains(String.valueOf(e.getKey())))) {
+                continue;
+            }
+            double v = ((Number) e.getValue()).doubleValue();
+            for (Rollup.Resolution resolution : resolutions) {
+                add(new Key(id, typeKey, String.valueOf(e.getKey()), resolution, resolution.getBucket(ms)), time, v);
+            }
+        }
+        timer();
+        if (parts.size() > maxParts && evicting.compareAndSet(false, true)) {
+            evict();
+        }
+    }
+
+    /**
+     * Write and evict all the aggregates in the background, only one eviction is pending at a time.
+     */
+    private synchronized void evict() {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush(true).addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            evicting.set(false);
+                        }
+                    }, MoreExecutors.sameThreadExecutor());
+                } catch (RuntimeException ex) {
+                    evicting.set(false);
+                    Logger.getLogger(RollupEngine.class.getName()).log(Level.WARNING, "Rollups eviction failed", ex);
+                }
+            }
+        };
+        if (timer == null) {
+            evicting.set(false); // Closed
+            return;
+        }
+        try {
+            timer.execute(task);
+        } catch (RejectedExecutionException ex) {
+            evicting.set(false);
+        }
+    }
+
+    private void add(Key key, UUID time, double value) {
+        while (true) {
+            Part part = parts.get(key);
+            if (part == null) {
+                Part created = new Part(key);
+                part = parts.putIfAbsent(key, created);
+                if (part == null) {
+                    part = created;
+                }
+            }
+            synchronized (part) {
+                if (!part.evicted) {
+                    part.rollup.add(time, value);
+                    part.version++;
+                    return;
+                }
+            }
+            // It was evicted in the meantime, it will be in a new part
+            parts.remove(key, part);
+        }
+    }
+
+    /**
+     * Write the aggregates that changed.
+     *
+     * @return Future of the writes
+     */
+    public ListenableFuture<Void> flush() {
+        return flush(false);
+    }
+
+    private ListenableFuture<Void> flush(boolean evictAll) {
+        long closed = System.currentTimeMillis() - grace;
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (Map.Entry<Key, Part> e : parts.entrySet()) {
+            final Key key = e.getKey();
+            final Part part = e.getValue();
+            final Rollup snapshot;
+            final long version;
+            synchronized (part) {
+                if (part.evicted) {
+                    continue;
+                }
+                if (part.version == part.written) {
+                    if (evictAll || key.bucket + key.resolution.getDuration() < closed) {
+                        part.evicted = true;
+                        parts.remove(key, part);
+                    }
+                    continue;
+                }
+                snapshot = new Rollup(part.rollup);
+                version = part.version;
+            }
+            nbWrites.incrementAndGet();
+            ListenableFuture<ResultSet> future = context.executeAsync(REQ_INSERT, key.id, key.type, key.field, key.resolution.name(), key.resolution.getPeriod(key.bucket), new Date(key.bucket), part.id,
+                    snapshot.getCount(), snapshot.getSum(), snapshot.getMin(), snapshot.getMax(), snapshot.getFirstTime(), snapshot.getFirst(), snapshot.getLastTime(), snapshot.getLast());
+            final boolean evict = evictAll;
+            Futures.addCallback(future, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rs) {
+                    synchronized (part) {
+                        part.written = Math.max(part.written, version);
+                        if (evict && part.written == part.version) {
+                            part.evicted = true;
+                            parts.remove(key, part);
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // It will be written again at the next flush
+                }
+            });
+            futures.add(future);
+        }
+        return Futures.transform(Futures.successfulAsList(futures), new Function<List<ResultSet>, Void>() {
+            @Override
+            public Void apply(List<ResultSet> input) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Write all the aggregates and stop the periodic writes.
+     */
+    public void close() {
+        synchronized (this) {
+            if (timer != null) {
+                timer.shutdown();
+                timer = null;
+            }
+        }
+        DB.get(flush(true));
+    }
+
+    private synchronized void timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "db-rollups");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(RollupEngine.class.getName()).log(Level.WARNING, "Rollups flush failed", ex);
+                    }
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Queries">
+
+    /**
+     * Get the aggregates of a field.
+     * <p/>
+     * The aggregates that weren't written yet (see {@link #flush()}) aren't included.
+     *
+     * @param id         Id of the serie
+     * @param type       Type of the data (null if none)
+     * @param field      Name of the field
+     * @param resolution Resolution
+     * @param begin      Beginning date
+     * @param end        Ending date (excluded)
+     * @return Aggregates of the buckets with some data, in the time order
+     */
+    public List<Rollup> getRollups(String id, String type, String field, Rollup.Resolution resolution, Date begin, Date end) {
+        long from = resolution.getBucket(begin.getTime()), to = end.getTime();
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (String period : resolution.getPeriods(from, to)) {
+            futures.add(context.executeAsync(REQ_SELECT, id, TimeSerie.typeKey(type), field, resolution.name(), period, new Date(from), new Date(to)));
+        }
+        List<Rollup> rollups = new ArrayList<>();
+        Rollup current = null;
+        for (ListenableFuture<ResultSet> future : futures) {
+            for (Row row : DB.get(future)) {
+                Rollup part = new Rollup(resolution, row.getDate(0).getTime(), row.getLong(1), row.getDouble(2), row.getDouble(3), row.getDouble(4), row.getUUID(5), row.getDouble(6), row.getUUID(7), row.getDouble(8));
+                if (current != null && current.getBucket() == part.getBucket()) {
+                    current.merge(part);
+                } else {
+                    current = part;
+                    rollups.add(current);
+                }
+            }
+        }
+        return rollups;
+    }
+
+    /**
+     * Get the aggregates of a field within a number of points.
+     * <p/>
+     * The most detailed resolution whose number of buckets over the period fits within the budget is used (or the
+     * coarsest one if none fits).
+     *
+     * @param id        Id of the serie
+     * @param type      Type of the data (null if none)
+     * @param field     Name of the field
+     * @param begin     Beginning date
+     * @param end       Ending date (excluded)
+     * @param maxPoints Maximum number of points
+     * @return Aggregates, in the time order
+     */
+    public List<Rollup> query(String id, String type, String field, Date begin, Date end, int maxPoints) {
+        return getRollups(id, type, field, getResolution(begin, end, maxPoints), begin, end);
+    }
+
+    /**
+     * Get the resolution to use for a period and a number of points.
+     *
+     * @param begin     Beginning date
+     * @param end       Ending date
+     * @param maxPoints Maximum number of points
+     * @return Resolution
+     */
+    public Rollup.Resolution getResolution(Date begin, Date end, int maxPoints) {
+        Rollup.Resolution chosen = null;
+        for (Rollup.Resolution resolution : resolutions) {
+            chosen = resolution;
+            long buckets = (end.getTime() - resolution.getBucket(begin.getTime()) + resolution.getDuration() - 1) / resolution.getDuration();
+            if (buckets <= maxPoints) {
+                break;
+            }
+        }
+        return chosen;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,243 @@
+package org.m2mp.db.ts;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Subscription to the points saved in the time series.
+ * <p/>
+ * A subscription receives the points of a serie, of the series starting with a prefix and/or of a type. By default
+ * the points are queued and delivered in order by a shared pool of threads: a slow listener can't stall the saves,
+ * when its queue is full some points are dropped (see {@link Overflow}). With a queue size of 0, the listener is
+ * called by the thread saving the point.
+ * <pre>
+ * Subscription sub = TimeSerie.subscribe(new Subscription(listener).setIdPrefix("dev-").setType("sen"));
+ * ...
+ * sub.close();
+ * </pre>
+ * The points are delivered when they are saved by this process (before their writes complete) or given to
+ * {@link TimeSerie#publish(TimedData)}.
+ */
+public class Subscription implements AutoCloseable {
+
+    /**
+     * What to do with a point when the queue is full.
+     */
+    public enum Overflow {
+
+        /**
+         * The new point is dropped.
+         */
+        DROP_NEWEST,
+        /**
+         * The oldest queued point is dropped to make room for the new one.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * Maximum number of points delivered before leaving the thread to the other subscriptions.
+     */
+    private static final int DRAIN_BATCH = 256;
+
+    private final TimeSerieListener listener;
+    private String id, idPrefix, type;
+    private int queueSize = 1000;
+    private Overflow overflow = Overflow.DROP_OLDEST;
+    private BlockingQueue<TimedData> queue;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong nbDelivered = new AtomicLong(), nbDropped = new AtomicLong(), nbFailed = new AtomicLong();
+    private volatile boolean closed;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < DRAIN_BATCH && !closed; i++) {
+                TimedData td = queue.poll();
+                if (td == null) {
+                    break;
+                }
+                deliver(td);
+            }
+            scheduled.set(false);
+            if (!queue.isEmpty() && !closed) {
+                schedule();
+            }
+        }
+    };
+
+    /**
+     * Constructor of a subscription to all the points.
+     *
+     * @param listener Listener of the points
+     */
+    public Subscription(TimeSerieListener listener) {
+        this.listener = listener;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Settings">
+
+    /**
+     * Only receive the points of a serie.
+     *
+     * @param id Id of the serie
+     * @return this
+     */
+    public Subscription setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    /**
+     * Only receive the points of the series starting with a prefix.
+     *
+     * @param idPrefix Prefix of the ids
+     * @return this
+     */
+    public Subscription setIdPrefix(String idPrefix) {
+        this.idPrefix = idPrefix;
+        return this;
+    }
+
+    /**
+     * Only receive the points of a type.
+     *
+     * @param type Type of the data
+     * @return this
+     */
+    public Subscription setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Set the queue of the points waiting to be delivered.
+     *
+     * @param queueSize Maximum number of points (0 to deliver the points synchronously)
+     * @param overflow  What to do when it is full
+     * @return this
+     */
+    public Subscription setQueue(int queueSize, Overflow overflow) {
+        this.queueSize = Math.max(0, queueSize);
+        this.overflow = overflow;
+        return this;
+    }
+
+    String getId() {
+        return id;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Statistics">
+    public long getNbDelivered() {
+        return nbDelivered.get();
+    }
+
+    /**
+     * Get the number of points dropped because the queue was full.
+     *
+     * @return Number of points
+     */
+    public long getNbDropped() {
+        return nbDropped.get();
+    }
+
+    /**
+     * Get the number of points the listener failed to handle.
+     *
+     * @return Number of points
+     */
+    public long getNbFailed() {
+        return nbFailed.get();
+    }
+
+    /**
+     * Get the number of points waiting to be delivered.
+     *
+     * @return Number of points
+     */
+    public int getNbPending() {
+        return queue != null ? queue.size() : 0;
+    }
+    // </editor-fold>
+
+    void open() {
+        if (queueSize > 0) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+        }
+    }
+
+    /**
+     * Check if a point matches the subscription.
+     *
+     * @param td Point
+     * @return true if it should be delivered
+     */
+    boolean matches(TimedData td) {
+        return (id == null || id.equals(td.getId()))
+                && (idPrefix == null || td.getId().startsWith(idPrefix))
+                && (type == null || type.equals(td.getType()));
+    }
+
+    /**
+     * Deliver a point or queue it.
+     *
+     * @param td Point
+     */
+    void offer(TimedData td) {
+        if (closed) {
+            return;
+        }
+        if (queue == null) {
+            deliver(td);
+            return;
+        }
+        while (!queue.offer(td)) {
+            if (overflow == Overflow.DROP_NEWEST) {
+                nbDropped.incrementAndGet();
+                return;
+            }
+            if (queue.poll() != null) {
+                nbDropped.incrementAndGet();
+            }
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                Subscriptions.executor().execute(drain);
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void deliver(TimedData td) {
+        try {
+            listener.onData(td);
+            nbDelivered.incrementAndGet();
+        } catch (RuntimeException ex) {
+            nbFailed.incrementAndGet();
+            Logger.getLogger(Subscription.class.getName()).log(Level.WARNING, "Subscription listener failed", ex);
+        }
+    }
+
+    /**
+     * Stop receiving the points. The queued points are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Subscriptions.remove(this);
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+}
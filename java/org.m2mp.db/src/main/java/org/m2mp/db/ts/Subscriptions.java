@@ -0,0 +1,114 @@
+package org.m2mp.db.ts;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subscriptions to the saved points.
+ * <p/>
+ * The subscriptions to a serie are indexed by its id, the others (prefix or type) are checked for each point. The
+ * lists are replaced on each change so that publishing a point doesn't lock anything.
+ */
+final class Subscriptions {
+
+    private static final ConcurrentMap<String, List<Subscription>> byId = new ConcurrentHashMap<>();
+    private static volatile List<Subscription> others = Collections.emptyList();
+    private static volatile int count;
+    private static ExecutorService executor;
+
+    private Subscriptions() {
+    }
+
+    static synchronized ExecutorService executor() {
+        if (executor == null) {
+            final AtomicInteger nb = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "db-subscriptions-" + nb.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    static synchronized void add(Subscription subscription) {
+        subscription.open();
+        String id = subscription.getId();
+        if (id != null) {
+            List<Subscription> list = byId.get(id);
+            list = list != null ? new ArrayList<>(list) : new ArrayList<Subscription>(1);
+            list.add(subscription);
+            byId.put(id, list);
+        } else {
+            List<Subscription> list = new ArrayList<>(others);
+            list.add(subscription);
+            others = list;
+        }
+        count++;
+    }
+
+    static synchronized void remove(Subscription subscription) {
+        String id = subscription.getId();
+        List<Subscription> list = id != null ? byId.get(id) : others;
+        if (list == null || !list.contains(subscription)) {
+            return;
+        }
+        list = new ArrayList<>(list);
+        list.remove(subscription);
+        if (id == null) {
+            others = list;
+        } else if (list.isEmpty()) {
+            byId.remove(id);
+        } else {
+            byId.put(id, list);
+        }
+        count--;
+    }
+
+    /**
+     * Publish a saved point.
+     *
+     * @param id      Id of the time serie
+     * @param type    Type of the data
+     * @param date    Date of data
+     * @param payload Payload
+     */
+    static void publish(String id, String type, UUID date, ByteBuffer payload) {
+        if (count > 0) {
+            publish(new TimedData(id, type, date, null, payload));
+        }
+    }
+
+    /**
+     * Publish a point.
+     *
+     * @param td Point
+     */
+    static void publish(TimedData td) {
+        if (count == 0) {
+            return;
+        }
+        List<Subscription> list = byId.get(td.getId());
+        if (list != null) {
+            for (Subscription s : list) {
+                if (s.matches(td)) {
+                    s.offer(td);
+                }
+            }
+        }
+        for (Subscription s : others) {
+            if (s.matches(td)) {
+                s.offer(td);
+            }
+        }
+    }
+}
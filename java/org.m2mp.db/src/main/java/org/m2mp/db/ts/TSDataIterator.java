@@ -1,25 +1,38 @@
 package org.m2mp.db.ts;
 
-import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.commons.lang3.time.FastDateFormat;
 import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
+import org.m2mp.db.PrefetchingIterator;
 
-import java.util.Date;
-import java.util.Iterator;
-import java.util.TimeZone;
-import java.util.UUID;
+import java.util.*;
 
 import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES;
+import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES_V3;
 
 /**
  * Time serie timed data iterator.
+ * <p/>
+ * The periods (days) are read one after another. With a read window (see {@link #setWindow(int)}), the next periods
+ * are queried in parallel while the current one is consumed and the rows are still returned in order. Without type,
+ * each type of a period is read by its own time range query and the types are merged. The memory used is a page per
+ * type of the current period, plus the first page of each type of each period of the window.
+ * If the iterator isn't consumed until its end, it should be closed to cancel the queries of the window.
  *
  * @author Florent Clairambault
  */
-public class TSDataIterator implements Iterator<TimedData> {
+public class TSDataIterator implements Iterator<TimedData>, AutoCloseable {
+
+    /**
+     * Default number of periods read ahead.
+     */
+    private static volatile int defaultWindow = 1;
 
     private static final boolean DEBUG = false;
 
@@ -33,7 +46,7 @@ public class TSDataIterator implements Iterator<TimedData> {
      */
     private final String type;
     /**
-     * Key of the serie. Will be in the form of <code>id</code> or
+     * Key of the serie in the previous layout. Will be in the form of <code>id</code> or
      * <code>id+"!"+type</code>
      */
     private final String key;
@@ -52,6 +65,16 @@ public class TSDataIterator implements Iterator<TimedData> {
 
     private final TSPeriodIterator periodIterator;
 
+    /**
+     * Context of the time series when the iterator was created.
+     */
+    private final DBContext context = TimeSerie.getContext();
+
+    /**
+     * If the previous layout has to be read as well.
+     */
+    private final boolean legacy = TimeSerie.hasLegacyData(context);
+
     /**
      * Data iterator.
      *
@@ -81,28 +104,246 @@ public class TSDataIterator implements Iterator<TimedData> {
      * The data iterator is used to list all the rows of the current period.
      * When the period is over, we will switch.
      */
-    private Iterator<Row> iter;
+    private Iterator<TimedData> iter;
+
+    /**
+     * Current period.
+     */
+    private Period current;
+
+    /**
+     * Next periods, fetched while the current one is consumed.
+     */
+    private final Deque<Period> ahead = new ArrayDeque<>();
+
+    /**
+     * Number of periods read ahead.
+     */
+    private int window = defaultWindow;
+
+    /**
+     * Maximum number of rows read per period query (0 for no limit).
+     */
+    private int limit;
+
+    private boolean closed;
 
     final static FastDateFormat DATE_FORMAT = FastDateFormat.getInstance("yyyy-MM-dd", TimeZone.getTimeZone("UTC"));
 
     /**
-     * Set the period.
+     * Queries of a period.
+     * <p/>
+     * In the current implementation, the period is the day in the form of yyyy-MM-dd. Without type, the types of the
+     * period are listed first and each one is read by its own range query, all of it without blocking so that the
+     * periods of the window are fully queried ahead.
+     */
+    private class Period {
+
+        private final String period;
+        private final ListenableFuture<List<ResultSet>> future;
+        private final ListenableFuture<ResultSet> legacyFuture;
+        private final List<ResultSet> results = new ArrayList<>();
+        private ResultSet legacyRs;
+
+        Period(String period) {
+            if (DEBUG) {
+                System.out.println("Searching in " + period + " from " + dateBegin + " to " + dateEnd);
+            }
+            this.period = period;
+            if (type != null) {
+                future = Futures.allAsList(Collections.singletonList(execute(typeQuery(), id, period, type, dateBegin, dateEnd)));
+            } else {
+                future = Futures.transform(TimeSerie.getTypesAsync(context, id, period), new AsyncFunction<List<String>, List<ResultSet>>() {
+                    @Override
+                    public ListenableFuture<List<ResultSet>> apply(List<String> types) {
+                        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+                        for (String t : types) {
+                            futures.add(execute(typeQuery(), id, Period.this.period, t, dateBegin, dateEnd));
+                        }
+                        return Futures.allAsList(futures);
+                    }
+                }, TimeSerie.queryExecutor());
+            }
+            legacyFuture = legacy ? execute(legacyQuery(), key, period, dateBegin, dateEnd) : null;
+        }
+
+        Iterator<TimedData> iterator() {
+            List<Iterator<TimedData>> sources = new ArrayList<>();
+            for (ResultSet rs : DB.get(future)) {
+                results.add(rs);
+                sources.add(toData(new PrefetchingIterator(rs, context, typeQuery()), true));
+            }
+            if (legacyFuture != null) {
+                legacyRs = DB.get(legacyFuture);
+                sources.add(toData(new PrefetchingIterator(legacyRs, context, legacyQuery()), false));
+            }
+            return sources.size() == 1 ? sources.get(0) : new MergeIterator(sources, inverted);
+        }
+
+        ListenableFuture<?> getFuture() {
+            return legacyFuture != null ? Futures.allAsList(Arrays.<ListenableFuture<?>>asList(future, legacyFuture)) : future;
+        }
+
+        boolean isAlmostConsumed() {
+            for (ResultSet rs : results) {
+                if (!almostConsumed(rs)) {
+                    return false;
+                }
+            }
+            return legacyFuture == null || almostConsumed(legacyRs);
+        }
+
+        void cancel() {
+            future.cancel(true);
+            if (legacyFuture != null) {
+                legacyFuture.cancel(true);
+            }
+        }
+    }
+
+    private String typeQuery() {
+        if (limit > 0) {
+            return inverted ? REQ_SELECT_TYPE_DESC_LIMIT : REQ_SELECT_TYPE_ASC_LIMIT;
+        }
+        return inverted ? REQ_SELECT_TYPE_DESC : REQ_SELECT_TYPE_ASC;
+    }
+
+    private String legacyQuery() {
+        if (limit > 0) {
+            return inverted ? REQ_SELECT_DESC_LIMIT : REQ_SELECT_ASC_LIMIT;
+        }
+        return inverted ? REQ_SELECT_DESC : REQ_SELECT_ASC;
+    }
+
+    /**
+     * Execute a range query of a period, with the limit if there's one.
+     */
+    private ListenableFuture<ResultSet> execute(String query, Object... args) {
+        if (limit > 0) {
+            args = Arrays.copyOf(args, args.length + 1);
+            args[args.length - 1] = limit;
+        }
+        return context.executeAsync(query, args);
+    }
+
+    private static boolean almostConsumed(ResultSet rs) {
+        return rs != null && rs.isFullyFetched() && rs.getAvailableWithoutFetching() <= PREFETCH_PERIOD_ROWS;
+    }
+
+    /**
+     * Convert the rows to points.
+     *
+     * @param rows    Rows (type, time, data and payload if any)
+     * @param payload If the rows have a payload
+     * @return Points
+     */
+    private Iterator<TimedData> toData(final Iterator<Row> rows, final boolean payload) {
+        return new Iterator<TimedData>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public TimedData next() {
+                Row row = rows.next();
+                String rowType = row.getString(0);
+                if (rowType == null || rowType.isEmpty()) {
+                    rowType = type;
+                }
+                return new TimedData(id, rowType, row.getUUID(1), row.getString(2), payload ? row.getBytes(3) : null);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Start fetching the next periods.
+     * <p/>
+     * With a window of one period, the next period is only fetched when the current one is almost consumed.
+     */
+    private void prefetchPeriods() {
+        int wanted = window > 1 || (current != null && current.isAlmostConsumed()) ? window : 0;
+        while (ahead.size() < wanted && periodIterator.hasNext()) {
+            ahead.add(new Period(periodIterator.next()));
+        }
+    }
+
+    /**
+     * Set the number of periods read ahead by this iterator.
+     * <p/>
+     * Each period of the window keeps the first page of its queries in memory (one per type without type).
+     *
+     * @param window Number of periods (1 to only read the next one at the end of the current one)
+     * @return this
+     */
+    public TSDataIterator setWindow(int window) {
+        this.window = Math.max(1, window);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of rows read per period query (per type and period without type).
+     *
+     * @param limit Number of rows (0 for no limit)
+     * @return this
+     */
+    TSDataIterator setLimit(int limit) {
+        this.limit = Math.max(0, limit);
+        return this;
+    }
+
+    /**
+     * Query the first period as soon as the index has been read.
+     * <p/>
+     * This allows to start many iterators concurrently: it must be called once the future of the index query is
+     * done and before the iteration has started.
      *
-     * @param period Period to use
-     *               <p/>
-     *               In the current implementation, the period is the day in the form of
-     *               yyyy-MM-dd.
-     *               <p/>
-     *               This method defines the iterator that we will use until the current
-     *               period is over.
-     */
-    private void setPeriod(String period) {
-        PreparedStatement ps = inverted ? reqSelectOrderDesc() : reqSelectOrderAsc();
-        if (DEBUG) {
-            System.out.println("Searching in " + period + " from " + dateBegin + " to " + dateEnd);
+     * @return Future of the first period (null if there's no period)
+     */
+    ListenableFuture<?> start() {
+        if (!periodIterator.hasNext()) {
+            return null;
         }
-        ResultSet rs = DB.execute(ps.bind(key, period, dateBegin, dateEnd));
-        iter = rs.iterator();
+        Period period = new Period(periodIterator.next());
+        ahead.add(period);
+        return period.getFuture();
+    }
+
+    /**
+     * Get the query of the periods containing some data.
+     *
+     * @return Future of its result
+     */
+    ListenableFuture<ResultSet> getIndexFuture() {
+        return periodIterator.getFuture();
+    }
+
+    /**
+     * Set the default number of periods read ahead by the iterators.
+     *
+     * @param window Number of periods (1 to only read the next one at the end of the current one)
+     */
+    public static void setDefaultWindow(int window) {
+        defaultWindow = Math.max(1, window);
+    }
+
+    /**
+     * Stop the iteration and cancel the queries of the periods read ahead.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Period period : ahead) {
+            period.cancel();
+        }
+        ahead.clear();
+        iter = null;
+        current = null;
     }
 
     @Override
@@ -114,9 +355,15 @@ public class TSDataIterator implements Iterator<TimedData> {
      *
      */
     public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        prefetchPeriods();
         boolean hasNext = iter != null && iter.hasNext();
-        while (!hasNext && periodIterator.hasNext()) {
-            setPeriod(periodIterator.next());
+        while (!hasNext && (!ahead.isEmpty() || periodIterator.hasNext())) {
+            current = !ahead.isEmpty() ? ahead.poll() : new Period(periodIterator.next());
+            iter = current.iterator();
+            prefetchPeriods();
             hasNext = iter.hasNext();
         }
         return hasNext;
@@ -124,13 +371,10 @@ public class TSDataIterator implements Iterator<TimedData> {
 
     @Override
     public TimedData next() {
-        Row row = iter.next();
-        String rowType = row.getString(0);
-        if (rowType == null) {
-            rowType = this.type;
+        if (closed) {
+            throw new NoSuchElementException();
         }
-        TimedData td = new TimedData(id, rowType, row.getUUID(1), row.getString(2));
-        return td;
+        return iter.next();
     }
 
     @Override
@@ -138,32 +382,39 @@ public class TSDataIterator implements Iterator<TimedData> {
     }
 
     private static final String SELECT_COMMON = "SELECT type, time, data FROM " + TABLE_TIMESERIES + " WHERE id = ? AND date = ? AND time > ? AND time < ? ORDER BY time";
+    private static final String REQ_SELECT_ASC = SELECT_COMMON + " ASC;";
+    private static final String REQ_SELECT_DESC = SELECT_COMMON + " DESC;";
+    // The clustering order is (type ASC, time DESC): for a single type, the type DESC order lists the time ASC
+    private static final String SELECT_TYPE = "SELECT type, time, data, payload FROM " + TABLE_TIMESERIES_V3 + " WHERE id = ? AND date = ? AND type = ? AND time > ? AND time < ? ORDER BY type";
+    private static final String REQ_SELECT_TYPE_ASC = SELECT_TYPE + " DESC;";
+    private static final String REQ_SELECT_TYPE_DESC = SELECT_TYPE + " ASC;";
+    private static final String REQ_SELECT_ASC_LIMIT = SELECT_COMMON + " ASC LIMIT ?;";
+    private static final String REQ_SELECT_DESC_LIMIT = SELECT_COMMON + " DESC LIMIT ?;";
+    private static final String REQ_SELECT_TYPE_ASC_LIMIT = SELECT_TYPE + " DESC LIMIT ?;";
+    private static final String REQ_SELECT_TYPE_DESC_LIMIT = SELECT_TYPE + " ASC LIMIT ?;";
 
     /**
-     * Prepare a statement in the ASC order.
-     *
-     * @return Prepared statement
+     * Number of remaining rows in the current period at which the next period is fetched.
      */
-    private PreparedStatement reqSelectOrderAsc() {
-        if (reqSelectOrderAsc == null) {
-            reqSelectOrderAsc = DB.prepare(SELECT_COMMON + " ASC;");
-        }
-        return reqSelectOrderAsc;
-    }
+    private static final int PREFETCH_PERIOD_ROWS = 10;
 
-    private PreparedStatement reqSelectOrderAsc;
+    static {
+        DB.registerQueries(REQ_SELECT_ASC, REQ_SELECT_DESC, REQ_SELECT_TYPE_ASC, REQ_SELECT_TYPE_DESC, REQ_SELECT_ASC_LIMIT, REQ_SELECT_DESC_LIMIT, REQ_SELECT_TYPE_ASC_LIMIT, REQ_SELECT_TYPE_DESC_LIMIT);
+    }
 
     /**
-     * Prepare a statement in the DESC order.
+     * Set the number of rows fetched per page when iterating over time series.
      *
-     * @return Prepared statement
+     * @param fetchSize Fetch size (0 to use the default one)
      */
-    private PreparedStatement reqSelectOrderDesc() {
-        if (reqSelectOrderDesc == null) {
-            reqSelectOrderDesc = DB.prepare(SELECT_COMMON + " DESC;");
-        }
-        return reqSelectOrderDesc;
+    public static void setFetchSize(int fetchSize) {
+        TimeSerie.getContext().setFetchSize(REQ_SELECT_ASC, fetchSize);
+        TimeSerie.getContext().setFetchSize(REQ_SELECT_DESC, fetchSize);
+        TimeSerie.getContext().setFetchSize(REQ_SELECT_TYPE_ASC, fetchSize);
+        TimeSerie.getContext().setFetchSize(REQ_SELECT_TYPE_DESC, fetchSize);
+        TimeSerie.getContext().setFetchSize(REQ_SELECT_ASC_LIMIT, fetchSize);
+        TimeSerie.getContext().setFetchSize(REQ_SELECT_DESC_LIMIT, fetchSize);
+        TimeSerie.getContext().setFetchSize(REQ_SELECT_TYPE_ASC_LIMIT, fetchSize);
+        TimeSerie.getContext().setFetchSize(REQ_SELECT_TYPE_DESC_LIMIT, fetchSize);
     }
-
-    private PreparedStatement reqSelectOrderDesc;
 }
@@ -0,0 +1,31 @@
+package org.m2mp.db.ts;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Time ordered iterable over the data of many series.
+ */
+public class TSMultiIterable implements Iterable<TimedData> {
+
+    private final Collection<String> ids;
+    private final Collection<String> types;
+    private final UUID dateBegin;
+    private final UUID dateEnd;
+    private final boolean inverted;
+    private final int limit;
+
+    TSMultiIterable(Collection<String> ids, Collection<String> types, UUID dateBegin, UUID dateEnd, boolean inverted, int limit) {
+        this.ids = ids;
+        this.types = types;
+        this.dateBegin = dateBegin;
+        this.dateEnd = dateEnd;
+        this.inverted = inverted;
+        this.limit = limit;
+    }
+
+    @Override
+    public TSMultiIterator iterator() {
+        return new TSMultiIterator(ids, types, dateBegin, dateEnd, inverted, limit);
+    }
+}
@@ -0,0 +1,150 @@
+package org.m2mp.db.ts;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Time ordered iterator over the data of many series.
+ * <p/>
+ * The series are read by a {@link TSDataIterator} each: their index and first period are queried concurrently (at
+ * most {@link #setConcurrency(int) concurrency} queries at a time) when the iteration starts, then they are merged.
+ * Each series keeps a page per type of its current period in memory (a single page when its type is set), and when
+ * there's a limit no period query reads more rows than the limit. The iterator should be closed if it isn't consumed
+ * until its end.
+ */
+public class TSMultiIterator implements Iterator<TimedData>, AutoCloseable {
+
+    /**
+     * Maximum number of queries sent concurrently when starting the series.
+     */
+    private static volatile int concurrency = 64;
+
+    private final Collection<String> ids;
+    private final Collection<String> types;
+    private final UUID dateBegin, dateEnd;
+    private final boolean inverted;
+    private final int limit;
+    private final List<TSDataIterator> sources = new ArrayList<>();
+    private Iterator<TimedData> merge;
+    private int count;
+    private boolean closed;
+
+    /**
+     * Multi series iterator.
+     *
+     * @param ids       Identifiers of the series
+     * @param types     Types of data (null for all the types)
+     * @param dateBegin Beginning date
+     * @param dateEnd   Ending date
+     * @param inverted  Inversion: true to go from end to beginning
+     * @param limit     Maximum number of points (0 for no limit)
+     */
+    TSMultiIterator(Collection<String> ids, Collection<String> types, UUID dateBegin, UUID dateEnd, boolean inverted, int limit) {
+        this.ids = ids;
+        this.types = types != null ? types : Collections.singleton((String) null);
+        this.dateBegin = dateBegin;
+        this.dateEnd = dateEnd;
+        this.inverted = inverted;
+        this.limit = Math.max(0, limit);
+    }
+
+    /**
+     * Set the maximum number of queries sent concurrently when starting the series.
+     *
+     * @param concurrency Number of queries
+     */
+    public static void setConcurrency(int concurrency) {
+        TSMultiIterator.concurrency = Math.max(1, concurrency);
+    }
+
+    private static void release(final Semaphore semaphore, ListenableFuture<?> future) {
+        if (future == null) {
+            semaphore.release();
+            return;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                semaphore.release();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private static void waitAll(Semaphore semaphore, int permits) {
+        semaphore.acquireUninterruptibly(permits);
+        semaphore.release(permits);
+    }
+
+    /**
+     * Start all the series: query their index, then their first period.
+     */
+    private void open() {
+        int permits = concurrency;
+        Semaphore semaphore = new Semaphore(permits);
+        try {
+            for (String id : ids) {
+                for (String type : types) {
+                    semaphore.acquireUninterruptibly();
+                    TSDataIterator source = new TSDataIterator(id, type, dateBegin, dateEnd, inverted).setLimit(limit);
+                    sources.add(source);
+                    release(semaphore, source.getIndexFuture());
+                }
+            }
+            waitAll(semaphore, permits);
+            for (TSDataIterator source : sources) {
+                semaphore.acquireUninterruptibly();
+                release(semaphore, source.start());
+            }
+            waitAll(semaphore, permits);
+            merge = new MergeIterator(sources, inverted);
+        } catch (RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (merge == null) {
+            open();
+        }
+        if ((limit > 0 && count >= limit) || !merge.hasNext()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public TimedData next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        count++;
+        return merge.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop the iteration and cancel the pending queries of all the series.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (TSDataIterator source : sources) {
+            source.close();
+        }
+        sources.clear();
+        merge = null;
+    }
+}
@@ -2,10 +2,13 @@ package org.m2mp.db.ts;
 
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.m2mp.db.DB;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 
 public class TSPeriodIterator implements Iterator<String> {
@@ -13,49 +16,118 @@ public class TSPeriodIterator implements Iterator<String> {
 
     private static final boolean DEBUG = false;
 
-    private final Iterator<Row> iter;
+    private final String id, type, from, to;
+    private final boolean inverted;
+    private final PeriodCache cache;
+    /**
+     * Index query, sent when the iterator is created (null if the days are cached).
+     */
+    private final ListenableFuture<ResultSet> future;
+    private String since;
+    private long queried;
+    private Iterator<String> iter;
 
     public TSPeriodIterator(String id, String type, Date begin, Date end, boolean inverted) {
         if (type == null) {
             type = "";
         }
+        this.id = id;
+        this.type = type;
+        this.from = begin != null ? TimeSerie.DATE_FORMAT.format(begin) : null;
+        this.to = end != null ? TimeSerie.DATE_FORMAT.format(end) : null;
+        this.inverted = inverted;
 
-        String after = inverted ? " ORDER BY date DESC;" : " ORDER BY date ASC;";
-        ResultSet rs;
-        if (begin != null && end != null) {
-            rs = DB.execute(
-                    DB.prepare(SELECT_BE + after).bind(id, type, TimeSerie.DATE_FORMAT.format(begin), TimeSerie.DATE_FORMAT.format(end))
-            );
-        } else if (begin != null) {
-            rs = DB.execute(
-                    DB.prepare(SELECT_B + after).bind(id, type, TimeSerie.DATE_FORMAT.format(begin))
-            );
-        } else if (end != null) {
-            rs = DB.execute(
-                    DB.prepare(SELECT_E + after).bind(id, type, TimeSerie.DATE_FORMAT.format(end))
-            );
+        PeriodCache c = TimeSerie.getPeriodCache();
+        if (!c.isEnabled()) {
+            cache = null;
+            future = query(from, to);
+            return;
+        }
+        cache = c;
+        // The cached days are completed with the last days, or the index is read from the first day of the range
+        since = cache.getMissing(id, type, from, to);
+        queried = System.currentTimeMillis();
+        if (since == null) {
+            future = null;
+        } else if (since.isEmpty()) {
+            future = TimeSerie.getContext().executeAsync(SELECT_COMMON + ORDER_ASC, id, type);
+        } else {
+            future = TimeSerie.getContext().executeAsync(SELECT_B + ORDER_ASC, id, type, since);
+        }
+    }
+
+    private ListenableFuture<ResultSet> query(String from, String to) {
+        String after = inverted ? ORDER_DESC : ORDER_ASC;
+        if (from != null && to != null) {
+            return TimeSerie.getContext().executeAsync(SELECT_BE + after, id, type, from, to);
+        } else if (from != null) {
+            return TimeSerie.getContext().executeAsync(SELECT_B + after, id, type, from);
+        } else if (to != null) {
+            return TimeSerie.getContext().executeAsync(SELECT_E + after, id, type, to);
         } else {
-            rs = DB.execute(
-                    DB.prepare(SELECT_COMMON + after).bind(id, type)
-            );
+            return TimeSerie.getContext().executeAsync(SELECT_COMMON + after, id, type);
+        }
+    }
+
+    /**
+     * Get the index query.
+     *
+     * @return Future of its result (null if the days are cached)
+     */
+    ListenableFuture<ResultSet> getFuture() {
+        return future;
+    }
+
+    private Iterator<String> iter() {
+        if (iter == null) {
+            List<String> days = null;
+            if (cache == null) {
+                days = days(DB.get(future));
+            } else {
+                if (future != null) {
+                    cache.load(id, type, since, days(DB.get(future)), queried);
+                }
+                days = cache.get(id, type, from, to, inverted);
+                if (days == null) {
+                    // It was evicted (or loaded again from a later day) in the meantime
+                    days = days(DB.get(query(from, to)));
+                }
+            }
+            iter = days.iterator();
+        }
+        return iter;
+    }
+
+    private static List<String> days(ResultSet rs) {
+        List<String> days = new ArrayList<>();
+        for (Row row : rs) {
+            days.add(row.getString(0));
         }
-        iter = rs.iterator();
+        return days;
     }
 
     private static final String SELECT_COMMON = "SELECT date FROM " + TimeSerie.TABLE_TIMESERIES_INDEX + " WHERE id=? and type=?";
     private static final String SELECT_BE = SELECT_COMMON + " and date>=? and date<=?";
     private static final String SELECT_B = SELECT_COMMON + " and date>=?";
     private static final String SELECT_E = SELECT_COMMON + " and date<=?";
+    private static final String ORDER_ASC = " ORDER BY date ASC;";
+    private static final String ORDER_DESC = " ORDER BY date DESC;";
+
+    static {
+        for (String select : new String[]{SELECT_COMMON, SELECT_BE, SELECT_B, SELECT_E}) {
+            DB.registerQueries(select + ORDER_ASC, select + ORDER_DESC);
+        }
+    }
 
 
     @Override
     public boolean hasNext() {
-        return iter.hasNext();
+        return iter().hasNext();
     }
 
     @Override
     public String next() {
-        String next = iter.next().getString(0);
+        String next = iter().next();
         if (DEBUG) {
             System.out.println("Next period: " + next);
         }
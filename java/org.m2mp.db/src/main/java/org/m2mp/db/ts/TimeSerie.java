@@ -1,22 +1,49 @@
 package org.m2mp.db.ts;
 
-import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.commons.lang3.time.FastDateFormat;
 import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
 import org.m2mp.db.common.GeneralSetting;
 import org.m2mp.db.common.TableCreation;
 import org.m2mp.db.common.TableIncrementalDefinition;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Time series management.
+ * <p/>
+ * Points are stored in the {@link #TABLE_TIMESERIES_V3} table, partitioned by serie and day and clustered by type and
+ * time: a typed point is written once and can still be read efficiently for its type alone. Untyped points have the
+ * "" type.
+ * <p/>
+ * The previous layout ({@link #TABLE_TIMESERIES}) wrote typed points twice, once for the serie and once for the
+ * serie and type. It is still the one of the other clients (Go and Python), so until {@link TimeSerieMigration#finish()}
+ * is called the points are written in both layouts (as JSON text in the previous one), and the previous table is still
+ * read (and merged with the new table) and deleted.
+ * <p/>
+ * The data is stored in the payload blob, as JSON text by default or encoded with the {@link PayloadCodec} set with
+ * {@link #setPayloadCodec(PayloadCodec)} (like the compact {@link BinaryPayloadCodec}, once every reader supports it).
+ * The points stored as JSON text in the data column are still read.
+ * <p/>
+ * The series of frequent numeric samples are stored far more compactly by {@link NumericSeries}.
  *
  * @author Florent Clairambault
  */
@@ -24,16 +51,239 @@ public class TimeSerie {
 
     public static final String TABLE_TIMESERIES = "timeseries";
     public static final String TABLE_TIMESERIES_INDEX = "timeseries_index";
+    public static final String TABLE_TIMESERIES_V3 = "timeseries_v3";
+    public static final String TABLE_TIMESERIES_ROLLUP = "timeseries_rollup";
+    public static final String TABLE_TIMESERIES_LAST = "timeseries_last";
+    public static final String TABLE_TIMESERIES_CHUNKS = "timeseries_chunks";
     static final FastDateFormat DATE_FORMAT = FastDateFormat.getInstance("yyyy-MM-dd", TimeZone.getTimeZone("UTC"));
-    private static final ConcurrentSkipListSet index = new ConcurrentSkipListSet();
+    private static final ConcurrentMap<DBContext, IndexCache> indexCaches = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<DBContext, LastValues> lastValues = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<DBContext, PeriodCache> periodCaches = new ConcurrentHashMap<>();
+    private static ExecutorService queryExecutor;
     static final int MAX_TTL = 20 * 365 * 24 * 60 * 60; // 20 years in second
+    static final String REQ_INSERT = "INSERT INTO " + TABLE_TIMESERIES + " ( id, date, time, type, data ) VALUES ( ?, ?, ?, ?, ? ) USING TTL ?;";
+    private static final String REQ_INSERT_INDEX = "INSERT INTO " + TABLE_TIMESERIES_INDEX + " ( id, type, date ) VALUES( ?, ?, ? );";
+    static final String REQ_DELETE_PERIOD = "DELETE FROM " + TABLE_TIMESERIES + " WHERE id=? AND date=?;";
+    static final String REQ_DELETE = "DELETE FROM " + TABLE_TIMESERIES + " WHERE id=? AND date=? AND time=?;";
+    private static final String REQ_SELECT = "SELECT id, type, time, data FROM " + TABLE_TIMESERIES + " WHERE id = ? AND date = ? AND time = ?;";
+    static final String REQ_INSERT_V3 = "INSERT INTO " + TABLE_TIMESERIES_V3 + " ( id, date, type, time, payload ) VALUES ( ?, ?, ?, ?, ? ) USING TTL ?;";
+    private static final String REQ_DELETE_PERIOD_V3 = "DELETE FROM " + TABLE_TIMESERIES_V3 + " WHERE id=? AND date=?;";
+    private static final String REQ_DELETE_V3 = "DELETE FROM " + TABLE_TIMESERIES_V3 + " WHERE id=? AND date=? AND type=? AND time=?;";
+    private static final String REQ_SELECT_V3 = "SELECT type, time, data, payload FROM " + TABLE_TIMESERIES_V3 + " WHERE id = ? AND date = ? AND type = ? AND time = ?;";
+    static final String REQ_SELECT_FIRST_TYPE = "SELECT type FROM " + TABLE_TIMESERIES_V3 + " WHERE id = ? AND date = ? LIMIT 1;";
+    private static final String REQ_SELECT_NEXT_TYPE = "SELECT type FROM " + TABLE_TIMESERIES_V3 + " WHERE id = ? AND date = ? AND type > ? LIMIT 1;";
+    private static final String REQ_INSERT_LAST = "INSERT INTO " + TABLE_TIMESERIES_LAST + " ( id, type, data_type, time, payload ) VALUES ( ?, ?, ?, ?, ? ) USING TTL ? AND TIMESTAMP ?;";
+    private static final String REQ_SELECT_LAST = "SELECT data_type, time, payload FROM " + TABLE_TIMESERIES_LAST + " WHERE id = ? AND type = ?;";
+    private static final String REQ_SELECT_LASTS = "SELECT type, time, data_type FROM " + TABLE_TIMESERIES_LAST + " WHERE id = ?;";
+    private static final String REQ_INSERT_LAST_DELETED = "INSERT INTO " + TABLE_TIMESERIES_LAST + " ( id, type, data_type, time, payload ) VALUES ( ?, ?, ?, ?, ? ) USING TIMESTAMP ?;";
+
+    /**
+     * Setting of the layout of the data: 3 once all the data is in the {@link #TABLE_TIMESERIES_V3} table and no client
+     * uses the {@link #TABLE_TIMESERIES} table anymore.
+     */
+    static final String SETTING_LAYOUT = "timeseries_layout";
+    private static final ConcurrentMap<DBContext, Boolean> legacyData = new ConcurrentHashMap<>();
+
+    private static volatile DBContext context;
+    private static volatile RollupEngine rollups;
+
+    static {
+        DB.registerQueries(REQ_INSERT, REQ_INSERT_INDEX, REQ_DELETE_PERIOD, REQ_DELETE, REQ_SELECT, REQ_INSERT_V3, REQ_DELETE_PERIOD_V3, REQ_DELETE_V3, REQ_SELECT_V3, REQ_SELECT_FIRST_TYPE, REQ_SELECT_NEXT_TYPE, REQ_INSERT_LAST, REQ_SELECT_LAST, REQ_SELECT_LASTS, REQ_INSERT_LAST_DELETED);
+    }
+
+    /**
+     * Get the context the time series are stored in.
+     *
+     * @return Context (the default one of {@link DB} if none was set)
+     */
+    public static DBContext getContext() {
+        DBContext c = context;
+        return c != null ? c : DB.getContext();
+    }
+
+    /**
+     * Get the cache of the index entries written in the current context.
+     *
+     * @return Index cache
+     */
+    public static IndexCache getIndexCache() {
+        return getIndexCache(getContext());
+    }
+
+    static IndexCache getIndexCache(DBContext context) {
+        IndexCache cache = indexCaches.get(context);
+        if (cache == null) {
+            IndexCache created = new IndexCache();
+            cache = indexCaches.putIfAbsent(context, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Get the cache of the days of the series of the current context.
+     *
+     * @return Days cache
+     */
+    public static PeriodCache getPeriodCache() {
+        return getPeriodCache(getContext());
+    }
+
+    static PeriodCache getPeriodCache(DBContext context) {
+        PeriodCache cache = periodCaches.get(context);
+        if (cache == null) {
+            PeriodCache created = new PeriodCache();
+            cache = periodCaches.putIfAbsent(context, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Get the cache of the last points of the current context.
+     *
+     * @return Last points cache
+     */
+    public static LastValues getLastValues() {
+        return getLastValues(getContext());
+    }
+
+    private static LastValues getLastValues(DBContext context) {
+        LastValues cache = lastValues.get(context);
+        if (cache == null) {
+            LastValues created = new LastValues();
+            cache = lastValues.putIfAbsent(context, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Check if some data of a context might still be in the previous layout.
+     *
+     * @param context Context
+     * @return true if the {@link #TABLE_TIMESERIES} table has to be read
+     */
+    static boolean hasLegacyData(DBContext context) {
+        Boolean legacy = legacyData.get(context);
+        if (legacy == null) {
+            legacy = GeneralSetting.get(context, SETTING_LAYOUT, 2) < 3;
+            legacyData.put(context, legacy);
+        }
+        return legacy;
+    }
+
+    /**
+     * Define if some data of a context might still be in the previous layout.
+     *
+     * @param context Context
+     * @param legacy  true if the {@link #TABLE_TIMESERIES} table has to be read
+     */
+    static void setLegacyData(DBContext context, boolean legacy) {
+        GeneralSetting.set(context, SETTING_LAYOUT, legacy ? 2 : 3);
+        legacyData.put(context, legacy);
+    }
+
+    /**
+     * Get the codec used to store the data.
+     *
+     * @return Codec (null if the data is stored as JSON text)
+     */
+    public static PayloadCodec getPayloadCodec() {
+        return Payloads.getCodec();
+    }
+
+    /**
+     * Set the codec used to store the data.
+     * <p/>
+     * The data written with a codec can only be read by the processes that know it (the Go and Python clients and
+     * cqlsh only read JSON text): its id is registered here. The {@link BinaryPayloadCodec} payloads are always read.
+     *
+     * @param codec Codec (null to store the data as JSON text)
+     */
+    public static void setPayloadCodec(PayloadCodec codec) {
+        Payloads.setCodec(codec);
+    }
+
+    /**
+     * Get the rollups engine.
+     *
+     * @return Engine (null if the rollups are disabled)
+     */
+    public static RollupEngine getRollups() {
+        return rollups;
+    }
+
+    /**
+     * Maintain some rollups of the numeric fields of the saved points.
+     *
+     * @param rollups Engine (null to disable the rollups)
+     */
+    public static void setRollups(RollupEngine rollups) {
+        TimeSerie.rollups = rollups;
+    }
+
+    /**
+     * Add a saved point to the rollups.
+     *
+     * @param id      Id of the time serie
+     * @param type    Type of the data
+     * @param date    Date of data
+     * @param payload Payload
+     * @param ttl     Time before expiration (in seconds)
+     */
+    static void rollup(String id, String type, UUID date, ByteBuffer payload, int ttl) {
+        RollupEngine r = rollups;
+        if (r != null && payload != null && ttl >= MAX_TTL) {
+            r.add(id, type, date, Payloads.decode(payload));
+        }
+    }
+
+    /**
+     * Subscribe to the saved points.
+     *
+     * @param subscription Subscription
+     * @return The subscription (to close it)
+     */
+    public static Subscription subscribe(Subscription subscription) {
+        Subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Deliver a point to the subscriptions.
+     * <p/>
+     * The points saved by this process are already delivered, this is for the points saved elsewhere (received from
+     * the storage topic for example).
+     *
+     * @param td Point
+     */
+    public static void publish(TimedData td) {
+        Subscriptions.publish(td);
+    }
+
+    /**
+     * Store the time series in a specific context (cluster or keyspace).
+     *
+     * @param context Context (null to use the default one)
+     */
+    public static void setContext(DBContext context) {
+        TimeSerie.context = context;
+    }
 
     /**
      * Prepare the time serie table
      */
     public static void prepareTable() {
-        GeneralSetting.prepareTable();
-        TableCreation.checkTable(new TableIncrementalDefinition() {
+        DBContext context = getContext();
+        GeneralSetting.prepareTable(context);
+        TableCreation.checkTable(context, new TableIncrementalDefinition() {
             @Override
             public String getTableDefName() {
                 return TABLE_TIMESERIES;
@@ -57,14 +307,66 @@ public class TimeSerie {
                         "  date text,\n" +
                         "  PRIMARY KEY ((id, type), date)\n" +
                         ") WITH CLUSTERING ORDER BY (date DESC);"));
+
+                list.add(new TableIncrementalDefinition.TableChange(3, "CREATE TABLE " + TABLE_TIMESERIES_V3 + " (\n" +
+                        "  id text,\n" +
+                        "  date text,\n" +
+                        "  type text,\n" + // Empty string if none
+                        "  time timeuuid,\n" +
+                        "  data text,\n" +
+                        "  PRIMARY KEY ((id, date), type, time)\n" +
+                        ") WITH CLUSTERING ORDER BY (type ASC, time DESC);"));
+
+                list.add(new TableIncrementalDefinition.TableChange(4, "ALTER TABLE " + TABLE_TIMESERIES_V3 + " ADD payload blob;"));
+
+                list.add(new TableIncrementalDefinition.TableChange(5, "CREATE TABLE " + TABLE_TIMESERIES_ROLLUP + " (\n" +
+                        "  id text,\n" +
+                        "  type text,\n" + // Empty string if none
+                        "  field text,\n" +
+                        "  resolution text,\n" +
+                        "  period text,\n" + // Day for the minutes, month for the hours, year for the days
+                        "  bucket timestamp,\n" +
+                        "  part timeuuid,\n" + // Each writer has its own part of the bucket
+                        "  nb bigint,\n" +
+                        "  total double,\n" +
+                        "  lowest double,\n" +
+                        "  highest double,\n" +
+                        "  first_time timeuuid,\n" +
+                        "  first_value double,\n" +
+                        "  last_time timeuuid,\n" +
+                        "  last_value double,\n" +
+                        "  PRIMARY KEY ((id, type, field, resolution, period), bucket, part)\n" +
+                        ");"));
+
+                list.add(new TableIncrementalDefinition.TableChange(6, "CREATE TABLE " + TABLE_TIMESERIES_LAST + " (\n" +
+                        "  id text,\n" +
+                        "  type text,\n" + // Empty string for the last point of all the types
+                        "  data_type text,\n" + // Type of the point (empty string if none)
+                        "  time timeuuid,\n" +
+                        "  payload blob,\n" +
+                        "  PRIMARY KEY (id, type)\n" +
+                        ");"));
+
+                list.add(new TableIncrementalDefinition.TableChange(7, "CREATE TABLE " + TABLE_TIMESERIES_CHUNKS + " (\n" +
+                        "  id text,\n" +
+                        "  field text,\n" +
+                        "  date text,\n" + // Day of the chunk
+                        "  bucket timestamp,\n" +
+                        "  part timeuuid,\n" + // There can be more than one chunk per bucket
+                        "  nb int,\n" +
+                        "  data blob,\n" +
+                        "  PRIMARY KEY ((id, field, date), bucket, part)\n" +
+                        ");"));
                 return list;
             }
 
             @Override
             public int getTableDefVersion() {
-                return 2;
+                return 7;
             }
         });
+        // The other clients might still use the previous layout
+        legacyData.remove(context);
     }
 
     /*
@@ -74,8 +376,16 @@ public class TimeSerie {
     */
 
     public static void dropTable() {
-        DB.prepare("drop table " + TABLE_TIMESERIES + ";");
-        DB.prepare("drop table " + TABLE_TIMESERIES_INDEX + ";");
+        for (String table : new String[]{TABLE_TIMESERIES, TABLE_TIMESERIES_INDEX, TABLE_TIMESERIES_V3, TABLE_TIMESERIES_ROLLUP, TABLE_TIMESERIES_LAST, TABLE_TIMESERIES_CHUNKS}) {
+            try {
+                getContext().execute("drop table " + table + ";");
+            } catch (Exception ex) {
+
+            }
+        }
+        legacyData.remove(getContext());
+        getLastValues().clear();
+        getPeriodCache().clear();
     }
 
     /**
@@ -109,7 +419,7 @@ public class TimeSerie {
      * @param td Timed data to save
      */
     public static void save(TimedData td) {
-        save(td.getId(), td.getType(), td.getDateUUID(), td.getData());
+        DB.get(saveAsync(td));
     }
 
     /**
@@ -118,23 +428,242 @@ public class TimeSerie {
      * @param tdw data wrapper to save
      */
     public static void save(TimedDataWrapper tdw) {
-        save(tdw.getId(), tdw.getType(), tdw.getDateUUID(), tdw.getJson());
+        DB.get(saveAsync(tdw.getId(), tdw.getType(), tdw.getDateUUID(), tdw.getPayload(), MAX_TTL));
+    }
+
+    /**
+     * Get the timestamp of the writes of the last point.
+     * <p/>
+     * This is the time of the point itself (in microseconds), so that an older point never overwrites a newer one,
+     * whatever the order they are written in.
+     *
+     * @param time Time of the point
+     * @return Write timestamp
+     */
+    static long lastTimestamp(UUID time) {
+        return UUIDs.unixTimestamp(time) * 1000 + (time.timestamp() % 10000) / 10;
+    }
+
+    /**
+     * Save the last point of a serie.
+     *
+     * @param context  Context to save it in
+     * @param id       Id of the time serie
+     * @param key      Type of the entry ("" for all the types)
+     * @param type     Type of the data (null if none)
+     * @param date     Date of data
+     * @param payload  Payload
+     * @param ttl      Time before expiration (in seconds)
+     * @return Future of the write
+     */
+    static ListenableFuture<ResultSet> saveLast(DBContext context, String id, String key, String type, UUID date, ByteBuffer payload, int ttl) {
+        return saveLast(context, id, key, type, date, payload, ttl, lastTimestamp(date));
+    }
+
+    private static ListenableFuture<ResultSet> saveLast(DBContext context, String id, String key, String type, UUID date, ByteBuffer payload, int ttl, long timestamp) {
+        getLastValues(context).put(id, key, new TimedData(id, type, date, null, payload));
+        return context.executeBatched(Arrays.asList(TABLE_TIMESERIES_LAST, id), REQ_INSERT_LAST, id, key, typeKey(type), date, payload, ttl, timestamp);
     }
 
-    private static void saveIndex(String id, String type, String date10) {
+    /**
+     * Save the last point of a serie in the entry of all the types and in the one of its type.
+     * <p/>
+     * Both entries are in the partition of the serie: they are written by a single batch, with or without the
+     * batcher.
+     *
+     * @param context Context to save it in
+     * @param id      Id of the time serie
+     * @param type    Type of the data (null if none)
+     * @param date    Date of data
+     * @param payload Payload
+     * @param ttl     Time before expiration (in seconds)
+     * @return Future of the write
+     */
+    private static ListenableFuture<ResultSet> saveLasts(DBContext context, String id, String type, UUID date, ByteBuffer payload, int ttl) {
         if (type == null) {
-            type = "";
+            return saveLast(context, id, "", null, date, payload, ttl);
         }
-        String key = date10 + type + id;
+        long timestamp = lastTimestamp(date);
+        LastValues lasts = getLastValues(context);
+        lasts.put(id, "", new TimedData(id, type, date, null, payload));
+        lasts.put(id, type, new TimedData(id, type, date, null, payload));
+        return context.getBackend().executeBatchAsync(
+                Arrays.asList(REQ_INSERT_LAST, REQ_INSERT_LAST),
+                Arrays.asList(new Object[]{id, "", type, date, payload, ttl, timestamp}, new Object[]{id, type, type, date, payload, ttl, timestamp}));
+    }
 
-        // We only save the index once (because it should only happen once per day per id/type)
-        if (!index.contains(key)) {
-            DB.execute(DB.prepare("INSERT INTO " + TABLE_TIMESERIES_INDEX + " ( id, type, date ) VALUES( ?, ?, ? );").bind(id, type, date10));
-            index.add(key);
-            if (index.size() > 100) {
-                index.clear();
+    /**
+     * Mark the last point of an entry as deleted.
+     * <p/>
+     * The entry isn't deleted but replaced by a row without data type at the timestamp of the deleted point: it only
+     * replaces the entries that were this point (or older), and {@link #getLast(String, String)} can read its
+     * timestamp to save the previous point above it (a tombstone would shadow it).
+     *
+     * <p/>
+     * The entries are in the partition of the serie: several ones are marked by a single batch.
+     *
+     * @param context Context
+     * @param id      Id of the time serie
+     * @param entries Time of the deleted point of each entry, by type of the entry ("" for all the types)
+     */
+    private static void deleteLast(DBContext context, String id, Map<String, UUID> entries) {
+        List<String> queries = new ArrayList<>(entries.size());
+        List<Object[]> values = new ArrayList<>(entries.size());
+        for (Map.Entry<String, UUID> me : entries.entrySet()) {
+            queries.add(REQ_INSERT_LAST_DELETED);
+            values.add(new Object[]{id, me.getKey(), null, me.getValue(), null, lastTimestamp(me.getValue())});
+        }
+        if (queries.size() == 1) {
+            context.execute(queries.get(0), values.get(0));
+        } else if (!queries.isEmpty()) {
+            DB.get(context.getBackend().executeBatchAsync(queries, values));
+        }
+    }
+
+    /**
+     * Forget the last points of a serie that were deleted.
+     *
+     * @param context Context
+     * @param id      Id of the time serie
+     * @param date10  Deleted day (null to only consider the given time)
+     * @param time    Time of a deleted point (null if none)
+     * @param type    Type of the deleted point
+     */
+    private static void deleteLast(DBContext context, String id, String date10, UUID time, String type) {
+        getLastValues(context).remove(id);
+        Map<String, UUID> entries = new LinkedHashMap<>();
+        if (time != null) {
+            entries.put("", time);
+            if (type != null) {
+                entries.put(type, time);
+            }
+        } else {
+            for (Row row : context.execute(REQ_SELECT_LASTS, id)) {
+                UUID last = row.getUUID(1);
+                if (row.getString(2) != null && dateToDate10(last).equals(date10)) {
+                    entries.put(row.getString(0), last);
+                }
+            }
+        }
+        deleteLast(context, id, entries);
+    }
+
+    /**
+     * Forget the last points of a serie that were deleted by a time range.
+     *
+     * @param context Context
+     * @param id      Id of the time serie
+     * @param type    Type of the deleted points (null for all the types)
+     * @param begin   Beginning of the deleted range (null for no limit)
+     * @param end     End of the deleted range (null for no limit)
+     */
+    static void deleteLasts(DBContext context, String id, String type, UUID begin, UUID end) {
+        getLastValues(context).remove(id);
+        Map<String, UUID> entries = new LinkedHashMap<>();
+        if (type == null) {
+            for (Row row : context.execute(REQ_SELECT_LASTS, id)) {
+                if (row.getString(2) != null && isBetween(row.getUUID(1), begin, end)) {
+                    entries.put(row.getString(0), row.getUUID(1));
+                }
+            }
+        } else {
+            // Only the entry of the type, and the one of all the types when its last point is of this type
+            for (String key : new String[]{type, ""}) {
+                Row row = context.execute(REQ_SELECT_LAST, id, key).one();
+                if (row != null && type.equals(row.getString(0)) && isBetween(row.getUUID(1), begin, end)) {
+                    entries.put(key, row.getUUID(1));
+                }
+            }
+        }
+        deleteLast(context, id, entries);
+    }
+
+    private static boolean isBetween(UUID time, UUID begin, UUID end) {
+        return (begin == null || MergeIterator.compareTime(time, begin) >= 0) && (end == null || MergeIterator.compareTime(time, end) <= 0);
+    }
+
+    /**
+     * Get the last point of a serie.
+     * <p/>
+     * This is a cache hit or a single row read: the last points are maintained by the saves. The series that were
+     * saved before the {@link #TABLE_TIMESERIES_LAST} table existed, or whose last point was deleted, are read from
+     * their data (and their last point is saved). After a delete, it is saved above the timestamp of the deleted point,
+     * so a point older than the deleted one but saved later than this read isn't seen.
+     *
+     * @param id   Identifier of the data
+     * @param type Type of data (null for all the types)
+     * @return Last point or null if there's none
+     */
+    public static TimedData getLast(String id, String type) {
+        DBContext context = getContext();
+        String key = typeKey(type);
+        LastValues cache = getLastValues(context);
+        LastValues.Entry entry = cache.get(id, key);
+        if (entry != null) {
+            return entry.getData();
+        }
+        TimedData td = null;
+        UUID deleted = null;
+        for (Row row : context.execute(REQ_SELECT_LAST, id, key)) {
+            String dataType = row.getString(0);
+            if (dataType == null) { // Deleted
+                deleted = row.getUUID(1);
+            } else {
+                td = new TimedData(id, dataType.isEmpty() ? null : dataType, row.getUUID(1), null, row.getBytes(2));
             }
         }
+        if (td == null) {
+            TSDataIterator iterator = new TSDataIterator(id, type, null, null, true);
+            try {
+                if (iterator.hasNext()) {
+                    td = iterator.next();
+                    long timestamp = lastTimestamp(td.getDateUUID());
+                    if (deleted != null) {
+                        timestamp = Math.max(timestamp, lastTimestamp(deleted) + 1);
+                    }
+                    saveLast(context, id, key, td.getType(), td.getDateUUID(), td.getPayload(), MAX_TTL, timestamp);
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+        cache.put(id, key, td);
+        return td;
+    }
+
+    /**
+     * Save the index of a day of a serie.
+     *
+     * @param context Context to save it in
+     * @param id      Id of the time serie
+     * @param type    Type of the data (null if none)
+     * @param date10  Day
+     * @return Future of the write or null if the index was already saved
+     */
+    static ListenableFuture<ResultSet> saveIndex(DBContext context, final String id, String type, final String date10) {
+        final String typeKey = typeKey(type);
+        final IndexCache cache = getIndexCache(context);
+
+        // We only save the index once (because it should only happen once per day per id/type)
+        if (cache.add(id, typeKey, date10)) {
+            final PeriodCache periods = getPeriodCache(context);
+            periods.add(id, typeKey, date10);
+            ListenableFuture<ResultSet> future = context.executeBatched(Arrays.asList(TABLE_TIMESERIES_INDEX, id, typeKey), REQ_INSERT_INDEX, id, typeKey, date10);
+            Futures.addCallback(future, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rs) {
+                    // The days might have been read before it was written
+                    periods.add(id, typeKey, date10);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    cache.remove(id, typeKey, date10);
+                }
+            });
+            return future;
+        }
+        return null;
     }
 
     public static void save(String id, String type, UUID date, String data) {
@@ -153,17 +682,161 @@ public class TimeSerie {
      * change in the future (because new data might come) but still need to be saved temporarily.
      */
     public static void save(String id, String type, UUID date, String data, int ttl) {
-        String date10 = dateToDate10(date);
-        PreparedStatement reqInsert = DB.prepare("INSERT INTO " + TABLE_TIMESERIES + " ( id, date, time, type, data ) VALUES ( ?, ?, ?, ?, ? ) USING TTL ?;");
+        DB.get(saveAsync(id, type, date, data, ttl));
+    }
+
+    /**
+     * Get the type stored in the {@link #TABLE_TIMESERIES_V3} table.
+     *
+     * @param type Type of the data (null if none)
+     * @return Stored type
+     */
+    static String typeKey(String type) {
+        return type != null ? type : "";
+    }
+
+    /**
+     * Get the types of the points of a day of a serie.
+     *
+     * @param context Context
+     * @param id      Id of the time serie
+     * @param date10  Day
+     * @return Stored types ("" for the untyped points)
+     */
+    static List<String> getTypes(DBContext context, String id, String date10) {
+        return DB.get(getTypesAsync(context, id, date10));
+    }
+
+    /**
+     * Get the types of the points of a day of a serie, without blocking.
+     * <p/>
+     * The type is the first clustering column: each type is found by a single row read after the previous one, the
+     * points themselves aren't read. The next query is issued by the {@link #queryExecutor()} once the previous one is
+     * done.
+     *
+     * @param context Context
+     * @param id      Id of the time serie
+     * @param date10  Day
+     * @return Future of the stored types ("" for the untyped points)
+     */
+    static ListenableFuture<List<String>> getTypesAsync(DBContext context, String id, String date10) {
+        return listTypes(context, id, date10, context.executeAsync(REQ_SELECT_FIRST_TYPE, id, date10), new ArrayList<String>());
+    }
+
+    private static ListenableFuture<List<String>> listTypes(final DBContext context, final String id, final String date10, ListenableFuture<ResultSet> future, final List<String> types) {
+        return Futures.transform(future, new AsyncFunction<ResultSet, List<String>>() {
+            @Override
+            public ListenableFuture<List<String>> apply(ResultSet rs) {
+                Row row = rs.one();
+                if (row == null) {
+                    return Futures.immediateFuture(types);
+                }
+                String type = row.getString(0);
+                types.add(type);
+                return listTypes(context, id, date10, context.executeAsync(REQ_SELECT_NEXT_TYPE, id, date10, type), types);
+            }
+        }, queryExecutor());
+    }
+
+    /**
+     * Get the executor issuing the queries that depend on the result of other queries.
+     * <p/>
+     * The queries can block on the concurrency limit of the context, they aren't issued from the threads of the
+     * driver.
+     *
+     * @return Executor
+     */
+    static synchronized Executor queryExecutor() {
+        if (queryExecutor == null) {
+            final AtomicInteger nb = new AtomicInteger();
+            queryExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "db-timeseries-" + nb.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return queryExecutor;
+    }
+
+    /**
+     * Save data within a time serie asynchronously.
+     * <p/>
+     * The writes go through the batcher of {@link DB}, when it is enabled the points of the same serie and day are
+     * written in a single batch. Until the migration is finished, the point is written in the previous layout too.
+     *
+     * @param id   Id of the time serie.
+     * @param type Type of the data (sub-type of the id)
+     * @param date Date of data
+     * @param data Data
+     * @param ttl  Time before expiration (in seconds)
+     * @return Future of the writes
+     */
+    public static ListenableFuture<Void> saveAsync(String id, String type, UUID date, String data, int ttl) {
+        return saveAsync(id, type, date, data != null ? Payloads.text(data) : null, ttl);
+    }
 
-        // We insert the data + its index
-        DB.execute(reqInsert.bind(id, date10, date, type, data, ttl));
-        saveIndex(id, null, date10);
+    private static ListenableFuture<Void> saveAsync(String id, String type, UUID date, ByteBuffer payload, int ttl) {
+        DBContext context = getContext();
+        String date10 = dateToDate10(date);
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>(5);
 
-        // And we do it again if we have a type
+        // We insert the data + its indexes (the one of the type allows to skip the days without this type)
+        futures.add(context.executeBatched(Arrays.asList(TABLE_TIMESERIES_V3, id, date10), REQ_INSERT_V3, id, date10, typeKey(type), date, payload, ttl));
+        if (hasLegacyData(context)) {
+            // The other clients only read the previous layout
+            String data = payload != null ? Payloads.toJson(payload) : null;
+            futures.add(context.executeBatched(Arrays.asList(TABLE_TIMESERIES, id, date10), REQ_INSERT, id, date10, date, type, data, ttl));
+            if (type != null) {
+                futures.add(context.executeBatched(Arrays.asList(TABLE_TIMESERIES, id + "!" + type, date10), REQ_INSERT, id + "!" + type, date10, date, null, data, ttl));
+            }
+        }
+        addIfNotNull(futures, saveIndex(context, id, null, date10));
         if (type != null) {
-            DB.execute(reqInsert.bind(id + "!" + type, date10, date, null, data, ttl));
-            saveIndex(id, type, date10);
+            addIfNotNull(futures, saveIndex(context, id, type, date10));
+        }
+        futures.add(saveLasts(context, id, type, date, payload, ttl));
+        rollup(id, type, date, payload, ttl);
+        Subscriptions.publish(id, type, date, payload);
+
+        return Futures.transform(Futures.allAsList(futures), new Function<List<ResultSet>, Void>() {
+            @Override
+            public Void apply(List<ResultSet> input) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Save a timed data asynchronously
+     *
+     * @param td Timed data to save
+     * @return Future of the writes
+     */
+    public static ListenableFuture<Void> saveAsync(TimedData td) {
+        return saveAsync(td.getId(), td.getType(), td.getDateUUID(), td.getPayload(), MAX_TTL);
+    }
+
+    /**
+     * Save some timed data.
+     * <p/>
+     * The points are grouped by serie and day and written in parallel with a {@link TimeSerieWriter}. This blocks
+     * only when too many batches are in flight.
+     *
+     * @param points Timed data to save
+     * @return Future of the result of the writes, with the points that couldn't be written
+     */
+    public static ListenableFuture<TimeSerieWriter.Result> saveAll(Collection<TimedData> points) {
+        TimeSerieWriter writer = new TimeSerieWriter();
+        writer.addAll(points);
+        return writer.close();
+    }
+
+    private static void addIfNotNull(List<ListenableFuture<ResultSet>> futures, ListenableFuture<ResultSet> future) {
+        if (future != null) {
+            futures.add(future);
         }
     }
 
@@ -175,9 +848,14 @@ public class TimeSerie {
      * @param type Type of the data
      */
     public static void delete(String date, String id, String type) {
-        DB.execute(DB.prepare("DELETE FROM " + TABLE_TIMESERIES + " WHERE id=? AND date=?;").bind(id, date));
-        if (type != null) {
-            DB.execute(DB.prepare("DELETE FROM " + TABLE_TIMESERIES + " WHERE id=? AND date=?;").bind(id + "!" + type, date));
+        DBContext context = getContext();
+        context.execute(REQ_DELETE_PERIOD_V3, id, date);
+        deleteLast(context, id, date, null, null);
+        if (hasLegacyData(context)) {
+            context.execute(REQ_DELETE_PERIOD, id, date);
+            if (type != null) {
+                context.execute(REQ_DELETE_PERIOD, id + "!" + type, date);
+            }
         }
     }
 
@@ -189,10 +867,15 @@ public class TimeSerie {
      * @param type Type of the data
      */
     public static void delete(String id, String type, UUID date) {
+        DBContext context = getContext();
         String date10 = dateToDate10(date);
-        DB.execute(DB.prepare("DELETE FROM " + TABLE_TIMESERIES + " WHERE id=? AND date=? AND time=?;").bind(id, date10, date));
-        if (type != null) {
-            DB.execute(DB.prepare("DELETE FROM " + TABLE_TIMESERIES + " WHERE id=? AND date=? AND time=?;").bind(id + "!" + type, date10, date));
+        context.execute(REQ_DELETE_V3, id, date10, typeKey(type), date);
+        deleteLast(context, id, null, date, type);
+        if (hasLegacyData(context)) {
+            context.execute(REQ_DELETE, id, date10, date);
+            if (type != null) {
+                context.execute(REQ_DELETE, id + "!" + type, date10, date);
+            }
         }
     }
 
@@ -238,18 +921,30 @@ public class TimeSerie {
     /**
      * Delete events from a date to a date with correct (ms) precision.
      * <p/>
-     * The type will be used for the deletion even if not issued. This is
-     * because every event is fetched to be deleted.
+     * The points aren't read: the days are deleted in parallel, the ones within the range as a whole and the first and
+     * last ones by time ranges (see {@link TimeSerieDeletion}).
      *
      * @param id       TS identifier
-     * @param type     TS event type
-     * @param fromDate Beginning date
-     * @param toDate   Ending date
+     * @param type     TS event type (null for all the types)
+     * @param fromDate Beginning date (null for no limit)
+     * @param toDate   Ending date, included (null for no limit)
      */
     public static void delete(String id, String type, Date fromDate, Date toDate) {
-        for (TimedData td : getData(id, type, fromDate, toDate, true)) {
-            delete(td);
-        }
+        deleteRange(id, type, fromDate, toDate);
+    }
+
+    /**
+     * Delete events from a date to a date with correct (ms) precision and estimate their number.
+     *
+     * @param id       TS identifier
+     * @param type     TS event type (null for all the types)
+     * @param fromDate Beginning date (null for no limit)
+     * @param toDate   Ending date, included (null for no limit)
+     * @return Estimated number of deleted points (see {@link TimeSerieDeletion})
+     * @see #delete(String, String, Date, Date)
+     */
+    public static long deleteRange(String id, String type, Date fromDate, Date toDate) {
+        return new TimeSerieDeletion(getContext(), id, type, fromDate, toDate).execute();
     }
 
     /**
@@ -347,17 +1042,74 @@ public class TimeSerie {
         return new TSDataIterable(id, type, dateBegin, dateEnd, reverse);
     }
 
+    /**
+     * Get the data of many series in a single time ordered listing.
+     * <p/>
+     * The series are started concurrently and merged. The iterators should be closed (see {@link TSMultiIterator}) when
+     * they aren't consumed until their end.
+     *
+     * @param ids       Identifiers of the data
+     * @param types     Types of data (null for all the types)
+     * @param dateBegin Beginning date
+     * @param dateEnd   Ending date
+     * @param reverse   Order of listing
+     * @param limit     Maximum number of points (0 for no limit)
+     * @return TimedData iterable
+     */
+    public static Iterable<TimedData> getData(Collection<String> ids, Collection<String> types, Date dateBegin, Date dateEnd, boolean reverse, int limit) {
+        return new TSMultiIterable(ids, types, dateBegin != null ? UUIDs.startOf(dateBegin.getTime()) : null, dateEnd != null ? UUIDs.endOf(dateEnd.getTime()) : null, reverse, limit);
+    }
+
     /**
      * Get a precise data.
+     * <p/>
+     * The type isn't known: the point is read in each type of its day (see {@link #getData(String, String, UUID)}).
      *
      * @param id   Identifier
      * @param time Date
      * @return data or null if not found
      */
     public static TimedData getData(String id, UUID time) {
-        ResultSet result = DB.execute(DB.prepare("SELECT id, type, time, data FROM " + TABLE_TIMESERIES + " WHERE id = ? AND date = ? AND time = ?;").bind(id, dateToDate10(time), time));
-        for (Row row : result) {
-            return new TimedData(row.getString(0), row.getString(1), row.getUUID(2), row.getString(3));
+        DBContext context = getContext();
+        String date10 = dateToDate10(time);
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (String type : getTypes(context, id, date10)) {
+            futures.add(context.executeAsync(REQ_SELECT_V3, id, date10, type, time));
+        }
+        for (ListenableFuture<ResultSet> future : futures) {
+            Row row = DB.get(future).one();
+            if (row != null) {
+                String type = row.getString(0);
+                return new TimedData(id, type.isEmpty() ? null : type, time, row.getString(2), row.getBytes(3));
+            }
+        }
+        return getLegacyData(context, id, date10, time);
+    }
+
+    /**
+     * Get a precise data of a type.
+     *
+     * @param id   Identifier
+     * @param type Type of the data (null if none)
+     * @param time Date
+     * @return data or null if not found
+     */
+    public static TimedData getData(String id, String type, UUID time) {
+        DBContext context = getContext();
+        String date10 = dateToDate10(time);
+        Row row = context.execute(REQ_SELECT_V3, id, date10, typeKey(type), time).one();
+        if (row != null) {
+            return new TimedData(id, type, time, row.getString(2), row.getBytes(3));
+        }
+        TimedData td = getLegacyData(context, id, date10, time);
+        return td != null && (type == null ? td.getType() == null : type.equals(td.getType())) ? td : null;
+    }
+
+    private static TimedData getLegacyData(DBContext context, String id, String date10, UUID time) {
+        if (hasLegacyData(context)) {
+            for (Row row : context.execute(REQ_SELECT, id, date10, time)) {
+                return new TimedData(row.getString(0), row.getString(1), row.getUUID(2), row.getString(3));
+            }
         }
         return null;
     }
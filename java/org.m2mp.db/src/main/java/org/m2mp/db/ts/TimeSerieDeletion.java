@@ -0,0 +1,409 @@
+package org.m2mp.db.ts;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
+
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES;
+import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES_INDEX;
+import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES_V3;
+
+/**
+ * Deletion of a time range of a serie, without reading its points.
+ * <p/>
+ * The days listed by the index are deleted in parallel, each by a single statement: a day within the range is deleted
+ * as a whole (its partition, or the rows of the type), the first and last days by a time range of each type (when no
+ * type is given, the types of all the days are looked up concurrently, see
+ * {@link TimeSerie#getTypesAsync(DBContext, String, String)}). The index entries of the days deleted as a whole are
+ * removed (the entry of the type, or the entries of the serie and of all its types when there's no type), except for
+ * the last days that other processes might still be writing.
+ * <p/>
+ * Until the data is migrated, the previous layout is deleted the same way: by day or time range for the rows of the
+ * type (<code>id!type</code>), or for the rows of the serie (<code>id</code>) and of each of the types they contain
+ * when there's no type. The rows of the serie also contain the other types: for a type, its points are read there and
+ * deleted by partition batches.
+ * <p/>
+ * The returned number of deleted points is only an estimate (of the current layout): the newest points of each type of a
+ * range are read just before it is deleted (at most {@link #SAMPLE_SIZE}), and when there are more, the count is extrapolated over the
+ * rest of the range.
+ * <p/>
+ * Deleting a clustering range requires Cassandra 3.0 or later. When it isn't supported, the keys of the range are read
+ * and the points are deleted by partition batches.
+ */
+final class TimeSerieDeletion {
+
+    private static final long DAY = 24 * 3600 * 1000L;
+    private static final int BATCH_SIZE = 100;
+    /**
+     * Maximum number of points read to estimate the number of points of a type in a range.
+     */
+    static final int SAMPLE_SIZE = 100;
+    private static final String WHERE_DAY = " WHERE id = ? AND date = ?", WHERE_TYPE = WHERE_DAY + " AND type = ?", WHERE_RANGE = WHERE_TYPE + " AND time >= ? AND time <= ?";
+    private static final String REQ_SAMPLE_TYPE = "SELECT time FROM " + TABLE_TIMESERIES_V3 + WHERE_TYPE + " LIMIT ?;";
+    private static final String REQ_SAMPLE_RANGE = "SELECT time FROM " + TABLE_TIMESERIES_V3 + WHERE_RANGE + " LIMIT ?;";
+    private static final String REQ_SELECT_KEYS = "SELECT type, time FROM " + TABLE_TIMESERIES_V3 + WHERE_DAY + ";";
+    private static final String REQ_SELECT_TYPE_KEYS = "SELECT type, time FROM " + TABLE_TIMESERIES_V3 + WHERE_TYPE + ";";
+    private static final String REQ_SELECT_RANGE_KEYS = "SELECT type, time FROM " + TABLE_TIMESERIES_V3 + WHERE_RANGE + ";";
+    private static final String REQ_DELETE_DAY = "DELETE FROM " + TABLE_TIMESERIES_V3 + WHERE_DAY + ";";
+    private static final String REQ_DELETE_TYPE = "DELETE FROM " + TABLE_TIMESERIES_V3 + WHERE_TYPE + ";";
+    private static final String REQ_DELETE_RANGE = "DELETE FROM " + TABLE_TIMESERIES_V3 + WHERE_RANGE + ";";
+    private static final String REQ_DELETE_ROW = "DELETE FROM " + TABLE_TIMESERIES_V3 + WHERE_TYPE + " AND time = ?;";
+    private static final String REQ_DELETE_INDEX = "DELETE FROM " + TABLE_TIMESERIES_INDEX + " WHERE id = ? AND type = ? AND date = ?;";
+    private static final String WHERE_LEGACY_RANGE = WHERE_DAY + " AND time >= ? AND time <= ?";
+    private static final String REQ_SELECT_LEGACY_KEYS = "SELECT type, time FROM " + TABLE_TIMESERIES + WHERE_DAY + ";";
+    private static final String REQ_SELECT_LEGACY_RANGE_KEYS = "SELECT type, time FROM " + TABLE_TIMESERIES + WHERE_LEGACY_RANGE + ";";
+    private static final String REQ_DELETE_LEGACY_RANGE = "DELETE FROM " + TABLE_TIMESERIES + WHERE_LEGACY_RANGE + ";";
+    /**
+     * Contexts whose cluster can't delete clustering ranges.
+     */
+    private static final Set<DBContext> withoutRangeDeletes = Collections.newSetFromMap(new ConcurrentHashMap<DBContext, Boolean>());
+
+    static {
+        DB.registerQueries(REQ_SAMPLE_TYPE, REQ_SAMPLE_RANGE, REQ_SELECT_KEYS, REQ_SELECT_TYPE_KEYS, REQ_SELECT_RANGE_KEYS,
+                REQ_DELETE_DAY, REQ_DELETE_TYPE, REQ_DELETE_RANGE, REQ_DELETE_ROW, REQ_DELETE_INDEX,
+                REQ_SELECT_LEGACY_KEYS, REQ_SELECT_LEGACY_RANGE_KEYS, REQ_DELETE_LEGACY_RANGE);
+    }
+
+    /**
+     * Rows deleted by a statement.
+     */
+    private static class Range {
+
+        final String day;
+        final String type; // Null for the whole day
+        final UUID begin, end; // Null for the whole type
+        final List<String> types = new ArrayList<>(); // Types of the whole day
+        final List<ListenableFuture<ResultSet>> samples = new ArrayList<>();
+
+        Range(String day, String type, UUID begin, UUID end) {
+            this.day = day;
+            this.type = type;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        String query() {
+            return type == null ? REQ_DELETE_DAY : begin == null ? REQ_DELETE_TYPE : REQ_DELETE_RANGE;
+        }
+
+        String keysQuery() {
+            return type == null ? REQ_SELECT_KEYS : begin == null ? REQ_SELECT_TYPE_KEYS : REQ_SELECT_RANGE_KEYS;
+        }
+
+        Object[] values(String id) {
+            return type == null ? new Object[]{id, day} : begin == null ? new Object[]{id, day, type} : new Object[]{id, day, type, begin, end};
+        }
+    }
+
+    /**
+     * Rows of the previous layout deleted by a statement.
+     */
+    private static class LegacyRange {
+
+        final String key, day;
+        final UUID begin, end; // Null for the whole day
+
+        LegacyRange(String key, String day, UUID begin, UUID end) {
+            this.key = key;
+            this.day = day;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        String query() {
+            return begin == null ? TimeSerie.REQ_DELETE_PERIOD : REQ_DELETE_LEGACY_RANGE;
+        }
+
+        String keysQuery() {
+            return begin == null ? REQ_SELECT_LEGACY_KEYS : REQ_SELECT_LEGACY_RANGE_KEYS;
+        }
+
+        Object[] values() {
+            return begin == null ? new Object[]{key, day} : new Object[]{key, day, begin, end};
+        }
+    }
+
+    private final DBContext context;
+    private final String id, type;
+    private final Date from, to;
+
+    /**
+     * Constructor.
+     *
+     * @param context Context of the time series
+     * @param id      Id of the serie
+     * @param type    Type of the data (null for all the types)
+     * @param from    Beginning date (null for no limit)
+     * @param to      Ending date, included (null for no limit)
+     */
+    TimeSerieDeletion(DBContext context, String id, String type, Date from, Date to) {
+        this.context = context;
+        this.id = id;
+        this.type = type;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Delete the points.
+     *
+     * @return Estimated number of deleted points
+     */
+    long execute() {
+        List<Range> ranges = new ArrayList<>();
+        Map<Range, ListenableFuture<List<String>>> untyped = new LinkedHashMap<>();
+        boolean legacy = TimeSerie.hasLegacyData(context);
+        List<LegacyRange> legacyRanges = new ArrayList<>();
+        Map<LegacyRange, ListenableFuture<ResultSet>> legacyKeys = new LinkedHashMap<>();
+        for (String day : new TSPeriodIterable(id, type, from, to, false)) {
+            long start = dayStart(day), end = start + DAY - 1;
+            long begin = from != null ? Math.max(from.getTime(), start) : start, last = to != null ? Math.min(to.getTime(), end) : end;
+            if (begin > last) {
+                continue;
+            }
+            Range range;
+            if (begin == start && last == end) {
+                range = new Range(day, type, null, null);
+            } else {
+                range = new Range(day, TimeSerie.typeKey(type), UUIDs.startOf(begin), UUIDs.endOf(last));
+            }
+            if (type == null) {
+                // The types of the day are needed to estimate it, to delete its time range or to clean their index
+                untyped.put(range, TimeSerie.getTypesAsync(context, id, day));
+            } else {
+                ranges.add(range);
+            }
+            if (legacy) {
+                // The rows of the serie give the types of the day (without type) or the points of the type
+                LegacyRange serie = new LegacyRange(id, day, range.begin, range.end);
+                legacyKeys.put(serie, context.executeAsync(serie.keysQuery(), serie.values()));
+                if (type != null) {
+                    legacyRanges.add(new LegacyRange(id + "!" + type, day, range.begin, range.end));
+                }
+            }
+        }
+        for (Map.Entry<Range, ListenableFuture<List<String>>> me : untyped.entrySet()) {
+            Range range = me.getKey();
+            List<String> types = DB.get(me.getValue());
+            if (range.begin == null) {
+                range.types.addAll(types);
+                ranges.add(range);
+            } else {
+                for (String t : types) {
+                    ranges.add(new Range(range.day, t, range.begin, range.end));
+                }
+            }
+        }
+
+        // The ranges are all sampled concurrently, then each one is deleted once its sample is read
+        for (Range range : ranges) {
+            if (range.type == null) {
+                for (String t : range.types) {
+                    range.samples.add(context.executeAsync(REQ_SAMPLE_TYPE, id, range.day, t, SAMPLE_SIZE));
+                }
+            } else if (range.begin == null) {
+                range.samples.add(context.executeAsync(REQ_SAMPLE_TYPE, id, range.day, range.type, SAMPLE_SIZE));
+            } else {
+                range.samples.add(context.executeAsync(REQ_SAMPLE_RANGE, id, range.day, range.type, range.begin, range.end, SAMPLE_SIZE));
+            }
+        }
+        long nb = 0;
+        Map<Range, ListenableFuture<ResultSet>> deletes = new LinkedHashMap<>();
+        for (Range range : ranges) {
+            long begin = range.begin != null ? UUIDs.unixTimestamp(range.begin) : dayStart(range.day);
+            for (ListenableFuture<ResultSet> sample : range.samples) {
+                nb += estimate(DB.get(sample), begin);
+            }
+            deletes.put(range, delete(range));
+        }
+        List<ListenableFuture<ResultSet>> legacyRows = new ArrayList<>();
+        for (Map.Entry<LegacyRange, ListenableFuture<ResultSet>> me : legacyKeys.entrySet()) {
+            LegacyRange serie = me.getKey();
+            if (type == null) {
+                Set<String> types = new LinkedHashSet<>();
+                for (Row row : DB.get(me.getValue())) {
+                    if (row.getString(0) != null) {
+                        types.add(row.getString(0));
+                    }
+                }
+                legacyRanges.add(serie);
+                for (String t : types) {
+                    legacyRanges.add(new LegacyRange(id + "!" + t, serie.day, serie.begin, serie.end));
+                }
+            } else {
+                List<Object[]> values = new ArrayList<>();
+                for (Row row : DB.get(me.getValue())) {
+                    if (type.equals(row.getString(0))) {
+                        values.add(new Object[]{id, serie.day, row.getUUID(1)});
+                    }
+                }
+                legacyRows.add(deleteBatches(TimeSerie.REQ_DELETE, values));
+            }
+        }
+        Map<LegacyRange, ListenableFuture<ResultSet>> legacyDeletes = new LinkedHashMap<>();
+        for (LegacyRange range : legacyRanges) {
+            legacyDeletes.put(range, delete(range));
+        }
+
+        for (Map.Entry<Range, ListenableFuture<ResultSet>> me : deletes.entrySet()) {
+            try {
+                DB.get(me.getValue());
+            } catch (InvalidQueryException ex) {
+                if (me.getKey().type == null) {
+                    throw ex;
+                }
+                withoutRangeDeletes.add(context);
+                DB.get(deleteRows(me.getKey()));
+            }
+        }
+        for (Map.Entry<LegacyRange, ListenableFuture<ResultSet>> me : legacyDeletes.entrySet()) {
+            try {
+                DB.get(me.getValue());
+            } catch (InvalidQueryException ex) {
+                if (me.getKey().begin == null) {
+                    throw ex;
+                }
+                withoutRangeDeletes.add(context);
+                DB.get(deleteRows(me.getKey()));
+            }
+        }
+        DB.get(Futures.allAsList(legacyRows));
+
+        cleanIndex(ranges);
+        TimeSerie.deleteLasts(context, id, type, from != null ? UUIDs.startOf(from.getTime()) : null, to != null ? UUIDs.endOf(to.getTime()) : null);
+        return nb;
+    }
+
+    /**
+     * Estimate the number of points of a type in a range.
+     * <p/>
+     * The points are assumed to be evenly spread between the beginning of the range and the newest ones.
+     *
+     * @param sample Times of the newest points of the range (at most {@link #SAMPLE_SIZE})
+     * @param begin  Beginning of the range (in ms)
+     * @return Estimated number of points
+     */
+    private static long estimate(ResultSet sample, long begin) {
+        List<Row> rows = sample.all();
+        if (rows.size() < SAMPLE_SIZE) {
+            return rows.size();
+        }
+        long newest = UUIDs.unixTimestamp(rows.get(0).getUUID(0)), oldest = UUIDs.unixTimestamp(rows.get(rows.size() - 1).getUUID(0));
+        return rows.size() + Math.max(0, oldest - begin) * (rows.size() - 1) / Math.max(1, newest - oldest);
+    }
+
+    private ListenableFuture<ResultSet> delete(Range range) {
+        if (range.type != null && withoutRangeDeletes.contains(context)) {
+            return deleteRows(range);
+        }
+        try {
+            return context.executeAsync(range.query(), range.values(id));
+        } catch (RuntimeException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
+    private ListenableFuture<ResultSet> delete(LegacyRange range) {
+        if (range.begin != null && withoutRangeDeletes.contains(context)) {
+            return deleteRows(range);
+        }
+        try {
+            return context.executeAsync(range.query(), range.values());
+        } catch (RuntimeException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
+    /**
+     * Delete the points of a range one by one (when the clustering ranges can't be deleted).
+     *
+     * @param range Range
+     * @return Future of the deletions
+     */
+    private ListenableFuture<ResultSet> deleteRows(Range range) {
+        List<Object[]> values = new ArrayList<>();
+        for (Row row : DB.get(context.executeAsync(range.keysQuery(), range.values(id)))) {
+            values.add(new Object[]{id, range.day, row.getString(0), row.getUUID(1)});
+        }
+        return deleteBatches(REQ_DELETE_ROW, values);
+    }
+
+    /**
+     * Delete the points of a range of the previous layout one by one (when the clustering ranges can't be deleted).
+     *
+     * @param range Range
+     * @return Future of the deletions
+     */
+    private ListenableFuture<ResultSet> deleteRows(LegacyRange range) {
+        List<Object[]> values = new ArrayList<>();
+        for (Row row : DB.get(context.executeAsync(range.keysQuery(), range.values()))) {
+            values.add(new Object[]{range.key, range.day, row.getUUID(1)});
+        }
+        return deleteBatches(TimeSerie.REQ_DELETE, values);
+    }
+
+    /**
+     * Delete some points by batches of {@link #BATCH_SIZE}.
+     *
+     * @param query  Deletion of a point
+     * @param values Values of the query for each point (all in the same partition)
+     * @return Future of the deletions
+     */
+    private ListenableFuture<ResultSet> deleteBatches(String query, List<Object[]> values) {
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (int i = 0; i < values.size(); i += BATCH_SIZE) {
+            List<Object[]> batch = values.subList(i, Math.min(i + BATCH_SIZE, values.size()));
+            futures.add(context.getBackend().executeBatchAsync(Collections.nCopies(batch.size(), query), batch));
+        }
+        return Futures.transform(Futures.allAsList(futures), new Function<List<ResultSet>, ResultSet>() {
+            @Override
+            public ResultSet apply(List<ResultSet> input) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Remove the index entries of the days deleted as a whole.
+     *
+     * @param ranges Deleted ranges
+     */
+    private void cleanIndex(List<Range> ranges) {
+        // The processes that write the last days wouldn't write their index again
+        String current = TimeSerie.DATE_FORMAT.format(System.currentTimeMillis() - DAY);
+        IndexCache cache = TimeSerie.getIndexCache(context);
+        PeriodCache periods = TimeSerie.getPeriodCache(context);
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (Range range : ranges) {
+            if (range.begin != null || range.day.compareTo(current) >= 0) {
+                continue;
+            }
+            Set<String> keys = new LinkedHashSet<>(range.types); // The untyped points have no entry of their own
+            keys.add(TimeSerie.typeKey(range.type));
+            for (String key : keys) {
+                cache.remove(id, key, range.day);
+                periods.remove(id, key, range.day);
+                futures.add(context.executeAsync(REQ_DELETE_INDEX, id, key, range.day));
+            }
+        }
+        DB.get(Futures.allAsList(futures));
+    }
+
+    private static long dayStart(String day) {
+        try {
+            return TimeSerie.DATE_FORMAT.parse(day).getTime();
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException("Invalid day " + day, ex);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.m2mp.db.ts;
+
+/**
+ * Listener of the points saved in the time series.
+ *
+ * @see Subscription
+ */
+public interface TimeSerieListener {
+
+    /**
+     * Called for each point matching the subscription.
+     *
+     * @param td Saved point
+     */
+    void onData(TimedData td);
+}
@@ -0,0 +1,140 @@
+package org.m2mp.db.ts;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.m2mp.db.DBContext;
+import org.m2mp.db.PrefetchingIterator;
+
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES;
+import static org.m2mp.db.ts.TimeSerie.TABLE_TIMESERIES_V3;
+
+/**
+ * Migration of the time series to the {@link TimeSerie#TABLE_TIMESERIES_V3} table.
+ * <p/>
+ * The points of the {@link TimeSerie#TABLE_TIMESERIES} table are copied with their original TTL and write time, so a
+ * point that was written again (or deleted) in the new table in the meantime isn't overwritten. The copies of the
+ * typed points (rows of the <code>id!type</code> series without type) are skipped.
+ * <p/>
+ * It can be run at any time: until the migration is finished, the java processes write the points in both tables
+ * and read the previous table as well. It can be run again safely if it was interrupted.
+ * <p/>
+ * The other clients (Go and Python) only use the previous table: {@link #finish()} has to be called once they all
+ * read and write the new table, only then the previous table stops being written and read.
+ * <pre>
+ * if (!TimeSerieMigration.isDone()) {
+ *     TimeSerieMigration migration = new TimeSerieMigration();
+ *     migration.run();
+ *     // Once no client uses the previous table
+ *     migration.finish();
+ * }
+ * </pre>
+ */
+public class TimeSerieMigration {
+
+    private static final String REQ_SCAN = "SELECT id, date, time, type, data, TTL(data), WRITETIME(data) FROM " + TABLE_TIMESERIES + ";";
+    private static final String REQ_COPY = "INSERT INTO " + TABLE_TIMESERIES_V3 + " ( id, date, type, time, data ) VALUES ( ?, ?, ?, ?, ? ) USING TTL ? AND TIMESTAMP ?;";
+
+    private final DBContext context;
+    private final int maxInFlight;
+    private final AtomicLong copied = new AtomicLong(), skipped = new AtomicLong();
+
+    public TimeSerieMigration() {
+        this(TimeSerie.getContext(), 64);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param context     Context of the time series
+     * @param maxInFlight Maximum number of writes in flight
+     */
+    public TimeSerieMigration(DBContext context, int maxInFlight) {
+        this.context = context;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Check if the time series of the current context were migrated.
+     *
+     * @return true if the previous table isn't written and read anymore
+     */
+    public static boolean isDone() {
+        return !TimeSerie.hasLegacyData(TimeSerie.getContext());
+    }
+
+    /**
+     * Get the number of points copied.
+     *
+     * @return Number of points
+     */
+    public long getNbCopied() {
+        return copied.get();
+    }
+
+    /**
+     * Get the number of rows skipped (copies of the typed points).
+     *
+     * @return Number of rows
+     */
+    public long getNbSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Copy all the points.
+     */
+    public void run() {
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        ResultSet rs = context.execute(REQ_SCAN);
+        Iterator<Row> rows = new PrefetchingIterator(rs, context, REQ_SCAN);
+        while (rows.hasNext() && error.get() == null) {
+            Row row = rows.next();
+            String id = row.getString(0), type = row.getString(3);
+            if (type == null && id.indexOf('!') != -1) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            int ttl = row.isNull(5) ? 0 : row.getInt(5);
+            inFlight.acquireUninterruptibly();
+            Futures.addCallback(context.executeAsync(REQ_COPY, id, row.getString(1), TimeSerie.typeKey(type), row.getUUID(2), row.getString(4), ttl, row.getLong(6)), new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet result) {
+                    copied.incrementAndGet();
+                    inFlight.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    error.compareAndSet(null, t);
+                    inFlight.release();
+                }
+            });
+        }
+
+        // We wait for all the writes
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        if (error.get() != null) {
+            throw Throwables.propagate(error.get());
+        }
+    }
+
+    /**
+     * Stop writing and reading the previous table.
+     * <p/>
+     * The points written in it from now on are lost: this must only be called once the points were copied and no
+     * client (of any language) writes or reads it anymore.
+     */
+    public void finish() {
+        TimeSerie.setLegacyData(context, false);
+    }
+}
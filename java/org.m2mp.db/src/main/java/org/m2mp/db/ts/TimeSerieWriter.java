@@ -0,0 +1,298 @@
+package org.m2mp.db.ts;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.m2mp.db.DBContext;
+import org.m2mp.db.backend.Backend;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk time series writer.
+ * <p/>
+ * Points are grouped by partition (serie and day, in each layout that is written): each group is written as one
+ * unlogged batch, and the index of each serie/type/day and the last point of each serie/type are written only once.
+ * The number of batches in flight is bounded, {@link #add(TimedData)} blocks when it is reached.
+ * <p/>
+ * It can be used as a streaming sink: points are buffered until a partition is full or too many points are
+ * waiting, and {@link #close()} sends what is left and returns the result of all the writes.
+ * <pre>
+ * TimeSerieWriter writer = new TimeSerieWriter();
+ * for (TimedData td : points) {
+ *     writer.add(td);
+ * }
+ * TimeSerieWriter.Result result = DB.get(writer.close());
+ * </pre>
+ * This class isn't thread-safe.
+ */
+public class TimeSerieWriter {
+
+    /**
+     * Result of the writes.
+     */
+    public static class Result {
+
+        private final int nbPoints;
+        private final Map<TimedData, Throwable> failures;
+
+        Result(int nbPoints, Map<TimedData, Throwable> failures) {
+            this.nbPoints = nbPoints;
+            this.failures = failures;
+        }
+
+        /**
+         * Get the number of points that were written.
+         *
+         * @return Number of points
+         */
+        public int getNbSaved() {
+            return nbPoints - failures.size();
+        }
+
+        /**
+         * Get the points that couldn't be written.
+         *
+         * @return Points and the cause of their failure
+         */
+        public Map<TimedData, Throwable> getFailures() {
+            return failures;
+        }
+
+        public boolean isSuccess() {
+            return failures.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d points saved, %d failed", getNbSaved(), failures.size());
+        }
+    }
+
+    /**
+     * Rows of a partition.
+     */
+    private static class Group {
+
+        final List<String> queries = new ArrayList<>();
+        final List<Object[]> values = new ArrayList<>();
+        final List<TimedData> points = new ArrayList<>();
+    }
+
+    private final DBContext context = TimeSerie.getContext();
+    private final boolean legacy = TimeSerie.hasLegacyData(context);
+    private final Map<List<String>, Group> groups = new HashMap<>();
+    private final Set<String> indexes = new HashSet<>();
+    private final Map<List<String>, TimedData> lasts = new HashMap<>();
+    private final Semaphore inFlight;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<TimedData, Throwable> failures = new IdentityHashMap<>();
+    private final SettableFuture<Result> result = SettableFuture.create();
+    private int batchSize = 50, maxBuffered = 1000;
+    private int nbBuffered, nbPoints;
+    private volatile boolean closed;
+
+    public TimeSerieWriter() {
+        this(32);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxInFlight Maximum number of batches in flight
+     */
+    public TimeSerieWriter(int maxInFlight) {
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Set when the points are sent.
+     *
+     * @param batchSize   Maximum number of rows of a partition batch
+     * @param maxBuffered Maximum number of rows waiting to be sent
+     * @return this
+     */
+    public TimeSerieWriter setBuffering(int batchSize, int maxBuffered) {
+        this.batchSize = batchSize;
+        this.maxBuffered = maxBuffered;
+        return this;
+    }
+
+    /**
+     * Add a point.
+     *
+     * @param td Point to save
+     */
+    public void add(TimedData td) {
+        if (closed) {
+            throw new IllegalStateException("The writer is closed");
+        }
+        nbPoints++;
+        String id = td.getId(), type = td.getType();
+        UUID date = td.getDateUUID();
+        String date10 = TimeSerie.dateToDate10(date);
+
+        add(td, id, date10, type, date);
+        TimeSerie.rollup(id, type, date, td.getPayload(), TimeSerie.MAX_TTL);
+        Subscriptions.publish(td);
+        index(td, id, null, date10);
+        last(td, id, "");
+        if (type != null) {
+            index(td, id, type, date10);
+            last(td, id, type);
+        }
+
+        if (nbBuffered >= maxBuffered) {
+            flush();
+        }
+    }
+
+    /**
+     * Add some points.
+     *
+     * @param points Points to save
+     */
+    public void addAll(Collection<TimedData> points) {
+        for (TimedData td : points) {
+            add(td);
+        }
+    }
+
+    private void add(TimedData td, String id, String date10, String type, UUID date) {
+        add(td, Arrays.asList(TimeSerie.TABLE_TIMESERIES_V3, id, date10), TimeSerie.REQ_INSERT_V3, id, date10, TimeSerie.typeKey(type), date, td.getPayload(), TimeSerie.MAX_TTL);
+        if (legacy) {
+            // The other clients only read the previous layout
+            String data = td.getData();
+            add(td, Arrays.asList(TimeSerie.TABLE_TIMESERIES, id, date10), TimeSerie.REQ_INSERT, id, date10, date, type, data, TimeSerie.MAX_TTL);
+            if (type != null) {
+                add(td, Arrays.asList(TimeSerie.TABLE_TIMESERIES, id + "!" + type, date10), TimeSerie.REQ_INSERT, id + "!" + type, date10, date, null, data, TimeSerie.MAX_TTL);
+            }
+        }
+    }
+
+    private void add(TimedData td, List<String> partition, String query, Object... values) {
+        Group group = groups.get(partition);
+        if (group == null) {
+            group = new Group();
+            groups.put(partition, group);
+        }
+        group.queries.add(query);
+        group.values.add(values);
+        group.points.add(td);
+        nbBuffered++;
+        if (group.queries.size() >= batchSize) {
+            groups.remove(partition);
+            send(group);
+        }
+    }
+
+    private void index(final TimedData td, String id, String type, String date10) {
+        // Within the writer, we only try once per serie/type/day
+        if (!indexes.add(date10 + (type != null ? type : "") + id)) {
+            return;
+        }
+        ListenableFuture<ResultSet> future = TimeSerie.saveIndex(context, id, type, date10);
+        if (future != null) {
+            track(future, Collections.singletonList(td), false);
+        }
+    }
+
+    private void last(TimedData td, String id, String key) {
+        // Only the most recent point of each serie/type is written
+        List<String> serie = Arrays.asList(id, key);
+        TimedData previous = lasts.get(serie);
+        if (previous == null || MergeIterator.compareTime(previous.getDateUUID(), td.getDateUUID()) < 0) {
+            lasts.put(serie, td);
+        }
+    }
+
+    /**
+     * Send all the buffered points.
+     */
+    public void flush() {
+        for (Group group : groups.values()) {
+            send(group);
+        }
+        groups.clear();
+        for (Map.Entry<List<String>, TimedData> me : lasts.entrySet()) {
+            TimedData td = me.getValue();
+            ListenableFuture<ResultSet> future = TimeSerie.saveLast(context, td.getId(), me.getKey().get(1), td.getType(), td.getDateUUID(), td.getPayload(), TimeSerie.MAX_TTL);
+            track(future, Collections.singletonList(td), false);
+        }
+        lasts.clear();
+    }
+
+    private void send(Group group) {
+        nbBuffered -= group.queries.size();
+        inFlight.acquireUninterruptibly();
+        Backend backend = context.getBackend();
+        ListenableFuture<ResultSet> future;
+        try {
+            if (group.queries.size() == 1) {
+                future = backend.executeAsync(group.queries.get(0), group.values.get(0));
+            } else {
+                future = backend.executeBatchAsync(group.queries, group.values);
+            }
+        } catch (RuntimeException ex) {
+            future = Futures.immediateFailedFuture(ex);
+        }
+        track(future, group.points, true);
+    }
+
+    private void track(ListenableFuture<ResultSet> future, final List<TimedData> points, final boolean batch) {
+        pending.incrementAndGet();
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                done();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                synchronized (failures) {
+                    for (TimedData td : points) {
+                        if (!failures.containsKey(td)) {
+                            failures.put(td, t);
+                        }
+                    }
+                }
+                done();
+            }
+
+            private void done() {
+                if (batch) {
+                    inFlight.release();
+                }
+                if (pending.decrementAndGet() == 0) {
+                    complete();
+                }
+            }
+        });
+    }
+
+    private void complete() {
+        if (closed && pending.get() == 0) {
+            synchronized (failures) {
+                result.set(new Result(nbPoints, Collections.unmodifiableMap(new IdentityHashMap<>(failures))));
+            }
+        }
+    }
+
+    /**
+     * Send the remaining points.
+     *
+     * @return Future of the result of all the writes. It never fails, failed points are listed in the result.
+     */
+    public ListenableFuture<Result> close() {
+        if (!closed) {
+            flush();
+            closed = true;
+            complete();
+        }
+        return result;
+    }
+}
@@ -1,10 +1,13 @@
 package org.m2mp.db.ts;
 
 import com.datastax.driver.core.utils.UUIDs;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
@@ -25,6 +28,12 @@ import java.util.UUID;
  * <li>The data: Free for any used. We are currently forced to use JSON but this
  * might change.</li>
  * </ul>
+ * <p/>
+ * The data built from a map is encoded with the payload codec of the time series (see
+ * {@link TimeSerie#setPayloadCodec(PayloadCodec)}), its JSON text is only generated if it's requested. The data is
+ * decoded at most once, when it's first requested: the decoded objects are shared and must not be modified (a
+ * {@link TimedDataWrapper} has its own copy). A single field can be read without decoding the others (see
+ * {@link #getField(String)}).
  *
  * @author Florent Clairambault
  */
@@ -33,7 +42,13 @@ public class TimedData {
     private final String id;
     private final String type;
     private final UUID date;
-    private final String data;
+    private String data;
+    private final ByteBuffer payload;
+    /**
+     * Decoded data (null if it wasn't decoded yet).
+     */
+    private volatile Object json;
+    private static final Object NULL = new Object();
 
     // <editor-fold defaultstate="collapsed" desc="String constructors">
     public TimedData(String id, String data) {
@@ -45,17 +60,32 @@ public class TimedData {
     }
 
     public TimedData(String id, String type, Date date, String data) {
-        this.id = id;
-        this.type = type;
-        this.date = new UUID(UUIDs.startOf(date.getTime()).getMostSignificantBits(), System.nanoTime());
-        this.data = data;
+        this(id, type, toUUID(date), data);
     }
 
     public TimedData(String id, String type, UUID date, String data) {
+        this(id, type, date, data, null);
+    }
+
+    /**
+     * Constructor of a stored data.
+     *
+     * @param id      Identifier
+     * @param type    Type
+     * @param date    Date
+     * @param data    JSON text (of the rows written before the payloads)
+     * @param payload Payload (takes precedence over the JSON text)
+     */
+    TimedData(String id, String type, UUID date, String data, ByteBuffer payload) {
         this.id = id;
         this.type = type;
         this.date = date;
-        this.data = data;
+        this.data = payload != null ? null : data;
+        this.payload = payload;
+    }
+
+    private static UUID toUUID(Date date) {
+        return new UUID(UUIDs.startOf(date.getTime()).getMostSignificantBits(), System.nanoTime());
     }
 
     public TimedData(TimedData src, String data) {
@@ -73,15 +103,15 @@ public class TimedData {
     }
 
     public TimedData(String id, String type, Date date, Map<String, Object> map) {
-        this(id, type, date, JSONObject.toJSONString(map));
+        this(id, type, toUUID(date), map);
     }
 
     public TimedData(String id, String type, UUID date, Map<String, Object> map) {
-        this(id, type, date, JSONObject.toJSONString(map));
+        this(id, type, date, null, Payloads.encode(map));
     }
 
     public TimedData(TimedData src, Map<String, Object> map) {
-        this(src, JSONObject.toJSONString(map));
+        this(src.getId(), src.getType(), src.getDateUUID(), map);
     }
 
     public TimedData(TimedDataWrapper tdw) {
@@ -107,15 +137,81 @@ public class TimedData {
     }
 
     public String getData() {
+        if (data == null && payload != null) {
+            data = Payloads.toJson(payload);
+        }
         return data;
     }
 
+    /**
+     * Get the stored form of the data.
+     *
+     * @return Payload (read-only)
+     */
+    public ByteBuffer getPayload() {
+        if (payload != null) {
+            return payload.asReadOnlyBuffer();
+        }
+        return data != null ? Payloads.text(data) : null;
+    }
+
+    /**
+     * Decode the data.
+     *
+     * @return New decoded object
+     */
+    private Object decode() {
+        return payload != null ? Payloads.decode(payload) : Payloads.parse(data);
+    }
+
+    /**
+     * Get the decoded data.
+     *
+     * @return New decoded object, that can be modified
+     */
     public Object getJsonObject() {
-        return JSONValue.parse(getData());
+        return copy(getDecoded());
+    }
+
+    /**
+     * Get the decoded data, it is only decoded once.
+     *
+     * @return Decoded object (shared, it must not be modified)
+     */
+    private Object getDecoded() {
+        Object obj = json;
+        if (obj == null) {
+            obj = decode();
+            json = obj != null ? obj : NULL;
+        }
+        return obj != NULL ? obj : null;
+    }
+
+    /**
+     * Get a field of the data.
+     * <p/>
+     * If the data wasn't decoded, only the field is.
+     *
+     * @param path Path of the field, like "pos.spd" ("value" if the data is a single value)
+     * @return Field or null if there's none
+     */
+    public Object getField(String path) {
+        return getField(Payloads.Path.parse(path));
+    }
+
+    Object getField(Payloads.Path path) {
+        Object obj = json;
+        if (obj != null) {
+            return path.get(obj != NULL ? obj : null);
+        }
+        if (payload != null) {
+            return Payloads.field(payload, path);
+        }
+        return data != null ? path.scan(data) : null;
     }
 
     public String getJsonString() {
-        Object obj = getJsonObject();
+        Object obj = getDecoded();
         if (obj instanceof String) {
             return String.format("\"%s\"", obj.toString());
         } else {
@@ -123,8 +219,60 @@ public class TimedData {
         }
     }
 
+    /**
+     * Get the decoded data as a map.
+     *
+     * @return New map, that can be modified
+     */
     public Map<String, Object> getJsonMap() {
-        final Object obj = getJsonObject();
+        return toMap(copy(getDecoded()));
+    }
+
+    /**
+     * Get the decoded data as a read-only map.
+     * <p/>
+     * Unlike {@link #getJsonMap()}, nothing is copied: the data is only decoded once, however many times it is read.
+     *
+     * @return Read-only map
+     */
+    public Map<String, Object> getReadOnlyJsonMap() {
+        return Collections.unmodifiableMap(toMap(getDecoded()));
+    }
+
+    /**
+     * Decode the data in a new map.
+     *
+     * @return Map that can be modified
+     */
+    Map<String, Object> newJsonMap() {
+        return toMap(decode());
+    }
+
+    /**
+     * Copy a decoded object and its maps and lists.
+     *
+     * @param obj Decoded object
+     * @return Copy
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copy(Object obj) {
+        if (obj instanceof Map) {
+            JSONObject map = new JSONObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
+                map.put(e.getKey(), copy(e.getValue()));
+            }
+            return map;
+        } else if (obj instanceof List) {
+            JSONArray list = new JSONArray();
+            for (Object o : (List<?>) obj) {
+                list.add(copy(o));
+            }
+            return list;
+        }
+        return obj;
+    }
+
+    private static Map<String, Object> toMap(final Object obj) {
         if ((obj instanceof Map)) {
             return (Map<String, Object>) obj;
         } else {
@@ -139,7 +287,7 @@ public class TimedData {
     // </editor-fold>
     @Override
     public String toString() {
-        return "TimedDate[" + id + "/" + type + "][" + getDate() + "] = " + data;
+        return "TimedDate[" + id + "/" + type + "][" + getDate() + "] = " + getData();
     }
     // <editor-fold defaultstate="collapsed" desc="Modification methods">
 
@@ -3,6 +3,7 @@ package org.m2mp.db.ts;
 import com.datastax.driver.core.utils.UUIDs;
 import org.json.simple.JSONObject;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -10,6 +11,9 @@ import java.util.*;
  * <p/>
  * We have the same data as the TimedData class except we are working in JSON only, we can modify the content efficiently
  * and we can save it to modify an existing time serie element (a timedData).
+ * <p/>
+ * When it wraps a TimedData, the map is only decoded when it's needed: the fields read before are extracted from the
+ * timed data.
  */
 public class TimedDataWrapper {
 
@@ -17,6 +21,10 @@ public class TimedDataWrapper {
     private final String type;
     private final UUID date;
     private Map<String, Object> map;
+    /**
+     * Wrapped data, until the map is decoded.
+     */
+    private TimedData source;
     private boolean mod;
 
     public TimedDataWrapper(String id, String type, UUID date, Map<String, Object> map) {
@@ -49,7 +57,8 @@ public class TimedDataWrapper {
     }
 
     public TimedDataWrapper(TimedData td) {
-        this(td.getId(), td.getType(), td.getDateUUID(), td.getJsonMap());
+        this(td.getId(), td.getType(), td.getDateUUID(), (Map<String, Object>) null);
+        this.source = td;
     }
 
     public TimedDataWrapper(String id, String type, Map<String, Object> map) {
@@ -77,39 +86,57 @@ public class TimedDataWrapper {
     }
 
     public Map<String, Object> getMap() {
+        if (map == null && source != null) {
+            map = source.newJsonMap();
+            source = null;
+        }
         return map;
     }
 
     public void setMap(Map<String, Object> map) {
         this.map = map;
+        this.source = null;
         modified();
     }
 
+    /**
+     * Get a field.
+     *
+     * @param name Name of the field
+     * @return Value
+     */
+    private Object value(String name) {
+        if (map == null && source != null) {
+            return source.getField(Payloads.Path.key(name));
+        }
+        return map.get(name);
+    }
+
     public void set(String name, Object obj) {
-        map.put(name, obj);
+        getMap().put(name, obj);
         modified();
     }
 
     public List<String> getStrings(String name) {
-        return (List<String>) map.get(name);
+        return (List<String>) value(name);
     }
 
     public void set(String name, Iterable<String> many) {
-        map.put(name, many);
+        getMap().put(name, many);
         modified();
     }
 
     public void del(String name) {
-        map.remove(name);
+        getMap().remove(name);
         modified();
     }
 
     public String getString(String name) {
-        return (String) map.get(name);
+        return (String) value(name);
     }
 
     public Long getLong(String name) {
-        Object obj = map.get(name);
+        Object obj = value(name);
         if (obj instanceof Long) // New format
             return (Long) obj;
         else if (obj instanceof Integer)
@@ -121,7 +148,7 @@ public class TimedDataWrapper {
     }
 
     public Double getDouble(String name) {
-        Object obj = map.get(name);
+        Object obj = value(name);
         if (obj instanceof Double) // New format
             return (Double) obj;
         else if (obj instanceof String) // Old format
@@ -131,7 +158,7 @@ public class TimedDataWrapper {
     }
 
     public Boolean getBoolean(String name) {
-        Object obj = map.get(name);
+        Object obj = value(name);
         if (obj instanceof Boolean) // New format
             return (Boolean) obj;
         else if (obj instanceof String) // Old format
@@ -169,7 +196,16 @@ public class TimedDataWrapper {
     }
 
     public String getJson() {
-        return JSONObject.toJSONString(map);
+        return JSONObject.toJSONString(getMap());
+    }
+
+    /**
+     * Get the data encoded with the payload codec of the time series.
+     *
+     * @return Payload
+     */
+    public ByteBuffer getPayload() {
+        return Payloads.encode(getMap());
     }
 
     public void save() {
@@ -184,7 +220,7 @@ public class TimedDataWrapper {
     }
 
     public String toString() {
-        return "TDW{id=\"" + id + "\",type=\"" + type + "\",map=" + map + "}";
+        return "TDW{id=\"" + id + "\",type=\"" + type + "\",map=" + getMap() + "}";
     }
 
     public static Iterable<TimedDataWrapper> iter(final Iterable<TimedData> iterable) {
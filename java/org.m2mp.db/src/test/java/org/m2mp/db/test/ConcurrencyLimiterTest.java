@@ -0,0 +1,78 @@
+package org.m2mp.db.test;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.m2mp.db.AsyncWriter;
+import org.m2mp.db.ConcurrencyLimiter;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void decreasesOnTimeouts() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        limiter.setLimits(4, 64, 128);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(1, new ReadTimeoutException(ConsistencyLevel.ONE, 0, 1, false));
+        }
+        Assert.assertTrue(limiter.getNbDecreases() > 0);
+        Assert.assertTrue(limiter.getLimit() < 64);
+        Assert.assertTrue(limiter.getLimit() >= 4);
+    }
+
+    @Test
+    public void decreasesOnLatency() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        limiter.setLimits(4, 64, 128);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(MS, null);
+        }
+        Assert.assertEquals(0, limiter.getNbDecreases());
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(1, null);
+            limiter.acquire();
+            limiter.release(20 * MS, null);
+        }
+        Assert.assertTrue(limiter.getNbDecreases() > 0);
+    }
+
+    @Test
+    public void increasesWhenUsed() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        limiter.setLimits(1, 4, 100);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < limiter.getLimit(); j++) {
+                limiter.acquire();
+            }
+            for (int j = limiter.getInFlight(); j > 0; j--) {
+                limiter.release(MS, null);
+            }
+        }
+        Assert.assertTrue(limiter.getLimit() > 4);
+    }
+
+    @Test
+    public void rejects() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        limiter.setLimits(1, 1, 1);
+        limiter.setPolicy(AsyncWriter.Policy.Reject, 0, TimeUnit.MILLISECONDS);
+        limiter.acquire();
+        try {
+            limiter.acquire();
+            Assert.fail("The second query should have been rejected");
+        } catch (RejectedExecutionException ex) {
+            Assert.assertEquals(1, limiter.getNbRejected());
+        }
+        limiter.release(MS, null);
+        limiter.acquire();
+    }
+}
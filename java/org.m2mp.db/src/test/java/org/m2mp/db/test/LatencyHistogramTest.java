@@ -0,0 +1,44 @@
+package org.m2mp.db.test;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.m2mp.db.LatencyHistogram;
+
+/**
+ * Latency histogram tests. They don't need any cassandra server.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void empty() {
+        LatencyHistogram h = new LatencyHistogram();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getPercentile(99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 10; i++) {
+            h.record(i);
+        }
+        Assert.assertEquals(10, h.getCount());
+        Assert.assertEquals(5, h.getPercentile(50));
+        Assert.assertEquals(10, h.getPercentile(100));
+        Assert.assertEquals(10, h.getMax());
+    }
+
+    @Test
+    public void percentilesAreClose() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            h.record(i);
+        }
+        Assert.assertEquals(100000, h.getMax());
+        for (double p : new double[]{50, 99, 99.9}) {
+            double expected = 100000 * p / 100;
+            double error = Math.abs(h.getPercentile(p) - expected) / expected;
+            Assert.assertTrue("p" + p + " = " + h.getPercentile(p), error < 0.0625);
+        }
+    }
+}
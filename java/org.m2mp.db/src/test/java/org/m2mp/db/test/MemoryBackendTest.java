@@ -0,0 +1,966 @@
+package org.m2mp.db.test;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.Assert;
+import org.apache.commons.lang3.time.FastDateFormat;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.m2mp.db.AsyncWriter;
+import org.m2mp.db.DB;
+import org.m2mp.db.DBContext;
+import org.m2mp.db.HedgedReads;
+import org.m2mp.db.WriteBatcher;
+import org.m2mp.db.backend.Backend;
+import org.m2mp.db.backend.MemoryBackend;
+import org.m2mp.db.common.GeneralSetting;
+import org.m2mp.db.registry.RegistryNode;
+import org.m2mp.db.ts.TimeSerie;
+import org.m2mp.db.ts.Aggregate;
+import org.m2mp.db.ts.AggregationQuery;
+import org.m2mp.db.ts.BinaryPayloadCodec;
+import org.m2mp.db.ts.IndexCache;
+import org.m2mp.db.ts.PayloadCodec;
+import org.m2mp.db.ts.NumericSamples;
+import org.m2mp.db.ts.NumericSeries;
+import org.m2mp.db.ts.PeriodCache;
+import org.m2mp.db.ts.Rollup;
+import org.m2mp.db.ts.RollupEngine;
+import org.m2mp.db.ts.TSDataIterator;
+import org.m2mp.db.ts.TSPeriodIterable;
+import org.m2mp.db.ts.TSMultiIterator;
+import org.m2mp.db.ts.Subscription;
+import org.m2mp.db.ts.TimeSerieListener;
+import org.m2mp.db.ts.TimeSerieMigration;
+import org.m2mp.db.ts.TimeSerieWriter;
+import org.m2mp.db.ts.TimedData;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of the modules on the in-memory backend (no cassandra required).
+ */
+public class MemoryBackendTest {
+
+    private static Backend previous;
+
+    @BeforeClass
+    public static void setUpClass() {
+        previous = DB.getBackend();
+        DB.setBackend(new MemoryBackend());
+        TimeSerie.prepareTable();
+        RegistryNode.prepareTable();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        DB.setBackend(previous);
+    }
+
+    @Test
+    public void tables() {
+        Assert.assertTrue(DB.tableExists(TimeSerie.TABLE_TIMESERIES));
+        Assert.assertTrue(DB.tableExists("RegistryNode"));
+        Assert.assertFalse(DB.tableExists("nothing"));
+    }
+
+    @Test
+    public void settings() {
+        GeneralSetting.set("memory-setting", "value");
+        Assert.assertEquals("value", GeneralSetting.get("memory-setting", "default"));
+        Assert.assertEquals("default", GeneralSetting.get("memory-other-setting", "default"));
+    }
+
+    @Test
+    public void timeSerieOrder() {
+        String id = "mem-" + UUID.randomUUID();
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            TreeMap<String, Object> map = new TreeMap<>();
+            map.put("i", i);
+            TimeSerie.save(new TimedData(id, "t", new Date(begin - i * 3600000L), map));
+        }
+        for (boolean inverted : new boolean[]{true, false}) {
+            int nb = 0;
+            Date last = null;
+            for (TimedData td : TimeSerie.getData(id, "t", (Date) null, (Date) null, inverted)) {
+                if (last != null) {
+                    Assert.assertTrue(inverted ? last.after(td.getDate()) : last.before(td.getDate()));
+                }
+                last = td.getDate();
+                nb++;
+            }
+            Assert.assertEquals(50, nb);
+        }
+        int nb = 0;
+        for (TimedData td : TimeSerie.getData(id, "t", new Date(begin - 10 * 3600000L - 1), new Date(begin + 1), false)) {
+            nb++;
+        }
+        Assert.assertEquals(11, nb);
+    }
+
+    @Test
+    public void timeSerieTypes() {
+        String id = "mem-types-" + UUID.randomUUID();
+        long begin = 1393632000000L, minute = 60000L; // 2014-03-01
+        String[] types = {"b", null, "a"};
+        List<TimedData> points = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            TimedData td = new TimedData(id, types[i % 3], new Date(begin + i * minute), "{\"i\":" + i + "}");
+            TimeSerie.save(td);
+            points.add(td);
+        }
+
+        // The types are read by time ranges and merged
+        for (boolean inverted : new boolean[]{true, false}) {
+            List<TimedData> expected = new ArrayList<>(points.subList(5, 21));
+            if (inverted) {
+                Collections.reverse(expected);
+            }
+            assertData(expected, TimeSerie.getData(id, null, new Date(begin + 5 * minute), new Date(begin + 20 * minute), inverted));
+        }
+
+        TimedData td = points.get(6);
+        Assert.assertEquals("{\"i\":6}", TimeSerie.getData(id, td.getDateUUID()).getData());
+        Assert.assertEquals("b", TimeSerie.getData(id, td.getDateUUID()).getType());
+        Assert.assertEquals("{\"i\":6}", TimeSerie.getData(id, "b", td.getDateUUID()).getData());
+        Assert.assertNull(TimeSerie.getData(id, "a", td.getDateUUID()));
+        Assert.assertNull(TimeSerie.getData(id, points.get(7).getDateUUID()).getType());
+    }
+
+    @Test
+    public void batchedWrites() throws Exception {
+        WriteBatcher batcher = DB.getBatcher();
+        batcher.setEnabled(true);
+        try {
+            String id = "mem-batch-" + UUID.randomUUID();
+            long begin = System.currentTimeMillis();
+            long nbBatches = batcher.getNbBatches();
+            List<ListenableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(TimeSerie.saveAsync(new TimedData(id, "t", new Date(begin - i * 1000L), "{\"i\":" + i + "}")));
+            }
+            Futures.allAsList(futures).get();
+            Assert.assertTrue(batcher.getNbBatches() - nbBatches < 50);
+            int nb = 0;
+            for (TimedData td : TimeSerie.getData(id, "t", (Date) null, (Date) null, true)) {
+                nb++;
+            }
+            Assert.assertEquals(100, nb);
+        } finally {
+            batcher.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void registry() {
+        RegistryNode node = new RegistryNode("/mem/" + UUID.randomUUID()).check();
+        node.setProperty("a", "1");
+        node.setProperty("b", "2");
+        Assert.assertEquals("1", new RegistryNode(node.getPath()).getProperty("a", null));
+        node.delProperty("a");
+        RegistryNode reloaded = new RegistryNode(node.getPath());
+        Assert.assertNull(reloaded.getProperty("a", null));
+        Assert.assertEquals("2", reloaded.getProperty("b", null));
+        Assert.assertTrue(reloaded.exists());
+    }
+
+    @Test
+    public void hedgedReads() {
+        MemoryBackend backend = (MemoryBackend) DB.getBackend();
+        HedgedReads hedged = DB.getHedgedReads();
+        GeneralSetting.set("memory-hedged", "value");
+        backend.setTailLatency(0.3, 200, TimeUnit.MILLISECONDS);
+        hedged.setDelayBounds(5, 5, TimeUnit.MILLISECONDS);
+        hedged.setEnabled(true);
+        try {
+            for (int i = 0; i < 30; i++) {
+                Assert.assertEquals("value", GeneralSetting.get("memory-hedged", null));
+            }
+            Assert.assertTrue(hedged.getNbHedged() > 0);
+            Assert.assertTrue(hedged.getNbHedgeWon() > 0);
+        } finally {
+            hedged.setEnabled(false);
+            backend.setTailLatency(0, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void injectedErrors() {
+        MemoryBackend backend = (MemoryBackend) DB.getBackend();
+        backend.setErrorRate(1);
+        try {
+            GeneralSetting.get("memory-setting", "default");
+            Assert.fail("An error should have been injected");
+        } catch (RuntimeException ex) {
+            // This is expected
+        } finally {
+            backend.setErrorRate(0);
+        }
+    }
+
+    @Test
+    public void asyncWriter() throws Exception {
+        DBContext other = new DBContext();
+        MemoryBackend backend = new MemoryBackend();
+        other.setBackend(backend);
+        other.execute("CREATE TABLE async_writes ( id text, v int, PRIMARY KEY (id) );");
+        final String insert = "INSERT INTO async_writes ( id, v ) VALUES ( ?, ? );";
+        final AsyncWriter writer = other.getWriter();
+        final List<Statement> failed = new CopyOnWriteArrayList<>();
+        writer.addFailureListener(new AsyncWriter.FailureListener() {
+            @Override
+            public void writeFailed(Statement statement, Throwable t) {
+                failed.add(statement);
+            }
+        });
+        writer.setMaxPerHost(2);
+        backend.setLatency(500, TimeUnit.MILLISECONDS);
+
+        // At most 2 writes in flight
+        other.executeLater(insert, "a", 1);
+        other.executeLater(insert, "b", 2);
+        Assert.assertEquals(2, writer.getInFlight());
+        writer.setPolicy(AsyncWriter.Policy.Reject);
+        try {
+            other.executeLater(insert, "c", 3);
+            Assert.fail("The write should have been rejected");
+        } catch (RejectedExecutionException ex) {
+            // This is expected
+        }
+        Assert.assertEquals(1, writer.getNbRejected());
+
+        // A blocked writer is rejected when the policy changes
+        writer.setPolicy(AsyncWriter.Policy.Block);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    writer.submit(insert, "d", 4);
+                } catch (RejectedExecutionException ex) {
+                    error.set(ex);
+                }
+            }
+        };
+        blocked.start();
+        for (int i = 0; i < 100 && blocked.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(1);
+        }
+        writer.setPolicy(AsyncWriter.Policy.Reject);
+        blocked.join(200);
+        Assert.assertTrue(error.get() instanceof RejectedExecutionException);
+        Assert.assertEquals(2, writer.getInFlight());
+
+        // The writes are drained on stop
+        other.stop();
+        Assert.assertEquals(0, writer.getInFlight());
+        Assert.assertEquals(2, other.execute("SELECT id FROM async_writes;").all().size());
+
+        // The failures are reported to the listeners
+        backend.setLatency(0, TimeUnit.MILLISECONDS);
+        backend.setErrorRate(1);
+        other.executeLater(insert, "e", 5);
+        Assert.assertTrue(writer.drain(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, writer.getNbFailed());
+        Assert.assertEquals(1, failed.size());
+        Assert.assertEquals(insert, failed.get(0).toString());
+        backend.shutdown();
+    }
+
+    @Test
+    public void boundContext() {
+        DBContext other = new DBContext();
+        other.setBackend(new MemoryBackend());
+        TimeSerie.setContext(other);
+        try {
+            TimeSerie.prepareTable();
+            String id = "mem-context-" + UUID.randomUUID();
+            TimeSerie.save(new TimedData(id, "t", new Date(), "{}"));
+            Assert.assertTrue(TimeSerie.getData(id, "t", (Date) null, (Date) null, true).iterator().hasNext());
+            Assert.assertEquals("7", GeneralSetting.get(other, "table_version_" + TimeSerie.TABLE_TIMESERIES, null));
+            TimeSerie.setContext(null);
+            Assert.assertFalse(TimeSerie.getData(id, "t", (Date) null, (Date) null, true).iterator().hasNext());
+        } finally {
+            TimeSerie.setContext(null);
+            ((MemoryBackend) other.getBackend()).shutdown();
+            other.close();
+        }
+    }
+
+    @Test
+    public void saveAll() throws Exception {
+        String id = "mem-bulk-" + UUID.randomUUID();
+        long begin = System.currentTimeMillis();
+        List<TimedData> points = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            points.add(new TimedData(id, i % 2 == 0 ? "a" : "b", new Date(begin - i * 600000L), "{\"i\":" + i + "}"));
+        }
+        TimeSerieWriter.Result result = TimeSerie.saveAll(points).get();
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(500, result.getNbSaved());
+        int nb = 0;
+        for (TimedData td : TimeSerie.getData(id, null, (Date) null, (Date) null, true)) {
+            nb++;
+        }
+        Assert.assertEquals(500, nb);
+        nb = 0;
+        for (TimedData td : TimeSerie.getData(id, "a", (Date) null, (Date) null, true)) {
+            nb++;
+        }
+        Assert.assertEquals(250, nb);
+
+        MemoryBackend backend = (MemoryBackend) DB.getBackend();
+        backend.setErrorRate(1);
+        try {
+            result = TimeSerie.saveAll(points.subList(0, 10)).get();
+            Assert.assertEquals(0, result.getNbSaved());
+            Assert.assertEquals(10, result.getFailures().size());
+        } finally {
+            backend.setErrorRate(0);
+        }
+    }
+
+    @Test
+    public void indexCache() {
+        IndexCache cache = TimeSerie.getIndexCache();
+        String id = "mem-index-" + UUID.randomUUID();
+        long hits = cache.getNbHits(), misses = cache.getNbMisses();
+        Date date = new Date();
+        for (int i = 0; i < 3; i++) {
+            TimeSerie.save(new TimedData(id, "t", new Date(date.getTime() - i), "{}"));
+        }
+        // One entry for the serie and one for its type, then only hits
+        Assert.assertEquals(2, cache.getNbMisses() - misses);
+        Assert.assertEquals(4, cache.getNbHits() - hits);
+        Assert.assertTrue(cache.getHitRate() > 0);
+
+        // The index of a serie is still listed when it was cleared
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        TimeSerie.save(new TimedData(id, "t", date, "{}"));
+        Assert.assertEquals(2, cache.size());
+        int nb = 0;
+        for (TimedData td : TimeSerie.getData(id, "t", (Date) null, (Date) null, true)) {
+            nb++;
+        }
+        Assert.assertEquals(4, nb);
+    }
+
+    @Test
+    public void layoutMigration() {
+        String id = "mem-layout-" + UUID.randomUUID();
+        FastDateFormat format = FastDateFormat.getInstance("yyyy-MM-dd", TimeZone.getTimeZone("UTC"));
+        long now = System.currentTimeMillis();
+        GeneralSetting.set("timeseries_layout", 2);
+        TimeSerie.prepareTable();
+        Assert.assertFalse(TimeSerieMigration.isDone());
+
+        // Points of the previous layout, the typed ones are written twice
+        TimedData typed = new TimedData(id, "a", new Date(now - 3000), "{\"v\":\"old\"}");
+        TimedData untyped = new TimedData(id, null, new Date(now - 2000), "{\"v\":2}");
+        String insert = "INSERT INTO " + TimeSerie.TABLE_TIMESERIES + " ( id, date, time, type, data ) VALUES ( ?, ?, ?, ?, ? ) USING TIMESTAMP ?;";
+        long written = (now - 60000) * 1000;
+        DB.execute(insert, id, format.format(typed.getDate()), typed.getDateUUID(), "a", typed.getData(), written);
+        DB.execute(insert, id + "!a", format.format(typed.getDate()), typed.getDateUUID(), null, typed.getData(), written);
+        DB.execute(insert, id, format.format(untyped.getDate()), untyped.getDateUUID(), null, untyped.getData(), written);
+
+        // The typed point is written again and a new one is added in the new layout
+        TimeSerie.save(new TimedData(id, "a", typed.getDateUUID(), "{\"v\":\"new\"}"));
+        TimedData saved = new TimedData(id, "a", new Date(now - 1000), "{\"v\":3}");
+        TimeSerie.save(saved);
+        // The other clients still read the previous layout
+        String select = "SELECT data FROM " + TimeSerie.TABLE_TIMESERIES + " WHERE id = ? AND date = ? AND time = ?;";
+        Assert.assertEquals("{\"v\":3}", DB.execute(select, id + "!a", format.format(saved.getDate()), saved.getDateUUID()).one().getString(0));
+
+        for (boolean migrated : new boolean[]{false, true}) {
+            if (migrated) {
+                TimeSerieMigration migration = new TimeSerieMigration();
+                migration.run();
+                Assert.assertFalse(TimeSerieMigration.isDone());
+                // The points saved since then were written in both layouts
+                Assert.assertTrue(migration.getNbCopied() >= 4);
+                Assert.assertTrue(migration.getNbSkipped() >= 3);
+                migration.finish();
+                Assert.assertTrue(TimeSerieMigration.isDone());
+            }
+            List<TimedData> all = new ArrayList<>();
+            for (TimedData td : TimeSerie.getData(id, null, (Date) null, (Date) null, false)) {
+                all.add(td);
+            }
+            Assert.assertEquals(3, all.size());
+            Assert.assertEquals(typed.getDateUUID(), all.get(0).getDateUUID());
+            Assert.assertEquals("a", all.get(0).getType());
+            Assert.assertEquals("{\"v\":\"new\"}", all.get(0).getData());
+            Assert.assertNull(all.get(1).getType());
+            int nb = 0;
+            for (TimedData td : TimeSerie.getData(id, "a", (Date) null, (Date) null, true)) {
+                Assert.assertEquals("a", td.getType());
+                nb++;
+            }
+            Assert.assertEquals(2, nb);
+            Assert.assertEquals(untyped.getData(), TimeSerie.getData(id, untyped.getDateUUID()).getData());
+        }
+    }
+
+    @Test
+    public void payloads() {
+        String id = "mem-payload-" + UUID.randomUUID();
+        Date date = new Date();
+        TreeMap<String, Object> map = new TreeMap<>();
+        map.put("v", 1.5);
+        // Stored with the binary codec
+        PayloadCodec codec = TimeSerie.getPayloadCodec();
+        TimeSerie.setPayloadCodec(new BinaryPayloadCodec());
+        try {
+            TimeSerie.save(new TimedData(id, "a", new Date(date.getTime() - 2), map));
+        } finally {
+            TimeSerie.setPayloadCodec(codec);
+        }
+
+        // Stored as JSON text (by default)
+        Assert.assertNull(codec);
+        TimeSerie.save(new TimedData(id, "a", new Date(date.getTime() - 1), map));
+
+        // Written before the payloads
+        TimedData text = new TimedData(id, "a", date, "{\"v\":1.5}");
+        DB.execute("INSERT INTO " + TimeSerie.TABLE_TIMESERIES_V3 + " ( id, date, type, time, data ) VALUES ( ?, ?, ?, ?, ? );",
+                id, FastDateFormat.getInstance("yyyy-MM-dd", TimeZone.getTimeZone("UTC")).format(date), "a", text.getDateUUID(), text.getData());
+
+        int nb = 0;
+        for (TimedData td : TimeSerie.getData(id, "a", (Date) null, (Date) null, true)) {
+            Assert.assertEquals(1.5, td.getJsonMap().get("v"));
+            Assert.assertEquals("{\"v\":1.5}", td.getData());
+            nb++;
+        }
+        Assert.assertEquals(3, nb);
+    }
+
+    @Test
+    public void rollups() {
+        String id = "mem-rollup-" + UUID.randomUUID();
+        long begin = 1393632000000L; // 2014-03-01
+        RollupEngine engine = new RollupEngine().setResolutions(Rollup.Resolution.MINUTE, Rollup.Resolution.HOUR, Rollup.Resolution.DAY);
+        TimeSerie.setRollups(engine);
+        try {
+            // 3 days, one point every 10 minutes
+            for (int i = 0; i < 432; i++) {
+                TreeMap<String, Object> map = new TreeMap<>();
+                map.put("temp", i);
+                map.put("name", "text");
+                TimeSerie.save(new TimedData(id, "sensor", new Date(begin + i * 600000L), map));
+            }
+            engine.close();
+            Assert.assertEquals(432, engine.getNbPoints());
+            Assert.assertEquals(0, engine.getNbBuckets());
+
+            // A late point is written in an other part of its bucket
+            TreeMap<String, Object> map = new TreeMap<>();
+            map.put("temp", -1);
+            TimeSerie.save(new TimedData(id, "sensor", new Date(begin + 1000), map));
+            engine.close();
+        } finally {
+            TimeSerie.setRollups(null);
+        }
+
+        Date from = new Date(begin), to = new Date(begin + 3 * 24 * 3600000L);
+        Assert.assertEquals(Rollup.Resolution.HOUR, engine.getResolution(from, to, 100));
+        List<Rollup> hours = engine.query(id, "sensor", "temp", from, to, 100);
+        Assert.assertEquals(72, hours.size());
+        Assert.assertEquals(7, hours.get(0).getCount());
+        Assert.assertEquals(-1.0, hours.get(0).getMin());
+        Assert.assertEquals(0.0, hours.get(0).getFirst());
+        Assert.assertEquals(5.0, hours.get(0).getLast());
+        Assert.assertEquals(8.5, hours.get(1).getAverage());
+
+        List<Rollup> days = engine.query(id, "sensor", "temp", from, to, 10);
+        Assert.assertEquals(3, days.size());
+        long count = 0;
+        for (Rollup day : days) {
+            Assert.assertEquals(Rollup.Resolution.DAY, day.getResolution());
+            count += day.getCount();
+        }
+        Assert.assertEquals(433, count);
+        Assert.assertEquals(431.0, days.get(2).getMax());
+        Assert.assertTrue(engine.query(id, "sensor", "name", from, to, 10).isEmpty());
+    }
+
+    @Test
+    public void readWindow() throws Exception {
+        String id = "mem-window-" + UUID.randomUUID();
+        long begin = System.currentTimeMillis() - 20 * 24 * 3600000L;
+        List<TimedData> points = new ArrayList<>();
+        for (int i = 0; i < 80; i++) {
+            points.add(new TimedData(id, i % 2 == 0 ? "a" : null, new Date(begin + i * 6 * 3600000L), "{}"));
+        }
+        Assert.assertTrue(TimeSerie.saveAll(points).get().isSuccess());
+        for (String type : new String[]{"a", null}) {
+            for (boolean inverted : new boolean[]{true, false}) {
+                TSDataIterator iterator = ((TSDataIterator) TimeSerie.getData(id, type, (Date) null, (Date) null, inverted).iterator()).setWindow(5);
+                int nb = 0;
+                Date last = null;
+                while (iterator.hasNext()) {
+                    TimedData td = iterator.next();
+                    if (last != null) {
+                        Assert.assertTrue(inverted ? last.after(td.getDate()) : last.before(td.getDate()));
+                    }
+                    last = td.getDate();
+                    nb++;
+                }
+                Assert.assertEquals(type != null ? 40 : 80, nb);
+            }
+        }
+
+        // The consumer stops early
+        TSDataIterator iterator = ((TSDataIterator) TimeSerie.getData(id, null, (Date) null, (Date) null, true).iterator()).setWindow(5);
+        Assert.assertTrue(iterator.hasNext());
+        iterator.next();
+        iterator.close();
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void multiSeries() throws Exception {
+        String prefix = "mem-multi-" + UUID.randomUUID() + "-";
+        List<String> ids = new ArrayList<>();
+        long begin = System.currentTimeMillis() - 5 * 24 * 3600000L;
+        List<TimedData> points = new ArrayList<>();
+        for (int d = 0; d < 10; d++) {
+            String id = prefix + d;
+            ids.add(id);
+            for (int i = 0; i < 30; i++) {
+                points.add(new TimedData(id, i % 3 == 0 ? "b" : "a", new Date(begin + (i * 10 + d) * 600000L), "{\"i\":" + i + "}"));
+            }
+        }
+        Assert.assertTrue(TimeSerie.saveAll(points).get().isSuccess());
+        TSMultiIterator.setConcurrency(3);
+
+        for (boolean inverted : new boolean[]{true, false}) {
+            Date last = null;
+            int nb = 0;
+            for (TimedData td : TimeSerie.getData(ids, null, null, null, inverted, 0)) {
+                if (last != null) {
+                    Assert.assertTrue(inverted ? last.after(td.getDate()) : last.before(td.getDate()));
+                }
+                last = td.getDate();
+                nb++;
+            }
+            Assert.assertEquals(300, nb);
+        }
+
+        // Some types and a limit
+        List<TimedData> list = new ArrayList<>();
+        for (TimedData td : TimeSerie.getData(ids.subList(0, 4), Arrays.asList("b"), new Date(begin), null, false, 25)) {
+            Assert.assertEquals("b", td.getType());
+            list.add(td);
+        }
+        Assert.assertEquals(25, list.size());
+        Assert.assertEquals(prefix + 0, list.get(0).getId());
+        Assert.assertEquals(prefix + 1, list.get(1).getId());
+        Assert.assertEquals(prefix + 0, list.get(4).getId());
+        Assert.assertEquals(3L, list.get(4).getJsonMap().get("i"));
+
+        // The consumer stops early
+        TSMultiIterator iterator = (TSMultiIterator) TimeSerie.getData(ids, null, null, null, true, 0).iterator();
+        Assert.assertTrue(iterator.hasNext());
+        Assert.assertEquals(prefix + 9, iterator.next().getId());
+        iterator.close();
+        Assert.assertFalse(iterator.hasNext());
+        TSMultiIterator.setConcurrency(64);
+    }
+
+    @Test
+    public void lastValues() throws Exception {
+        String id = "mem-last-" + UUID.randomUUID();
+        long now = System.currentTimeMillis();
+        TimeSerie.save(id, "a", UUIDs.startOf(now - 1000), "{\"v\":1}");
+        TimeSerie.save(id, "b", UUIDs.startOf(now - 500), "{\"v\":2}");
+        // An older point comes late
+        TimeSerie.save(id, "a", UUIDs.startOf(now - 2000), "{\"v\":0}");
+        Assert.assertEquals(1L, TimeSerie.getLast(id, "a").getJsonMap().get("v"));
+        Assert.assertEquals("b", TimeSerie.getLast(id, null).getType());
+
+        // Without the cache, from the table
+        TimeSerie.getLastValues().clear();
+        long misses = TimeSerie.getLastValues().getNbMisses();
+        Assert.assertEquals(1L, TimeSerie.getLast(id, "a").getJsonMap().get("v"));
+        Assert.assertEquals(2L, TimeSerie.getLast(id, null).getJsonMap().get("v"));
+        Assert.assertEquals(2L, TimeSerie.getLast(id, null).getJsonMap().get("v"));
+        Assert.assertEquals(misses + 2, TimeSerie.getLastValues().getNbMisses());
+        Assert.assertNull(TimeSerie.getLast(id, "c"));
+
+        // Bulk writes
+        TimeSerie.getLastValues().clear();
+        List<TimedData> points = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            points.add(new TimedData(id, "c", new Date(now - 100 + (i % 5) * 10 - i), "{\"v\":" + i + "}"));
+        }
+        Assert.assertTrue(TimeSerie.saveAll(points).get().isSuccess());
+        TimeSerie.getLastValues().clear();
+        Assert.assertEquals(4L, TimeSerie.getLast(id, "c").getJsonMap().get("v"));
+        Assert.assertEquals(2L, TimeSerie.getLast(id, "b").getJsonMap().get("v"));
+
+        // The last point is deleted, the previous one is read from the data
+        TimeSerie.delete(TimeSerie.getLast(id, "a"));
+        Assert.assertEquals(0L, TimeSerie.getLast(id, "a").getJsonMap().get("v"));
+        Assert.assertEquals("c", TimeSerie.getLast(id, null).getType());
+
+        // ... and saved again, above the deleted one
+        TimeSerie.getContext().getBatcher().flush();
+        String selectLast = "SELECT data_type, time FROM " + TimeSerie.TABLE_TIMESERIES_LAST + " WHERE id = ? AND type = ?;";
+        Row row = TimeSerie.getContext().execute(selectLast, id, "a").one();
+        for (int i = 0; i < 100 && row.getString(0) == null; i++) {
+            Thread.sleep(10);
+            row = TimeSerie.getContext().execute(selectLast, id, "a").one();
+        }
+        Assert.assertEquals("a", row.getString(0));
+        Assert.assertEquals(UUIDs.startOf(now - 2000), row.getUUID(1));
+        TimeSerie.getLastValues().clear();
+        Assert.assertEquals(0L, TimeSerie.getLast(id, "a").getJsonMap().get("v"));
+
+        // A newer point still replaces it
+        TimeSerie.save(id, "a", UUIDs.startOf(now - 800), "{\"v\":3}");
+        TimeSerie.getLastValues().clear();
+        Assert.assertEquals(3L, TimeSerie.getLast(id, "a").getJsonMap().get("v"));
+
+        // Series saved before the table existed
+        TimeSerie.getContext().execute("DELETE FROM " + TimeSerie.TABLE_TIMESERIES_LAST + " WHERE id = ?;", id);
+        TimeSerie.getLastValues().clear();
+        Assert.assertEquals(2L, TimeSerie.getLast(id, "b").getJsonMap().get("v"));
+    }
+
+    @Test
+    public void subscriptions() throws Exception {
+        String prefix = "mem-sub-" + UUID.randomUUID() + "-";
+        final List<TimedData> received = new ArrayList<>();
+        Subscription sync = TimeSerie.subscribe(new Subscription(new TimeSerieListener() {
+            @Override
+            public void onData(TimedData td) {
+                received.add(td);
+            }
+        }).setId(prefix + 1).setType("a").setQueue(0, Subscription.Overflow.DROP_NEWEST));
+
+        // A listener that blocks doesn't stall the saves
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final List<TimedData> slow = Collections.synchronizedList(new ArrayList<TimedData>());
+        Subscription async = TimeSerie.subscribe(new Subscription(new TimeSerieListener() {
+            @Override
+            public void onData(TimedData td) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                slow.add(td);
+            }
+        }).setIdPrefix(prefix).setQueue(5, Subscription.Overflow.DROP_OLDEST));
+
+        List<TimedData> points = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            points.add(new TimedData(prefix + (i % 2), i % 4 < 2 ? "a" : "b", new Date(), "{\"i\":" + i + "}"));
+        }
+        TimeSerie.save(points.get(0));
+        TimeSerie.save(points.get(1));
+        Assert.assertTrue(TimeSerie.saveAll(points.subList(2, 20)).get().isSuccess());
+        TimeSerie.save(new TimedData("mem-other", "a", new Date(), "{}"));
+
+        Assert.assertEquals(5, received.size());
+        Assert.assertEquals(1L, received.get(0).getJsonMap().get("i"));
+        Assert.assertEquals(17L, received.get(4).getJsonMap().get("i"));
+
+        // At most one point is being delivered, the 5 last ones are queued, the others were dropped
+        blocked.countDown();
+        for (int i = 0; i < 100 && async.getNbDelivered() + async.getNbDropped() < 20; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(20, async.getNbDelivered() + async.getNbDropped());
+        Assert.assertTrue(slow.size() == 5 || slow.size() == 6);
+        Assert.assertEquals(19L, slow.get(slow.size() - 1).getJsonMap().get("i"));
+
+        sync.close();
+        async.close();
+        TimeSerie.save(points.get(1));
+        Assert.assertEquals(5, received.size());
+    }
+
+    @Test
+    public void aggregation() throws Exception {
+        String id = "mem-aggregation-" + UUID.randomUUID();
+        long begin = 1393632000000L; // 2014-03-01
+        List<TimedData> points = new ArrayList<>();
+        double sum = 0, squares = 0;
+        for (int i = 0; i < 300; i++) {
+            Map<String, Object> pos = new TreeMap<>();
+            pos.put("lat", 48.8);
+            pos.put("spd", (long) (i % 37));
+            Map<String, Object> map = new TreeMap<>();
+            map.put("pos", pos);
+            map.put("name", "text");
+            points.add(new TimedData(id, "sen", new Date(begin + i * 1200000L), map));
+            sum += i % 37;
+            squares += (i % 37) * (i % 37);
+        }
+        Assert.assertTrue(TimeSerie.saveAll(points).get().isSuccess());
+        // Some points stored as JSON text, some without the field
+        TimeSerie.save(id, "sen", UUIDs.startOf(begin + 300 * 1200000L), "{\"pos\":{\"spd\":100}}");
+        TimeSerie.save(id, "sen", UUIDs.startOf(begin + 301 * 1200000L), "{\"pos\":{\"lat\":1}}");
+        TimeSerie.save(id, "sen", UUIDs.startOf(begin + 302 * 1200000L), "{\"pos\":{\"spd\":\"fast\"}}");
+        sum += 100;
+        squares += 100 * 100;
+
+        Date from = new Date(begin), to = new Date(begin + 5 * 24 * 3600000L);
+        List<Aggregate> total = new AggregationQuery(id, "sen", from, to).setField("pos.spd").execute();
+        Assert.assertEquals(1, total.size());
+        Aggregate all = total.get(0);
+        Assert.assertEquals(301, all.getCount());
+        Assert.assertEquals(sum, all.get(Aggregate.Function.SUM), 1e-9);
+        Assert.assertEquals(sum / 301, all.get(Aggregate.Function.AVG), 1e-9);
+        Assert.assertEquals(Math.sqrt(squares / 301 - (sum / 301) * (sum / 301)), all.get(Aggregate.Function.STDDEV), 1e-9);
+        Assert.assertEquals(0.0, all.get(Aggregate.Function.FIRST));
+        Assert.assertEquals(100.0, all.get(Aggregate.Function.LAST));
+        Assert.assertEquals(100.0, all.get(Aggregate.Function.MAX));
+        Assert.assertEquals(0.0, all.get(Aggregate.Function.MIN));
+
+        // By hour and by 2 days, in a single pass or by days in parallel
+        for (long width : new long[]{3600000L, 2 * 24 * 3600000L}) {
+            List<Aggregate> single = new AggregationQuery(id, "sen", from, to).setField("pos.spd").setBucket(width).execute();
+            List<Aggregate> parallel = new AggregationQuery(id, null, from, to).setField("pos.spd").setBucket(width).setParallelism(4).execute();
+            Assert.assertEquals(width == 3600000L ? 101 : 3, single.size());
+            Assert.assertEquals(single.size(), parallel.size());
+            for (int i = 0; i < single.size(); i++) {
+                Aggregate a = single.get(i), b = parallel.get(i);
+                Assert.assertEquals(a.getDate(), b.getDate());
+                for (Aggregate.Function f : Aggregate.Function.values()) {
+                    Assert.assertEquals(a.get(f), b.get(f), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void numericSeries() {
+        String id = "mem-numeric-" + UUID.randomUUID();
+        long begin = 1393632000000L; // 2014-03-01
+        NumericSeries series = new NumericSeries();
+        Random random = new Random(1);
+        long[] times = new long[7300];
+        double[] values = new double[times.length];
+        long time = begin;
+        double power = 230;
+        for (int i = 0; i < times.length; i++) {
+            // One sample per second with a few gaps, a slowly changing value with a few random ones
+            time += i % 100 == 99 ? 1000 + random.nextInt(5000) : 1000;
+            power += random.nextInt(3) - 1;
+            times[i] = time;
+            values[i] = i % 500 == 0 ? random.nextDouble() : power;
+            series.add(id, "power", time, values[i]);
+        }
+
+        // The samples that weren't written are read from memory
+        Assert.assertEquals(times.length, series.get(id, "power", begin, time + 1).size());
+        series.close();
+        Assert.assertEquals(0, series.getNbChunks());
+        System.out.println("NUMERIC: " + times.length + " samples in " + series.getNbBytes() + " B (" + series.getNbWrites() + " chunks)");
+        Assert.assertTrue(series.getNbBytes() < 2 * times.length);
+
+        // A late sample goes to an other chunk of its bucket
+        series.add(id, "power", times[10] + 1, -1);
+        series.close();
+
+        NumericSamples samples = new NumericSeries().get(id, "power", new Date(begin), new Date(time + 1));
+        Assert.assertEquals(times.length + 1, samples.size());
+        for (int i = 0, j = 0; i < samples.size(); i++, j++) {
+            if (i == 11) {
+                Assert.assertEquals(times[10] + 1, samples.getTime(i));
+                Assert.assertEquals(-1.0, samples.getValue(i));
+                j--;
+                continue;
+            }
+            Assert.assertEquals(times[j], samples.getTime(i));
+            Assert.assertEquals(values[j], samples.getValue(i));
+        }
+
+        // Within a range
+        long from = begin + 1800000, to = begin + 5400000;
+        int expected = 0;
+        for (long t : times) {
+            if (t >= from && t < to) {
+                expected++;
+            }
+        }
+        samples = new NumericSeries().get(id, "power", from, to);
+        Assert.assertEquals(expected, samples.size());
+        Assert.assertTrue(samples.getTime(0) >= from && samples.getTime(samples.size() - 1) < to);
+        Assert.assertEquals(0, new NumericSeries().get(id, "other", from, to).size());
+    }
+
+    @Test
+    public void rangeDelete() throws Exception {
+        // With the previous layout, its days are deleted the same way
+        deleteRanges();
+        // Without it, only the current layout
+        new TimeSerieMigration().finish();
+        try {
+            deleteRanges();
+        } finally {
+            GeneralSetting.set("timeseries_layout", 2);
+            TimeSerie.prepareTable();
+        }
+    }
+
+    private static void deleteRanges() throws Exception {
+        String id = "mem-delete-" + UUID.randomUUID();
+        long begin = 1393632000000L, hour = 3600000L, day = 24 * hour; // 2014-03-01
+        List<TimedData> points = new ArrayList<>();
+        for (int i = 0; i < 5 * 24; i++) {
+            points.add(new TimedData(id, i % 2 == 0 ? "a" : "b", new Date(begin + i * hour), "{\"i\":" + i + "}"));
+        }
+        Assert.assertTrue(TimeSerie.saveAll(points).get().isSuccess());
+
+        // Type "a" from the middle of the 1st day to the beginning of the 4th day: 2 full days and 2 time ranges
+        Date from = new Date(begin + 12 * hour), to = new Date(begin + 3 * day + 6 * hour - 1);
+        List<TimedData> expected = new ArrayList<>();
+        int deleted = 0;
+        for (TimedData td : points) {
+            if (td.getType().equals("a") && !td.getDate().before(from) && !td.getDate().after(to)) {
+                deleted++;
+            } else {
+                expected.add(td);
+            }
+        }
+        Assert.assertEquals(deleted, TimeSerie.deleteRange(id, "a", from, to));
+        assertData(expected, TimeSerie.getData(id, null, new Date(begin), new Date(begin + 5 * day), false));
+        Assert.assertEquals(60 - deleted, count(TimeSerie.getData(id, "a", new Date(begin), new Date(begin + 5 * day), false)));
+        List<String> days = new ArrayList<>();
+        for (String period : new TSPeriodIterable(id, "a", null, null, false)) {
+            days.add(period);
+        }
+        Assert.assertEquals(Arrays.asList("2014-03-01", "2014-03-04", "2014-03-05"), days);
+
+        // All the types from the 2nd day to the middle of the 5th day: 3 full days and a time range
+        from = new Date(begin + day);
+        to = new Date(begin + 4 * day + 12 * hour);
+        deleted = 0;
+        for (Iterator<TimedData> it = expected.iterator(); it.hasNext(); ) {
+            TimedData td = it.next();
+            if (!td.getDate().before(from) && !td.getDate().after(to)) {
+                it.remove();
+                deleted++;
+            }
+        }
+        Assert.assertEquals(deleted, TimeSerie.deleteRange(id, null, from, to));
+        assertData(expected, TimeSerie.getData(id, null, new Date(begin), new Date(begin + 5 * day), false));
+        days.clear();
+        for (String period : new TSPeriodIterable(id, "b", null, null, false)) {
+            days.add(period);
+        }
+        Assert.assertEquals(Arrays.asList("2014-03-01", "2014-03-05"), days);
+
+        // The last point of all the types is of an other type, it is kept
+        Assert.assertEquals(5, TimeSerie.deleteRange(id, "a", new Date(begin + 4 * day + 12 * hour), null));
+        Row row = TimeSerie.getContext().execute("SELECT data_type FROM " + TimeSerie.TABLE_TIMESERIES_LAST + " WHERE id = ? AND type = ?;", id, "").one();
+        Assert.assertEquals("b", row.getString(0));
+
+        // The deleted last point is forgotten
+        Assert.assertEquals(119L, TimeSerie.getLast(id, "b").getJsonMap().get("i"));
+        Assert.assertEquals(6, TimeSerie.deleteRange(id, "b", new Date(begin + 4 * day + 12 * hour), null));
+        // The previous points are only looked for over the last 2 years
+        TimedData last = TimeSerie.getLast(id, "b");
+        Assert.assertTrue(last == null || last.getJsonMap().get("i").equals(23L));
+        Assert.assertEquals(0, TimeSerie.deleteRange(id, "c", null, null));
+
+        // More points than the sample: the count is extrapolated, all of them are deleted
+        points.clear();
+        for (int i = 0; i < 300; i++) {
+            points.add(new TimedData(id, "c", new Date(begin + 9 * day + i * 60000L), "{}"));
+        }
+        Assert.assertTrue(TimeSerie.saveAll(points).get().isSuccess());
+        Assert.assertEquals(300, TimeSerie.deleteRange(id, "c", new Date(begin + 9 * day), new Date(begin + 10 * day - 1)));
+        Assert.assertFalse(TimeSerie.getData(id, "c").iterator().hasNext());
+    }
+
+    @Test
+    public void periodCache() {
+        String id = "mem-periods-" + UUID.randomUUID();
+        long begin = 1393632000000L, day = 24 * 3600000L; // 2014-03-01
+        for (int i = 0; i < 3; i++) {
+            TimeSerie.save(new TimedData(id, "t", new Date(begin + i * day), "{\"i\":" + i + "}"));
+        }
+        PeriodCache cache = TimeSerie.getPeriodCache();
+        Date from = new Date(begin), to = new Date(begin + 10 * day);
+        long misses = cache.getNbMisses(), hits = cache.getNbHits();
+        Assert.assertEquals(Arrays.asList("2014-03-03", "2014-03-02", "2014-03-01"), periods(id, "t", from, to, true));
+        Assert.assertEquals(misses + 1, cache.getNbMisses());
+
+        // The past days are listed from the cache, with the ones saved by this process
+        TimeSerie.save(new TimedData(id, "t", new Date(begin + 5 * day), "{\"i\":5}"));
+        Assert.assertEquals(Arrays.asList("2014-03-02", "2014-03-03", "2014-03-06"), periods(id, "t", new Date(begin + day), to, false));
+        Assert.assertEquals(4, count(TimeSerie.getData(id, "t", from, to, false)));
+        Assert.assertEquals(misses + 1, cache.getNbMisses());
+        Assert.assertEquals(hits + 2, cache.getNbHits());
+
+        // Only the days of the first read were loaded, a read that begins before them extends them
+        DB.execute("INSERT INTO " + TimeSerie.TABLE_TIMESERIES_INDEX + " ( id, type, date ) VALUES( ?, ?, ? );", id, "t", "2014-02-20");
+        Assert.assertEquals(Arrays.asList("2014-02-20", "2014-03-01"), periods(id, "t", new Date(begin - 10 * day), new Date(begin), false));
+        Assert.assertEquals(misses + 2, cache.getNbMisses());
+        Assert.assertEquals(Arrays.asList("2014-03-06", "2014-03-03", "2014-03-02", "2014-03-01", "2014-02-20"), periods(id, "t", new Date(begin - 9 * day), to, true));
+        Assert.assertEquals(misses + 2, cache.getNbMisses());
+
+        // The last days are read again (an other process saved a point today)
+        java.text.SimpleDateFormat format = new java.text.SimpleDateFormat("yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String today = format.format(new Date());
+        cache.setLimits(10000, 0);
+        try {
+            DB.execute("INSERT INTO " + TimeSerie.TABLE_TIMESERIES_INDEX + " ( id, type, date ) VALUES( ?, ?, ? );", id, "t", today);
+            Assert.assertTrue(periods(id, "t", from, null, false).size() >= 4);
+            Assert.assertEquals(misses + 3, cache.getNbMisses());
+        } finally {
+            cache.setLimits(10000, 10000);
+        }
+
+        // Without cache
+        cache.setLimits(0, 10000);
+        try {
+            Assert.assertEquals(Arrays.asList("2014-03-01", "2014-03-02"), periods(id, "t", from, new Date(begin + day), false));
+        } finally {
+            cache.setLimits(10000, 10000);
+        }
+    }
+
+    private static List<String> periods(String id, String type, Date from, Date to, boolean inverted) {
+        List<String> periods = new ArrayList<>();
+        for (String period : new TSPeriodIterable(id, type, from, to, inverted)) {
+            periods.add(period);
+        }
+        return periods;
+    }
+
+    private static int count(Iterable<?> iterable) {
+        int nb = 0;
+        for (Object o : iterable) {
+            nb++;
+        }
+        return nb;
+    }
+
+    private static void assertData(List<TimedData> expected, Iterable<TimedData> actual) {
+        List<String> a = new ArrayList<>(), b = new ArrayList<>();
+        for (TimedData td : expected) {
+            a.add(td.getType() + "/" + td.getData());
+        }
+        for (TimedData td : actual) {
+            b.add(td.getType() + "/" + td.getData());
+        }
+        Assert.assertEquals(a, b);
+    }
+}
@@ -0,0 +1,219 @@
+package org.m2mp.db.test;
+
+import junit.framework.Assert;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+import org.m2mp.db.ts.BinaryPayloadCodec;
+import org.m2mp.db.ts.PayloadCodec;
+import org.m2mp.db.ts.TimedData;
+import org.m2mp.db.ts.TimedDataWrapper;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Tests and benchmark of the payload codec (no cassandra required).
+ */
+public class PayloadCodecTest {
+
+    private static final int NB_POINTS = 20000;
+    private final PayloadCodec codec = new BinaryPayloadCodec();
+
+    private Object decode(ByteBuffer payload) {
+        ByteBuffer in = payload.duplicate();
+        Assert.assertEquals(codec.getId(), in.get() & 0xFF);
+        return codec.decode(in);
+    }
+
+    private static Map<String, Object> sensor(Random random) {
+        Map<String, Object> map = new TreeMap<>();
+        // GPS coordinates have 6 decimals
+        map.put("lat", Math.round((48.8 + random.nextDouble()) * 1e6) / 1e6);
+        map.put("lon", Math.round((2.3 + random.nextDouble()) * 1e6) / 1e6);
+        map.put("spd", (long) random.nextInt(130));
+        map.put("alt", (long) random.nextInt(500) - 20);
+        map.put("sat", (long) random.nextInt(12));
+        map.put("temp", Math.round(random.nextDouble() * 400) / 10.0);
+        map.put("ign", random.nextBoolean());
+        return map;
+    }
+
+    @Test
+    public void roundTrip() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("long", Long.MIN_VALUE);
+        map.put("int", -12);
+        map.put("double", 0.1);
+        map.put("decimal", -48.853412);
+        map.put("precise", Math.PI);
+        map.put("negativeZero", -0.0);
+        map.put("float", 0.1f);
+        map.put("text", "été ☃");
+        map.put("empty", "");
+        map.put("bool", true);
+        map.put("null", null);
+        map.put("list", Arrays.asList(1L, "two", 3.0));
+        map.put("map", Collections.singletonMap("a", Collections.singletonMap("b", 2L)));
+
+        // We get exactly what json-simple would have parsed
+        Object expected = JSONValue.parse(JSONValue.toJSONString(map));
+        Assert.assertEquals(expected, decode(codec.encode(map)));
+        Assert.assertEquals(expected, new TimedData("id", "type", new Date(), map).getJsonObject());
+        Assert.assertEquals(42L, decode(codec.encode(42)));
+        Assert.assertEquals("text", decode(codec.encode("text")));
+    }
+
+    @Test
+    public void fallback() {
+        Map<String, Object> map = new TreeMap<>();
+        map.put("value", new BigDecimal("1.000000000000000000001"));
+        Assert.assertNull(codec.encode(map));
+
+        // The data is stored as JSON text
+        TimedData td = new TimedData("id", "type", new Date(), map);
+        Assert.assertEquals(0, td.getPayload().get(0));
+        Assert.assertEquals("{\"value\":1.000000000000000000001}", td.getData());
+
+        td = new TimedData("id", "type", new Date(), "{\"value\":1}");
+        Assert.assertEquals(0, td.getPayload().get(0));
+        Assert.assertEquals(1L, td.getJsonMap().get("value"));
+    }
+
+    @Test
+    public void benchmark() {
+        Random random = new Random(1);
+        List<String> texts = new ArrayList<>(NB_POINTS);
+        List<ByteBuffer> payloads = new ArrayList<>(NB_POINTS);
+        long textSize = 0, payloadSize = 0;
+        for (int i = 0; i < NB_POINTS; i++) {
+            Map<String, Object> map = sensor(random);
+            String text = JSONValue.toJSONString(map);
+            ByteBuffer payload = codec.encode(map);
+            texts.add(text);
+            payloads.add(payload);
+            textSize += text.length();
+            payloadSize += payload.remaining();
+        }
+
+        long sum = 0;
+        for (int round = 0; round < 3; round++) {
+            long before = System.nanoTime();
+            for (String text : texts) {
+                sum += ((Map) JSONValue.parse(text)).size();
+            }
+            long json = System.nanoTime() - before;
+            before = System.nanoTime();
+            for (ByteBuffer payload : payloads) {
+                sum += ((Map) decode(payload)).size();
+            }
+            long binary = System.nanoTime() - before;
+            System.out.println(String.format("PAYLOAD: round %d, decoding: json = %.2f us, binary = %.2f us (x%.1f)", round, (double) json / NB_POINTS / 1000, (double) binary / NB_POINTS / 1000, (double) json / binary));
+        }
+        System.out.println(String.format("PAYLOAD: size: json = %.1f B, binary = %.1f B (x%.1f)", (double) textSize / NB_POINTS, (double) payloadSize / NB_POINTS, (double) textSize / payloadSize));
+        Assert.assertEquals(NB_POINTS * 7 * 6, sum);
+        Assert.assertTrue(payloadSize * 4 < textSize * 3);
+    }
+
+    @Test
+    public void fields() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", "a \"quoted\" {text}");
+        map.put("list", Arrays.asList(1L, "]", Collections.singletonMap("spd", 3L)));
+        map.put("pos", Collections.singletonMap("spd", 12.5));
+        map.put("spd", 42L);
+        map.put("dotted.key", true);
+        String text = JSONValue.toJSONString(map);
+        for (TimedData td : new TimedData[]{new TimedData("id", "type", new Date(), map), new TimedData("id", "type", new Date(), text)}) {
+            Assert.assertEquals(42L, td.getField("spd"));
+            Assert.assertEquals(12.5, td.getField("pos.spd"));
+            Assert.assertEquals("a \"quoted\" {text}", td.getField("name"));
+            Assert.assertEquals(JSONValue.parse("[1,\"]\",{\"spd\":3}]"), td.getField("list"));
+            Assert.assertNull(td.getField("pos.lat"));
+            Assert.assertNull(td.getField("spd.value"));
+            Assert.assertNull(td.getField("unknown"));
+
+            TimedDataWrapper tdw = new TimedDataWrapper(td);
+            Assert.assertEquals(42L, (long) tdw.getLong("spd"));
+            Assert.assertTrue(tdw.getBoolean("dotted.key"));
+            tdw.set("spd", 43L);
+            Assert.assertEquals(43L, (long) tdw.getLong("spd"));
+            // The wrapper has its own copy
+            Assert.assertEquals(42L, td.getField("spd"));
+            // The decoded data is read-only, getJsonObject() and getJsonMap() return a copy
+            Assert.assertEquals(td.getReadOnlyJsonMap(), td.getJsonObject());
+            Assert.assertNotSame(td.getJsonObject(), td.getJsonObject());
+            td.getJsonMap().put("spd", 44L);
+            Assert.assertEquals(42L, td.getField("spd"));
+            try {
+                td.getReadOnlyJsonMap().put("spd", 44L);
+                Assert.fail();
+            } catch (UnsupportedOperationException ex) {
+                // This is expected
+            }
+            Assert.assertEquals(42L, td.getField("spd"));
+        }
+        Assert.assertEquals(12L, new TimedData("id", "type", new Date(), " 12 ").getField("value"));
+        Assert.assertNull(new TimedData("id", "type", new Date(), "{ }").getField("value"));
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void fieldBenchmark() {
+        Random random = new Random(2);
+        List<TimedData> texts = new ArrayList<>(NB_POINTS), payloads = new ArrayList<>(NB_POINTS);
+        for (int i = 0; i < NB_POINTS; i++) {
+            Map<String, Object> map = sensor(random);
+            texts.add(new TimedData("id", "type", new Date(), JSONValue.toJSONString(map)));
+            payloads.add(new TimedData("id", "type", new Date(), map));
+        }
+
+        long sum = 0, before, parsed = 0, extracted = 0;
+        for (int round = 0; round < 3; round++) {
+            for (List<TimedData> points : Arrays.asList(texts, payloads)) {
+                // Alerting: a single field of each point
+                before = allocated();
+                long time = System.nanoTime();
+                for (TimedData td : points) {
+                    sum += (Long) ((Map) JSONValue.parse(td.getData())).get("spd");
+                }
+                long parseTime = System.nanoTime() - time;
+                parsed = allocated() - before;
+                before = allocated();
+                time = System.nanoTime();
+                for (TimedData td : points) {
+                    sum -= (Long) td.getField("spd");
+                }
+                long fieldTime = System.nanoTime() - time;
+                extracted = allocated() - before;
+                System.out.println(String.format("FIELD: round %d, %s: parse = %.2f us / %d B, field = %.2f us / %d B", round, points == texts ? "text" : "binary",
+                        (double) parseTime / NB_POINTS / 1000, parsed / NB_POINTS, (double) fieldTime / NB_POINTS / 1000, extracted / NB_POINTS));
+                Assert.assertTrue(extracted * 2 < parsed);
+            }
+        }
+        Assert.assertEquals(0, sum);
+
+        // Export: the map is requested a few times per point, it's only decoded once
+        before = allocated();
+        for (TimedData td : texts) {
+            for (int i = 0; i < 3; i++) {
+                sum += td.getReadOnlyJsonMap().size();
+            }
+        }
+        long first = allocated() - before;
+        before = allocated();
+        for (TimedData td : texts) {
+            for (int i = 0; i < 3; i++) {
+                sum += td.getReadOnlyJsonMap().size();
+            }
+        }
+        long cached = allocated() - before;
+        System.out.println(String.format("FIELD: export: first = %d B, cached = %d B", first / NB_POINTS, cached / NB_POINTS));
+        Assert.assertEquals(NB_POINTS * 7 * 6, sum);
+        Assert.assertTrue(cached * 10 < first);
+    }
+}
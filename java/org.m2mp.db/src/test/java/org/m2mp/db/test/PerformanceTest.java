@@ -55,4 +55,25 @@ public class PerformanceTest {
         long spent = System.currentTimeMillis() - before;
         System.out.println("IWONDER: Time per test = " + ((double) spent / NB_TESTS) + " ms");
     }
+
+    @Test
+    public void compareModes() {
+        GeneralSetting.set("mode-test", "value");
+        try {
+            for (DB.Mode mode : new DB.Mode[]{DB.Mode.Nearest, DB.Mode.TokenAware, DB.Mode.TokenAwareNearest}) {
+                DB.stop();
+                DB.setMode(mode);
+                DB.keyspace("ks_test", false);
+                long before = System.currentTimeMillis();
+                for (int i = 0; i < NB_TESTS; i++) {
+                    GeneralSetting.get("mode-test", null);
+                }
+                long spent = System.currentTimeMillis() - before;
+                System.out.println("MODE " + mode + ": Time per test = " + ((double) spent / NB_TESTS) + " ms");
+            }
+        } finally {
+            DB.stop();
+            General.setUpClass();
+        }
+    }
 }